@@ -8,11 +8,14 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static org.hamcrest.Matchers.allOf;
 
 import com.google.android.apps.common.testing.ui.espresso.action.AdapterDataLoaderAction;
+import com.google.android.apps.common.testing.ui.espresso.action.AdapterMatchCache;
 import com.google.android.apps.common.testing.ui.espresso.action.AdapterViewProtocol;
 import com.google.android.apps.common.testing.ui.espresso.action.AdapterViewProtocol.AdaptedData;
 import com.google.android.apps.common.testing.ui.espresso.action.AdapterViewProtocols;
 import com.google.android.apps.common.testing.ui.espresso.matcher.RootMatchers;
+import com.google.android.apps.common.testing.ui.espresso.matcher.ScopedViewMatcher;
 import com.google.common.base.Optional;
+import com.google.common.collect.Sets;
 
 import android.view.View;
 import android.view.ViewParent;
@@ -23,6 +26,10 @@ import org.hamcrest.Description;
 import org.hamcrest.Matcher;
 import org.hamcrest.TypeSafeMatcher;
 
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
 /**
  * An interface to interact with data displayed in AdapterViews.
  * <p>
@@ -130,8 +137,11 @@ public class DataInteraction {
   }
 
   private AdapterDataLoaderAction load() {
-    AdapterDataLoaderAction adapterDataLoaderAction =
-       new AdapterDataLoaderAction(dataMatcher, atPosition, adapterViewProtocol);
+    Optional<AdapterMatchCache> matchCache = IdlingPolicies.getDataMatchCaching()
+        ? Optional.of(Espresso.espressoGraph().get(AdapterMatchCache.class))
+        : Optional.<AdapterMatchCache>absent();
+    AdapterDataLoaderAction adapterDataLoaderAction = new AdapterDataLoaderAction(
+        dataMatcher, atPosition, adapterViewProtocol, matchCache);
     onView(adapterMatcher)
       .inRoot(rootMatcher)
       .perform(adapterDataLoaderAction);
@@ -156,36 +166,136 @@ public class DataInteraction {
     checkNotNull(adapterMatcher);
     checkNotNull(dataMatcher);
     checkNotNull(adapterViewProtocol);
+    return new DisplayingDataMatcher(adapterMatcher, dataMatcher, adapterViewProtocol,
+        checkNotNull(adapterDataLoaderAction));
+  }
+
+  /**
+   * Matches the view rendering the loaded data.
+   * <p>
+   * That view is looked up among the children of the adapter view the data was loaded into, and
+   * remembered until the adapter view scrolls or its children change. Searches only descend
+   * towards it. Protocols may render data deeper than the adapter view's children: if none of them
+   * renders it, every view under a matching adapter view is checked with the protocol instead.
+   */
+  static final class DisplayingDataMatcher extends TypeSafeMatcher<View>
+      implements ScopedViewMatcher {
+    private final Matcher<View> adapterMatcher;
+    private final Matcher<Object> dataMatcher;
+    private final AdapterViewProtocol adapterViewProtocol;
+    private final AdapterDataLoaderAction adapterDataLoaderAction;
+
+    // the last lookup, and the state of the adapter view it was done in.
+    private boolean lookedUp;
+    private int lookedUpFirstPosition;
+    private int lookedUpChildCount;
+    private int renderingIndex;
+    private View renderingView;
+    private final Set<View> renderingViewAncestors = Sets.newIdentityHashSet();
 
-    return new TypeSafeMatcher<View>() {
-      @Override
-      public void describeTo(Description description) {
-        description.appendText(" displaying data matching: ");
-        dataMatcher.describeTo(description);
-        description.appendText(" within adapter view matching: ");
-        adapterMatcher.describeTo(description);
+    DisplayingDataMatcher(Matcher<View> adapterMatcher, Matcher<Object> dataMatcher,
+        AdapterViewProtocol adapterViewProtocol,
+        AdapterDataLoaderAction adapterDataLoaderAction) {
+      this.adapterMatcher = adapterMatcher;
+      this.dataMatcher = dataMatcher;
+      this.adapterViewProtocol = adapterViewProtocol;
+      this.adapterDataLoaderAction = adapterDataLoaderAction;
+    }
+
+    @Override
+    public void describeTo(Description description) {
+      description.appendText(" displaying data matching: ");
+      dataMatcher.describeTo(description);
+      description.appendText(" within adapter view matching: ");
+      adapterMatcher.describeTo(description);
+    }
+
+    @Override
+    public boolean matchesSafely(View view) {
+      View rendering = renderingView();
+      if (null != rendering) {
+        return view == rendering;
       }
+      return isRenderingDescendant(view);
+    }
+
+    @Override
+    public boolean mayMatchWithin(View subtreeRoot) {
+      View rendering = renderingView();
+      return null == rendering || subtreeRoot == rendering
+          || renderingViewAncestors.contains(subtreeRoot);
+    }
 
-      @SuppressWarnings("unchecked")
-      @Override
-      public boolean matchesSafely(View view) {
+    @Override
+    public Matcher<View> getRequiredAncestor() {
+      return null;
+    }
+
+    /**
+     * Returns the child of the adapter view rendering the loaded data, or null if none does.
+     */
+    @Nullable
+    private View renderingView() {
+      AdapterView<? extends Adapter> adapterView = adapterDataLoaderAction.getAdapterView();
+      if (lookedUp && lookedUpFirstPosition == adapterView.getFirstVisiblePosition()
+          && lookedUpChildCount == adapterView.getChildCount()
+          && (null == renderingView || adapterView.getChildAt(renderingIndex) == renderingView)) {
+        return renderingView;
+      }
+      lookedUp = true;
+      lookedUpFirstPosition = adapterView.getFirstVisiblePosition();
+      lookedUpChildCount = adapterView.getChildCount();
+      renderingView = null;
+      renderingViewAncestors.clear();
 
-        ViewParent parent = view.getParent();
+      Object token = adapterDataLoaderAction.getAdaptedData().opaqueToken;
+      // the standard protocol's tokens are positions: try the child at that position first.
+      if (token instanceof Integer) {
+        int index = (Integer) token - lookedUpFirstPosition;
+        if (index >= 0 && index < lookedUpChildCount && renders(adapterView, index, token)) {
+          return renderingView;
+        }
+      }
+      for (int i = 0; i < lookedUpChildCount; i++) {
+        if (renders(adapterView, i, token)) {
+          return renderingView;
+        }
+      }
+      return null;
+    }
 
-        while (parent != null && !(parent instanceof AdapterView)) {
-          parent = parent.getParent();
+    private boolean renders(AdapterView<? extends Adapter> adapterView, int index, Object token) {
+      View child = adapterView.getChildAt(index);
+      Optional<AdaptedData> data = adapterViewProtocol.getDataRenderedByView(adapterView, child);
+      if (data.isPresent() && token.equals(data.get().opaqueToken)) {
+        renderingIndex = index;
+        renderingView = child;
+        for (ViewParent parent = adapterView; parent instanceof View;
+            parent = parent.getParent()) {
+          renderingViewAncestors.add((View) parent);
         }
+        return true;
+      }
+      return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean isRenderingDescendant(View view) {
+      ViewParent parent = view.getParent();
 
-        if (parent != null && adapterMatcher.matches(parent)) {
-          Optional<AdaptedData> data = adapterViewProtocol.getDataRenderedByView(
-              (AdapterView<? extends Adapter>) parent, view);
-          if (data.isPresent()) {
-            return adapterDataLoaderAction.getAdaptedData().opaqueToken.equals(
-                data.get().opaqueToken);
-          }
+      while (parent != null && !(parent instanceof AdapterView)) {
+        parent = parent.getParent();
+      }
+
+      if (parent != null && adapterMatcher.matches(parent)) {
+        Optional<AdaptedData> data = adapterViewProtocol.getDataRenderedByView(
+            (AdapterView<? extends Adapter>) parent, view);
+        if (data.isPresent()) {
+          return adapterDataLoaderAction.getAdaptedData().opaqueToken.equals(
+              data.get().opaqueToken);
         }
-        return false;
       }
-    };
+      return false;
+    }
   }
 }
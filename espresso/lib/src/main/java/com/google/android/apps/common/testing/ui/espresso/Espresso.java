@@ -1,20 +1,29 @@
 package com.google.android.apps.common.testing.ui.espresso;
 
+import android.app.Activity;
 import android.content.Context;
 import android.os.Build;
 import android.os.Looper;
 import android.view.View;
 import android.view.ViewConfiguration;
 
+import com.google.android.apps.common.testing.ui.espresso.action.AdapterMatchCache;
 import com.google.android.apps.common.testing.ui.espresso.action.ViewActions;
 import com.google.android.apps.common.testing.ui.espresso.base.BaseLayerModule;
+import com.google.android.apps.common.testing.ui.espresso.base.HierarchySnapshotter;
 import com.google.android.apps.common.testing.ui.espresso.base.IdlingResourceRegistry;
+import com.google.android.apps.common.testing.ui.espresso.base.MainLooperTimeWarp;
+import com.google.android.apps.common.testing.ui.espresso.base.ScreenshotPipeline;
 import com.google.android.apps.common.testing.ui.espresso.base.Screenshotter;
 import com.google.android.apps.common.testing.ui.espresso.util.TreeIterables;
+import com.google.common.collect.ImmutableList;
 
 import org.hamcrest.Matcher;
 
 import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import dagger.ObjectGraph;
 
@@ -54,6 +63,39 @@ public final class Espresso {
         return espressoGraph().plus(new ViewInteractionModule(viewMatcher)).get(ViewInteraction.class);
     }
 
+    /**
+     * Creates a {@link MultiViewInteraction} for the views selected by the given matchers, which
+     * checks all of them in a single pass over the view hierarchy. The same restriction as for
+     * {@link #onView} applies: the views have to be part of the view hierarchy.
+     *
+     * @param viewMatchers used to select the views, one view per matcher.
+     */
+    public static MultiViewInteraction onViews(List<Matcher<View>> viewMatchers) {
+        checkNotNull(viewMatchers);
+        return espressoGraph().plus(new MultiViewInteractionModule(viewMatchers))
+                .get(MultiViewInteraction.class);
+    }
+
+    /**
+     * Creates a {@link MultiViewInteraction} for the two views selected by the given matchers.
+     * Spelled out rather than taking varargs, which cannot be generic without unchecked warnings.
+     *
+     * @see #onViews(List)
+     */
+    public static MultiViewInteraction onViews(Matcher<View> first, Matcher<View> second) {
+        return onViews(ImmutableList.of(first, second));
+    }
+
+    /**
+     * Creates a {@link MultiViewInteraction} for the three views selected by the given matchers.
+     *
+     * @see #onViews(List)
+     */
+    public static MultiViewInteraction onViews(Matcher<View> first, Matcher<View> second,
+            Matcher<View> third) {
+        return onViews(ImmutableList.of(first, second, third));
+    }
+
     public static void waitForIdle() {
 //        espressoGraph().get(UiController.class).loopMainThreadUntilIdle();
         onView(isRoot()).waitForIdle();
@@ -94,6 +136,35 @@ public final class Espresso {
         espressoGraph().get(IdlingResourceRegistry.class).registerLooper(looper, considerWaitIdle);
     }
 
+    /**
+     * Registers an ExecutorService for idle checking with the framework, so background work
+     * submitted to it is waited for. The executor has to be a ThreadPoolExecutor (this includes
+     * ScheduledThreadPoolExecutor) or one of the wrappers around it returned by
+     * {@link java.util.concurrent.Executors}. Delayed tasks due more than a second from now are
+     * ignored until they get closer.
+     *
+     * @return the resource representing the executor, e.g. to unregister it later.
+     * @throws IllegalArgumentException if the executor cannot be instrumented.
+     */
+    public static IdlingResource registerExecutorAsIdlingResource(ExecutorService executor) {
+        return registerExecutorAsIdlingResource(executor, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Registers an ExecutorService for idle checking with the framework, ignoring delayed tasks due
+     * further than the given horizon in the future.
+     *
+     * @see #registerExecutorAsIdlingResource(ExecutorService)
+     */
+    public static IdlingResource registerExecutorAsIdlingResource(ExecutorService executor,
+                                                                  long delayHorizon,
+                                                                  TimeUnit unit) {
+        checkNotNull(executor);
+        checkNotNull(unit);
+        return espressoGraph().get(IdlingResourceRegistry.class)
+                .registerExecutor(executor, delayHorizon, unit);
+    }
+
     /**
      * Registers one or more {@link IdlingResource}s with the framework. It is expected, although not
      * strictly required, that this method will be called at test setup time prior to any interaction
@@ -109,6 +180,45 @@ public final class Espresso {
         }
     }
 
+    /**
+     * Unregisters {@link IdlingResource}s previously registered with the framework.
+     */
+    public static void unregisterIdlingResources(IdlingResource... resources) {
+        checkNotNull(resources);
+        IdlingResourceRegistry registry = espressoGraph().get(IdlingResourceRegistry.class);
+        for (IdlingResource resource : resources) {
+            registry.unregister(resource);
+        }
+    }
+
+    /**
+     * Registers {@link IdlingResource}s that are unregistered automatically once the current test
+     * ends.
+     */
+    public static void registerIdlingResourcesForTest(IdlingResource... resources) {
+        checkNotNull(resources);
+        IdlingResourceRegistry registry = espressoGraph().get(IdlingResourceRegistry.class);
+        for (IdlingResource resource : resources) {
+            checkNotNull(resource.getName(), "IdlingResource.getName() should not be null");
+            registry.registerForTest(resource);
+        }
+    }
+
+    /**
+     * Registers {@link IdlingResource}s that are unregistered automatically once the given activity
+     * is destroyed.
+     */
+    public static void registerIdlingResourcesForActivity(Activity activity,
+                                                          IdlingResource... resources) {
+        checkNotNull(activity);
+        checkNotNull(resources);
+        IdlingResourceRegistry registry = espressoGraph().get(IdlingResourceRegistry.class);
+        for (IdlingResource resource : resources) {
+            checkNotNull(resource.getName(), "IdlingResource.getName() should not be null");
+            registry.registerForActivity(activity, resource);
+        }
+    }
+
     /**
      * Changes the default {@link FailureHandler} to the given one.
      */
@@ -167,6 +277,38 @@ public final class Espresso {
         espressoGraph().get(Screenshotter.class).snapToFile(path);
     }
 
+    /**
+     * Returns the pipeline capturing interaction screenshots, e.g. to read its capture and encode
+     * timings. The capture policy is set via {@link IdlingPolicies#setScreenshotPolicy}.
+     */
+    public static ScreenshotPipeline screenshotPipeline() {
+        return espressoGraph().get(ScreenshotPipeline.class);
+    }
+
+    /**
+     * Returns the snapshotter used by view checks, e.g. to read how long captures hold the main
+     * thread. Snapshot checks are enabled via {@link IdlingPolicies#setSnapshotChecks}.
+     */
+    public static HierarchySnapshotter hierarchySnapshotter() {
+        return espressoGraph().get(HierarchySnapshotter.class);
+    }
+
+    /**
+     * Returns the cache of {@code onData} matches, e.g. to read its hit and miss counts. Caching is
+     * controlled via {@link IdlingPolicies#setDataMatchCaching}.
+     */
+    public static AdapterMatchCache adapterMatchCache() {
+        return espressoGraph().get(AdapterMatchCache.class);
+    }
+
+    /**
+     * Returns the time warp of the main looper, e.g. to read how much wall time it skipped. Time
+     * warping is enabled via {@link IdlingPolicies#setTimeWarpPolicy}.
+     */
+    public static MainLooperTimeWarp mainLooperTimeWarp() {
+        return espressoGraph().get(MainLooperTimeWarp.class);
+    }
+
     /**
      * Opens the overflow menu displayed within an ActionBar.
      *
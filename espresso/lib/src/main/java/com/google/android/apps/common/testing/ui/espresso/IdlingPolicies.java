@@ -43,6 +43,16 @@ public final class IdlingPolicies {
 
     private static volatile ViewAssertion viewPerformPrecondition = matches(isDisplayed());
 
+    private static volatile ScreenshotPolicy screenshotPolicy = ScreenshotPolicy.everyNth(1);
+
+    private static volatile boolean snapshotChecks = false;
+
+    private static volatile TimeWarpPolicy timeWarpPolicy = TimeWarpPolicy.disabled();
+
+    private static volatile boolean dataMatchCaching = false;
+
+    private static volatile boolean parallelDataMatching = false;
+
     /**
      * Updates the IdlingPolicy used in UiController.loopUntil to detect AppNotIdleExceptions.
      *
@@ -100,6 +110,83 @@ public final class IdlingPolicies {
         IdlingPolicies.viewPerformPrecondition = viewPerformPrecondition;
     }
 
+    public static ScreenshotPolicy getScreenshotPolicy() {
+        return screenshotPolicy;
+    }
+
+    /**
+     * Updates the policy deciding which interactions are captured as screenshots.
+     *
+     * @param policy the policy applied to subsequent perform and check calls.
+     */
+    public static void setScreenshotPolicy(ScreenshotPolicy policy) {
+        screenshotPolicy = checkNotNull(policy);
+    }
+
+    public static boolean getSnapshotChecks() {
+        return snapshotChecks;
+    }
+
+    /**
+     * Lets view checks hold the main thread only to capture a snapshot of the hierarchy, then find
+     * the view and run the assertion on the test thread. Only applies when the view matcher and the
+     * assertion both support snapshots; any other check, and any check failing on the snapshot,
+     * runs on the live hierarchy as usual.
+     *
+     * @param enabled true to check snapshots where possible.
+     */
+    public static void setSnapshotChecks(boolean enabled) {
+        snapshotChecks = enabled;
+    }
+
+    public static TimeWarpPolicy getTimeWarpPolicy() {
+        return timeWarpPolicy;
+    }
+
+    /**
+     * Updates the policy deciding which delayed main thread messages are fast-forwarded rather than
+     * waited for. The wall time skipped is reported by {@link Espresso#mainLooperTimeWarp()}.
+     *
+     * @param policy the policy applied to subsequent loops of the main thread.
+     */
+    public static void setTimeWarpPolicy(TimeWarpPolicy policy) {
+        timeWarpPolicy = checkNotNull(policy);
+    }
+
+    public static boolean getDataMatchCaching() {
+        return dataMatchCaching;
+    }
+
+    /**
+     * Lets {@code onData} lookups reuse the items found to match the same data matcher instance in
+     * the same adapter, until the adapter reports a change. Off by default; only worth turning on
+     * when matchers are reused across lookups, and only for adapters notifying their observers of
+     * every change.
+     *
+     * @param enabled true to remember data matches.
+     */
+    public static void setDataMatchCaching(boolean enabled) {
+        dataMatchCaching = enabled;
+    }
+
+    public static boolean getParallelDataMatching() {
+        return parallelDataMatching;
+    }
+
+    /**
+     * Lets {@code onData} copy the adapter's items on the main thread, then evaluate the data
+     * matcher over them in parallel off it. Only applies to matchers declared thread safe, see
+     * {@link com.google.android.apps.common.testing.ui.espresso.matcher.DataMatchers#threadSafe},
+     * and to adapters large enough to be worth it. The items have to be distinct objects which
+     * don't change while matched: adapters over a {@link android.database.Cursor}, or handing out
+     * the same object for consecutive positions, are scanned in order on the main thread.
+     *
+     * @param enabled true to match data in parallel where possible.
+     */
+    public static void setParallelDataMatching(boolean enabled) {
+        parallelDataMatching = enabled;
+    }
+
     public static IdlingPolicy getMasterIdlingPolicy() {
         return masterIdlingPolicy;
     }
@@ -0,0 +1,203 @@
+package com.google.android.apps.common.testing.ui.espresso;
+
+import android.view.View;
+
+import com.google.android.apps.common.testing.ui.espresso.base.MainThread;
+import com.google.android.apps.common.testing.ui.espresso.base.MultiViewFinder;
+import com.google.android.apps.common.testing.ui.espresso.base.ScreenshotPipeline;
+import com.google.android.apps.common.testing.ui.espresso.matcher.RootMatchers;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+import org.hamcrest.Matcher;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Checks several views at once: each view is identified by one of the view matchers, and all of
+ * them are looked up together after a single wait for the application to be idle, through the
+ * view index where it can answer the matcher and else in a single traversal of the view
+ * hierarchy. All the checks then run in the same task on the UI thread, and every
+ * failing one is reported together in a {@link ViewChecksFailedException}.
+ * <p>
+ * Lookups fail as in {@link ViewInteraction}, with an {@link AmbiguousViewMatcherException} or a
+ * {@link NoMatchingViewException} per matcher, and failing checks are retried as the hierarchy
+ * changes until the check timeout.
+ */
+public final class MultiViewInteraction {
+
+    private static final String TAG = MultiViewInteraction.class.getSimpleName();
+
+    private final UiController uiController;
+    private final MultiViewFinder viewFinder;
+    private final Executor mainThreadExecutor;
+    private final FailureHandler failureHandler;
+    private final List<Matcher<View>> viewMatchers;
+    private final AtomicReference<Matcher<Root>> rootMatcherRef;
+    private final Provider<List<Root>> rootsOracle;
+    private final ScreenshotPipeline screenshotPipeline;
+
+    private double timeout;
+
+    @Inject
+    MultiViewInteraction(
+            UiController uiController,
+            MultiViewFinder viewFinder,
+            @MainThread Executor mainThreadExecutor,
+            FailureHandler failureHandler,
+            List<Matcher<View>> viewMatchers,
+            AtomicReference<Matcher<Root>> rootMatcherRef,
+            Provider<List<Root>> rootsOracle,
+            ScreenshotPipeline screenshotPipeline) {
+        this.uiController = checkNotNull(uiController);
+        this.viewFinder = checkNotNull(viewFinder);
+        this.mainThreadExecutor = checkNotNull(mainThreadExecutor);
+        this.failureHandler = checkNotNull(failureHandler);
+        this.viewMatchers = checkNotNull(viewMatchers);
+        this.rootMatcherRef = checkNotNull(rootMatcherRef);
+        this.rootsOracle = checkNotNull(rootsOracle);
+        this.screenshotPipeline = checkNotNull(screenshotPipeline);
+
+        this.timeout = IdlingPolicies.getViewCheckTimeout();
+    }
+
+    /**
+     * Makes this interaction scoped to the root selected by the given root matcher.
+     */
+    public MultiViewInteraction inRoot(Matcher<Root> rootMatcher) {
+        this.rootMatcherRef.set(checkNotNull(rootMatcher));
+        return this;
+    }
+
+    public MultiViewInteraction inRoots(Matcher<Root> rootMatcher) {
+        this.rootMatcherRef.set(new RootMatchers.MultiRootMatcher(rootMatcher));
+        return this;
+    }
+
+    public MultiViewInteraction waitFor(double timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Checks the given {@link ViewAssertion} on every view selected by the view matchers.
+     *
+     * @param viewAssert the assertion to perform.
+     * @return this interaction for further verification calls.
+     */
+    public MultiViewInteraction check(ViewAssertion viewAssert) {
+        checkNotNull(viewAssert);
+        return checkEach(Collections.nCopies(viewMatchers.size(), viewAssert));
+    }
+
+    /**
+     * Checks one {@link ViewAssertion} per view matcher, on the view it selects: the first
+     * assertion on the view of the first matcher and so on.
+     *
+     * @param viewAsserts as many assertions as there are view matchers.
+     * @return this interaction for further verification calls.
+     */
+    public MultiViewInteraction checkEach(ViewAssertion... viewAsserts) {
+        checkNotNull(viewAsserts);
+        return checkEach(Arrays.asList(viewAsserts));
+    }
+
+    private MultiViewInteraction checkEach(final List<ViewAssertion> viewAsserts) {
+        checkArgument(viewAsserts.size() == viewMatchers.size(),
+                "Got %s assertions for %s views.", viewAsserts.size(), viewMatchers.size());
+
+        // written on the UI thread, read here once the task completed.
+        final List<Matcher<View>> failedMatchers = Lists.newArrayList();
+        final List<Throwable> failures = Lists.newArrayList();
+        final boolean[] ambiguous = new boolean[1];
+        new RetryingCheck(rootsOracle, mainThreadExecutor, screenshotPipeline, timeout) {
+            @Override
+            boolean checkPass() {
+                uiController.loopMainThreadUntilIdle();
+
+                failedMatchers.clear();
+                failures.clear();
+                List<ViewFinder> finders = viewFinder.find(viewMatchers);
+                for (int i = 0; i < finders.size(); i++) {
+                    Throwable failure = check(finders.get(i), viewAsserts.get(i));
+                    if (failure != null) {
+                        failedMatchers.add(viewMatchers.get(i));
+                        failures.add(failure);
+                        ambiguous[0] |= failure instanceof AmbiguousViewMatcherException;
+                    }
+                }
+                // an ambiguous matcher won't get any better by waiting.
+                return failures.isEmpty() || ambiguous[0];
+            }
+
+            @Override
+            String describe() {
+                return String.format("looking for %d views matching %s",
+                        viewMatchers.size(), viewMatchers);
+            }
+
+            @Override
+            void runSynchronouslyOnUiThread(Runnable action) {
+                MultiViewInteraction.this.runSynchronouslyOnUiThread(action);
+            }
+        }.run();
+
+        if (!failures.isEmpty()) {
+            ViewChecksFailedException failed =
+                    ViewChecksFailedException.create(viewMatchers.size(), failedMatchers, failures);
+            failureHandler.handle(ambiguous[0] ? failed : new WaitTimedOutException(timeout, failed),
+                    failedMatchers.get(0));
+        }
+
+        return this;
+    }
+
+    /**
+     * Runs the assertion on the view found, as {@link ViewInteraction#check} does. Returns the
+     * failure, or null if it passed.
+     */
+    private static Throwable check(ViewFinder finder, ViewAssertion viewAssert) {
+        try {
+            Optional<View> targetView = Optional.absent();
+            Optional<NoMatchingViewException> missingViewException = Optional.absent();
+            try {
+                targetView = Optional.of(finder.getView());
+            } catch (NoMatchingViewException nmve) {
+                missingViewException = Optional.of(nmve);
+            }
+            viewAssert.check(targetView, missingViewException);
+            return null;
+        } catch (AmbiguousViewMatcherException avme) {
+            return avme;
+        } catch (NoMatchingViewException nmve) {
+            return nmve;
+        } catch (AssertionError ae) {
+            return ae;
+        }
+    }
+
+    private void runSynchronouslyOnUiThread(Runnable action) {
+        FutureTask<Void> uiTask = new FutureTask<Void>(action, null);
+        mainThreadExecutor.execute(uiTask);
+        try {
+            uiTask.get();
+        } catch (InterruptedException ie) {
+            throw new RuntimeException("Interrupted  running UI task", ie);
+        } catch (ExecutionException ee) {
+            // not about any one view in particular, report it against the first.
+            failureHandler.handle(ee.getCause(), viewMatchers.get(0));
+        }
+    }
+}
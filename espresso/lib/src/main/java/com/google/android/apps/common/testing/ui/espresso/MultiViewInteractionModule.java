@@ -0,0 +1,50 @@
+package com.google.android.apps.common.testing.ui.espresso;
+
+import android.view.View;
+
+import com.google.android.apps.common.testing.ui.espresso.base.RootViewPicker;
+import com.google.android.apps.common.testing.ui.espresso.matcher.RootMatchers;
+import com.google.common.collect.ImmutableList;
+
+import org.hamcrest.Matcher;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import dagger.Module;
+import dagger.Provides;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Adds the scope of an interaction with several views to the Espresso graph.
+ */
+@Module(
+    addsTo = GraphHolder.EspressoModule.class,
+    injects = {MultiViewInteraction.class})
+class MultiViewInteractionModule {
+
+  private final List<Matcher<View>> viewMatchers;
+  private final AtomicReference<Matcher<Root>> rootMatcher =
+      new AtomicReference<Matcher<Root>>(RootMatchers.DEFAULT);
+
+  MultiViewInteractionModule(List<Matcher<View>> viewMatchers) {
+    this.viewMatchers = ImmutableList.copyOf(viewMatchers);
+    checkArgument(!this.viewMatchers.isEmpty(), "No view matchers given.");
+  }
+
+  @Provides
+  AtomicReference<Matcher<Root>> provideRootMatcher() {
+    return rootMatcher;
+  }
+
+  @Provides
+  List<Matcher<View>> provideViewMatchers() {
+    return viewMatchers;
+  }
+
+  @Provides
+  public List<View> provideRootView(RootViewPicker rootViewPicker) {
+    return rootViewPicker.get();
+  }
+}
@@ -0,0 +1,137 @@
+package com.google.android.apps.common.testing.ui.espresso;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.apps.common.testing.ui.espresso.base.ScreenshotPipeline;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.inject.Provider;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Runs the lookup and assertion of a check on the main thread until it holds or the check timeout
+ * passes, going round again only once the view hierarchy changed. Shared by the checks of
+ * {@link ViewInteraction} and {@link MultiViewInteraction}, which only differ in what a pass
+ * looks up and asserts.
+ * <p>
+ * A check counts as a single interaction for the {@link ScreenshotPipeline}, however often it is
+ * retried.
+ */
+abstract class RetryingCheck {
+
+    private static final int WAITFOR_CHECK_DELAY = 250; // wait at most 250ms before looking for new roots (VTO changes wake us sooner)
+
+    private final Provider<List<Root>> rootsOracle;
+    private final Executor mainThreadExecutor;
+    private final ScreenshotPipeline screenshotPipeline;
+    private final double timeout;
+    private final ViewHierarchyWatcher watcher = new ViewHierarchyWatcher();
+    private boolean interactionRecorded; // only touched on the main thread
+
+    RetryingCheck(Provider<List<Root>> rootsOracle, Executor mainThreadExecutor,
+            ScreenshotPipeline screenshotPipeline, double timeout) {
+        this.rootsOracle = checkNotNull(rootsOracle);
+        this.mainThreadExecutor = checkNotNull(mainThreadExecutor);
+        this.screenshotPipeline = checkNotNull(screenshotPipeline);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Runs on the calling thread before the first pass. Returns true if the check already holds,
+     * false to go on with the passes on the main thread.
+     */
+    boolean checkFirst() {
+        return false;
+    }
+
+    /**
+     * Looks up the views and runs the assertions on the main thread, once {@link #beginPass()} is
+     * done. Returns true to stop: the check holds or won't get any better by waiting.
+     */
+    abstract boolean checkPass();
+
+    /**
+     * Describes what the check waited for, for the log.
+     */
+    abstract String describe();
+
+    /**
+     * Runs the given task on the main thread and waits for it, reporting its failure.
+     */
+    abstract void runSynchronouslyOnUiThread(Runnable action);
+
+    /**
+     * Starts watching the current roots and marks their state as seen, then records the
+     * interaction if this is the first pass. Must be called on the main thread before looking at
+     * the hierarchy.
+     */
+    final void beginPass() {
+        watcher.watch(rootsOracle.get());
+        watcher.clearDirty();
+
+        if (!interactionRecorded) {
+            interactionRecorded = true;
+            screenshotPipeline.onInteraction();
+        }
+    }
+
+    /**
+     * Repeats the passes until {@link #checkPass()} stops or the timeout passes.
+     *
+     * @return true if a pass (or {@link #checkFirst()}) stopped the check in time.
+     */
+    final boolean run() {
+        final Runnable rootsCheck = new Runnable() {
+            @Override
+            public void run() {
+                watcher.watch(rootsOracle.get());
+            }
+        };
+
+        final boolean[] stopped = new boolean[1];
+        final long startTime = SystemClock.elapsedRealtime();
+        try {
+            if (checkFirst())
+                return true;
+
+            long target = startTime + (long) (timeout * 1000);
+            while (true) {
+                runSynchronouslyOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        beginPass();
+                        stopped[0] = checkPass();
+                    }
+                });
+
+                if (stopped[0] || SystemClock.elapsedRealtime() >= target)
+                    return stopped[0];
+
+                // only repeat the find and assert once the hierarchy changed since the last pass.
+                try {
+                    while (!watcher.awaitDirty(Math.min(WAITFOR_CHECK_DELAY, Math.max(0, target - SystemClock.elapsedRealtime())))
+                            && SystemClock.elapsedRealtime() < target) {
+                        // no view tree callback fired, but a window may have come or gone.
+                        runSynchronouslyOnUiThread(rootsCheck);
+                    }
+                } catch (InterruptedException e) { /* go round again */ }
+            }
+        } finally {
+            mainThreadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    watcher.release();
+                }
+            });
+
+            Log.i("CHECK_WAIT", String.format("Took %d ms (%d ms max) %s",
+                    SystemClock.elapsedRealtime() - startTime,
+                    ((long) timeout * 1000),
+                    describe()));
+        }
+    }
+}
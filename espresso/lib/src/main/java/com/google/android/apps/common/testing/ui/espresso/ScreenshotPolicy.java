@@ -0,0 +1,95 @@
+package com.google.android.apps.common.testing.ui.espresso;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+
+/**
+ * Controls when Espresso captures screenshots of the application under test.
+ */
+public final class ScreenshotPolicy {
+
+  /**
+   * The capture strategies understood by the screenshot pipeline.
+   */
+  public enum Mode {
+    /** Screenshots are never taken. */
+    NEVER,
+    /** A single screenshot is taken when the failure handler fires. */
+    ON_FAILURE,
+    /** Every Nth interaction is captured and written to disk. */
+    EVERY_NTH,
+    /** The last K interactions are kept in memory and only written when a failure occurs. */
+    RING
+  }
+
+  private static final ScreenshotPolicy NEVER = new ScreenshotPolicy(Mode.NEVER, 0);
+  private static final ScreenshotPolicy ON_FAILURE = new ScreenshotPolicy(Mode.ON_FAILURE, 0);
+
+  private final Mode mode;
+  private final int count;
+
+  private ScreenshotPolicy(Mode mode, int count) {
+    this.mode = checkNotNull(mode);
+    this.count = count;
+  }
+
+  public static ScreenshotPolicy never() {
+    return NEVER;
+  }
+
+  public static ScreenshotPolicy onFailure() {
+    return ON_FAILURE;
+  }
+
+  /**
+   * Captures one out of every {@code interval} interactions.
+   */
+  public static ScreenshotPolicy everyNth(int interval) {
+    checkArgument(interval > 0, "interval must be positive: %s", interval);
+    return new ScreenshotPolicy(Mode.EVERY_NTH, interval);
+  }
+
+  /**
+   * Keeps the last {@code frames} interactions in memory and writes them out on failure.
+   */
+  public static ScreenshotPolicy ring(int frames) {
+    checkArgument(frames > 0, "frames must be positive: %s", frames);
+    return new ScreenshotPolicy(Mode.RING, frames);
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  /**
+   * The capture interval for {@link Mode#EVERY_NTH}, the ring size for {@link Mode#RING} and 0
+   * for every other mode.
+   */
+  public int getCount() {
+    return count;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ScreenshotPolicy)) {
+      return false;
+    }
+    ScreenshotPolicy other = (ScreenshotPolicy) o;
+    return mode == other.mode && count == other.count;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(mode, count);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("mode", mode)
+        .add("count", count)
+        .toString();
+  }
+}
@@ -0,0 +1,21 @@
+package com.google.android.apps.common.testing.ui.espresso;
+
+import com.google.android.apps.common.testing.ui.espresso.util.ViewSnapshot;
+import com.google.common.base.Optional;
+
+/**
+ * A {@link ViewAssertion} which can also check a {@link ViewSnapshot}, off the main thread. A
+ * snapshot check must pass exactly when the live check would have passed at capture time; when it
+ * fails the live check is run to report the failure.
+ */
+public interface SnapshotViewAssertion extends ViewAssertion {
+
+  /**
+   * Checks the state of the given captured view (if such a view was found).
+   *
+   * @param view the captured view, if one was found
+   * @throws AssertionError if the assertion does not hold.
+   * @throws UnsupportedOperationException if the snapshot lacks what the assertion needs.
+   */
+  void checkSnapshot(Optional<ViewSnapshot> view);
+}
@@ -0,0 +1,140 @@
+package com.google.android.apps.common.testing.ui.espresso;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controls whether Espresso fast-forwards delayed messages on the main looper rather than waiting
+ * for them in real time.
+ * <p>
+ * When enabled, {@link UiController#loopMainThreadForAtLeast} advances virtual time: once nothing
+ * else keeps the application busy, the delayed message at the head of the main queue is made due
+ * immediately, up to the end of the requested delay. With an idle horizon, waiting for the main
+ * thread to be idle also fast-forwards messages due within that horizon, e.g. debounce timers.
+ * <p>
+ * Messages are told apart by the class of the runnable they post, or of their target handler when
+ * they post none. Classes of the platform and of the testing framework are never fast-forwarded
+ * unless allowed explicitly; denied classes never are.
+ */
+public final class TimeWarpPolicy {
+
+  private static final ImmutableList<String> FRAMEWORK_PREFIXES = ImmutableList.of(
+      "android.", "com.android.", "java.", "dalvik.", "com.google.android.apps.common.testing.");
+
+  private static final TimeWarpPolicy DISABLED = new TimeWarpPolicy(false, 0,
+      ImmutableList.<String>of(), ImmutableList.<String>of());
+  private static final TimeWarpPolicy ENABLED = new TimeWarpPolicy(true, 0,
+      ImmutableList.<String>of(), ImmutableList.<String>of());
+
+  private final boolean enabled;
+  private final long idleHorizonMillis;
+  private final ImmutableList<String> allowed;
+  private final ImmutableList<String> denied;
+
+  private TimeWarpPolicy(boolean enabled, long idleHorizonMillis, ImmutableList<String> allowed,
+      ImmutableList<String> denied) {
+    this.enabled = enabled;
+    this.idleHorizonMillis = idleHorizonMillis;
+    this.allowed = checkNotNull(allowed);
+    this.denied = checkNotNull(denied);
+  }
+
+  public static TimeWarpPolicy disabled() {
+    return DISABLED;
+  }
+
+  /**
+   * Fast-forwards delayed messages while looping for a given delay only.
+   */
+  public static TimeWarpPolicy enabled() {
+    return ENABLED;
+  }
+
+  /**
+   * Also fast-forwards, once the main thread is otherwise idle, messages due within the horizon.
+   */
+  public TimeWarpPolicy withIdleHorizon(long horizon, TimeUnit unit) {
+    checkArgument(horizon >= 0, "horizon must not be negative: %s", horizon);
+    checkNotNull(unit);
+    return new TimeWarpPolicy(enabled, unit.toMillis(horizon), allowed, denied);
+  }
+
+  /**
+   * Fast-forwards messages of the classes whose names start with one of the given prefixes, even
+   * platform ones.
+   */
+  public TimeWarpPolicy allowing(String... classNamePrefixes) {
+    return new TimeWarpPolicy(enabled, idleHorizonMillis, ImmutableList.<String>builder()
+        .addAll(allowed).add(classNamePrefixes).build(), denied);
+  }
+
+  /**
+   * Never fast-forwards messages of the classes whose names start with one of the given prefixes.
+   */
+  public TimeWarpPolicy denying(String... classNamePrefixes) {
+    return new TimeWarpPolicy(enabled, idleHorizonMillis, allowed, ImmutableList.<String>builder()
+        .addAll(denied).add(classNamePrefixes).build());
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * How far ahead messages are fast-forwarded once the main thread is idle, 0 if they are not.
+   */
+  public long getIdleHorizonMillis() {
+    return idleHorizonMillis;
+  }
+
+  /**
+   * Whether messages posting a runnable of (or targeting a handler of) the named class may be
+   * fast-forwarded.
+   */
+  public boolean allows(String className) {
+    checkNotNull(className);
+    if (!enabled || startsWithAny(className, denied)) {
+      return false;
+    }
+    return startsWithAny(className, allowed) || !startsWithAny(className, FRAMEWORK_PREFIXES);
+  }
+
+  private static boolean startsWithAny(String className, ImmutableList<String> prefixes) {
+    for (String prefix : prefixes) {
+      if (className.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof TimeWarpPolicy)) {
+      return false;
+    }
+    TimeWarpPolicy other = (TimeWarpPolicy) o;
+    return enabled == other.enabled && idleHorizonMillis == other.idleHorizonMillis
+        && allowed.equals(other.allowed) && denied.equals(other.denied);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(enabled, idleHorizonMillis, allowed, denied);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("enabled", enabled)
+        .add("idleHorizonMillis", idleHorizonMillis)
+        .add("allowed", allowed)
+        .add("denied", denied)
+        .toString();
+  }
+}
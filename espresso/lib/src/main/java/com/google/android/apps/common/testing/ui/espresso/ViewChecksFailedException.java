@@ -0,0 +1,58 @@
+package com.google.android.apps.common.testing.ui.espresso;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import android.view.View;
+
+import com.google.common.collect.ImmutableList;
+
+import org.hamcrest.Matcher;
+
+import java.util.List;
+
+/**
+ * Reports every check of a {@link MultiViewInteraction} which failed, each with the matcher of the
+ * view it was about. The first failure is the cause.
+ */
+public final class ViewChecksFailedException extends RuntimeException implements EspressoException {
+
+  private final List<Matcher<View>> viewMatchers;
+  private final List<Throwable> failures;
+
+  private ViewChecksFailedException(String description, List<Matcher<View>> viewMatchers,
+      List<Throwable> failures) {
+    super(description, failures.get(0));
+    this.viewMatchers = viewMatchers;
+    this.failures = failures;
+  }
+
+  public static ViewChecksFailedException create(int checkCount, List<Matcher<View>> viewMatchers,
+      List<Throwable> failures) {
+    checkNotNull(viewMatchers);
+    checkNotNull(failures);
+    checkArgument(!failures.isEmpty() && failures.size() == viewMatchers.size());
+    StringBuilder description = new StringBuilder(String.format(
+        "%d of %d view checks failed:", failures.size(), checkCount));
+    for (int i = 0; i < failures.size(); i++) {
+      description.append(String.format("\n%d. view matching '%s': %s", i + 1, viewMatchers.get(i),
+          failures.get(i).getMessage()));
+    }
+    return new ViewChecksFailedException(description.toString(),
+        ImmutableList.copyOf(viewMatchers), ImmutableList.copyOf(failures));
+  }
+
+  /**
+   * Returns the matchers of the views whose check failed, in the order they were given.
+   */
+  public List<Matcher<View>> getViewMatchers() {
+    return viewMatchers;
+  }
+
+  /**
+   * Returns the failures, parallel to {@link #getViewMatchers()}.
+   */
+  public List<Throwable> getFailures() {
+    return failures;
+  }
+}
@@ -0,0 +1,214 @@
+package com.google.android.apps.common.testing.ui.espresso;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks whether any of the watched view hierarchies changed since the last call to
+ * {@link #clearDirty()}.
+ * <p>
+ * Listeners are attached to the decor view of every root handed to {@link #watch(List)} and mark
+ * the hierarchy dirty on layout, focus and scroll changes. Windows coming and going are detected
+ * by {@link #watch(List)} itself. A draw only counts once {@link #DRAW_THROTTLE_MILLIS} have passed
+ * since the state was last marked as seen: state a view only draws (checked, pressed, alpha...)
+ * still gets noticed, but a spinner or progress bar redrawing every frame does not have the
+ * hierarchy looked at again on every frame. All methods except {@link #awaitDirty(long)} must be
+ * called on the main thread.
+ */
+final class ViewHierarchyWatcher {
+
+    static final long DRAW_THROTTLE_MILLIS = 100;
+
+    private final Map<View, ViewTreeObserver> observers = new HashMap<View, ViewTreeObserver>();
+    private final Object lock = new Object();
+    private boolean dirty = true; // guarded by lock
+    private boolean drawn; // guarded by lock
+    private long drawDueAt; // uptime at which a draw counts as dirty, guarded by lock
+
+    private final Listener listener = new Listener();
+    // only created on API levels that know about the interfaces they implement.
+    private DrawListener drawListener;
+    private WindowFocusListener windowFocusListener;
+
+    /**
+     * Starts watching roots that are new and stops watching those that went away.
+     *
+     * @return true if the set of watched windows changed.
+     */
+    boolean watch(List<Root> roots) {
+        boolean changed = false;
+        Map<View, Boolean> current = new IdentityHashMap<View, Boolean>();
+        for (Root r : roots) {
+            View dv = r.getDecorView();
+            current.put(dv, Boolean.TRUE);
+            if (!observers.containsKey(dv)) {
+                observers.put(dv, attach(dv.getViewTreeObserver()));
+                changed = true;
+            }
+        }
+        for (Iterator<Map.Entry<View, ViewTreeObserver>> it = observers.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<View, ViewTreeObserver> entry = it.next();
+            if (!current.containsKey(entry.getKey())) {
+                detach(entry.getValue());
+                it.remove();
+                changed = true;
+            }
+        }
+        if (changed)
+            markDirty();
+        return changed;
+    }
+
+    /**
+     * Marks the current state as seen; a later change sets the dirty flag again.
+     */
+    void clearDirty() {
+        synchronized (lock) {
+            dirty = false;
+            drawn = false;
+            drawDueAt = SystemClock.uptimeMillis() + DRAW_THROTTLE_MILLIS;
+        }
+    }
+
+    /**
+     * Blocks until a watched hierarchy changes or the given time passes. May be called from any
+     * thread.
+     *
+     * @return true if a hierarchy is dirty.
+     */
+    boolean awaitDirty(long millis) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + millis;
+        synchronized (lock) {
+            while (true) {
+                long now = SystemClock.uptimeMillis();
+                if (dirty || (drawn && now >= drawDueAt))
+                    return true;
+                long remaining = deadline - now;
+                if (remaining <= 0)
+                    return false;
+                lock.wait(drawn ? Math.min(remaining, drawDueAt - now) : remaining);
+            }
+        }
+    }
+
+    /**
+     * Removes all listeners.
+     */
+    void release() {
+        for (ViewTreeObserver vto : observers.values())
+            detach(vto);
+        observers.clear();
+    }
+
+    private void markDirty() {
+        synchronized (lock) {
+            dirty = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Notes that a watched hierarchy was drawn, which makes it dirty once the throttle has passed.
+     */
+    @VisibleForTesting
+    void markDrawn() {
+        synchronized (lock) {
+            if (!drawn) {
+                // only the first draw since the state was seen changes what a waiter waits for.
+                drawn = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private ViewTreeObserver attach(ViewTreeObserver vto) {
+        vto.addOnGlobalLayoutListener(listener);
+        vto.addOnGlobalFocusChangeListener(listener);
+        vto.addOnScrollChangedListener(listener);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            vto.addOnPreDrawListener(listener);
+        } else {
+            if (drawListener == null)
+                drawListener = new DrawListener();
+            vto.addOnDrawListener(drawListener);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            if (windowFocusListener == null)
+                windowFocusListener = new WindowFocusListener();
+            vto.addOnWindowFocusChangeListener(windowFocusListener);
+        }
+        return vto;
+    }
+
+    @SuppressLint("NewApi")
+    @SuppressWarnings("deprecation")
+    private void detach(ViewTreeObserver vto) {
+        if (!vto.isAlive())
+            return;
+        vto.removeOnGlobalFocusChangeListener(listener);
+        vto.removeOnScrollChangedListener(listener);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            vto.removeGlobalOnLayoutListener(listener);
+            vto.removeOnPreDrawListener(listener);
+        } else {
+            vto.removeOnGlobalLayoutListener(listener);
+            vto.removeOnDrawListener(drawListener);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+            vto.removeOnWindowFocusChangeListener(windowFocusListener);
+    }
+
+    private class Listener implements ViewTreeObserver.OnGlobalLayoutListener,
+            ViewTreeObserver.OnPreDrawListener, ViewTreeObserver.OnGlobalFocusChangeListener,
+            ViewTreeObserver.OnScrollChangedListener {
+
+        @Override
+        public void onGlobalLayout() {
+            markDirty();
+        }
+
+        @Override
+        public boolean onPreDraw() {
+            markDrawn();
+            return true;
+        }
+
+        @Override
+        public void onGlobalFocusChanged(View oldFocus, View newFocus) {
+            markDirty();
+        }
+
+        @Override
+        public void onScrollChanged() {
+            markDirty();
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private class DrawListener implements ViewTreeObserver.OnDrawListener {
+        @Override
+        public void onDraw() {
+            markDrawn();
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private class WindowFocusListener implements ViewTreeObserver.OnWindowFocusChangeListener {
+        @Override
+        public void onWindowFocusChanged(boolean hasFocus) {
+            markDirty();
+        }
+    }
+}
@@ -1,33 +1,24 @@
 package com.google.android.apps.common.testing.ui.espresso;
 
-import android.annotation.SuppressLint;
-import android.content.Context;
-import android.graphics.Bitmap;
-import android.os.Build;
-import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
-import android.view.ViewTreeObserver;
 import android.widget.AdapterView;
 
-import com.google.android.apps.common.testing.testrunner.inject.TargetContext;
 import com.google.android.apps.common.testing.ui.espresso.action.ScrollToAction;
+import com.google.android.apps.common.testing.ui.espresso.base.HierarchySnapshotter;
 import com.google.android.apps.common.testing.ui.espresso.base.MainThread;
-import com.google.android.apps.common.testing.ui.espresso.base.Screenshotter;
+import com.google.android.apps.common.testing.ui.espresso.base.ScreenshotPipeline;
 import com.google.android.apps.common.testing.ui.espresso.matcher.RootMatchers;
+import com.google.android.apps.common.testing.ui.espresso.matcher.SnapshotViewMatcher;
+import com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers;
+import com.google.android.apps.common.testing.ui.espresso.util.HierarchySnapshot;
 import com.google.android.apps.common.testing.ui.espresso.util.HumanReadables;
-import com.google.common.base.Objects;
+import com.google.android.apps.common.testing.ui.espresso.util.ViewSnapshot;
 import com.google.common.base.Optional;
 
 import org.hamcrest.Matcher;
 import org.hamcrest.StringDescription;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
@@ -55,8 +46,6 @@ public final class ViewInteraction {
 
     private static final String TAG = ViewInteraction.class.getSimpleName();
 
-    private static final int WAITFOR_CHECK_DELAY = 250; // wait at most 250ms between both looking for the view, and looking for new roots (VTOs can still wake us sooner)
-
     private final UiController uiController;
     private final ViewFinder viewFinder;
     private final Executor mainThreadExecutor;
@@ -64,14 +53,13 @@ public final class ViewInteraction {
     private final Matcher<View> viewMatcher;
     private final AtomicReference<Matcher<Root>> rootMatcherRef;
     private final Provider<List<Root>> rootsOracle;
-    private final Screenshotter screenshotter;
-    private final File outdir;
-    private final SimpleDateFormat dateFormat;
+    private final ScreenshotPipeline screenshotPipeline;
+    private final Provider<List<View>> rootViewsProvider;
+    private final HierarchySnapshotter snapshotter;
 
     private double timeout;
     private ViewAssertion defaultPrecondition;
 
-    @SuppressLint("NewApi")
     @Inject
     ViewInteraction(
             UiController uiController,
@@ -81,9 +69,12 @@ public final class ViewInteraction {
             Matcher<View> viewMatcher,
             AtomicReference<Matcher<Root>> rootMatcherRef,
             Provider<List<Root>> rootsOracle,
-            Screenshotter screenshotter,
-            @TargetContext Context context) {
-        this.screenshotter = screenshotter;
+            ScreenshotPipeline screenshotPipeline,
+            Provider<List<View>> rootViewsProvider,
+            HierarchySnapshotter snapshotter) {
+        this.screenshotPipeline = checkNotNull(screenshotPipeline);
+        this.rootViewsProvider = checkNotNull(rootViewsProvider);
+        this.snapshotter = checkNotNull(snapshotter);
         this.viewFinder = checkNotNull(viewFinder);
         this.uiController = checkNotNull(uiController);
         this.failureHandler = checkNotNull(failureHandler);
@@ -91,8 +82,6 @@ public final class ViewInteraction {
         this.viewMatcher = checkNotNull(viewMatcher);
         this.rootMatcherRef = checkNotNull(rootMatcherRef);
         this.rootsOracle = checkNotNull(rootsOracle);
-        this.outdir = new File(Objects.firstNonNull(((Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) ? null : context.getExternalFilesDir(null)), context.getFilesDir()), "test-results");
-        this.dateFormat = new SimpleDateFormat("HH':'mm':'ss.SSS");
 
         this.timeout = IdlingPolicies.getViewCheckTimeout();
         this.defaultPrecondition = IdlingPolicies.getViewPerformPrecondition();
@@ -135,21 +124,6 @@ public final class ViewInteraction {
         return this;
     }
 
-    private void takeScreenshot() {
-        File f = new File(outdir, String.format("snapshot-%s.jpg", dateFormat.format(new Date())));
-        try {
-            Bitmap bmp = screenshotter.snap();
-            FileOutputStream fos = new FileOutputStream(f);
-            try {
-                bmp.compress(Bitmap.CompressFormat.JPEG, 5, fos);
-            } finally {
-                fos.close();
-            }
-        } catch (Exception e) {
-            // swallow
-        }
-    }
-
     private void doPerform(final ViewAction viewAction) {
         checkNotNull(viewAction);
         final Matcher<? extends View> constraints = checkNotNull(viewAction.getConstraints());
@@ -158,7 +132,7 @@ public final class ViewInteraction {
             @Override
             public void run() {
                 uiController.loopMainThreadUntilIdle();
-                takeScreenshot();
+                screenshotPipeline.onInteraction();
                 View targetView = viewFinder.getView();
                 Log.i(TAG, String.format(
                         "Performing '%s' action on view %s", viewAction.getDescription(), viewMatcher));
@@ -202,88 +176,95 @@ public final class ViewInteraction {
      */
     public ViewInteraction check(final ViewAssertion viewAssert) {
         checkNotNull(viewAssert);
+        final SnapshotViewMatcher snapshotQuery = IdlingPolicies.getSnapshotChecks()
+                && viewAssert instanceof SnapshotViewAssertion
+                ? ViewMatchers.compileForSnapshots(viewMatcher) : null;
 
-        final HashMap<View, ViewTreeObserver> observers = new HashMap<View, ViewTreeObserver>();
-        final Object notifier = new Object();
-        final ViewTreeObserver.OnGlobalLayoutListener layoutListener = new ViewTreeObserver.OnGlobalLayoutListener() {
+        final Throwable t[] = new Throwable[1];
+        RetryingCheck retryingCheck = new RetryingCheck(
+                rootsOracle, mainThreadExecutor, screenshotPipeline, timeout) {
             @Override
-            public void onGlobalLayout() {
-                synchronized (notifier) {
-                    notifier.notifyAll();
-                }
+            boolean checkFirst() {
+                // once the snapshot missed the live hierarchy decides, retries go straight to it.
+                return snapshotQuery != null
+                        && checkSnapshot(this, snapshotQuery, (SnapshotViewAssertion) viewAssert);
             }
-        };
-
-        final Throwable t[] = new Throwable[1];
-        final long startTime = SystemClock.elapsedRealtime();
-        try {
-            long target = startTime + (long)(timeout * 1000);
-            while (true) {
-                runSynchronouslyOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        for (Root r : rootsOracle.get()) {
-                            View dv = r.getDecorView();
-                            if (observers.containsKey(dv))
-                                continue;
-
-                            ViewTreeObserver vto = dv.getViewTreeObserver();
-                            vto.addOnGlobalLayoutListener(layoutListener);
-                            observers.put(dv, vto);
-                        }
-
-                        takeScreenshot();
-
-                        try {
-                            Optional<View> targetView = Optional.absent();
-                            Optional<NoMatchingViewException> missingViewException = Optional.absent();
-                            try {
-                                targetView = Optional.of(viewFinder.getView());
-                            } catch (NoMatchingViewException nmve) {
-                                missingViewException = Optional.of(nmve);
-                            }
-                            viewAssert.check(targetView, missingViewException);
-                            t[0] = null;
-                        } catch (NoMatchingViewException nmve) {
-                            t[0] = nmve;
-                        } catch (AssertionError ae) {
-                            t[0] = ae;
-                        }
-                    }
-                });
-
-                if (t[0] == null || SystemClock.elapsedRealtime() >= target)
-                    break;
 
+            @Override
+            boolean checkPass() {
+                // find and assert on the live hierarchy, which also reports any failure.
                 try {
-                    synchronized (notifier) {
-                        notifier.wait(Math.min(WAITFOR_CHECK_DELAY, Math.max(0, target - SystemClock.elapsedRealtime())));
+                    Optional<View> targetView = Optional.absent();
+                    Optional<NoMatchingViewException> missingViewException = Optional.absent();
+                    try {
+                        targetView = Optional.of(viewFinder.getView());
+                    } catch (NoMatchingViewException nmve) {
+                        missingViewException = Optional.of(nmve);
                     }
-                } catch (InterruptedException e) { /* go round again */ }
+                    viewAssert.check(targetView, missingViewException);
+                    t[0] = null;
+                } catch (NoMatchingViewException nmve) {
+                    t[0] = nmve;
+                } catch (AssertionError ae) {
+                    t[0] = ae;
+                }
+                return t[0] == null;
             }
-        } finally {
-            for (ViewTreeObserver vto : observers.values()) {
-                if (!vto.isAlive())
-                    continue;
-                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
-                    vto.removeGlobalOnLayoutListener(layoutListener);
-                else
-                    vto.removeOnGlobalLayoutListener(layoutListener);
+
+            @Override
+            String describe() {
+                return String.format("looking for view matching %s to assert %s",
+                        viewMatcher, viewAssert);
             }
 
-            Log.i("CHECK_WAIT", String.format("Took %d ms (%d ms max) looking for view matching %s to assert %s",
-                    SystemClock.elapsedRealtime() - startTime,
-                    ((long)timeout * 1000),
-                    viewMatcher,
-                    viewAssert));
-        }
+            @Override
+            void runSynchronouslyOnUiThread(Runnable action) {
+                ViewInteraction.this.runSynchronouslyOnUiThread(action);
+            }
+        };
 
-        if (t[0] != null)
-            throw new WaitTimedOutException(timeout, t[0]);
+        if (!retryingCheck.run()) {
+            // through the failure handler, which writes out the frames kept for the failure.
+            failureHandler.handle(new WaitTimedOutException(timeout, t[0]), viewMatcher);
+        }
 
         return this;
     }
 
+    /**
+     * Captures the hierarchy on the main thread, then finds the view and checks the assertion on
+     * the calling thread. Returns true if the assertion holds for a single (or no) matching view,
+     * false if the live hierarchy has to be checked: no match, several matches, a failed assertion
+     * or a matcher needing more than the snapshot has.
+     */
+    private boolean checkSnapshot(final RetryingCheck retryingCheck,
+            SnapshotViewMatcher snapshotQuery, SnapshotViewAssertion viewAssert) {
+        final HierarchySnapshot[] snapshot = new HierarchySnapshot[1];
+        runSynchronouslyOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                retryingCheck.beginPass();
+                snapshot[0] = snapshotter.capture(rootViewsProvider.get());
+            }
+        });
+        if (snapshot[0] == null) {
+            return false;
+        }
+        try {
+            List<ViewSnapshot> matches = snapshotter.findAll(snapshot[0], snapshotQuery);
+            if (matches.size() > 1) {
+                return false;
+            }
+            viewAssert.checkSnapshot(matches.isEmpty()
+                    ? Optional.<ViewSnapshot>absent() : Optional.of(matches.get(0)));
+            return true;
+        } catch (AssertionError ae) {
+            return false;
+        } catch (UnsupportedOperationException uoe) {
+            return false;
+        }
+    }
+
     private void runSynchronouslyOnUiThread(Runnable action) {
         FutureTask<Void> uiTask = new FutureTask<Void>(action, null);
         mainThreadExecutor.execute(uiTask);
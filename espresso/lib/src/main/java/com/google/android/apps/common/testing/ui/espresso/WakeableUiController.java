@@ -0,0 +1,24 @@
+package com.google.android.apps.common.testing.ui.espresso;
+
+/**
+ * A {@link UiController} which can loop the main thread until view tree or lifecycle callbacks
+ * tell it the state it waits for may have changed, rather than for a fixed time.
+ * <p>
+ * Actions check for it with {@code instanceof} and fall back to
+ * {@link #loopMainThreadForAtLeast} when given a plain {@link UiController}.
+ */
+public interface WakeableUiController extends UiController {
+  /**
+   * Ends the current {@link #loopMainThreadUntilWokenUp} loop. Must be called on the main thread.
+   * Calls while no such loop runs have no effect.
+   */
+  void wakeUp();
+
+  /**
+   * Loops the main thread until {@link #wakeUp} is called, or for at most the given delay, then
+   * until idle.
+   *
+   * @param maxMillisDelay the longest time to loop without being woken up
+   */
+  void loopMainThreadUntilWokenUp(long maxMillisDelay);
+}
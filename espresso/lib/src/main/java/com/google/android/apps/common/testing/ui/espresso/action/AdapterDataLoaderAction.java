@@ -6,13 +6,15 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static org.hamcrest.Matchers.allOf;
 
+import com.google.android.apps.common.testing.ui.espresso.IdlingPolicies;
 import com.google.android.apps.common.testing.ui.espresso.PerformException;
 import com.google.android.apps.common.testing.ui.espresso.UiController;
 import com.google.android.apps.common.testing.ui.espresso.ViewAction;
+import com.google.android.apps.common.testing.ui.espresso.matcher.ThreadSafeMatcher;
 import com.google.android.apps.common.testing.ui.espresso.util.HumanReadables;
 import com.google.common.base.Optional;
-import com.google.common.collect.Lists;
 
+import android.os.SystemClock;
 import android.view.View;
 import android.widget.Adapter;
 import android.widget.AdapterView;
@@ -28,18 +30,35 @@ import java.util.List;
  *
  */
 public final class AdapterDataLoaderAction implements ViewAction {
+  private static final long RENDER_TIMEOUT_MILLIS = 10000;
+  private static final long FIRST_RETRY_DELAY_MILLIS = 50;
+  private static final long MAX_RETRY_DELAY_MILLIS = 1600;
+
   private final Matcher<Object> dataToLoadMatcher;
   private final AdapterViewProtocol adapterViewProtocol;
   private final Optional<Integer> atPosition;
+  private final Optional<AdapterMatchCache> matchCache;
   private AdapterViewProtocol.AdaptedData adaptedData;
+  private AdapterView<? extends Adapter> adapterView;
   private boolean performed = false;
   private Object dataLock = new Object();
 
   public AdapterDataLoaderAction(Matcher<Object> dataToLoadMatcher, Optional<Integer> atPosition,
       AdapterViewProtocol adapterViewProtocol) {
+    this(dataToLoadMatcher, atPosition, adapterViewProtocol,
+        Optional.<AdapterMatchCache>absent());
+  }
+
+  /**
+   * Creates an action which reuses the matches remembered by the given cache where it can, and
+   * remembers the ones it finds.
+   */
+  public AdapterDataLoaderAction(Matcher<Object> dataToLoadMatcher, Optional<Integer> atPosition,
+      AdapterViewProtocol adapterViewProtocol, Optional<AdapterMatchCache> matchCache) {
     this.dataToLoadMatcher = checkNotNull(dataToLoadMatcher);
     this.atPosition = checkNotNull(atPosition);
     this.adapterViewProtocol = checkNotNull(adapterViewProtocol);
+    this.matchCache = checkNotNull(matchCache);
   }
 
   public AdapterViewProtocol.AdaptedData getAdaptedData() {
@@ -49,6 +68,16 @@ public final class AdapterDataLoaderAction implements ViewAction {
     }
   }
 
+  /**
+   * Returns the adapter view the data was loaded into.
+   */
+  public AdapterView<? extends Adapter> getAdapterView() {
+    synchronized (dataLock) {
+      checkState(performed, "perform hasn't been called yet!");
+      return adapterView;
+    }
+  }
+
   @SuppressWarnings("unchecked")
   @Override
   public Matcher<View> getConstraints() {
@@ -59,57 +88,66 @@ public final class AdapterDataLoaderAction implements ViewAction {
   @Override
   public void perform(UiController uiController, View view) {
     AdapterView<? extends Adapter> adapterView = (AdapterView<? extends Adapter>) view;
-    List<AdapterViewProtocol.AdaptedData> matchedDataItems = Lists.newArrayList();
-
-    for (AdapterViewProtocol.AdaptedData data : adapterViewProtocol.getDataInAdapterView(
-        adapterView)) {
-
-      if (dataToLoadMatcher.matches(data.data)) {
-        matchedDataItems.add(data);
+    // the scan is over once it finds the requested match, or a second one proving ambiguity.
+    int neededMatches = atPosition.isPresent() ? atPosition.get() + 1 : 2;
+    AdapterDataScan scan = null;
+    if (matchCache.isPresent()) {
+      scan = matchCache.get().get(adapterView, adapterViewProtocol, dataToLoadMatcher,
+          neededMatches);
+    }
+    if (null == scan) {
+      Iterable<AdapterViewProtocol.AdaptedData> datas =
+          adapterViewProtocol.getDataInAdapterView(adapterView);
+      if (IdlingPolicies.getParallelDataMatching()
+          && dataToLoadMatcher instanceof ThreadSafeMatcher) {
+        scan = AdapterDataScan.scanInParallel(datas, dataToLoadMatcher, neededMatches);
+      } else {
+        scan = AdapterDataScan.scan(datas, dataToLoadMatcher, neededMatches);
+      }
+      if (matchCache.isPresent()) {
+        matchCache.get().put(adapterView, adapterViewProtocol, dataToLoadMatcher, scan);
       }
     }
+    List<AdapterViewProtocol.AdaptedData> matchedDataItems = scan.getMatches();
 
-    if (matchedDataItems.size() == 0) {
+    if (matchedDataItems.isEmpty()) {
       StringDescription dataMatcherDescription = new StringDescription();
       dataToLoadMatcher.describeTo(dataMatcherDescription);
-
-      if (matchedDataItems.isEmpty()) {
-        dataMatcherDescription.appendText(" contained values: ");
-          dataMatcherDescription.appendValue(
-              adapterViewProtocol.getDataInAdapterView(adapterView));
-        throw new PerformException.Builder()
-          .withActionDescription(this.getDescription())
-          .withViewDescription(HumanReadables.describe(view))
-          .withCause(new RuntimeException("No data found matching: " + dataMatcherDescription))
-          .build();
-      }
+      dataMatcherDescription.appendText(" contained values: ");
+      scan.describeScannedTo(dataMatcherDescription);
+      throw new PerformException.Builder()
+        .withActionDescription(this.getDescription())
+        .withViewDescription(HumanReadables.describe(view))
+        .withCause(new RuntimeException("No data found matching: " + dataMatcherDescription))
+        .build();
     }
 
     synchronized (dataLock) {
       checkState(!performed, "perform called 2x!");
       performed = true;
+      this.adapterView = adapterView;
       if (atPosition.isPresent()) {
-        int matchedDataItemsSize = matchedDataItems.size() - 1;
-        if (atPosition.get() > matchedDataItemsSize) {
+        if (atPosition.get() >= matchedDataItems.size()) {
           throw new PerformException.Builder()
             .withActionDescription(this.getDescription())
             .withViewDescription(HumanReadables.describe(view))
             .withCause(new RuntimeException(String.format(
                 "There are only %d elements that matched but requested %d element.",
-                matchedDataItemsSize, atPosition.get())))
+                matchedDataItems.size(), atPosition.get())))
             .build();
         } else {
           adaptedData = matchedDataItems.get(atPosition.get());
         }
       } else {
-        if (matchedDataItems.size() != 1) {
+        if (matchedDataItems.size() > 1) {
           StringDescription dataMatcherDescription = new StringDescription();
           dataToLoadMatcher.describeTo(dataMatcherDescription);
           throw new PerformException.Builder()
             .withActionDescription(this.getDescription())
             .withViewDescription(HumanReadables.describe(view))
             .withCause(new RuntimeException("Multiple data elements " +
-                "matched: " + dataMatcherDescription + ". Elements: " + matchedDataItems))
+                "matched: " + dataMatcherDescription + ". First elements: "
+                + AdapterDataScan.describe(matchedDataItems.subList(0, 2))))
             .build();
         } else {
           adaptedData = matchedDataItems.get(0);
@@ -117,26 +155,52 @@ public final class AdapterDataLoaderAction implements ViewAction {
       }
     }
 
-    int requestCount = 0;
-    while (!adapterViewProtocol.isDataRenderedWithinAdapterView(adapterView, adaptedData)) {
-      if (requestCount > 1) {
-        if ((requestCount % 50) == 0) {
+    waitUntilRendered(uiController, adapterView);
+  }
+
+  /**
+   * Asks the protocol to render the loaded data and sleeps until a layout shows it or a scroll
+   * towards it comes to rest. A scroll which settles without showing the data was cut short or
+   * blocked: it is asked for again, waiting twice as long each time.
+   */
+  private void waitUntilRendered(UiController uiController,
+      AdapterView<? extends Adapter> adapterView) {
+    if (adapterViewProtocol.isDataRenderedWithinAdapterView(adapterView, adaptedData)) {
+      return;
+    }
+    AdapterRenderWatcher watcher =
+        new AdapterRenderWatcher(adapterView, adapterViewProtocol, adaptedData, uiController);
+    watcher.watch();
+    try {
+      long deadline = SystemClock.uptimeMillis() + RENDER_TIMEOUT_MILLIS;
+      long retryDelay = FIRST_RETRY_DELAY_MILLIS;
+      adapterViewProtocol.makeDataRenderedWithinAdapterView(adapterView, adaptedData);
+      while (!adapterViewProtocol.isDataRenderedWithinAdapterView(adapterView, adaptedData)) {
+        long remaining = deadline - SystemClock.uptimeMillis();
+        if (remaining <= 0) {
+          throw new PerformException.Builder()
+              .withActionDescription(this.getDescription())
+              .withViewDescription(HumanReadables.describe(adapterView))
+              .withCause(new RuntimeException(
+                  "Timed out waiting for data to be rendered in adapterView"))
+              .build();
+        }
+        if (watcher.isScrolling()) {
+          watcher.await(remaining);
+          continue;
+        }
+        // a layout showing the data may still be on its way.
+        watcher.await(Math.min(retryDelay, remaining));
+        if (!watcher.isScrolling()
+            && !adapterViewProtocol.isDataRenderedWithinAdapterView(adapterView, adaptedData)) {
           // sometimes an adapter view will receive an event that will block its attempts to scroll.
           adapterView.invalidate();
           adapterViewProtocol.makeDataRenderedWithinAdapterView(adapterView, adaptedData);
+          retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MILLIS);
         }
-      } else {
-        adapterViewProtocol.makeDataRenderedWithinAdapterView(adapterView, adaptedData);
-      }
-      uiController.loopMainThreadForAtLeast(100);
-      requestCount++;
-      if (requestCount == 100) {
-        throw new PerformException.Builder()
-            .withActionDescription(this.getDescription())
-            .withViewDescription(HumanReadables.describe(view))
-            .withCause(new RuntimeException("Timed out waiting for data to be rendered in adapterView"))
-            .build();
       }
+    } finally {
+      watcher.release();
     }
   }
 
@@ -0,0 +1,171 @@
+package com.google.android.apps.common.testing.ui.espresso.action;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.android.apps.common.testing.ui.espresso.action.AdapterViewProtocol.AdaptedData;
+import com.google.android.apps.common.testing.ui.espresso.matcher.ThreadSafeMatcher;
+import com.google.android.apps.common.testing.ui.espresso.util.ParallelFilter;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import android.database.Cursor;
+
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+
+import java.util.List;
+
+/**
+ * The outcome of matching the data of an adapter view: the matching items in adapter order, and a
+ * bounded sample of the items scanned to describe the adapter contents in errors.
+ * <p>
+ * A scan stops once it has found the requested number of matches; only a complete scan tells how
+ * many items match in all.
+ */
+final class AdapterDataScan {
+  private static final int HEAD_SIZE = 10;
+  private static final int TAIL_SIZE = 5;
+  private static final int MAX_ITEM_DESCRIPTION_LENGTH = 200;
+
+  // below this many items, handing chunks to other threads costs more than it saves.
+  static final int PARALLEL_THRESHOLD = 512;
+
+  private final ImmutableList<AdaptedData> matches;
+  private final boolean complete;
+  private final ImmutableList<AdaptedData> head;
+  private final ImmutableList<AdaptedData> tail;
+  private final int scannedCount;
+
+  private AdapterDataScan(List<AdaptedData> matches, boolean complete, List<AdaptedData> head,
+      List<AdaptedData> tail, int scannedCount) {
+    this.matches = ImmutableList.copyOf(matches);
+    this.complete = complete;
+    this.head = ImmutableList.copyOf(head);
+    this.tail = ImmutableList.copyOf(tail);
+    this.scannedCount = scannedCount;
+  }
+
+  /**
+   * Matches the given data in order, until {@code maxMatches} items matched.
+   */
+  static AdapterDataScan scan(Iterable<AdaptedData> datas, Matcher<Object> matcher,
+      int maxMatches) {
+    checkNotNull(matcher);
+    List<AdaptedData> matches = Lists.newArrayList();
+    List<AdaptedData> head = Lists.newArrayList();
+    AdaptedData[] tail = new AdaptedData[TAIL_SIZE];
+    int count = 0;
+    boolean complete = true;
+    for (AdaptedData data : datas) {
+      if (count < HEAD_SIZE) {
+        head.add(data);
+      } else {
+        tail[(count - HEAD_SIZE) % TAIL_SIZE] = data;
+      }
+      count++;
+      if (matcher.matches(data.data)) {
+        matches.add(data);
+        if (matches.size() >= maxMatches) {
+          complete = false;
+          break;
+        }
+      }
+    }
+
+    List<AdaptedData> last = Lists.newArrayList();
+    for (int i = Math.max(HEAD_SIZE, count - TAIL_SIZE); i < count; i++) {
+      last.add(tail[(i - HEAD_SIZE) % TAIL_SIZE]);
+    }
+    return new AdapterDataScan(matches, complete, head, last, count);
+  }
+
+  /**
+   * Matches the given data like {@link #scan}, but copies all of it on the calling thread first,
+   * then splits the matching through {@link ParallelFilter}. The matcher has to be
+   * {@link ThreadSafeMatcher thread safe}.
+   * <p>
+   * Only distinct items are matched in parallel. A {@link Cursor}, or any other object the adapter
+   * hands out again for the next position, is moved from row to row and only holds the last one
+   * once copied: such data is scanned in order instead.
+   */
+  static AdapterDataScan scanInParallel(Iterable<AdaptedData> datas,
+      final Matcher<Object> matcher, int maxMatches) {
+    checkArgument(matcher instanceof ThreadSafeMatcher, "Not thread safe: %s", matcher);
+    List<AdaptedData> items = Lists.newArrayList();
+    Object previous = null;
+    for (AdaptedData data : datas) {
+      if (data.data instanceof Cursor || (null != data.data && data.data == previous)) {
+        return scan(datas, matcher, maxMatches);
+      }
+      items.add(data);
+      previous = data.data;
+    }
+    if (items.size() < PARALLEL_THRESHOLD) {
+      return scan(items, matcher, maxMatches);
+    }
+
+    List<AdaptedData> matches = ParallelFilter.filter(items, new Predicate<AdaptedData>() {
+      @Override
+      public boolean apply(AdaptedData item) {
+        return matcher.matches(item.data);
+      }
+    }, maxMatches);
+    boolean complete = matches.size() < maxMatches;
+    int headSize = Math.min(HEAD_SIZE, items.size());
+    return new AdapterDataScan(matches, complete, items.subList(0, headSize),
+        items.subList(Math.max(headSize, items.size() - TAIL_SIZE), items.size()), items.size());
+  }
+
+  /**
+   * The matching items found, in adapter order.
+   */
+  List<AdaptedData> getMatches() {
+    return matches;
+  }
+
+  /**
+   * Whether the scan saw every item, or stopped at its last match.
+   */
+  boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * Whether this scan answers a lookup needing the given number of matches.
+   */
+  boolean covers(int neededMatches) {
+    return complete || matches.size() >= neededMatches;
+  }
+
+  /**
+   * Describes the items scanned: the first and last few, and how many there were.
+   */
+  void describeScannedTo(Description description) {
+    description.appendText(describe(head));
+    int skipped = scannedCount - head.size() - tail.size();
+    if (skipped > 0) {
+      description.appendText(String.format(" ... %d more ... ", skipped));
+    }
+    if (!tail.isEmpty()) {
+      description.appendText(describe(tail));
+    }
+    description.appendText(String.format(" (%d items)", scannedCount));
+  }
+
+  static String describe(List<AdaptedData> datas) {
+    StringBuilder text = new StringBuilder("[");
+    for (AdaptedData data : datas) {
+      if (text.length() > 1) {
+        text.append(", ");
+      }
+      String item = String.valueOf(data);
+      if (item.length() > MAX_ITEM_DESCRIPTION_LENGTH) {
+        item = item.substring(0, MAX_ITEM_DESCRIPTION_LENGTH) + "...";
+      }
+      text.append(item);
+    }
+    return text.append("]").toString();
+  }
+}
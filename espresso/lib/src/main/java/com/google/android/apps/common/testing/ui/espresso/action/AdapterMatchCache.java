@@ -0,0 +1,174 @@
+package com.google.android.apps.common.testing.ui.espresso.action;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.collect.MapMaker;
+
+import android.database.DataSetObserver;
+import android.os.Looper;
+import android.widget.Adapter;
+import android.widget.AdapterView;
+
+import org.hamcrest.Matcher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Remembers which items of an adapter match a data matcher, so repeated {@code onData} lookups in
+ * an unchanged adapter do not rescan it.
+ * <p>
+ * Results are kept per adapter and per data matcher, both by identity: only lookups reusing the
+ * same matcher instance, e.g. one held in a field, share results. Descriptions are not used to
+ * tell matchers apart, as matchers capturing different values often describe themselves the same
+ * way. Each adapter is
+ * observed for {@link DataSetObserver#onChanged()} and {@link DataSetObserver#onInvalidated()},
+ * which drop everything remembered about it; adapters are expected to report their changes, as
+ * the adapter view itself relies on it.
+ * <p>
+ * Only used on the main thread; the statistics may be read from any thread.
+ */
+@Singleton
+public final class AdapterMatchCache {
+  private static final int MAX_MATCHERS_PER_ADAPTER = 32;
+
+  // weak keys compare by identity.
+  private final Map<Adapter, AdapterEntry> entries = new MapMaker().weakKeys().makeMap();
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong invalidationCount = new AtomicLong();
+
+  @Inject
+  AdapterMatchCache() {}
+
+  /**
+   * Returns a previous scan of the adapter's data with the given protocol and matcher which found
+   * at least the given number of matches, or null.
+   */
+  @Nullable
+  AdapterDataScan get(AdapterView<? extends Adapter> adapterView, AdapterViewProtocol protocol,
+      Matcher<Object> matcher, int neededMatches) {
+    checkMainThread();
+    Adapter adapter = adapterView.getAdapter();
+    AdapterEntry entry = null == adapter ? null : entries.get(adapter);
+    CachedScan cached = null == entry ? null : entry.scans.get(new MatcherKey(matcher));
+    if (null != cached && cached.protocol == protocol && cached.scan.covers(neededMatches)) {
+      hitCount.incrementAndGet();
+      return cached.scan;
+    }
+    missCount.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Remembers a scan of the adapter's data with the given protocol and matcher.
+   */
+  void put(AdapterView<? extends Adapter> adapterView, AdapterViewProtocol protocol,
+      Matcher<Object> matcher, AdapterDataScan scan) {
+    checkMainThread();
+    Adapter adapter = adapterView.getAdapter();
+    if (null == adapter) {
+      return;
+    }
+    AdapterEntry entry = entries.get(adapter);
+    if (null == entry) {
+      entry = new AdapterEntry();
+      adapter.registerDataSetObserver(entry);
+      entries.put(adapter, entry);
+    }
+    entry.scans.put(new MatcherKey(checkNotNull(matcher)),
+        new CachedScan(checkNotNull(protocol), checkNotNull(scan)));
+  }
+
+  /**
+   * @return the number of lookups answered from the cache.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return the number of lookups which had to scan the adapter.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return the number of times a change reported by an adapter dropped scans of it.
+   */
+  public long getInvalidationCount() {
+    return invalidationCount.get();
+  }
+
+  private static void checkMainThread() {
+    checkState(Looper.myLooper() == Looper.getMainLooper(), "Expecting to be on main thread!");
+  }
+
+  /**
+   * Compares matchers by identity, whatever their equals method does.
+   */
+  private static final class MatcherKey {
+    final Matcher<Object> matcher;
+
+    MatcherKey(Matcher<Object> matcher) {
+      this.matcher = matcher;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof MatcherKey && ((MatcherKey) other).matcher == matcher;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(matcher);
+    }
+  }
+
+  private static final class CachedScan {
+    final AdapterViewProtocol protocol;
+    final AdapterDataScan scan;
+
+    CachedScan(AdapterViewProtocol protocol, AdapterDataScan scan) {
+      this.protocol = protocol;
+      this.scan = scan;
+    }
+  }
+
+  /**
+   * The scans of one adapter. Must not reference the adapter: the adapter holds on to it.
+   */
+  private final class AdapterEntry extends DataSetObserver {
+    final Map<MatcherKey, CachedScan> scans =
+        new LinkedHashMap<MatcherKey, CachedScan>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<MatcherKey, CachedScan> eldest) {
+            return size() > MAX_MATCHERS_PER_ADAPTER;
+          }
+        };
+
+    @Override
+    public void onChanged() {
+      invalidate();
+    }
+
+    @Override
+    public void onInvalidated() {
+      invalidate();
+    }
+
+    private void invalidate() {
+      if (!scans.isEmpty()) {
+        scans.clear();
+        invalidationCount.incrementAndGet();
+      }
+    }
+  }
+}
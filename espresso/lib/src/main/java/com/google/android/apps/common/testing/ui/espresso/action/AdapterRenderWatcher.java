@@ -0,0 +1,169 @@
+package com.google.android.apps.common.testing.ui.espresso.action;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.android.apps.common.testing.ui.espresso.UiController;
+import com.google.android.apps.common.testing.ui.espresso.WakeableUiController;
+import com.google.android.apps.common.testing.ui.espresso.action.AdapterViewProtocol.AdaptedData;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.util.Log;
+import android.view.ViewTreeObserver;
+import android.widget.AbsListView;
+import android.widget.Adapter;
+import android.widget.AdapterView;
+
+import java.lang.reflect.Field;
+
+/**
+ * Watches an adapter view while some data is brought into view, so the caller can sleep until
+ * something worth looking at happens: a layout pass which renders the data, or the end of a
+ * scroll. Scrolling is followed through the {@link AbsListView.OnScrollListener} of list views,
+ * which the watcher chains in front of the application's own listener for as long as it watches.
+ * The listener is swapped through the list view's field rather than
+ * {@link AbsListView#setOnScrollListener}, which calls {@code onScroll} right away: the
+ * application's listener would see extra scroll calls (and maybe load more data) on every swap.
+ * <p>
+ * Only to be used on the main thread.
+ */
+final class AdapterRenderWatcher
+    implements ViewTreeObserver.OnGlobalLayoutListener, AbsListView.OnScrollListener {
+  private static final String TAG = "AdapterRenderWatcher";
+  private static final String SCROLL_LISTENER_FIELD_NAME = "mOnScrollListener";
+  // how long to sleep at most when the controller can't be woken up.
+  private static final long POLL_MILLIS = 100;
+
+  private static Field scrollListenerField;
+  private static boolean scrollListenerFieldLookedUp;
+
+  private final AdapterView<? extends Adapter> adapterView;
+  private final AdapterViewProtocol adapterViewProtocol;
+  private final AdaptedData adaptedData;
+  private final UiController uiController;
+  private ViewTreeObserver observer;
+  private AbsListView.OnScrollListener chainedScrollListener;
+  private boolean watchingScroll;
+  private int scrollState = SCROLL_STATE_IDLE;
+
+  AdapterRenderWatcher(AdapterView<? extends Adapter> adapterView,
+      AdapterViewProtocol adapterViewProtocol, AdaptedData adaptedData,
+      UiController uiController) {
+    this.adapterView = checkNotNull(adapterView);
+    this.adapterViewProtocol = checkNotNull(adapterViewProtocol);
+    this.adaptedData = checkNotNull(adaptedData);
+    this.uiController = checkNotNull(uiController);
+  }
+
+  /**
+   * Starts listening to layouts and, for list views, scroll state changes.
+   */
+  void watch() {
+    observer = adapterView.getViewTreeObserver();
+    observer.addOnGlobalLayoutListener(this);
+    if (adapterView instanceof AbsListView) {
+      Field field = scrollListenerField();
+      if (null != field) {
+        try {
+          chainedScrollListener = (AbsListView.OnScrollListener) field.get(adapterView);
+          field.set(adapterView, this);
+          watchingScroll = true;
+        } catch (IllegalAccessException iae) {
+          Log.w(TAG, "Cannot chain scroll listener, not following scroll state.", iae);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops listening, handing the scroll listener back to the application unless it set another
+   * one meanwhile.
+   */
+  @SuppressLint("NewApi")
+  @SuppressWarnings("deprecation")
+  void release() {
+    if (watchingScroll) {
+      watchingScroll = false;
+      Field field = scrollListenerField();
+      try {
+        if (field.get(adapterView) == this) {
+          field.set(adapterView, chainedScrollListener);
+        }
+      } catch (IllegalAccessException iae) {
+        Log.w(TAG, "Cannot restore scroll listener.", iae);
+      }
+    }
+    if (null != observer && observer.isAlive()) {
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+        observer.removeGlobalOnLayoutListener(this);
+      } else {
+        observer.removeOnGlobalLayoutListener(this);
+      }
+    }
+    observer = null;
+  }
+
+  /**
+   * Returns true while the list view is known to be scrolling towards (or past) the data.
+   */
+  boolean isScrolling() {
+    return scrollState != SCROLL_STATE_IDLE;
+  }
+
+  /**
+   * Loops the main thread until a layout renders the data or a scroll comes to rest, or for at
+   * most the given delay.
+   */
+  void await(long maxMillisDelay) {
+    if (uiController instanceof WakeableUiController) {
+      ((WakeableUiController) uiController).loopMainThreadUntilWokenUp(maxMillisDelay);
+    } else {
+      uiController.loopMainThreadForAtLeast(Math.min(maxMillisDelay, POLL_MILLIS));
+    }
+  }
+
+  @Override
+  public void onGlobalLayout() {
+    if (adapterViewProtocol.isDataRenderedWithinAdapterView(adapterView, adaptedData)) {
+      wakeUp();
+    }
+  }
+
+  @Override
+  public void onScrollStateChanged(AbsListView view, int newScrollState) {
+    scrollState = newScrollState;
+    if (newScrollState == SCROLL_STATE_IDLE) {
+      wakeUp();
+    }
+    if (null != chainedScrollListener) {
+      chainedScrollListener.onScrollStateChanged(view, newScrollState);
+    }
+  }
+
+  @Override
+  public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+      int totalItemCount) {
+    if (null != chainedScrollListener) {
+      chainedScrollListener.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+    }
+  }
+
+  private void wakeUp() {
+    if (uiController instanceof WakeableUiController) {
+      ((WakeableUiController) uiController).wakeUp();
+    }
+  }
+
+  private static synchronized Field scrollListenerField() {
+    if (!scrollListenerFieldLookedUp) {
+      scrollListenerFieldLookedUp = true;
+      try {
+        scrollListenerField = AbsListView.class.getDeclaredField(SCROLL_LISTENER_FIELD_NAME);
+        scrollListenerField.setAccessible(true);
+      } catch (NoSuchFieldException nsfe) {
+        Log.w(TAG, "No scroll listener field, not following scroll state.", nsfe);
+      }
+    }
+    return scrollListenerField;
+  }
+}
@@ -4,7 +4,7 @@ import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMat
 import static com.google.common.base.Preconditions.checkArgument;
 
 import com.google.common.base.Optional;
-import com.google.common.collect.Lists;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Range;
 
 import android.os.Build;
@@ -15,7 +15,7 @@ import android.widget.AdapterView;
 import android.widget.AdapterViewAnimator;
 import android.widget.AdapterViewFlipper;
 
-import java.util.List;
+import java.util.Iterator;
 
 /**
  * Implementations of {@link AdapterViewProtocol} for standard SDK Widgets.
@@ -46,16 +46,30 @@ public final class AdapterViewProtocols {
 
   private static final class StandardAdapterViewProtocol implements AdapterViewProtocol {
     @Override
-    public Iterable<AdaptedData> getDataInAdapterView(AdapterView<? extends Adapter> adapterView) {
-      List<AdaptedData> datas = Lists.newArrayList();
-      for (int i = 0; i < adapterView.getCount(); i++) {
-        datas.add(
-            new AdaptedData.Builder()
-              .withData(adapterView.getItemAtPosition(i))
-              .withOpaqueToken(i)
-              .build());
-      }
-      return datas;
+    public Iterable<AdaptedData> getDataInAdapterView(
+        final AdapterView<? extends Adapter> adapterView) {
+      // items are read as they are iterated: lookups usually stop well before the end of the data.
+      return new Iterable<AdaptedData>() {
+        @Override
+        public Iterator<AdaptedData> iterator() {
+          return new AbstractIterator<AdaptedData>() {
+            private int position = 0;
+
+            @Override
+            protected AdaptedData computeNext() {
+              if (position >= adapterView.getCount()) {
+                return endOfData();
+              }
+              AdaptedData data = new AdaptedData.Builder()
+                  .withData(adapterView.getItemAtPosition(position))
+                  .withOpaqueToken(position)
+                  .build();
+              position++;
+              return data;
+            }
+          };
+        }
+      };
     }
 
     @Override
@@ -5,7 +5,9 @@ import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 
+import com.google.android.apps.common.testing.testrunner.ActivityLifecycleMonitor;
 import com.google.android.apps.common.testing.testrunner.ActivityLifecycleMonitorRegistry;
+import com.google.android.apps.common.testing.testrunner.CountingActivityLifecycleMonitor;
 import com.google.android.apps.common.testing.testrunner.Stage;
 import com.google.android.apps.common.testing.ui.espresso.InjectEventSecurityException;
 import com.google.android.apps.common.testing.ui.espresso.NoActivityResumedException;
@@ -92,9 +94,10 @@ public final class KeyEventAction implements ViewAction {
 
     if (this.key.getKeyCode() == KeyEvent.KEYCODE_BACK) {
       controller.loopMainThreadUntilIdle();
-      boolean activeActivities = !ActivityLifecycleMonitorRegistry.getInstance()
-          .getActivitiesInStage(Stage.RESUMED)
-          .isEmpty();
+      ActivityLifecycleMonitor monitor = ActivityLifecycleMonitorRegistry.getInstance();
+      boolean activeActivities = monitor instanceof CountingActivityLifecycleMonitor
+          ? ((CountingActivityLifecycleMonitor) monitor).getActivityCountInStage(Stage.RESUMED) > 0
+          : !monitor.getActivitiesInStage(Stage.RESUMED).isEmpty();
       if (!activeActivities) {
         Throwable cause = new PerformException.Builder()
           .withActionDescription(this.getDescription())
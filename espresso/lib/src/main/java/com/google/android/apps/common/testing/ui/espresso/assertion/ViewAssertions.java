@@ -4,8 +4,12 @@ import android.util.Log;
 import android.view.View;
 
 import com.google.android.apps.common.testing.ui.espresso.NoMatchingViewException;
+import com.google.android.apps.common.testing.ui.espresso.SnapshotViewAssertion;
 import com.google.android.apps.common.testing.ui.espresso.ViewAssertion;
+import com.google.android.apps.common.testing.ui.espresso.matcher.SnapshotViewMatcher;
+import com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers;
 import com.google.android.apps.common.testing.ui.espresso.util.HumanReadables;
+import com.google.android.apps.common.testing.ui.espresso.util.ViewSnapshot;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
@@ -41,7 +45,7 @@ public final class ViewAssertions {
    * hierarchy.
    */
   public static ViewAssertion doesNotExist() {
-    return new ViewAssertion() {
+    return new SnapshotViewAssertion() {
       @Override
       public void check(Optional<View> view, Optional<NoMatchingViewException> noView) {
         if (view.isPresent()) {
@@ -49,37 +53,76 @@ public final class ViewAssertions {
               true, is(false));
         }
       }
+
+      @Override
+      public void checkSnapshot(Optional<ViewSnapshot> view) {
+        if (view.isPresent()) {
+          throw new AssertionError("View is present in the hierarchy: " + view.get());
+        }
+      }
     };
   }
 
   /**
    * Returns a generic {@link ViewAssertion} that asserts that a view exists in the view hierarchy
-   * and is matched by the given view matcher.
+   * and is matched by the given view matcher. The assertion can also check snapshots when the
+   * matcher can, see {@link ViewMatchers#compileForSnapshots}.
    */
   public static ViewAssertion matches(final Matcher<? super View> viewMatcher) {
     checkNotNull(viewMatcher);
-    return new ViewAssertion() {
-      @Override
-      public void check(Optional<View> view, Optional<NoMatchingViewException> noViewException) {
-        StringDescription description = new StringDescription();
-        description.appendText("'");
-        viewMatcher.describeTo(description);
-        if (noViewException.isPresent()) {
-          description.appendText(String.format(
-              "' check could not be performed because view '%s' was not found.\n", viewMatcher));
-          Log.e(TAG, description.toString());
-          throw noViewException.get();
-        } else {
-          // TODO(user): ideally, we should append the matcher used to find the view
-          // This can be done in DefaultFailureHandler (just like we currently to with
-          // PerformException)
-          description.appendText("' doesn't match the selected view.");
-          assertThat(description.toString(), view.get(), viewMatcher);
-        }
+    SnapshotViewMatcher snapshotMatcher = ViewMatchers.compileForSnapshots(viewMatcher);
+    return snapshotMatcher == null
+        ? new MatchesAssertion(viewMatcher)
+        : new SnapshotMatchesAssertion(viewMatcher, snapshotMatcher);
+  }
+
+  private static class MatchesAssertion implements ViewAssertion {
+    final Matcher<? super View> viewMatcher;
+
+    MatchesAssertion(Matcher<? super View> viewMatcher) {
+      this.viewMatcher = viewMatcher;
+    }
+
+    @Override
+    public void check(Optional<View> view, Optional<NoMatchingViewException> noViewException) {
+      StringDescription description = new StringDescription();
+      description.appendText("'");
+      viewMatcher.describeTo(description);
+      if (noViewException.isPresent()) {
+        description.appendText(String.format(
+            "' check could not be performed because view '%s' was not found.\n", viewMatcher));
+        Log.e(TAG, description.toString());
+        throw noViewException.get();
+      } else {
+        // TODO(user): ideally, we should append the matcher used to find the view
+        // This can be done in DefaultFailureHandler (just like we currently to with
+        // PerformException)
+        description.appendText("' doesn't match the selected view.");
+        assertThat(description.toString(), view.get(), viewMatcher);
       }
-    };
+    }
   }
 
+  private static final class SnapshotMatchesAssertion extends MatchesAssertion
+      implements SnapshotViewAssertion {
+    private final SnapshotViewMatcher snapshotMatcher;
+
+    SnapshotMatchesAssertion(Matcher<? super View> viewMatcher,
+        SnapshotViewMatcher snapshotMatcher) {
+      super(viewMatcher);
+      this.snapshotMatcher = snapshotMatcher;
+    }
+
+    @Override
+    public void checkSnapshot(Optional<ViewSnapshot> view) {
+      if (!view.isPresent()) {
+        throw new AssertionError("No view to match against " + viewMatcher);
+      }
+      if (!snapshotMatcher.matchesSnapshot(view.get())) {
+        throw new AssertionError(view.get() + " doesn't match " + viewMatcher);
+      }
+    }
+  }
 
   /**
    * Returns a generic {@link ViewAssertion} that asserts that the descendant views selected by the
@@ -3,10 +3,11 @@ package com.google.android.apps.common.testing.ui.espresso.base;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
+import com.google.common.base.Optional;
+
+import android.util.Log;
+
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -17,14 +18,34 @@ import java.util.concurrent.atomic.AtomicReference;
  * That is currently possible and easy in Froyo to JB. If it ever becomes impossible, as long as we
  * know the max # of executor threads the AsyncTask framework allows we can still use this
  * interface, just need a different implementation.
+ *
+ * The pool is instrumented once, when the monitor is created, by a {@link ThreadPoolWorkTracker}
+ * which keeps an exact count of the tasks that are queued or running. Nothing is ever submitted to
+ * the pool by the monitor itself.
  */
 class AsyncTaskPoolMonitor {
-  private final AtomicReference<IdleMonitor> monitor = new AtomicReference<IdleMonitor>(null);
+  private static final String TAG = "AsyncTaskPoolMonitor";
+  private static final long POLL_INTERVAL_MILLIS = 10;
+
+  private final AtomicReference<Runnable> monitor = new AtomicReference<Runnable>(null);
   private final ThreadPoolExecutor pool;
-  private final AtomicInteger activeBarrierChecks = new AtomicInteger(0);
+  private final Optional<ThreadPoolWorkTracker> tracker;
 
   AsyncTaskPoolMonitor(ThreadPoolExecutor pool) {
     this.pool = checkNotNull(pool);
+    this.tracker = ThreadPoolWorkTracker.track(pool);
+    if (tracker.isPresent()) {
+      tracker.get().addListener(new Runnable() {
+        @Override
+        public void run() {
+          if (null != monitor.get()) {
+            signalIfIdle();
+          }
+        }
+      });
+    } else {
+      Log.w(TAG, "Cannot instrument pool, falling back to polling.");
+    }
   }
 
   /**
@@ -33,160 +54,71 @@ class AsyncTaskPoolMonitor {
    * @return true if the pool is idle, false otherwise.
    */
   boolean isIdleNow() {
-    if (!pool.getQueue().isEmpty()) {
-      return false;
-    } else {
-      int activeCount = pool.getActiveCount();
-      if (0 != activeCount) {
-        if (monitor.get() == null) {
-          // if there's no idle monitor scheduled and there are still barrier
-          // checks running, they are about to exit, ignore them.
-          activeCount = activeCount - activeBarrierChecks.get();
-        }
-      }
-      return 0 == activeCount;
+    if (tracker.isPresent()) {
+      return tracker.get().isIdleNow(0);
     }
+    return pool.getQueue().isEmpty() && 0 == pool.getActiveCount();
   }
 
   /**
    * Notifies caller once the pool is idle.
    *
-   * We check for idle-ness by submitting the max # of tasks the pool will take and blocking
-   * the tasks until they are all executing. Then we know there are no other tasks _currently_
-   * executing in the pool, we look back at the work queue to see if its backed up, if it is
-   * we reenqueue ourselves and try again.
-   *
-   * Obviously this strategy will fail horribly if 2 parties are doing it at the same time,
-   * we prevent recursion here the best we can.
+   * If the pool is idle already the callback runs on the calling thread, otherwise it runs on the
+   * pool thread which completes the last in flight task.
    *
    * @param idleCallback called once the pool is idle.
    */
   void notifyWhenIdle(final Runnable idleCallback) {
     checkNotNull(idleCallback);
-    IdleMonitor myMonitor = new IdleMonitor(idleCallback);
-    checkState(monitor.compareAndSet(null, myMonitor), "cannot monitor for idle recursively!");
-    myMonitor.monitorForIdle();
+    checkState(monitor.compareAndSet(null, idleCallback), "cannot monitor for idle recursively!");
+    if (!signalIfIdle() && !tracker.isPresent()) {
+      pollForIdle(idleCallback);
+    }
   }
 
   /**
    * Stops the idle monitoring mechanism if it is in place.
    *
-   * Note: the callback may still be invoked after this method is called. The only thing
-   * this method guarantees is that we will stop/cancel any blockign tasks we've placed
-   * on the thread pool.
+   * Note: the callback may still be invoked after this method is called if a pool thread is
+   * already about to run it.
    */
   void cancelIdleMonitor() {
-    IdleMonitor myMonitor = monitor.getAndSet(null);
-    if (null != myMonitor) {
-      myMonitor.poison();
-    }
+    monitor.set(null);
   }
 
-  private class IdleMonitor {
-    private final Runnable onIdle;
-    private final AtomicInteger barrierGeneration = new AtomicInteger(0);
-    private final CyclicBarrier barrier;
-    // written by main, read by all.
-    private volatile boolean poisoned;
-
-    private IdleMonitor(final Runnable onIdle) {
-      this.onIdle = checkNotNull(onIdle);
-      this.barrier = new CyclicBarrier(pool.getCorePoolSize(),
-          new Runnable() {
-            @Override
-            public void run() {
-              if (pool.getQueue().isEmpty()) {
-                // no one is behind us, so the queue is idle!
-                monitor.compareAndSet(IdleMonitor.this, null);
-                onIdle.run();
-              } else {
-                // work is waiting behind us, enqueue another block of tasks and
-                // hopefully when they're all running, the queue will be empty.
-                monitorForIdle();
-              }
-
-            }
-          });
-    }
-
-    /**
-     * Stops this monitor from using the thread pool's resources, it may still cause the
-     * callback to be executed though.
-     */
-    private void poison() {
-      poisoned = true;
-      barrier.reset();
-    }
-
-    private void monitorForIdle() {
-      if (poisoned) {
-        return;
-      }
-
-      if (isIdleNow()) {
-        monitor.compareAndSet(this, null);
-        onIdle.run();
-      } else {
-        // Submit N tasks that will block until they are all running on the thread pool.
-        // at this point we can check the pool's queue and verify that there are no new
-        // tasks behind us and deem the queue idle.
-
-        int poolSize = pool.getCorePoolSize();
-        final BarrierRestarter restarter = new BarrierRestarter(barrier, barrierGeneration);
-
-        for (int i = 0; i < poolSize; i++) {
-          pool.execute(new Runnable() {
-            @Override
-            public void run() {
-              while (!poisoned) {
-                activeBarrierChecks.incrementAndGet();
-                int myGeneration = barrierGeneration.get();
-                try {
-                  barrier.await();
-                  return;
-                } catch (InterruptedException ie) {
-                  // sorry - I cant let you interrupt me!
-                  restarter.restart(myGeneration);
-                } catch (BrokenBarrierException bbe) {
-                  restarter.restart(myGeneration);
-                } finally {
-                  activeBarrierChecks.decrementAndGet();
-                }
-              }
-            }
-          });
-        }
-      }
+  /**
+   * Runs the pending idle callback if the pool is idle. Only one caller gets to run it.
+   */
+  private boolean signalIfIdle() {
+    Runnable callback = monitor.get();
+    if (null != callback && isIdleNow() && monitor.compareAndSet(callback, null)) {
+      callback.run();
+      return true;
     }
+    return false;
   }
 
-
-  private static class BarrierRestarter {
-    private final CyclicBarrier barrier;
-    private final AtomicInteger barrierGeneration;
-    BarrierRestarter(CyclicBarrier barrier, AtomicInteger barrierGeneration) {
-      this.barrier = barrier;
-      this.barrierGeneration = barrierGeneration;
-    }
-
-    /**
-     * restarts the barrier.
-     *
-     * After the calling this function it is guaranteed that barrier generation has been incremented
-     * and the barrier can be awaited on again.
-     *
-     * @param fromGeneration the generation that encountered the breaking exception.
-     */
-    synchronized void restart(int fromGeneration) {
-      // must be synchronized. T1 could pass the if check, be suspended before calling reset, T2
-      // sails thru - and awaits on the barrier again before T1 has awoken and reset it.
-      int nextGen = fromGeneration + 1;
-      if (barrierGeneration.compareAndSet(fromGeneration, nextGen)) {
-        // first time we've seen fromGeneration request a reset. lets reset the barrier.
-        barrier.reset();
-      } else {
-        // some other thread has already reset the barrier - this request is a no op.
+  /**
+   * Fallback for pools whose internals we failed to instrument: polls from a thread of our own
+   * rather than borrowing the pool's threads.
+   */
+  private void pollForIdle(final Runnable idleCallback) {
+    Thread poller = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (monitor.get() == idleCallback) {
+          if (signalIfIdle()) {
+            return;
+          }
+          try {
+            Thread.sleep(POLL_INTERVAL_MILLIS);
+          } catch (InterruptedException ie) {
+            return;
+          }
+        }
       }
-    }
+    }, TAG);
+    poller.setDaemon(true);
+    poller.start();
   }
 }
@@ -7,6 +7,8 @@ import com.google.android.apps.common.testing.testrunner.inject.TargetContext;
 import com.google.android.apps.common.testing.ui.espresso.FailureHandler;
 import com.google.android.apps.common.testing.ui.espresso.Root;
 import com.google.android.apps.common.testing.ui.espresso.UiController;
+import com.google.android.apps.common.testing.ui.espresso.WakeableUiController;
+import com.google.android.apps.common.testing.ui.espresso.action.AdapterMatchCache;
 import com.google.common.base.Optional;
 
 import android.content.Context;
@@ -29,7 +31,9 @@ import javax.inject.Singleton;
  * Dagger module for creating the implementation classes within the base package.
  */
 @Module(library = true, injects = {
-    BaseLayerModule.FailureHandlerHolder.class, FailureHandler.class, Screenshotter.class})
+    BaseLayerModule.FailureHandlerHolder.class, FailureHandler.class, Screenshotter.class,
+    ScreenshotPipeline.class, ViewHierarchyIndex.class, HierarchySnapshotter.class,
+    MainLooperTimeWarp.class, AdapterMatchCache.class})
 public class BaseLayerModule {
 
   @Provides @Singleton
@@ -56,6 +60,11 @@ public class BaseLayerModule {
     return uiControllerImpl;
   }
 
+  @Provides
+  public WakeableUiController provideWakeableUiController(UiControllerImpl uiControllerImpl) {
+    return uiControllerImpl;
+  }
+
   @Provides @Singleton @CompatAsyncTask
   public Optional<AsyncTaskPoolMonitor> provideCompatAsyncTaskMonitor(
       ThreadPoolExecutorExtractor extractor) {
@@ -4,6 +4,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Throwables.propagate;
 
 import com.google.android.apps.common.testing.testrunner.inject.TargetContext;
+import com.google.android.apps.common.testing.ui.espresso.Espresso;
 import com.google.android.apps.common.testing.ui.espresso.EspressoException;
 import com.google.android.apps.common.testing.ui.espresso.FailureHandler;
 import com.google.android.apps.common.testing.ui.espresso.PerformException;
@@ -27,14 +28,26 @@ public final class DefaultFailureHandler implements FailureHandler {
 
   private static final AtomicInteger failureCount = new AtomicInteger(0);
   private final Context appContext;
+  private final ScreenshotPipeline screenshotPipeline;
+
+  /**
+   * Creates a handler flushing Espresso's {@link Espresso#screenshotPipeline screenshot pipeline},
+   * e.g. to delegate to from a custom {@link FailureHandler}.
+   */
+  public DefaultFailureHandler(Context appContext) {
+    this(appContext, Espresso.screenshotPipeline());
+  }
 
   @Inject
-  public DefaultFailureHandler(@TargetContext Context appContext) {
+  DefaultFailureHandler(@TargetContext Context appContext, ScreenshotPipeline screenshotPipeline) {
     this.appContext = checkNotNull(appContext);
+    this.screenshotPipeline = checkNotNull(screenshotPipeline);
   }
 
   @Override
   public void handle(Throwable error, Matcher<View> viewMatcher) {
+    // write out the frames retained by the screenshot policy before the test goes down.
+    screenshotPipeline.flush();
     if (error instanceof EspressoException || error instanceof AssertionFailedError
         || error instanceof AssertionError) {
       throw propagate(getUserFriendlyError(error, viewMatcher));
@@ -0,0 +1,78 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.android.apps.common.testing.ui.espresso.IdlingResource;
+import com.google.common.base.Optional;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An Idling Resource Adapter for ThreadPoolExecutors (and the ExecutorServices handed out by
+ * {@link java.util.concurrent.Executors} which are backed by one).
+ * <p>
+ * The pool is idle when no task is queued or running. Delayed tasks of a
+ * {@link java.util.concurrent.ScheduledThreadPoolExecutor} which are due further than the horizon
+ * in the future do not count, until they get closer. Idle transitions are reported on the pool
+ * thread which completes the last task.
+ */
+final class ExecutorIdlingResource implements IdlingResource {
+  private final String name;
+  private final ThreadPoolWorkTracker tracker;
+  private final long horizonNanos;
+  // set when we last told espresso we're busy: only then does a completed task have to be checked.
+  private final AtomicBoolean reportedBusy = new AtomicBoolean(false);
+  private volatile ResourceCallback resourceCallback;
+
+  ExecutorIdlingResource(ExecutorService executor, long delayHorizon, TimeUnit unit) {
+    checkNotNull(executor);
+    checkArgument(delayHorizon >= 0, "delayHorizon must not be negative: %s", delayHorizon);
+    Optional<ThreadPoolExecutor> pool = ThreadPoolWorkTracker.unwrap(executor);
+    checkArgument(pool.isPresent(), "%s is not backed by a ThreadPoolExecutor", executor);
+    Optional<ThreadPoolWorkTracker> poolTracker = ThreadPoolWorkTracker.track(pool.get());
+    checkArgument(poolTracker.isPresent(), "Cannot instrument %s", executor);
+
+    this.tracker = poolTracker.get();
+    this.horizonNanos = unit.toNanos(delayHorizon);
+    this.name = "Executor@" + Integer.toHexString(System.identityHashCode(pool.get()));
+    tracker.addListener(new Runnable() {
+      @Override
+      public void run() {
+        // on a pool thread here.
+        if (reportedBusy.get() && tracker.isIdleNow(horizonNanos)
+            && reportedBusy.compareAndSet(true, false)) {
+          ResourceCallback callback = resourceCallback;
+          if (callback != null) {
+            callback.onTransitionToIdle();
+          }
+        }
+      }
+    });
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public boolean isIdleNow() {
+    // on main thread here. Flag busy first, a task completing meanwhile then reports the idle
+    // transition rather than it getting lost.
+    reportedBusy.set(true);
+    if (tracker.isIdleNow(horizonNanos)) {
+      reportedBusy.set(false);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void registerIdleTransitionCallback(ResourceCallback resourceCallback) {
+    this.resourceCallback = resourceCallback;
+  }
+}
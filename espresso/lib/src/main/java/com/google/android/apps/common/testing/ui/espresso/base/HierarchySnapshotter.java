@@ -0,0 +1,134 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import android.view.View;
+
+import com.google.android.apps.common.testing.ui.espresso.matcher.SnapshotViewMatcher;
+import com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers;
+import com.google.android.apps.common.testing.ui.espresso.util.HierarchySnapshot;
+import com.google.android.apps.common.testing.ui.espresso.util.ParallelFilter;
+import com.google.android.apps.common.testing.ui.espresso.util.ViewSnapshot;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Lists;
+
+import org.hamcrest.Matcher;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Captures {@link HierarchySnapshot}s on the main thread and searches them off it.
+ * <p>
+ * The main thread is only held for the capture itself, a single breadth first pass copying the
+ * state of every view. Matching happens on the calling thread; snapshots of large hierarchies are
+ * split into chunks matched in parallel by {@link ParallelFilter}, provided the query is
+ * {@link ViewMatchers#isThreadSafe thread safe}.
+ */
+@Singleton
+public final class HierarchySnapshotter {
+
+    // below this many views, handing chunks to other threads costs more than it saves.
+    static final int PARALLEL_THRESHOLD = 1024;
+
+    private final AtomicLong captureCount = new AtomicLong();
+    private final AtomicLong captureNanos = new AtomicLong();
+    private final AtomicLong maxCaptureNanos = new AtomicLong();
+    private final AtomicLong lastCaptureNanos = new AtomicLong();
+    private final AtomicLong capturedViewCount = new AtomicLong();
+
+    @Inject
+    HierarchySnapshotter() {}
+
+    /**
+     * Captures the hierarchies under the given roots. Must be called on the main thread.
+     */
+    public HierarchySnapshot capture(List<View> roots) {
+        HierarchySnapshot snapshot = HierarchySnapshot.capture(checkNotNull(roots));
+        long nanos = snapshot.getCaptureNanos();
+        captureCount.incrementAndGet();
+        captureNanos.addAndGet(nanos);
+        capturedViewCount.addAndGet(snapshot.getViews().size());
+        lastCaptureNanos.set(nanos);
+        long max;
+        do {
+            max = maxCaptureNanos.get();
+        } while (nanos > max && !maxCaptureNanos.compareAndSet(max, nanos));
+        return snapshot;
+    }
+
+    /**
+     * Returns the views of the snapshot accepted by the matcher, in breadth first order. May be
+     * called from any thread.
+     *
+     * @throws UnsupportedOperationException if the matcher cannot be evaluated on the snapshot.
+     */
+    public List<ViewSnapshot> findAll(HierarchySnapshot snapshot,
+                                      final SnapshotViewMatcher matcher) {
+        checkNotNull(matcher);
+        List<ViewSnapshot> views = snapshot.getViews();
+        // user matchers nested in the query may not cope with being evaluated concurrently.
+        if (views.size() < PARALLEL_THRESHOLD || !isThreadSafe(matcher)) {
+            return match(views, matcher);
+        }
+        return ParallelFilter.filter(views, new Predicate<ViewSnapshot>() {
+            @Override
+            public boolean apply(ViewSnapshot view) {
+                return matcher.matchesSnapshot(view);
+            }
+        }, Integer.MAX_VALUE);
+    }
+
+    private static boolean isThreadSafe(SnapshotViewMatcher matcher) {
+        return matcher instanceof Matcher && ViewMatchers.isThreadSafe((Matcher<?>) matcher);
+    }
+
+    private static List<ViewSnapshot> match(List<ViewSnapshot> views, SnapshotViewMatcher matcher) {
+        List<ViewSnapshot> matches = Lists.newArrayList();
+        for (ViewSnapshot view : views) {
+            if (matcher.matchesSnapshot(view)) {
+                matches.add(view);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return the number of snapshots captured on the main thread.
+     */
+    public long getCaptureCount() {
+        return captureCount.get();
+    }
+
+    /**
+     * @return the total number of views copied by the captures.
+     */
+    public long getCapturedViewCount() {
+        return capturedViewCount.get();
+    }
+
+    /**
+     * @return the total time the captures held the main thread.
+     */
+    public long getCaptureTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(captureNanos.get());
+    }
+
+    /**
+     * @return how long the most recent capture held the main thread, in microseconds.
+     */
+    public long getLastCaptureTimeMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(lastCaptureNanos.get());
+    }
+
+    /**
+     * @return how long the longest capture held the main thread, in microseconds.
+     */
+    public long getMaxCaptureTimeMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxCaptureNanos.get());
+    }
+}
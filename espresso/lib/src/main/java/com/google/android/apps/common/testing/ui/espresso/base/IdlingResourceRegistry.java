@@ -4,25 +4,49 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
+import com.google.android.apps.common.testing.testrunner.ActivityLifecycleCallback;
+import com.google.android.apps.common.testing.testrunner.ActivityLifecycleMonitorRegistry;
+import com.google.android.apps.common.testing.testrunner.GoogleInstrumentationTestRunner;
+import com.google.android.apps.common.testing.testrunner.InstrumentationRegistry;
+import com.google.android.apps.common.testing.testrunner.Stage;
 import com.google.android.apps.common.testing.ui.espresso.IdlingPolicies;
 import com.google.android.apps.common.testing.ui.espresso.IdlingPolicy;
 import com.google.android.apps.common.testing.ui.espresso.IdlingResource;
 import com.google.android.apps.common.testing.ui.espresso.IdlingResource.ResourceCallback;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
+import android.app.Activity;
+import android.app.Instrumentation;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestListener;
+
 import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 /**
  * Keeps track of user-registered {@link IdlingResource}s.
+ * <p>
+ * Each resource occupies a slot. The registry keeps a running count of busy slots, so
+ * registration and idle transitions cost O(1) regardless of how many resources are registered.
+ * Slots freed by {@link #unregister} are reused by later registrations, live resources never
+ * move. Each registration carries an id so idle transitions still in flight for a slot's previous
+ * occupant are ignored.
+ * <p>
+ * Resources may be scoped to the current test or to an activity, in which case they are
+ * unregistered when the test ends or the activity is destroyed.
  */
 @Singleton
 public final class IdlingResourceRegistry {
@@ -33,6 +57,7 @@ public final class IdlingResourceRegistry {
   private static final int IDLE_WARNING_REACHED = 3;
   private static final int POSSIBLE_RACE_CONDITION_DETECTED = 4;
   private static final Object TIMEOUT_MESSAGE_TAG = new Object();
+  private static final int NO_REGISTRATION = -1;
 
   private static final IdleNotificationCallback NO_OP_CALLBACK = new IdleNotificationCallback() {
 
@@ -46,10 +71,45 @@ public final class IdlingResourceRegistry {
     public void resourcesHaveTimedOut(List<String> busys) {}
   };
 
-  // resources and idleState should only be accessed on main thread
+  // all registration state and the scopes should only be accessed on main thread
+  // resources.get(i) == null indicates slot i is free
   private final List<IdlingResource> resources = Lists.newArrayList();
-  // idleState.get(i) == true indicates resources.get(i) is idle, false indicates it's busy
+  private final List<Integer> registrationIds = Lists.newArrayList();
+  // idleState.get(i) == true indicates resources.get(i) is idle, false indicates it's busy.
+  // Free slots are always idle.
   private final BitSet idleState = new BitSet();
+  private final BitSet freeSlots = new BitSet();
+  private final Map<String, Integer> slotsByName = Maps.newHashMap();
+  // number of clear bits in idleState below resources.size()
+  private int busyCount;
+  private int nextRegistrationId;
+
+  private final List<IdlingResource> testScope = Lists.newArrayList();
+  private final Map<Activity, List<IdlingResource>> activityScopes = Maps.newIdentityHashMap();
+  private boolean testScopeListenerInstalled;
+  // the lifecycle monitor only keeps weak references to its callbacks.
+  private final ActivityLifecycleCallback activityScopeCallback = new ActivityLifecycleCallback() {
+    @Override
+    public void onActivityLifecycleChanged(final Activity activity, Stage stage) {
+      if (stage != Stage.DESTROYED) {
+        return;
+      }
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          List<IdlingResource> scoped = activityScopes.remove(activity);
+          if (scoped != null) {
+            for (IdlingResource resource : scoped) {
+              if (isRegistered(resource)) {
+                unregister(resource);
+              }
+            }
+          }
+        }
+      });
+    }
+  };
+  private boolean activityScopeCallbackInstalled;
   private final Looper looper;
   private final Handler handler;
   private final Dispatcher dispatcher;
@@ -74,22 +134,194 @@ public final class IdlingResourceRegistry {
           register(resource);
         }
       });
-    } else {      
-      for (IdlingResource oldResource : resources) {
-        if (resource.getName().equals(oldResource.getName())) {
-          // This does not throw an error to avoid leaving tests that register resource in test
-          // setup in an undeterministic state (we cannot assume that everyone clears vm state
-          // between each test run)
-          Log.e(TAG, String.format("Attempted to register resource with same names:" +
-              " %s. R1: %s R2: %s.\nDuplicate resource registration will be ignored.",
-              resource.getName(), resource, oldResource));
-          return;
+    } else {
+      doRegister(resource);
+    }
+  }
+
+  private boolean doRegister(IdlingResource resource) {
+    Integer existing = slotsByName.get(resource.getName());
+    if (existing != null) {
+      // This does not throw an error to avoid leaving tests that register resource in test
+      // setup in an undeterministic state (we cannot assume that everyone clears vm state
+      // between each test run)
+      Log.e(TAG, String.format("Attempted to register resource with same names:" +
+          " %s. R1: %s R2: %s.\nDuplicate resource registration will be ignored.",
+          resource.getName(), resource, resources.get(existing)));
+      return false;
+    }
+    int registrationId = nextRegistrationId++;
+    int position = freeSlots.nextSetBit(0);
+    if (position < 0) {
+      position = resources.size();
+      resources.add(resource);
+      registrationIds.add(registrationId);
+    } else {
+      freeSlots.clear(position);
+      resources.set(position, resource);
+      registrationIds.set(position, registrationId);
+    }
+    slotsByName.put(resource.getName(), position);
+    registerToIdleCallback(resource, position, registrationId);
+    if (resource.isIdleNow()) {
+      idleState.set(position);
+    } else {
+      idleState.clear(position);
+      busyCount++;
+    }
+    return true;
+  }
+
+  /**
+   * Unregisters the given resource. Idle transitions it reports afterwards are ignored.
+   */
+  public void unregister(final IdlingResource resource) {
+    checkNotNull(resource);
+    if (Looper.myLooper() != looper) {
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          unregister(resource);
         }
+      });
+    } else {
+      if (!isRegistered(resource)) {
+        Log.w(TAG, String.format("Attempted to unregister resource that is not registered: %s (%s)",
+            resource.getName(), resource));
+        return;
+      }
+      int position = slotsByName.remove(resource.getName());
+      testScope.remove(resource);
+      markIdle(position);
+      resources.set(position, null);
+      registrationIds.set(position, NO_REGISTRATION);
+      freeSlots.set(position);
+      compact();
+      if (busyCount == 0 && idleNotificationCallback != NO_OP_CALLBACK) {
+        // the resource we were waiting for went away.
+        dispatcher.notifyAllIdle();
       }
-      resources.add(resource);
-      final int position = resources.size() - 1;
-      registerToIdleCallback(resource, position);
-      idleState.set(position, resource.isIdleNow());
+    }
+  }
+
+  private boolean isRegistered(IdlingResource resource) {
+    Integer position = slotsByName.get(resource.getName());
+    return position != null && resources.get(position) == resource;
+  }
+
+  /**
+   * Registers the given resource until the current test ends. Under
+   * {@link GoogleInstrumentationTestRunner} this happens automatically, other instrumentations
+   * have to call {@link #releaseTestScope()} when the test is done.
+   */
+  public void registerForTest(final IdlingResource resource) {
+    checkNotNull(resource);
+    if (Looper.myLooper() != looper) {
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          registerForTest(resource);
+        }
+      });
+    } else {
+      installTestScopeListener();
+      if (doRegister(resource)) {
+        testScope.add(resource);
+      }
+    }
+  }
+
+  /**
+   * Unregisters all resources registered through {@link #registerForTest}.
+   */
+  public void releaseTestScope() {
+    if (Looper.myLooper() != looper) {
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          releaseTestScope();
+        }
+      });
+    } else {
+      for (IdlingResource resource : Lists.newArrayList(testScope)) {
+        unregister(resource);
+      }
+    }
+  }
+
+  /**
+   * Registers the given resource until the given activity is destroyed.
+   */
+  public void registerForActivity(final Activity activity, final IdlingResource resource) {
+    checkNotNull(activity);
+    checkNotNull(resource);
+    if (Looper.myLooper() != looper) {
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          registerForActivity(activity, resource);
+        }
+      });
+    } else {
+      if (!activityScopeCallbackInstalled) {
+        ActivityLifecycleMonitorRegistry.getInstance().addLifecycleCallback(activityScopeCallback);
+        activityScopeCallbackInstalled = true;
+      }
+      if (doRegister(resource)) {
+        List<IdlingResource> scoped = activityScopes.get(activity);
+        if (scoped == null) {
+          scoped = Lists.newArrayList();
+          activityScopes.put(activity, scoped);
+        }
+        scoped.add(resource);
+      }
+    }
+  }
+
+  private void installTestScopeListener() {
+    if (testScopeListenerInstalled) {
+      return;
+    }
+    testScopeListenerInstalled = true;
+    Instrumentation instrumentation = null;
+    try {
+      instrumentation = InstrumentationRegistry.getInstance();
+    } catch (RuntimeException e) {
+      // not running under a registering instrumentation.
+    }
+    if (instrumentation instanceof GoogleInstrumentationTestRunner) {
+      ((GoogleInstrumentationTestRunner) instrumentation).addTestListener(new TestListener() {
+        @Override
+        public void startTest(Test test) {
+        }
+
+        @Override
+        public void endTest(Test test) {
+          releaseTestScope();
+        }
+
+        @Override
+        public void addFailure(Test test, AssertionFailedError ae) {
+        }
+
+        @Override
+        public void addError(Test test, Throwable t) {
+        }
+      });
+    } else {
+      Log.w(TAG, "Test scoped resources are only released automatically under "
+          + "GoogleInstrumentationTestRunner, call releaseTestScope() at the end of each test.");
+    }
+  }
+
+  // Drops trailing free slots. Free slots in the middle stay where they are and are reused by the
+  // next registration, so in-flight idle messages of live resources keep addressing their slot.
+  private void compact() {
+    for (int last = resources.size() - 1; last >= 0 && resources.get(last) == null; last--) {
+      resources.remove(last);
+      registrationIds.remove(last);
+      freeSlots.clear(last);
+      idleState.clear(last);
     }
   }
 
@@ -99,12 +331,27 @@ public final class IdlingResourceRegistry {
     register(new LooperIdlingResource(looper, considerWaitIdle));
   }
 
-  private void registerToIdleCallback(IdlingResource resource, final int position) {
+  /**
+   * Registers an executor backed by a ThreadPoolExecutor. Delayed tasks due further than the given
+   * horizon in the future do not keep it busy.
+   *
+   * @return the resource representing the executor, e.g. to unregister it later.
+   */
+  public IdlingResource registerExecutor(ExecutorService executor, long delayHorizon,
+      TimeUnit unit) {
+    IdlingResource resource = new ExecutorIdlingResource(executor, delayHorizon, unit);
+    register(resource);
+    return resource;
+  }
+
+  private void registerToIdleCallback(IdlingResource resource, final int position,
+      final int registrationId) {
     resource.registerIdleTransitionCallback(new ResourceCallback() {
       @Override
       public void onTransitionToIdle() {
         Message m = handler.obtainMessage(DYNAMIC_RESOURCE_HAS_IDLED);
         m.arg1 = position;
+        m.arg2 = registrationId;
         handler.sendMessage(m);
       }
     });
@@ -112,11 +359,34 @@ public final class IdlingResourceRegistry {
 
   boolean allResourcesAreIdle() {
     checkState(Looper.myLooper() == looper);
-    for (int i = idleState.nextSetBit(0); i >= 0 && i < resources.size();
-        i = idleState.nextSetBit(i + 1)) {
-      idleState.set(i, resources.get(i).isIdleNow());
+    if (busyCount > 0) {
+      // busy resources tell us when they become idle, no need to poll them.
+      return false;
+    }
+    // there is no callback for the idle -> busy transition, so idle resources have to be polled.
+    // Stop at the first busy one: it will report back once it is idle again.
+    for (int i = 0; i < resources.size(); i++) {
+      IdlingResource resource = resources.get(i);
+      if (resource != null && !resource.isIdleNow()) {
+        markBusy(i);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void markBusy(int position) {
+    if (idleState.get(position)) {
+      idleState.clear(position);
+      busyCount++;
+    }
+  }
+
+  private void markIdle(int position) {
+    if (!idleState.get(position)) {
+      idleState.set(position);
+      busyCount--;
     }
-    return idleState.cardinality() == resources.size();
   }
 
   interface IdleNotificationCallback {
@@ -157,18 +427,16 @@ public final class IdlingResourceRegistry {
 
   private List<String> getBusyResources() {
     List<String> busyResourceNames = Lists.newArrayList();
-    List<Integer> racyResources = Lists.newArrayList();
+    List<String> racyResources = Lists.newArrayList();
 
-    for (int i = 0; i < resources.size(); i++) {
+    for (int i = idleState.nextClearBit(0); i < resources.size(); i = idleState.nextClearBit(i + 1)) {
       IdlingResource resource = resources.get(i);
-      if (!idleState.get(i)) {
-        if (resource.isIdleNow()) {
-          // We have not been notified of a BUSY -> IDLE transition, but the resource is telling us
-          // its that its idle. Either it's a race condition or is this resource buggy.
-          racyResources.add(i);
-        } else {
-          busyResourceNames.add(resource.getName());
-        }
+      if (resource.isIdleNow()) {
+        // We have not been notified of a BUSY -> IDLE transition, but the resource is telling us
+        // its that its idle. Either it's a race condition or is this resource buggy.
+        racyResources.add(resource.getName());
+      } else {
+        busyResourceNames.add(resource.getName());
       }
     }
 
@@ -208,13 +476,21 @@ public final class IdlingResourceRegistry {
     }
 
     private void handleResourceIdled(Message m) {
-      idleState.set(m.arg1, true);
-      if (idleState.cardinality() == resources.size()) {
-        try {
-          idleNotificationCallback.allResourcesIdle();
-        } finally {
-          deregister();
-        }
+      if (m.arg1 >= registrationIds.size() || registrationIds.get(m.arg1) != m.arg2) {
+        // sent by a resource that has been unregistered since.
+        return;
+      }
+      markIdle(m.arg1);
+      if (busyCount == 0) {
+        notifyAllIdle();
+      }
+    }
+
+    private void notifyAllIdle() {
+      try {
+        idleNotificationCallback.allResourcesIdle();
+      } finally {
+        deregister();
       }
     }
 
@@ -253,14 +529,15 @@ public final class IdlingResourceRegistry {
 
     @SuppressWarnings("unchecked")
     private void handleRaceCondition(Message m) {
-      for (Integer i : (List<Integer>) m.obj) {
-        if (idleState.get(i)) {
-          // it was a race... i is now idle, everything is fine...
+      for (String name : (List<String>) m.obj) {
+        // the resource may have been unregistered, and its slot dropped or reused, since.
+        Integer position = slotsByName.get(name);
+        if (position == null || idleState.get(position)) {
+          // it was a race... the resource is now idle or gone, everything is fine...
         } else {
           throw new IllegalStateException(String.format(
               "Resource %s isIdleNow() is returning true, but a message indicating that the "
-              + "resource has transitioned from busy to idle was never sent.",
-              resources.get(i).getName()));
+              + "resource has transitioned from busy to idle was never sent.", name));
         }
       }
     }
@@ -0,0 +1,151 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import android.app.Instrumentation;
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.apps.common.testing.testrunner.GoogleInstrumentationTestRunner;
+import com.google.android.apps.common.testing.testrunner.InstrumentationRegistry;
+import com.google.android.apps.common.testing.ui.espresso.TimeWarpPolicy;
+import com.google.common.base.Predicate;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestListener;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Fast-forwards delayed messages on the main looper as allowed by the {@link TimeWarpPolicy}, and
+ * keeps track of the wall time it skipped.
+ * <p>
+ * Only the head of the queue is ever fast-forwarded, so messages run in the order they would have
+ * in real time. Each loop of the main thread is a warp session: the time skipped by a warp is how
+ * much later than both now and the previously warped messages of the session it was due.
+ * <p>
+ * Under {@link GoogleInstrumentationTestRunner} the time skipped by each test is logged when the
+ * test ends.
+ */
+@Singleton
+public final class MainLooperTimeWarp {
+    private static final String TAG = "MainLooperTimeWarp";
+
+    private final AtomicLong warpCount = new AtomicLong();
+    private final AtomicLong skippedMillis = new AtomicLong();
+    private final AtomicLong testSkippedMillis = new AtomicLong();
+
+    // only used on main thread.
+    private boolean testListenerInstalled;
+    private long warpedUntil;
+
+    @Inject
+    MainLooperTimeWarp() {}
+
+    /**
+     * Starts a warp session. Must be called on the main thread.
+     */
+    void beginSession() {
+        warpedUntil = 0;
+        installTestListener();
+    }
+
+    /**
+     * Fast-forwards the head of the main queue if it is due within the given delay and either
+     * targets the given handler or is allowed by the policy. Must be called on the main thread.
+     *
+     * @return true if the head was made due now.
+     */
+    boolean warpHead(QueueInterrogator interrogator, final TimeWarpPolicy policy,
+                     final Handler ownHandler, long maxDelayMillis) {
+        checkNotNull(policy);
+        long now = SystemClock.uptimeMillis();
+        long due = interrogator.advanceHead(new Predicate<Message>() {
+            @Override
+            public boolean apply(Message message) {
+                return message.getTarget() == ownHandler || policy.allows(warpClassName(message));
+            }
+        }, maxDelayMillis);
+        if (due < 0) {
+            return false;
+        }
+        long skipped = due - Math.max(now, warpedUntil);
+        if (skipped > 0) {
+            skippedMillis.addAndGet(skipped);
+            testSkippedMillis.addAndGet(skipped);
+        }
+        warpedUntil = Math.max(warpedUntil, due);
+        warpCount.incrementAndGet();
+        return true;
+    }
+
+    private static String warpClassName(Message message) {
+        Runnable callback = message.getCallback();
+        return callback != null ? callback.getClass().getName()
+                : message.getTarget().getClass().getName();
+    }
+
+    /**
+     * @return the number of messages fast-forwarded.
+     */
+    public long getWarpCount() {
+        return warpCount.get();
+    }
+
+    /**
+     * @return the total wall time skipped by fast-forwarding messages.
+     */
+    public long getSkippedMillis() {
+        return skippedMillis.get();
+    }
+
+    /**
+     * @return the wall time skipped since the current test started.
+     */
+    public long getTestSkippedMillis() {
+        return testSkippedMillis.get();
+    }
+
+    private void installTestListener() {
+        if (testListenerInstalled) {
+            return;
+        }
+        testListenerInstalled = true;
+        Instrumentation instrumentation = null;
+        try {
+            instrumentation = InstrumentationRegistry.getInstance();
+        } catch (RuntimeException e) {
+            // not running under a registering instrumentation.
+        }
+        if (instrumentation instanceof GoogleInstrumentationTestRunner) {
+            ((GoogleInstrumentationTestRunner) instrumentation).addTestListener(new TestListener() {
+                @Override
+                public void startTest(Test test) {
+                    testSkippedMillis.set(0);
+                }
+
+                @Override
+                public void endTest(Test test) {
+                    long skipped = testSkippedMillis.getAndSet(0);
+                    if (skipped > 0) {
+                        Log.i(TAG, String.format("Skipped %s ms of wall time in %s.", skipped, test));
+                    }
+                }
+
+                @Override
+                public void addFailure(Test test, AssertionFailedError ae) {
+                }
+
+                @Override
+                public void addError(Test test, Throwable t) {
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import android.os.Looper;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.google.android.apps.common.testing.ui.espresso.AmbiguousViewMatcherException;
+import com.google.android.apps.common.testing.ui.espresso.NoMatchingViewException;
+import com.google.android.apps.common.testing.ui.espresso.ViewFinder;
+import com.google.android.apps.common.testing.ui.espresso.matcher.ScopedViewMatcher;
+import com.google.android.apps.common.testing.ui.espresso.matcher.ViewGeometryCache;
+import com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.hamcrest.Matcher;
+
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Looks up the views of many view matchers against the same roots, finding the same views in the
+ * same order as {@link ViewFinderImpl} would for each of them. Matchers the index can answer are
+ * looked up in it; all the others are run during a single breadth first traversal of the roots.
+ */
+public final class MultiViewFinder {
+
+    // where a view stands for a query, the state its children inherit.
+    private static final byte OUT_OF_SCOPE = 0;
+    private static final byte ABOVE_ANCESTOR = 1;
+    private static final byte IN_SCOPE = 2;
+
+    private final Provider<List<View>> rootViewsProvider;
+    private final ViewHierarchyIndex index;
+
+    @Inject
+    MultiViewFinder(Provider<List<View>> rootViewsProvider, ViewHierarchyIndex index) {
+        this.rootViewsProvider = checkNotNull(rootViewsProvider);
+        this.index = checkNotNull(index);
+    }
+
+    /**
+     * Searches the hierarchy for all the matchers at once: through the index, checked against the
+     * hierarchy once, and one traversal of the roots for the matchers it cannot answer, each
+     * within its own scope. All of them share the view geometry. Returns a finder per matcher, in
+     * order, whose {@link ViewFinder#getView} returns the view found or throws the
+     * {@link AmbiguousViewMatcherException} or {@link NoMatchingViewException} a lookup of that
+     * matcher alone would. The finders do not look at the hierarchy again (except to describe a
+     * missing view), so they go stale once it changes.
+     */
+    public List<ViewFinder> find(List<Matcher<View>> viewMatchers) {
+        checkState(Thread.currentThread().equals(Looper.getMainLooper().getThread()),
+                "Executing a query on the view hierarchy outside of the main thread (on: %s)",
+                Thread.currentThread().getName());
+        List<View> roots = rootViewsProvider.get();
+        List<Query> queries = Lists.newArrayListWithCapacity(viewMatchers.size());
+        for (Matcher<View> viewMatcher : viewMatchers) {
+            queries.add(new Query(checkNotNull(viewMatcher)));
+        }
+
+        ViewGeometryCache geometry = ViewGeometryCache.open();
+        try {
+            List<List<View>> candidates = index.candidates(roots, viewMatchers);
+            List<Query> searched = Lists.newArrayList();
+            for (int i = 0; i < queries.size(); i++) {
+                Query query = queries.get(i);
+                if (candidates.get(i) != null) {
+                    for (View candidate : candidates.get(i)) {
+                        if (query.viewQuery.matches(candidate)) {
+                            query.matches.add(candidate);
+                        }
+                    }
+                } else {
+                    searched.add(query);
+                }
+            }
+            if (!searched.isEmpty()) {
+                for (View root : roots) {
+                    search(root, searched);
+                }
+            }
+        } finally {
+            geometry.close();
+        }
+
+        ImmutableList.Builder<ViewFinder> finders = ImmutableList.builder();
+        for (Query query : queries) {
+            finders.add(new FoundViews(query.viewMatcher, roots, query.matches));
+        }
+        return finders.build();
+    }
+
+    /**
+     * Adds the views under root matching each query, in one breadth first traversal. Each view
+     * carries the state of every query, so a query skips the subtrees its scope rules out and
+     * only matches below its required ancestor, and the traversal only leaves out the subtrees
+     * no query looks into.
+     */
+    private static void search(View root, List<Query> queries) {
+        int count = queries.size();
+        byte[] rootStates = new byte[count];
+        for (int q = 0; q < count; q++) {
+            rootStates[q] = queries.get(q).ancestorMatcher == null ? IN_SCOPE : ABOVE_ANCESTOR;
+        }
+        List<View> views = Lists.newArrayList();
+        List<byte[]> states = Lists.newArrayList();
+        views.add(root);
+        states.add(rootStates);
+        for (int next = 0; next < views.size(); next++) {
+            View view = views.get(next);
+            byte[] viewStates = states.get(next);
+            byte[] childStates = new byte[count];
+            boolean descend = false;
+            for (int q = 0; q < count; q++) {
+                Query query = queries.get(q);
+                byte state = viewStates[q];
+                if (state == OUT_OF_SCOPE
+                        || (query.viewScope != null && !query.viewScope.mayMatchWithin(view))) {
+                    childStates[q] = OUT_OF_SCOPE;
+                    continue;
+                }
+                if (state == IN_SCOPE) {
+                    if (query.viewQuery.matches(view)) {
+                        query.matches.add(view);
+                    }
+                    childStates[q] = IN_SCOPE;
+                } else {
+                    // the ancestor itself is not its own descendant.
+                    childStates[q] = query.ancestorMatcher.matches(view) ? IN_SCOPE : ABOVE_ANCESTOR;
+                }
+                descend = true;
+            }
+            if (descend && view instanceof ViewGroup) {
+                ViewGroup group = (ViewGroup) view;
+                for (int i = 0; i < group.getChildCount(); i++) {
+                    views.add(group.getChildAt(i));
+                    states.add(childStates);
+                }
+            }
+        }
+    }
+
+    /**
+     * A view matcher, compiled as {@link ViewFinderImpl} does, and the views found for it.
+     */
+    private static final class Query {
+        final Matcher<View> viewMatcher;
+        final Matcher<View> viewQuery;
+        final ScopedViewMatcher viewScope;
+        final Matcher<View> ancestorMatcher;
+        final List<View> matches = Lists.newArrayList();
+
+        Query(Matcher<View> viewMatcher) {
+            this.viewMatcher = viewMatcher;
+            this.viewQuery = ViewMatchers.compile(viewMatcher);
+            this.viewScope = viewQuery instanceof ScopedViewMatcher
+                    ? (ScopedViewMatcher) viewQuery : null;
+            this.ancestorMatcher = viewScope == null ? null : viewScope.getRequiredAncestor();
+        }
+    }
+
+    private static final class FoundViews implements ViewFinder {
+        private final Matcher<View> viewMatcher;
+        private final List<View> roots;
+        private final List<View> matches;
+
+        private FoundViews(Matcher<View> viewMatcher, List<View> roots, List<View> matches) {
+            this.viewMatcher = viewMatcher;
+            this.roots = roots;
+            this.matches = matches;
+        }
+
+        @Override
+        public View getView() throws AmbiguousViewMatcherException, NoMatchingViewException {
+            return ViewFinderImpl.select(viewMatcher, roots, matches);
+        }
+    }
+}
@@ -11,6 +11,8 @@ import android.os.MessageQueue;
 import android.os.SystemClock;
 import android.util.Log;
 
+import com.google.common.base.Predicate;
+
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -29,7 +31,10 @@ final class QueueInterrogator {
 
   private static final Method messageQueueNextMethod;
   private static final Field messageQueueHeadField;
+  private static final Field messageWhenField;
   private static final int LOOKAHEAD_MILLIS = 15;
+  // passed to next() rather than letting every call allocate an empty varargs array.
+  private static final Object[] NO_ARGS = new Object[0];
 
   private final Looper interrogatedLooper;
   private volatile MessageQueue interrogatedQueue;
@@ -63,6 +68,19 @@ final class QueueInterrogator {
       messageQueueNextMethod = nextMethod;
       messageQueueHeadField = headField;
     }
+
+    // only needed to fast-forward delayed messages, which is optional.
+    Field whenField = null;
+    try {
+      whenField = Message.class.getDeclaredField("when");
+      whenField.setAccessible(true);
+    } catch (NoSuchFieldException e) {
+      Log.w(TAG, "Delayed messages cannot be fast-forwarded.", e);
+    } catch (SecurityException e) {
+      Log.w(TAG, "Delayed messages cannot be fast-forwarded.", e);
+    } finally {
+      messageWhenField = whenField;
+    }
   }
 
   QueueInterrogator(Looper interrogatedLooper) {
@@ -80,15 +98,11 @@ final class QueueInterrogator {
     }
 
     try {
-      return (Message) messageQueueNextMethod.invoke(Looper.myQueue());
+      return (Message) messageQueueNextMethod.invoke(interrogatedQueue, NO_ARGS);
     } catch (IllegalAccessException e) {
       throw propagate(e);
-    } catch (IllegalArgumentException e) {
-      throw propagate(e);
     } catch (InvocationTargetException e) {
       throw propagate(e);
-    } catch (SecurityException e) {
-      throw propagate(e);
     }
   }
 
@@ -124,6 +138,40 @@ final class QueueInterrogator {
     }
   }
 
+  /**
+   * Makes the message at the head of the queue due now, if it is a message due at most the given
+   * time from now which the predicate accepts. Messages behind it stay as they are, so the queue
+   * keeps its order.
+   *
+   * @return the time the head was due at, or -1 if it was left alone.
+   */
+  long advanceHead(Predicate<Message> eligible, long maxDelayMillis) {
+    checkThread();
+    if (null == messageWhenField) {
+      return -1;
+    }
+    if (null == interrogatedQueue) {
+      initializeQueue();
+    }
+    synchronized (interrogatedQueue) {
+      try {
+        Message head = (Message) messageQueueHeadField.get(interrogatedQueue);
+        if (null == head || null == head.getTarget()) {
+          return -1;
+        }
+        long now = SystemClock.uptimeMillis();
+        long headWhen = head.getWhen();
+        if (headWhen <= now || headWhen - now > maxDelayMillis || !eligible.apply(head)) {
+          return -1;
+        }
+        messageWhenField.setLong(head, now);
+        return headWhen;
+      } catch (IllegalAccessException e) {
+        throw propagate(e);
+      }
+    }
+  }
+
   private void initializeQueue() {
     if (interrogatedLooper == Looper.myLooper()) {
       interrogatedQueue = Looper.myQueue();
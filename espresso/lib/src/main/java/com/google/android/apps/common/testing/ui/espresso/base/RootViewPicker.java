@@ -5,31 +5,38 @@ import android.app.Activity;
 import android.content.Context;
 import android.os.Build;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
+import android.view.ViewTreeObserver;
 
+import com.google.android.apps.common.testing.testrunner.ActivityLifecycleCallback;
 import com.google.android.apps.common.testing.testrunner.ActivityLifecycleMonitor;
+import com.google.android.apps.common.testing.testrunner.CountingActivityLifecycleMonitor;
 import com.google.android.apps.common.testing.testrunner.Stage;
 import com.google.android.apps.common.testing.testrunner.inject.TargetContext;
 import com.google.android.apps.common.testing.ui.espresso.NoActivityResumedException;
 import com.google.android.apps.common.testing.ui.espresso.NoMatchingRootException;
 import com.google.android.apps.common.testing.ui.espresso.Root;
-import com.google.android.apps.common.testing.ui.espresso.UiController;
+import com.google.android.apps.common.testing.ui.espresso.WakeableUiController;
 import com.google.android.apps.common.testing.ui.espresso.matcher.RootMatchers;
+import com.google.android.apps.common.testing.ui.espresso.matcher.RootMatchingContext;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import org.hamcrest.Matcher;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -53,8 +60,16 @@ public final class RootViewPicker implements Provider<List<View>> {
 
     private static final String TAG = RootViewPicker.class.getSimpleName();
 
+    private static final long READY_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    // the total of the 10ms, 50ms, 100ms, 500ms, 2s and 30s waits we used to back off through.
+    private static final long RESUME_TIMEOUT_MILLIS = 10 + 50 + 100 + 500
+            + TimeUnit.SECONDS.toMillis(2) + TimeUnit.SECONDS.toMillis(30);
+    // without window focus callbacks (before JB MR2) focus changes are only seen by re-checking.
+    private static final long MAX_READY_WAIT_MILLIS =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 ? 250 : 10;
+
     private final Provider<List<Root>> rootsOracle;
-    private final UiController uiController;
+    private final WakeableUiController uiController;
     private final ActivityLifecycleMonitor activityLifecycleMonitor;
     private final AtomicReference<Matcher<Root>> rootMatcherRef;
     private final Screenshotter screenshotter;
@@ -67,7 +82,7 @@ public final class RootViewPicker implements Provider<List<View>> {
 
     @SuppressLint("NewApi")
     @Inject
-    RootViewPicker(Provider<List<Root>> rootsOracle, UiController uiController,
+    RootViewPicker(Provider<List<Root>> rootsOracle, WakeableUiController uiController,
                    ActivityLifecycleMonitor activityLifecycleMonitor,
                    AtomicReference<Matcher<Root>> rootMatcherRef,
                    Screenshotter screenshotter,
@@ -87,35 +102,44 @@ public final class RootViewPicker implements Provider<List<View>> {
         Matcher<Root> rootMatcher = rootMatcherRef.get();
 
         List<Root> roots = findRoots(rootMatcher);
+        boolean ignoreFocus = rootMatcher instanceof RootMatchers.MultiRootMatcher;
 
         // we only want to propagate a root view that the user can interact with and is not
         // about to relay itself out. An app should be in this state the majority of the time,
         // if we happen not to be in this state at the moment, process the queue some more
         // we should come to it quickly enough.
-        int loops = 0;
+        for (int loops = 0; loops < 3 && !isReady(roots, ignoreFocus); loops++) {
+            uiController.loopMainThreadUntilIdle();
+            roots = findRoots(rootMatcher);
+        }
 
-        while (!isReady(roots, (rootMatcher instanceof RootMatchers.MultiRootMatcher))) {
-            if (loops < 3) {
-                uiController.loopMainThreadUntilIdle();
-            } else if (loops < 1001) {
+        if (!isReady(roots, ignoreFocus)) {
+            // rather than polling, sleep until a selected root lays out or its window focus
+            // changes, which is when it may have become ready.
+            ReadinessListener listener = new ReadinessListener();
+            long deadline = SystemClock.uptimeMillis() + READY_TIMEOUT_MILLIS;
+            try {
+                while (!isReady(roots, ignoreFocus)) {
+                    long remaining = deadline - SystemClock.uptimeMillis();
+                    if (remaining <= 0) {
+                        // we've waited for the root view to be fully laid out and have window focus
+                        // for over 10 seconds. something is wrong.
+                        screenshotter.snapToFile(new File(outdir, String.format("badroot-%s.jpg", dateFormat.format(new Date()))), roots);
 
-                // loopUntil idle effectively is polling and pegs the CPU... if we don't have an update to
-                // process immediately, we might have something coming very very soon.
-                uiController.loopMainThreadForAtLeast(10);
-            } else {
-                // we've waited for the root view to be fully laid out and have window focus
-                // for over 10 seconds. something is wrong.
-                screenshotter.snapToFile(new File(outdir, String.format("badroot-%s.jpg", dateFormat.format(new Date()))), roots);
-                
-                throw new RuntimeException(String.format("Waited for the selected roots of the view hierarchy to have"
-                        + " window focus and not be requesting layout for over 10 seconds. If you specified a"
-                        + " non default root matcher, it may be picking roots that never take focus."
-                        + " Otherwise, something is seriously wrong. Selected Roots:\n%s\n. All Roots:\n%s"
-                        , Joiner.on("\n").join(roots), Joiner.on("\n").join(allRoots)));
+                        throw new RuntimeException(String.format("Waited for the selected roots of the view hierarchy to have"
+                                + " window focus and not be requesting layout for over 10 seconds. If you specified a"
+                                + " non default root matcher, it may be picking roots that never take focus."
+                                + " Otherwise, something is seriously wrong. Selected Roots:\n%s\n. All Roots:\n%s"
+                                , Joiner.on("\n").join(roots), Joiner.on("\n").join(allRoots)));
+                    }
+                    listener.watch(roots);
+                    uiController.loopMainThreadUntilWokenUp(
+                            Math.min(remaining, MAX_READY_WAIT_MILLIS));
+                    roots = findRoots(rootMatcher);
+                }
+            } finally {
+                listener.release();
             }
-
-            roots = findRoots(rootMatcher);
-            loops++;
         }
 
         return Lists.transform(roots, new Function<Root, View>() {
@@ -126,6 +150,83 @@ public final class RootViewPicker implements Provider<List<View>> {
         });
     }
 
+    /**
+     * Wakes up {@link WakeableUiController#loopMainThreadUntilWokenUp} when one of the watched roots
+     * lays out or gains or loses window focus.
+     */
+    private class ReadinessListener implements ViewTreeObserver.OnGlobalLayoutListener {
+        private final Map<View, ViewTreeObserver> observers = Maps.newIdentityHashMap();
+        // only created on API levels that know about the interface it implements.
+        private WindowFocusListener windowFocusListener;
+
+        @Override
+        public void onGlobalLayout() {
+            uiController.wakeUp();
+        }
+
+        /**
+         * Starts watching roots that are new and stops watching those that went away.
+         */
+        @SuppressLint("NewApi")
+        void watch(List<Root> roots) {
+            Map<View, Boolean> current = Maps.newIdentityHashMap();
+            for (Root root : roots) {
+                View decorView = root.getDecorView();
+                current.put(decorView, Boolean.TRUE);
+                if (!observers.containsKey(decorView)) {
+                    ViewTreeObserver vto = decorView.getViewTreeObserver();
+                    vto.addOnGlobalLayoutListener(this);
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                        if (windowFocusListener == null) {
+                            windowFocusListener = new WindowFocusListener();
+                        }
+                        vto.addOnWindowFocusChangeListener(windowFocusListener);
+                    }
+                    observers.put(decorView, vto);
+                }
+            }
+            for (Iterator<Map.Entry<View, ViewTreeObserver>> it = observers.entrySet().iterator();
+                    it.hasNext(); ) {
+                Map.Entry<View, ViewTreeObserver> entry = it.next();
+                if (!current.containsKey(entry.getKey())) {
+                    detach(entry.getValue());
+                    it.remove();
+                }
+            }
+        }
+
+        void release() {
+            for (ViewTreeObserver vto : observers.values()) {
+                detach(vto);
+            }
+            observers.clear();
+        }
+
+        @SuppressLint("NewApi")
+        @SuppressWarnings("deprecation")
+        private void detach(ViewTreeObserver vto) {
+            if (!vto.isAlive()) {
+                return;
+            }
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                vto.removeGlobalOnLayoutListener(this);
+            } else {
+                vto.removeOnGlobalLayoutListener(this);
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                vto.removeOnWindowFocusChangeListener(windowFocusListener);
+            }
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private class WindowFocusListener implements ViewTreeObserver.OnWindowFocusChangeListener {
+        @Override
+        public void onWindowFocusChanged(boolean hasFocus) {
+            uiController.wakeUp();
+        }
+    }
+
     private boolean isReady(List<Root> roots, boolean ignoreFocus) {
         boolean ready = true;
         for (Root root : roots) {
@@ -172,10 +273,16 @@ public final class RootViewPicker implements Provider<List<View>> {
         }
 
         List<Root> selectedRoots = Lists.newArrayList();
-        for (Root root : allRoots) {
-            if (rootMatcher.matches(root)) {
-                selectedRoots.add(root);
+        // the resumed activities cannot change while we match, look them up once for all roots.
+        RootMatchingContext matchingContext = RootMatchingContext.open();
+        try {
+            for (Root root : allRoots) {
+                if (rootMatcher.matches(root)) {
+                    selectedRoots.add(root);
+                }
             }
+        } finally {
+            matchingContext.close();
         }
 
         if (selectedRoots.isEmpty()) {
@@ -189,40 +296,63 @@ public final class RootViewPicker implements Provider<List<View>> {
     }
 
     private void waitForAtLeastOneActivityToBeResumed() {
-        Collection<Activity> resumedActivities =
-                activityLifecycleMonitor.getActivitiesInStage(Stage.RESUMED);
-        if (resumedActivities.isEmpty()) {
+        if (countInStage(Stage.RESUMED) == 0) {
             uiController.loopMainThreadUntilIdle();
-            resumedActivities = activityLifecycleMonitor.getActivitiesInStage(Stage.RESUMED);
         }
-        if (resumedActivities.isEmpty()) {
-            List<Activity> activities = Lists.newArrayList();
+        if (countInStage(Stage.RESUMED) == 0) {
+            int activities = 0;
             for (Stage s : EnumSet.range(Stage.PRE_ON_CREATE, Stage.RESTARTED)) {
-                activities.addAll(activityLifecycleMonitor.getActivitiesInStage(s));
+                activities += countInStage(s);
             }
-            if (activities.isEmpty()) {
+            if (activities == 0) {
                 throw new RuntimeException("No activities found. Did you forget to launch the activity "
                         + "by calling getActivity() or startActivitySync or similar?");
             }
             // well at least there are some activities in the pipeline - lets see if they resume.
-
-            long[] waitTimes =
-                    {10, 50, 100, 500, TimeUnit.SECONDS.toMillis(2), TimeUnit.SECONDS.toMillis(30)};
-
-            for (int waitIdx = 0; waitIdx < waitTimes.length; waitIdx++) {
-                Log.w(TAG, "No activity currently resumed - waiting: " + waitTimes[waitIdx]
-                        + "ms for one to appear.");
-                uiController.loopMainThreadForAtLeast(waitTimes[waitIdx]);
-                resumedActivities = activityLifecycleMonitor.getActivitiesInStage(Stage.RESUMED);
-                if (!resumedActivities.isEmpty()) {
-                    return; // one of the pending activities has resumed
+            Log.w(TAG, "No activity currently resumed - waiting: " + RESUME_TIMEOUT_MILLIS
+                    + "ms for one to appear.");
+            ResumeListener listener = new ResumeListener();
+            activityLifecycleMonitor.addLifecycleCallback(listener);
+            try {
+                long start = SystemClock.uptimeMillis();
+                long deadline = start + RESUME_TIMEOUT_MILLIS;
+                long remaining;
+                while ((remaining = deadline - SystemClock.uptimeMillis()) > 0) {
+                    uiController.loopMainThreadUntilWokenUp(remaining);
+                    if (countInStage(Stage.RESUMED) > 0) {
+                        Log.i(TAG, String.format("Waited %d ms for an activity to resume.",
+                                SystemClock.uptimeMillis() - start));
+                        return; // one of the pending activities has resumed
+                    }
                 }
+            } finally {
+                activityLifecycleMonitor.removeLifecycleCallback(listener);
             }
             throw new NoActivityResumedException("No activities in stage RESUMED. Did you forget to "
                     + "launch the activity. (test.getActivity() or similar)?");
         }
     }
 
+    private int countInStage(Stage stage) {
+        if (activityLifecycleMonitor instanceof CountingActivityLifecycleMonitor) {
+            return ((CountingActivityLifecycleMonitor) activityLifecycleMonitor)
+                    .getActivityCountInStage(stage);
+        }
+        return activityLifecycleMonitor.getActivitiesInStage(stage).size();
+    }
+
+    /**
+     * Wakes up {@link WakeableUiController#loopMainThreadUntilWokenUp} when an activity resumes.
+     */
+    private class ResumeListener implements ActivityLifecycleCallback {
+        @Override
+        public void onActivityLifecycleChanged(Activity activity, Stage stage) {
+            if (stage == Stage.RESUMED) {
+                uiController.wakeUp();
+            }
+        }
+    }
+
     private Root pickBestRoot(List<Root> subpanels) {
         Root topSubpanel = subpanels.get(0);
         if (subpanels.size() >= 1) {
@@ -3,7 +3,7 @@ package com.google.android.apps.common.testing.ui.espresso.base;
 import static com.google.common.base.Preconditions.checkState;
 
 import com.google.android.apps.common.testing.ui.espresso.Root;
-import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableList;
 
 import android.os.Build;
 import android.os.Looper;
@@ -33,6 +33,11 @@ import javax.inject.Singleton;
  * is the sole root - this assumption will be correct often enough.
  *
  * Obviously, you need to be on the main thread to use this.
+ *
+ * The reflective handles are resolved once. The root list is only rebuilt when the window manager's
+ * views or params changed since the previous call: the backing arrays are replaced or mutated in
+ * place as windows come, go or get new layout params, so their elements are compared by identity
+ * with the ones the cached list was built from. Callers get an immutable list they may keep.
  */
 @Singleton
 final class RootsOracle implements Provider<List<Root>> {
@@ -53,6 +58,13 @@ final class RootsOracle implements Provider<List<Root>> {
   private Field viewsField;
   private Field paramsField;
 
+  // the window manager state the cached roots were built from, null until they are first built.
+  private View[] cachedViews;
+  private LayoutParams[] cachedParams;
+  private List<Root> cachedRoots;
+  private int hitCount;
+  private int rebuildCount;
+
   @Inject
   RootsOracle(Looper mainLooper) {
     this.mainLooper = mainLooper;
@@ -69,16 +81,16 @@ final class RootsOracle implements Provider<List<Root>> {
 
     if (null == windowManagerObj) {
       Log.w(TAG, "No reflective access to windowmanager object.");
-      return Lists.newArrayList();
+      return ImmutableList.of();
     }
 
     if (null == viewsField) {
       Log.w(TAG, "No reflective access to mViews");
-      return Lists.newArrayList();
+      return ImmutableList.of();
     }
     if (null == paramsField) {
       Log.w(TAG, "No reflective access to mPArams");
-      return Lists.newArrayList();
+      return ImmutableList.of();
     }
 
     List<View> views = null;
@@ -95,24 +107,61 @@ final class RootsOracle implements Provider<List<Root>> {
     } catch (RuntimeException re) {
       Log.w(TAG, String.format("Reflective access to %s or %s on %s failed.",
           viewsField, paramsField, windowManagerObj), re);
-      return Lists.newArrayList();
+      return ImmutableList.of();
     } catch (IllegalAccessException iae) {
       Log.w(TAG, String.format("Reflective access to %s or %s on %s failed.",
           viewsField, paramsField, windowManagerObj), iae);
-      return Lists.newArrayList();
+      return ImmutableList.of();
     }
 
+    if (unchanged(views, params)) {
+      hitCount++;
+      return cachedRoots;
+    }
 
-    List<Root> roots = Lists.newArrayList();
-    for (int i = views.size() - 1; i > -1; i--) {
+    int size = views.size();
+    cachedViews = views.toArray(new View[size]);
+    cachedParams = params.toArray(new LayoutParams[params.size()]);
+    ImmutableList.Builder<Root> roots = ImmutableList.builder();
+    for (int i = size - 1; i > -1; i--) {
       roots.add(
           new Root.Builder()
-              .withDecorView(views.get(i))
-              .withWindowLayoutParams(params.get(i))
+              .withDecorView(cachedViews[i])
+              .withWindowLayoutParams(cachedParams[i])
               .build());
     }
+    cachedRoots = roots.build();
+    rebuildCount++;
+    return cachedRoots;
+  }
+
+  private boolean unchanged(List<View> views, List<LayoutParams> params) {
+    if (null == cachedViews) {
+      return false;
+    }
+    if (views.size() != cachedViews.length || params.size() != cachedParams.length) {
+      return false;
+    }
+    for (int i = 0; i < cachedViews.length; i++) {
+      if (views.get(i) != cachedViews[i] || params.get(i) != cachedParams[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns how often {@link #get()} answered from the cached roots, for tests and diagnostics.
+   */
+  int getHitCount() {
+    return hitCount;
+  }
 
-    return roots;
+  /**
+   * Returns how often {@link #get()} had to rebuild the roots, for tests and diagnostics.
+   */
+  int getRebuildCount() {
+    return rebuildCount;
   }
 
   private void initialize() {
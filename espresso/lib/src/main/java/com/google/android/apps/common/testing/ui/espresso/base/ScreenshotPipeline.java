@@ -0,0 +1,320 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+import android.util.Log;
+
+import com.google.android.apps.common.testing.testrunner.inject.TargetContext;
+import com.google.android.apps.common.testing.ui.espresso.IdlingPolicies;
+import com.google.android.apps.common.testing.ui.espresso.ScreenshotPolicy;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Captures screenshots of interactions according to the current {@link ScreenshotPolicy}.
+ * <p>
+ * The main thread only renders the roots into a pooled bitmap. JPEG encoding and file I/O happen
+ * on a single background thread. The queue feeding that thread is bounded by the size of the
+ * bitmap pool: when every pooled bitmap is still waiting to be encoded, new frames are dropped
+ * instead of stalling the main thread.
+ */
+@Singleton
+public final class ScreenshotPipeline {
+    private static final String TAG = ScreenshotPipeline.class.getSimpleName();
+
+    private static final int MAX_PENDING_FRAMES = 4;
+    private static final int JPEG_QUALITY = 5;
+    private static final long FLUSH_TIMEOUT_SECONDS = 10;
+
+    private final Screenshotter screenshotter;
+    private final File outdir;
+    private final SimpleDateFormat dateFormat;
+    private final BitmapPool pool = new BitmapPool();
+    private final ExecutorService encoder;
+
+    // guarded by itself
+    private final LinkedList<Frame> ring = new LinkedList<Frame>();
+
+    private final AtomicLong interactionCount = new AtomicLong();
+    private final AtomicLong captureCount = new AtomicLong();
+    private final AtomicLong captureNanos = new AtomicLong();
+    private final AtomicLong encodeCount = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private static class Frame {
+        final Bitmap bitmap;
+        final long timestamp;
+
+        Frame(Bitmap bitmap, long timestamp) {
+            this.bitmap = bitmap;
+            this.timestamp = timestamp;
+        }
+    }
+
+    @SuppressLint("NewApi")
+    @Inject
+    ScreenshotPipeline(Screenshotter screenshotter, @TargetContext Context context) {
+        this.screenshotter = checkNotNull(screenshotter);
+        this.outdir = new File(Objects.firstNonNull(((Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) ? null : context.getExternalFilesDir(null)), context.getFilesDir()), "test-results");
+        this.dateFormat = new SimpleDateFormat("HH':'mm':'ss.SSS");
+        this.encoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Espresso Screenshot Encoder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Records an interaction (a perform, or a check however often it is retried). Must be called
+     * on the main thread; depending on the policy the current screen is captured into a pooled
+     * bitmap.
+     */
+    public void onInteraction() {
+        ScreenshotPolicy policy = IdlingPolicies.getScreenshotPolicy();
+        switch (policy.getMode()) {
+            case EVERY_NTH:
+                discardRing();
+                if (interactionCount.incrementAndGet() % policy.getCount() == 0) {
+                    pool.setLimit(MAX_PENDING_FRAMES);
+                    Frame frame = capture();
+                    if (frame != null)
+                        encodeAsync(Collections.singletonList(frame));
+                }
+                break;
+            case RING:
+                pool.setLimit(policy.getCount());
+                synchronized (ring) {
+                    // hand the oldest frames back first so the new capture reuses their bitmap.
+                    while (ring.size() >= policy.getCount())
+                        pool.release(ring.removeFirst().bitmap);
+                }
+                Frame frame = capture();
+                if (frame != null) {
+                    synchronized (ring) {
+                        ring.addLast(frame);
+                    }
+                }
+                break;
+            default:
+                // NEVER and ON_FAILURE do not capture individual interactions.
+                discardRing();
+                break;
+        }
+    }
+
+    /**
+     * Writes out whatever the policy retained for a failure and waits (bounded) for all pending
+     * frames to reach the disk. Never throws, so it cannot mask the failure being reported.
+     */
+    public void flush() {
+        try {
+            ScreenshotPolicy policy = IdlingPolicies.getScreenshotPolicy();
+            List<Frame> frames = Lists.newArrayList();
+            if (policy.getMode() == ScreenshotPolicy.Mode.ON_FAILURE) {
+                pool.setLimit(1);
+                Frame frame = capture();
+                if (frame != null)
+                    frames.add(frame);
+            }
+            synchronized (ring) {
+                frames.addAll(ring);
+                ring.clear();
+            }
+            if (!frames.isEmpty())
+                encodeAsync(frames);
+
+            FutureTask<Void> drained = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() { }
+            }, null);
+            encoder.execute(drained);
+            drained.get(FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Failed flushing screenshots", e);
+        } catch (TimeoutException e) {
+            Log.w(TAG, String.format("Screenshots still pending after %d seconds", FLUSH_TIMEOUT_SECONDS));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed flushing screenshots", e);
+        }
+    }
+
+    /**
+     * @return the number of screenshots rendered on the main thread.
+     */
+    public long getCaptureCount() {
+        return captureCount.get();
+    }
+
+    /**
+     * @return the total time spent rendering screenshots on the main thread.
+     */
+    public long getCaptureTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(captureNanos.get());
+    }
+
+    /**
+     * @return the number of screenshots encoded and written by the background thread.
+     */
+    public long getEncodeCount() {
+        return encodeCount.get();
+    }
+
+    /**
+     * @return the total time spent encoding and writing screenshots in the background.
+     */
+    public long getEncodeTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(encodeNanos.get());
+    }
+
+    /**
+     * @return the number of frames skipped because every pooled bitmap was still in use.
+     */
+    public long getDroppedFrameCount() {
+        return droppedCount.get();
+    }
+
+    private Frame capture() {
+        long start = System.nanoTime();
+        // the bitmap handed out by the pool, to give back should rendering into it fail.
+        final Bitmap[] obtained = new Bitmap[1];
+        Frame frame = null;
+        try {
+            Bitmap bitmap = screenshotter.snap(null, new Screenshotter.BitmapSource() {
+                @Override
+                public Bitmap obtain(int width, int height) {
+                    obtained[0] = pool.obtain(width, height);
+                    return obtained[0];
+                }
+            });
+            if (bitmap == null) {
+                droppedCount.incrementAndGet();
+                return null;
+            }
+            frame = new Frame(bitmap, System.currentTimeMillis());
+            return frame;
+        } catch (RuntimeException e) {
+            Log.d(TAG, "Unable to capture screenshot", e);
+            return null;
+        } finally {
+            if (frame == null && obtained[0] != null)
+                pool.release(obtained[0]);
+            captureCount.incrementAndGet();
+            captureNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void encodeAsync(final List<Frame> frames) {
+        encoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Frame frame : frames) {
+                    try {
+                        encode(frame);
+                    } finally {
+                        pool.release(frame.bitmap);
+                    }
+                }
+            }
+        });
+    }
+
+    // only called on the encoder thread.
+    private void encode(Frame frame) {
+        long start = System.nanoTime();
+        File f = new File(outdir, String.format("snapshot-%s.jpg", dateFormat.format(new Date(frame.timestamp))));
+        try {
+            FileOutputStream fos = new FileOutputStream(f);
+            try {
+                frame.bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, fos);
+            } finally {
+                fos.close();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, String.format("Unable to write screenshot to %s", f), e);
+        } finally {
+            encodeCount.incrementAndGet();
+            encodeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void discardRing() {
+        synchronized (ring) {
+            while (!ring.isEmpty())
+                pool.release(ring.removeFirst().bitmap);
+        }
+    }
+
+    /**
+     * Hands out at most {@code limit} bitmaps at a time and recycles returned ones.
+     */
+    private static class BitmapPool implements Screenshotter.BitmapSource {
+        private final LinkedList<Bitmap> free = new LinkedList<Bitmap>();
+        private int outstanding;
+        private int limit = 1;
+
+        synchronized void setLimit(int limit) {
+            this.limit = limit;
+            while (!free.isEmpty() && free.size() + outstanding > limit)
+                free.removeFirst().recycle();
+        }
+
+        @Override
+        public synchronized Bitmap obtain(int width, int height) {
+            while (!free.isEmpty()) {
+                Bitmap bitmap = free.removeFirst();
+                if (bitmap.getWidth() == width && bitmap.getHeight() == height && !bitmap.isRecycled()) {
+                    bitmap.eraseColor(Color.TRANSPARENT);
+                    outstanding++;
+                    return bitmap;
+                }
+                // the display changed size (e.g. rotation).
+                bitmap.recycle();
+            }
+            if (outstanding >= limit)
+                return null;
+            // only counted once allocated, createBitmap may run out of memory.
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            outstanding++;
+            return bitmap;
+        }
+
+        synchronized void release(Bitmap bitmap) {
+            outstanding--;
+            if (free.size() + outstanding < limit)
+                free.addLast(bitmap);
+            else
+                bitmap.recycle();
+        }
+    }
+}
@@ -33,11 +33,31 @@ public class Screenshotter {
     private final RootsOracle rootsOracle;
     private final Looper mainLooper;
 
+    /**
+     * Supplies the bitmap a screenshot is rendered into.
+     */
+    /* package */ interface BitmapSource {
+        /**
+         * Returns a bitmap of the given size, or null if no bitmap is available right now. Bitmaps
+         * that are handed out again must already be cleared.
+         */
+        Bitmap obtain(int width, int height);
+    }
+
+    private static final BitmapSource ALLOCATING_SOURCE = new BitmapSource() {
+        @Override
+        public Bitmap obtain(int width, int height) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+    };
+
     private class ScreenshotTask implements Callable<Bitmap> {
         private List<Root> roots;
+        private final BitmapSource bitmapSource;
 
-        public ScreenshotTask(List<Root> roots) {
+        public ScreenshotTask(List<Root> roots, BitmapSource bitmapSource) {
             this.roots = roots;
+            this.bitmapSource = bitmapSource;
         }
 
         @Override
@@ -52,11 +72,14 @@ public class Screenshotter {
             Display disp = ((WindowManager)roots.get(0).getDecorView().getContext().getSystemService(Service.WINDOW_SERVICE)).getDefaultDisplay();
             DisplayMetrics dm = new DisplayMetrics();
             disp.getMetrics(dm);
-            Bitmap screenshot = Bitmap.createBitmap(dm.widthPixels, dm.heightPixels, Bitmap.Config.ARGB_8888);
+            Bitmap screenshot = bitmapSource.obtain(dm.widthPixels, dm.heightPixels);
+            if (screenshot == null)
+                return null;
             Canvas c = new Canvas(screenshot);
             Paint p = new Paint();
             Rect container = new Rect(0, 0, dm.widthPixels, dm.heightPixels);
             Rect placement = new Rect();
+            Rect source = new Rect();
 
             for (int i = roots.size() - 1; i >= 0; i--) {
                 Root r = roots.get(i);
@@ -69,7 +92,8 @@ public class Screenshotter {
                     continue;
                 Gravity.apply(lp.gravity, cache.getWidth(), cache.getHeight(), container, placement);
                 placement.offset(lp.x, lp.y);
-                c.drawBitmap(cache, new Rect(0, 0, cache.getWidth(), cache.getHeight()), placement, p);
+                source.set(0, 0, cache.getWidth(), cache.getHeight());
+                c.drawBitmap(cache, source, placement, p);
                 dv.destroyDrawingCache();
             }
 
@@ -85,7 +109,15 @@ public class Screenshotter {
     }
 
     /* package */ Bitmap snap(final List<Root> roots) {
-        FutureTask<Bitmap> task = new FutureTask<Bitmap>(new ScreenshotTask(roots));
+        return snap(roots, ALLOCATING_SOURCE);
+    }
+
+    /**
+     * Renders the given roots (or all known roots if null) into a bitmap obtained from the given
+     * source. Returns null if the source had no bitmap to offer.
+     */
+    /* package */ Bitmap snap(final List<Root> roots, BitmapSource bitmapSource) {
+        FutureTask<Bitmap> task = new FutureTask<Bitmap>(new ScreenshotTask(roots, bitmapSource));
         if (Looper.myLooper() == mainLooper) {
             task.run();
         } else {
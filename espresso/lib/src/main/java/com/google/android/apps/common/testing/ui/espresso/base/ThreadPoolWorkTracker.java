@@ -0,0 +1,420 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Optional;
+
+import android.util.Log;
+
+import java.lang.reflect.Field;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of the tasks queued in or running on a {@link ThreadPoolExecutor}, without ever
+ * submitting work to it or changing the tasks it runs.
+ * <p>
+ * The pool is instrumented once: its work queue is swapped for a {@link TrackingQueue} and its
+ * thread factory for a {@link TrackingThreadFactory}. The queue counts the tasks it holds and,
+ * since a worker only comes back to the queue once its previous task is done, notes which worker
+ * threads are busy running the task they took last. New workers get their first task through the
+ * thread factory rather than the queue, so it notes their threads busy from the start. The pool
+ * hands its workers (and its beforeExecute / afterExecute hooks) the very tasks it was given.
+ * Listeners are told on the pool thread whenever a task is done.
+ * <p>
+ * This relies on ThreadPoolExecutor internals (the workQueue field and Worker.firstTask), which
+ * have the same names in every java.util.concurrent we've seen on Android.
+ */
+final class ThreadPoolWorkTracker {
+  private static final String TAG = "ThreadPoolWorkTracker";
+  private static final String WORK_QUEUE_FIELD_NAME = "workQueue";
+  private static final String WORKER_CLASS_NAME = "java.util.concurrent.ThreadPoolExecutor$Worker";
+  private static final String FIRST_TASK_FIELD_NAME = "firstTask";
+  private static final String DELEGATED_EXECUTOR_CLASS_NAME =
+      "java.util.concurrent.Executors$DelegatedExecutorService";
+  private static final String DELEGATE_FIELD_NAME = "e";
+
+  private final ThreadPoolExecutor pool;
+  private final boolean scheduled;
+  private final AtomicInteger queued = new AtomicInteger(0);
+  // the worker threads running a task, used as a set.
+  private final Map<Thread, Boolean> busyWorkers =
+      Collections.synchronizedMap(new WeakHashMap<Thread, Boolean>());
+  // set on the threads of the workers created through our thread factory.
+  private final ThreadLocal<Boolean> trackedWorker = new ThreadLocal<Boolean>();
+  // set until the work that was already running when the pool got instrumented is known to be done.
+  private volatile boolean untrackedWork;
+  private final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+
+  private ThreadPoolWorkTracker(ThreadPoolExecutor pool) {
+    this.pool = pool;
+    this.scheduled = pool instanceof ScheduledThreadPoolExecutor;
+    this.untrackedWork = 0 != pool.getActiveCount();
+  }
+
+  /**
+   * Instruments the given pool, or returns the tracker already instrumenting it.
+   *
+   * @return the tracker, or absent if the pool's internals could not be reached.
+   */
+  @SuppressWarnings("unchecked")
+  static synchronized Optional<ThreadPoolWorkTracker> track(ThreadPoolExecutor pool) {
+    checkNotNull(pool);
+    try {
+      Field workQueueField = ThreadPoolExecutor.class.getDeclaredField(WORK_QUEUE_FIELD_NAME);
+      workQueueField.setAccessible(true);
+      Field firstTaskField = Class.forName(WORKER_CLASS_NAME).getDeclaredField(FIRST_TASK_FIELD_NAME);
+      firstTaskField.setAccessible(true);
+
+      BlockingQueue<Runnable> workQueue = (BlockingQueue<Runnable>) workQueueField.get(pool);
+      if (workQueue instanceof TrackingQueue) {
+        return Optional.of(((TrackingQueue) workQueue).owner());
+      }
+
+      ThreadPoolWorkTracker tracker = new ThreadPoolWorkTracker(pool);
+      TrackingQueue trackingQueue = tracker.new TrackingQueue(workQueue);
+      pool.setThreadFactory(
+          tracker.new TrackingThreadFactory(pool.getThreadFactory(), firstTaskField));
+      workQueueField.set(pool, trackingQueue);
+
+      // work queued before we got here has not been counted yet; requeue it so it is.
+      List<Runnable> pending = new ArrayList<Runnable>();
+      workQueue.drainTo(pending);
+      for (Runnable task : pending) {
+        if (!trackingQueue.offer(task)) {
+          pool.execute(task);
+        }
+      }
+      return Optional.of(tracker);
+    } catch (ClassNotFoundException cnfe) {
+      Log.w(TAG, "Cannot instrument pool: " + pool, cnfe);
+    } catch (NoSuchFieldException nsfe) {
+      Log.w(TAG, "Cannot instrument pool: " + pool, nsfe);
+    } catch (IllegalAccessException iae) {
+      Log.w(TAG, "Cannot instrument pool: " + pool, iae);
+    }
+    return Optional.absent();
+  }
+
+  /**
+   * Returns the ThreadPoolExecutor backing the given executor, looking through the wrappers
+   * handed out by {@link java.util.concurrent.Executors}, or absent if there is none.
+   */
+  static Optional<ThreadPoolExecutor> unwrap(ExecutorService executor) {
+    try {
+      Class<?> delegatedClass = Class.forName(DELEGATED_EXECUTOR_CLASS_NAME);
+      Field delegateField = delegatedClass.getDeclaredField(DELEGATE_FIELD_NAME);
+      delegateField.setAccessible(true);
+      while (!(executor instanceof ThreadPoolExecutor) && delegatedClass.isInstance(executor)) {
+        executor = (ExecutorService) delegateField.get(executor);
+      }
+    } catch (ClassNotFoundException cnfe) {
+      // no wrappers to look through.
+    } catch (NoSuchFieldException nsfe) {
+      Log.w(TAG, "Cannot look through executor: " + executor, nsfe);
+    } catch (IllegalAccessException iae) {
+      Log.w(TAG, "Cannot look through executor: " + executor, iae);
+    }
+    if (executor instanceof ThreadPoolExecutor) {
+      return Optional.of((ThreadPoolExecutor) executor);
+    }
+    return Optional.absent();
+  }
+
+  ThreadPoolExecutor getPool() {
+    return pool;
+  }
+
+  /**
+   * Registers a listener which is run on the pool thread completing (or the thread removing) a
+   * task. It must be cheap and thread safe.
+   */
+  void addListener(Runnable listener) {
+    listeners.add(checkNotNull(listener));
+  }
+
+  void removeListener(Runnable listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Checks if nothing is queued or running. Periodic tasks (of a
+   * {@link ScheduledThreadPoolExecutor}) only count while they run, and delayed tasks which are
+   * cancelled or are due further than the given horizon in the future do not count at all.
+   */
+  boolean isIdleNow(long horizonNanos) {
+    int count = queued.get();
+    if (0 != count) {
+      if (!scheduled) {
+        return false;
+      }
+      int ignored = 0;
+      for (Runnable task : pool.getQueue()) {
+        RunnableScheduledFuture<?> future = (RunnableScheduledFuture<?>) task;
+        // a periodic task is always back in the queue by the time its worker is done with it.
+        if (future.isDone() || future.isPeriodic()
+            || future.getDelay(TimeUnit.NANOSECONDS) > horizonNanos) {
+          ignored++;
+        }
+      }
+      if (ignored != count) {
+        return false;
+      }
+    }
+    synchronized (busyWorkers) {
+      for (Iterator<Thread> it = busyWorkers.keySet().iterator(); it.hasNext(); ) {
+        Thread.State state = it.next().getState();
+        // a worker which is not started yet is either started before the submitting thread gets
+        // back from execute, or was given up on by the pool, which then queues or rejects its task.
+        if (Thread.State.TERMINATED == state) {
+          it.remove();
+        } else if (Thread.State.NEW != state) {
+          return false;
+        }
+      }
+    }
+    if (untrackedWork) {
+      // getActiveCount also counts a worker that is still finishing up a tracked task, it will be
+      // noticed again once that worker asks the queue for more work.
+      if (0 != pool.getActiveCount()) {
+        return false;
+      }
+      untrackedWork = false;
+    }
+    return true;
+  }
+
+  /**
+   * Notes that the calling worker thread is done with the task it ran last, if any.
+   */
+  private void workerDone() {
+    if (null != busyWorkers.remove(Thread.currentThread()) || untrackedWork) {
+      notifyListeners();
+    }
+  }
+
+  /**
+   * Notes that the calling worker thread took the given task off the queue to run it.
+   */
+  private Runnable workerTook(Runnable task) {
+    if (null != task) {
+      // busy before it leaves the count, so it is never seen as neither.
+      busyWorkers.put(Thread.currentThread(), Boolean.TRUE);
+      queued.decrementAndGet();
+    }
+    return task;
+  }
+
+  private void unqueued(int count) {
+    if (0 != count) {
+      queued.addAndGet(-count);
+      notifyListeners();
+    }
+  }
+
+  private void notifyListeners() {
+    for (Runnable listener : listeners) {
+      listener.run();
+    }
+  }
+
+  /**
+   * Notes the thread of every new pool worker busy if the worker got a first task, which workers
+   * get through the Worker object rather than through the queue. Should the pool fail to start
+   * the worker, the thread is never started and does not count. The worker itself is run as is;
+   * its thread only notes when it is done, as a worker may die from a task throwing.
+   */
+  private class TrackingThreadFactory implements ThreadFactory {
+    private final ThreadFactory delegate;
+    private final Field firstTaskField;
+
+    private TrackingThreadFactory(ThreadFactory delegate, Field firstTaskField) {
+      this.delegate = checkNotNull(delegate);
+      this.firstTaskField = checkNotNull(firstTaskField);
+    }
+
+    @Override
+    public Thread newThread(final Runnable worker) {
+      boolean firstTask = false;
+      if (firstTaskField.getDeclaringClass().isInstance(worker)) {
+        try {
+          firstTask = null != firstTaskField.get(worker);
+        } catch (IllegalAccessException iae) {
+          throw new RuntimeException(iae);
+        }
+      }
+      Thread thread = delegate.newThread(new Runnable() {
+        @Override
+        public void run() {
+          trackedWorker.set(Boolean.TRUE);
+          try {
+            worker.run();
+          } finally {
+            workerDone();
+          }
+        }
+
+        @Override
+        public String toString() {
+          return worker.toString();
+        }
+      });
+      if (firstTask && null != thread) {
+        busyWorkers.put(thread, Boolean.TRUE);
+      }
+      return thread;
+    }
+  }
+
+  /**
+   * Counts tasks as they enter the pool's queue, and as they leave it: to a worker, which is busy
+   * with the task until it comes back for more, or otherwise (remove, drainTo, iterators). The
+   * queue holds the tasks themselves, and hands them out as they are.
+   */
+  private class TrackingQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    private final BlockingQueue<Runnable> delegate;
+
+    private TrackingQueue(BlockingQueue<Runnable> delegate) {
+      this.delegate = checkNotNull(delegate);
+    }
+
+    private ThreadPoolWorkTracker owner() {
+      return ThreadPoolWorkTracker.this;
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+      queued.incrementAndGet();
+      if (delegate.offer(task)) {
+        return true;
+      }
+      unqueued(1);
+      return false;
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+      queued.incrementAndGet();
+      boolean offered = false;
+      try {
+        offered = delegate.offer(task, timeout, unit);
+        return offered;
+      } finally {
+        if (!offered) {
+          unqueued(1);
+        }
+      }
+    }
+
+    @Override
+    public void put(Runnable task) throws InterruptedException {
+      queued.incrementAndGet();
+      boolean put = false;
+      try {
+        delegate.put(task);
+        put = true;
+      } finally {
+        if (!put) {
+          unqueued(1);
+        }
+      }
+    }
+
+    // workers only come back to the queue once their previous task finished.
+    @Override
+    public Runnable take() throws InterruptedException {
+      workerDone();
+      return workerTook(delegate.take());
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+      workerDone();
+      return workerTook(delegate.poll(timeout, unit));
+    }
+
+    @Override
+    public Runnable poll() {
+      if (null == trackedWorker.get()) {
+        Runnable task = delegate.poll();
+        unqueued(null == task ? 0 : 1);
+        return task;
+      }
+      workerDone();
+      return workerTook(delegate.poll());
+    }
+
+    @Override
+    public Runnable peek() {
+      return delegate.peek();
+    }
+
+    @Override
+    public int size() {
+      return delegate.size();
+    }
+
+    @Override
+    public int remainingCapacity() {
+      return delegate.remainingCapacity();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      if (delegate.remove(o)) {
+        unqueued(1);
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+      return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+      int count = delegate.drainTo(c, maxElements);
+      unqueued(count);
+      return count;
+    }
+
+    @Override
+    public Iterator<Runnable> iterator() {
+      final Iterator<Runnable> it = delegate.iterator();
+      return new Iterator<Runnable>() {
+        @Override
+        public boolean hasNext() {
+          return it.hasNext();
+        }
+
+        @Override
+        public Runnable next() {
+          return it.next();
+        }
+
+        @Override
+        public void remove() {
+          it.remove();
+          unqueued(1);
+        }
+      };
+    }
+  }
+}
@@ -14,7 +14,9 @@ import android.view.MotionEvent;
 import com.google.android.apps.common.testing.ui.espresso.IdlingPolicies;
 import com.google.android.apps.common.testing.ui.espresso.IdlingPolicy;
 import com.google.android.apps.common.testing.ui.espresso.InjectEventSecurityException;
+import com.google.android.apps.common.testing.ui.espresso.TimeWarpPolicy;
 import com.google.android.apps.common.testing.ui.espresso.UiController;
+import com.google.android.apps.common.testing.ui.espresso.WakeableUiController;
 import com.google.android.apps.common.testing.ui.espresso.base.IdlingResourceRegistry.IdleNotificationCallback;
 import com.google.android.apps.common.testing.ui.espresso.base.QueueInterrogator.QueueState;
 import com.google.common.annotations.VisibleForTesting;
@@ -42,9 +44,10 @@ import static com.google.common.base.Throwables.propagate;
  * Implementation of {@link UiController}.
  */
 @Singleton
-final class UiControllerImpl implements UiController, Handler.Callback {
+final class UiControllerImpl implements WakeableUiController, Handler.Callback {
 
     private static final String TAG = UiControllerImpl.class.getSimpleName();
+    private static final String TRACE_TAG = "ESP_TRACE";
 
     private static final Callable<Void> NO_OP = new Callable<Void>() {
         @Override
@@ -62,7 +65,8 @@ final class UiControllerImpl implements UiController, Handler.Callback {
         COMPAT_TASKS_HAVE_IDLED,
         KEY_INJECT_HAS_COMPLETED,
         MOTION_INJECTION_HAS_COMPLETED,
-        DYNAMIC_TASKS_HAVE_IDLED;
+        DYNAMIC_TASKS_HAVE_IDLED,
+        WOKEN_UP;
 
         /**
          * Checks whether this condition has been signaled.
@@ -119,6 +123,17 @@ final class UiControllerImpl implements UiController, Handler.Callback {
         }
     }
 
+    /**
+     * When delayed messages may be fast-forwarded while looping.
+     */
+    private enum TimeWarp {
+        NEVER,
+        /** once the conditions are met, for messages due within the idle horizon. */
+        ONCE_IDLE,
+        /** until the conditions are met, e.g. until a delay has past. */
+        UNTIL_SIGNALED
+    }
+
     private final EventInjector eventInjector;
     private final BitSet conditionSet;
     private final AsyncTaskPoolMonitor asyncTaskMonitor;
@@ -127,10 +142,12 @@ final class UiControllerImpl implements UiController, Handler.Callback {
     private final ExecutorService keyEventExecutor = Executors.newSingleThreadExecutor();
     private final QueueInterrogator queueInterrogator;
     private final Looper mainLooper;
+    private final MainLooperTimeWarp timeWarp;
 
     private Handler controllerHandler;
     // only updated on main thread.
     private boolean looping = false;
+    private boolean awaitingWakeUp = false;
     private int generation = 0;
 
     @VisibleForTesting
@@ -139,7 +156,8 @@ final class UiControllerImpl implements UiController, Handler.Callback {
                      @SdkAsyncTask AsyncTaskPoolMonitor asyncTaskMonitor,
                      @CompatAsyncTask Optional<AsyncTaskPoolMonitor> compatTaskMonitor,
                      IdlingResourceRegistry registry,
-                     Looper mainLooper) {
+                     Looper mainLooper,
+                     MainLooperTimeWarp timeWarp) {
         this.eventInjector = checkNotNull(eventInjector);
         this.asyncTaskMonitor = checkNotNull(asyncTaskMonitor);
         this.compatTaskMonitor = checkNotNull(compatTaskMonitor);
@@ -147,6 +165,7 @@ final class UiControllerImpl implements UiController, Handler.Callback {
         this.idlingResourceRegistry = checkNotNull(registry);
         this.mainLooper = checkNotNull(mainLooper);
         this.queueInterrogator = new QueueInterrogator(mainLooper);
+        this.timeWarp = checkNotNull(timeWarp);
     }
 
     @SuppressWarnings("deprecation")
@@ -345,7 +364,7 @@ final class UiControllerImpl implements UiController, Handler.Callback {
             }
 
             try {
-                loopUntil(condChecks);
+                loopUntil(condChecks, TimeWarp.ONCE_IDLE);
             } finally {
                 if (idleForAsyncTasks) {
                     asyncTaskMonitor.cancelIdleMonitor();
@@ -359,6 +378,14 @@ final class UiControllerImpl implements UiController, Handler.Callback {
 
     }
 
+    private boolean backgroundIdle() {
+        if (IdlingPolicies.getMasterIdlingPolicy().shouldWaitForAsyncTasks()
+                && (!asyncTaskMonitor.isIdleNow() || !compatIdle())) {
+            return false;
+        }
+        return idlingResourceRegistry.allResourcesAreIdle();
+    }
+
     private boolean compatIdle() {
         if (compatTaskMonitor.isPresent()) {
             return compatTaskMonitor.get().isIdleNow();
@@ -377,7 +404,48 @@ final class UiControllerImpl implements UiController, Handler.Callback {
         controllerHandler.postDelayed(new SignalingTask(NO_OP, IdleCondition.DELAY_HAS_PAST,
                         generation),
                 millisDelay);
-        loopUntil(IdleCondition.DELAY_HAS_PAST);
+        loopUntil(EnumSet.of(IdleCondition.DELAY_HAS_PAST), TimeWarp.UNTIL_SIGNALED);
+        loopMainThreadUntilIdle();
+    }
+
+    /**
+     * Ends the current {@link #loopMainThreadUntilWokenUp} loop. It is meant to be called from view
+     * tree or lifecycle callbacks on the main thread, so the caller wakes up as soon as the state it
+     * waits for may have changed rather than polling for it. Calls while no such loop runs have no
+     * effect.
+     */
+    @Override
+    public void wakeUp() {
+        checkState(Looper.myLooper() == mainLooper, "Expecting to be on main thread!");
+        if (awaitingWakeUp) {
+            controllerHandler.sendMessage(
+                    IdleCondition.WOKEN_UP.createSignal(controllerHandler, generation));
+        }
+    }
+
+    /**
+     * Loops the main thread until {@link #wakeUp} is called, or for at most the given delay, then
+     * until idle.
+     *
+     * @param maxMillisDelay the longest time to loop without being woken up
+     */
+    @Override
+    public void loopMainThreadUntilWokenUp(long maxMillisDelay) {
+        initialize();
+        checkState(Looper.myLooper() == mainLooper, "Expecting to be on main thread!");
+        checkState(!IdleCondition.WOKEN_UP.isSignaled(conditionSet), "recursion detected!");
+
+        checkArgument(maxMillisDelay > 0);
+        SignalingTask<Void> timeout =
+                new SignalingTask<Void>(NO_OP, IdleCondition.WOKEN_UP, generation);
+        controllerHandler.postDelayed(timeout, maxMillisDelay);
+        awaitingWakeUp = true;
+        try {
+            loopUntil(IdleCondition.WOKEN_UP);
+        } finally {
+            awaitingWakeUp = false;
+            controllerHandler.removeCallbacks(timeout);
+        }
         loopMainThreadUntilIdle();
     }
 
@@ -392,7 +460,7 @@ final class UiControllerImpl implements UiController, Handler.Callback {
     }
 
     private void loopUntil(IdleCondition condition) {
-        loopUntil(EnumSet.of(condition));
+        loopUntil(EnumSet.of(condition), TimeWarp.NEVER);
     }
 
     /**
@@ -418,11 +486,27 @@ final class UiControllerImpl implements UiController, Handler.Callback {
      *  }
      * })
      * loopUntil(IdleCondition.MY_IDLE_CONDITION);
+     *
+     * With a time warp policy enabled, delayed messages may be fast-forwarded rather than waited for
+     * while nothing else keeps the application busy: either until the conditions are met, or once
+     * they are for messages due within the policy's idle horizon.
      */
-    private void loopUntil(EnumSet<IdleCondition> conditions) {
+    private void loopUntil(EnumSet<IdleCondition> conditions, TimeWarp warp) {
         checkState(!looping, "Recursive looping detected!");
         looping = true;
         IdlingPolicy masterIdlePolicy = IdlingPolicies.getMasterIdlingPolicy();
+        TimeWarpPolicy warpPolicy = IdlingPolicies.getTimeWarpPolicy();
+        if (!warpPolicy.isEnabled()
+                || (warp == TimeWarp.ONCE_IDLE && warpPolicy.getIdleHorizonMillis() == 0)) {
+            warp = TimeWarp.NEVER;
+        }
+        if (warp != TimeWarp.NEVER) {
+            timeWarp.beginSession();
+        }
+        // every message of the main thread goes thru this loop: keep it free of allocations, and
+        // only describe messages when someone is listening.
+        boolean trace = Log.isLoggable(TRACE_TAG, Log.VERBOSE);
+        IdleCondition[] awaited = conditions.toArray(new IdleCondition[conditions.size()]);
         try {
             int loopCount = 0;
             long start = SystemClock.uptimeMillis();
@@ -432,7 +516,8 @@ final class UiControllerImpl implements UiController, Handler.Callback {
                 boolean conditionsMet = true;
                 boolean shouldLogConditionState = loopCount > 0 && loopCount % 100 == 0;
 
-                for (IdleCondition condition : conditions) {
+                for (int i = 0; i < awaited.length; i++) {
+                    IdleCondition condition = awaited[i];
                     if (!condition.isSignaled(conditionSet)) {
                         conditionsMet = false;
                         if (shouldLogConditionState) {
@@ -446,36 +531,27 @@ final class UiControllerImpl implements UiController, Handler.Callback {
                 if (conditionsMet) {
                     QueueState queueState = queueInterrogator.determineQueueState();
                     if (queueState == QueueState.EMPTY || queueState == QueueState.TASK_DUE_LONG) {
-                        return;
-                    } else {
-                        Log.v(
-                                "ESP_TRACE",
-
-                                "Barrier detected or task avaliable for running shortly.");
+                        if (queueState == QueueState.EMPTY || warp != TimeWarp.ONCE_IDLE
+                                || !backgroundIdle()
+                                || !timeWarp.warpHead(queueInterrogator, warpPolicy, null,
+                                        warpPolicy.getIdleHorizonMillis())) {
+                            return;
+                        }
+                    } else if (trace) {
+                        Log.v(TRACE_TAG, "Barrier detected or task avaliable for running shortly.");
                     }
+                } else if (warp == TimeWarp.UNTIL_SIGNALED
+                        && queueInterrogator.determineQueueState() == QueueState.TASK_DUE_LONG
+                        && backgroundIdle()) {
+                    // our own signal is queued too: nothing due after it gets fast-forwarded.
+                    timeWarp.warpHead(queueInterrogator, warpPolicy, controllerHandler,
+                            Long.MAX_VALUE);
                 }
 
                 Message message = queueInterrogator.getNextMessage();
-                String callbackString = "unknown";
-                String messageString = "unknown";
-                try {
-                    if (null == message.getCallback()) {
-                        callbackString = "no callback.";
-                    } else {
-                        callbackString = message.getCallback().toString();
-                    }
-                    messageString = message.toString();
-                } catch (NullPointerException e) {
-          /*
-           * Ignore. android.app.ActivityThread$ActivityClientRecord#toString() fails for API level
-           * 15.
-           */
+                if (trace) {
+                    traceMessage(message);
                 }
-
-                Log.v(
-                        "ESP_TRACE",
-                        String.format("%s: MessageQueue.next(): %s, with target: %s, callback: %s", TAG,
-                                messageString, message.getTarget().getClass().getCanonicalName(), callbackString));
                 message.getTarget().dispatchMessage(message);
                 message.recycle();
                 loopCount++;
@@ -499,6 +575,28 @@ final class UiControllerImpl implements UiController, Handler.Callback {
     }
 
 
+    private static void traceMessage(Message message) {
+        String callbackString = "unknown";
+        String messageString = "unknown";
+        try {
+            if (null == message.getCallback()) {
+                callbackString = "no callback.";
+            } else {
+                callbackString = message.getCallback().toString();
+            }
+            messageString = message.toString();
+        } catch (NullPointerException e) {
+            /*
+             * Ignore. android.app.ActivityThread$ActivityClientRecord#toString() fails for API
+             * level 15.
+             */
+        }
+
+        Log.v(TRACE_TAG, String.format("%s: MessageQueue.next(): %s, with target: %s, callback: %s",
+                TAG, messageString, message.getTarget().getClass().getCanonicalName(),
+                callbackString));
+    }
+
     private void initialize() {
         if (controllerHandler == null) {
             controllerHandler = new Handler(this);
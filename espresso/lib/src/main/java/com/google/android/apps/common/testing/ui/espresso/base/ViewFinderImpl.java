@@ -2,26 +2,30 @@ package com.google.android.apps.common.testing.ui.espresso.base;
 
 import android.os.Looper;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.AdapterView;
 
 import com.google.android.apps.common.testing.ui.espresso.AmbiguousViewMatcherException;
 import com.google.android.apps.common.testing.ui.espresso.NoMatchingViewException;
 import com.google.android.apps.common.testing.ui.espresso.ViewFinder;
+import com.google.android.apps.common.testing.ui.espresso.matcher.ScopedViewMatcher;
+import com.google.android.apps.common.testing.ui.espresso.matcher.ViewGeometryCache;
 import com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers;
-import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
 
 import org.hamcrest.Matcher;
 
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 
-import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Provider;
 
@@ -37,54 +41,84 @@ import static com.google.common.base.Preconditions.checkState;
 public final class ViewFinderImpl implements ViewFinder {
 
     private final Matcher<View> viewMatcher;
+    private final Matcher<View> viewQuery;
+    private final ScopedViewMatcher viewScope;
     private final Provider<List<View>> rootViewsProvider;
+    private final ViewHierarchyIndex index;
 
     @Inject
-    ViewFinderImpl(Matcher<View> viewMatcher, Provider<List<View>> rootViewsProvider) {
+    ViewFinderImpl(Matcher<View> viewMatcher, Provider<List<View>> rootViewsProvider,
+                   ViewHierarchyIndex index) {
         this.viewMatcher = viewMatcher;
+        this.viewQuery = ViewMatchers.compile(viewMatcher);
+        this.viewScope = viewQuery instanceof ScopedViewMatcher
+                ? (ScopedViewMatcher) viewQuery : null;
         this.rootViewsProvider = rootViewsProvider;
+        this.index = index;
     }
 
     @Override
     public View getView() throws AmbiguousViewMatcherException, NoMatchingViewException {
         checkMainThread();
-        final Predicate<View> matcherPredicate = new MatcherPredicateAdapter<View>(
-                checkNotNull(viewMatcher));
+        checkNotNull(viewMatcher);
 
-        View matchedView = null;
         List<View> roots = rootViewsProvider.get();
-        Iterator<View> matchedViewIterator = Iterables.filter(
-                Iterables.concat(Lists.transform(roots, new Function<View, Iterable<View>>() {
-                    @Nullable @Override
-                    public Iterable<View> apply(@Nullable View root) {
-                        return breadthFirstViewTraversal(root);
-                    }
-                })), matcherPredicate).iterator();
+        List<View> matches;
+        // the hierarchy holds still during the search, display matchers share their geometry.
+        ViewGeometryCache geometry = ViewGeometryCache.open();
+        try {
+            matches = findMatches(roots);
+        } finally {
+            geometry.close();
+        }
 
+        return select(viewMatcher, roots, matches);
+    }
 
-        while (matchedViewIterator.hasNext()) {
-            if (matchedView != null) {
-                // Ambiguous!
-                throw new AmbiguousViewMatcherException.Builder()
-                        .withViewMatcher(viewMatcher)
-                        .withRootViews(roots)
-                        .withView1(matchedView)
-                        .withView2(matchedViewIterator.next())
-                        .withOtherAmbiguousViews(Iterators.toArray(matchedViewIterator, View.class))
-                        .build();
-            } else {
-                matchedView = matchedViewIterator.next();
+    /**
+     * Returns the views under the roots matching the view matcher, looked up in the index when it
+     * can answer the matcher and else searched for within the scope of the query.
+     */
+    List<View> findMatches(List<View> roots) {
+        List<View> matches = Lists.newArrayList();
+        // the index checks itself against the hierarchy: its candidates hold every match.
+        List<View> candidates = index.candidates(roots, viewMatcher);
+        if (candidates != null) {
+            addMatches(candidates, matches);
+        } else {
+            for (View root : roots) {
+                search(root, matches);
             }
         }
-        if (null == matchedView) {
-            final Predicate<View> adapterViewPredicate = new MatcherPredicateAdapter<View>(
-                    ViewMatchers.isAssignableFrom(AdapterView.class));
-            List<View> adapterViews = Lists.newArrayList(Iterables.concat(Lists.transform(roots, new Function<View, Iterable<View>>() {
-                @Nullable @Override
-                public Iterable<View> apply(@Nullable View root) {
-                    return Iterables.filter(breadthFirstViewTraversal(root), adapterViewPredicate);
+        return matches;
+    }
+
+    /**
+     * Returns the only view of matches, else throws the exception reporting the view matched by
+     * viewMatcher under the roots as ambiguous or missing.
+     */
+    static View select(Matcher<View> viewMatcher, List<View> roots, List<View> matches)
+            throws AmbiguousViewMatcherException, NoMatchingViewException {
+        if (matches.size() > 1) {
+            // Ambiguous!
+            throw new AmbiguousViewMatcherException.Builder()
+                    .withViewMatcher(viewMatcher)
+                    .withRootViews(roots)
+                    .withView1(matches.get(0))
+                    .withView2(matches.get(1))
+                    .withOtherAmbiguousViews(matches.subList(2, matches.size())
+                            .toArray(new View[matches.size() - 2]))
+                    .build();
+        }
+        if (matches.isEmpty()) {
+            List<View> adapterViews = Lists.newArrayList();
+            for (View root : roots) {
+                for (View view : breadthFirstViewTraversal(root)) {
+                    if (view instanceof AdapterView) {
+                        adapterViews.add(view);
+                    }
                 }
-            })));
+            }
             if (adapterViews.isEmpty()) {
                 throw new NoMatchingViewException.Builder()
                         .withViewMatcher(viewMatcher)
@@ -102,26 +136,107 @@ public final class ViewFinderImpl implements ViewFinder {
                     .withAdapterViewWarning(Optional.of(warning))
                     .build();
         } else {
-            return matchedView;
+            return matches.get(0);
         }
     }
 
-    private void checkMainThread() {
-        checkState(Thread.currentThread().equals(Looper.getMainLooper().getThread()),
-                "Executing a query on the view hierarchy outside of the main thread (on: %s)",
-                Thread.currentThread().getName());
+    /**
+     * Adds the matching views under root, skipping the subtrees the query rules out, and when the
+     * query requires an ancestor only looking under the views matching it.
+     */
+    private void search(View root, List<View> matches) {
+        if (viewScope == null) {
+            addMatches(breadthFirstViewTraversal(root), matches);
+            return;
+        }
+        final Predicate<View> mayMatchWithin = new Predicate<View>() {
+            @Override
+            public boolean apply(View view) {
+                return viewScope.mayMatchWithin(view);
+            }
+        };
+        final Matcher<View> ancestorMatcher = viewScope.getRequiredAncestor();
+        if (ancestorMatcher == null) {
+            addMatches(breadthFirstViewTraversal(root, mayMatchWithin), matches);
+            return;
+        }
+
+        // collects the topmost views matching the ancestor matcher while walking the hierarchy
+        // above them: their subtrees hold all the matches.
+        final List<View> ancestors = Lists.newArrayList();
+        Iterables.size(breadthFirstViewTraversal(root, new Predicate<View>() {
+            @Override
+            public boolean apply(View view) {
+                if (!mayMatchWithin.apply(view)) {
+                    return false;
+                }
+                if (ancestorMatcher.matches(view)) {
+                    ancestors.add(view);
+                    return false;
+                }
+                return true;
+            }
+        }));
+        int start = matches.size();
+        for (View ancestor : ancestors) {
+            // the ancestor itself is not its own descendant.
+            addMatches(Iterables.skip(breadthFirstViewTraversal(ancestor, mayMatchWithin), 1),
+                    matches);
+        }
+        if (ancestors.size() > 1) {
+            // one subtree after the other: back to the order of a traversal of the whole root, so
+            // ambiguous matches are reported the same whichever way they were found.
+            sortBreadthFirst(root, matches.subList(start, matches.size()));
+        }
     }
 
-    private static class MatcherPredicateAdapter<T> implements Predicate<T> {
-        private final Matcher<? super T> matcher;
+    /**
+     * Sorts views under root into breadth first order: by depth, then by the child indices on
+     * their paths from the root.
+     */
+    private static void sortBreadthFirst(View root, List<View> views) {
+        if (views.size() < 2) {
+            return;
+        }
+        final Map<View, int[]> paths = Maps.newIdentityHashMap();
+        for (View view : views) {
+            paths.put(view, pathFrom(root, view));
+        }
+        final Comparator<int[]> lexicographical = Ints.lexicographicalComparator();
+        Collections.sort(views, new Comparator<View>() {
+            @Override
+            public int compare(View a, View b) {
+                int[] pathA = paths.get(a);
+                int[] pathB = paths.get(b);
+                if (pathA.length != pathB.length) {
+                    return pathA.length < pathB.length ? -1 : 1;
+                }
+                return lexicographical.compare(pathA, pathB);
+            }
+        });
+    }
 
-        private MatcherPredicateAdapter(Matcher<? super T> matcher) {
-            this.matcher = checkNotNull(matcher);
+    private static int[] pathFrom(View root, View view) {
+        List<Integer> indices = Lists.newArrayList();
+        for (View child = view; child != root; ) {
+            ViewGroup parent = (ViewGroup) child.getParent();
+            indices.add(parent.indexOfChild(child));
+            child = parent;
         }
+        return Ints.toArray(Lists.reverse(indices));
+    }
 
-        @Override
-        public boolean apply(T input) {
-            return matcher.matches(input);
+    private void addMatches(Iterable<View> views, List<View> matches) {
+        for (View view : views) {
+            if (viewQuery.matches(view)) {
+                matches.add(view);
+            }
         }
     }
+
+    private void checkMainThread() {
+        checkState(Thread.currentThread().equals(Looper.getMainLooper().getThread()),
+                "Executing a query on the view hierarchy outside of the main thread (on: %s)",
+                Thread.currentThread().getName());
+    }
 }
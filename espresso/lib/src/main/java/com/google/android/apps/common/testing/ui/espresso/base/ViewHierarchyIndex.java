@@ -0,0 +1,345 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import android.annotation.SuppressLint;
+import android.app.Activity;
+import android.os.Build;
+import android.os.Looper;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.view.ViewTreeObserver;
+
+import com.google.android.apps.common.testing.testrunner.ActivityLifecycleCallback;
+import com.google.android.apps.common.testing.testrunner.ActivityLifecycleMonitorRegistry;
+import com.google.android.apps.common.testing.testrunner.Stage;
+import com.google.android.apps.common.testing.ui.espresso.matcher.IndexableViewMatcher;
+import com.google.android.apps.common.testing.ui.espresso.matcher.IndexableViewMatcher.Property;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.hamcrest.Matcher;
+import org.hamcrest.core.AllOf;
+
+import java.lang.reflect.Field;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import static com.google.android.apps.common.testing.ui.espresso.util.TreeIterables.breadthFirstViewTraversal;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * An index of the view hierarchy mapping view ids, classes and content descriptions to the views
+ * having them, used to answer lookups whose matcher is (or is a conjunction containing) an
+ * {@link IndexableViewMatcher} without running the matcher on every view.
+ * <p>
+ * The index is built lazily, on the main thread, by one breadth first traversal of the roots. It
+ * is rebuilt after one of the roots goes through a layout pass or the set of roots changes. Ids and
+ * content descriptions can change without a layout pass, and so can the hierarchy until the next
+ * one: before answering, the index checks that each indexed view still has the id, content
+ * description, parent and child count it was indexed with. That is a pass over the indexed views
+ * without running any matcher, and together with the roots it rules out views having been added,
+ * removed or moved. Candidates keep the breadth first order of a full traversal, so lookups report
+ * the same views, in the same order, as a traversal would.
+ * <p>
+ * The index lets go of the views once any activity is destroyed, rather than keeping a finished
+ * activity's hierarchy alive until the next lookup.
+ */
+@Singleton
+final class ViewHierarchyIndex {
+    private static final String TAG = "ViewHierarchyIndex";
+    private static final String ALL_OF_MATCHERS_FIELD_NAME = "matchers";
+
+    private final Map<View, ViewTreeObserver> observers = Maps.newIdentityHashMap();
+    // held here, the lifecycle monitor only references its callbacks weakly.
+    private final ActivityLifecycleCallback releaser = new ActivityLifecycleCallback() {
+        @Override
+        public void onActivityLifecycleChanged(Activity activity, Stage stage) {
+            if (stage == Stage.DESTROYED) {
+                release();
+            }
+        }
+    };
+    private boolean releaserInstalled;
+    private final ViewTreeObserver.OnGlobalLayoutListener invalidator =
+            new ViewTreeObserver.OnGlobalLayoutListener() {
+                @Override
+                public void onGlobalLayout() {
+                    stale = true;
+                }
+            };
+
+    private List<View> indexedRoots = ImmutableList.of();
+    private boolean stale = true;
+    // the indexed views, in breadth first order; the index maps property values to positions.
+    private final List<View> views = Lists.newArrayList();
+    // what each indexed view looked like when indexed, by position.
+    private int[] ids = new int[0];
+    private String[] contentDescriptions = new String[0];
+    private ViewParent[] parents = new ViewParent[0];
+    private int[] childCounts = new int[0];
+    private final Map<Property, Map<Object, Positions>> byProperty =
+            new EnumMap<Property, Map<Object, Positions>>(Property.class);
+    private int buildCount;
+
+    @Inject
+    ViewHierarchyIndex() {
+        for (Property property : Property.values()) {
+            byProperty.put(property, Maps.<Object, Positions>newHashMap());
+        }
+    }
+
+    /**
+     * Returns the views under the given roots which may match, in breadth first order, or null if
+     * the matcher cannot be answered from the index. The caller still has to run the matcher on each
+     * candidate.
+     */
+    @Nullable
+    List<View> candidates(List<View> roots, Matcher<View> matcher) {
+        return candidates(roots, ImmutableList.of(matcher)).get(0);
+    }
+
+    /**
+     * Returns the candidates of each matcher as {@link #candidates(List, Matcher)} would, null for
+     * the matchers the index cannot answer, checking the index against the hierarchy only once.
+     */
+    List<List<View>> candidates(List<View> roots, List<Matcher<View>> matchers) {
+        checkState(Looper.myLooper() == Looper.getMainLooper(), "Expecting to be on main thread!");
+        List<IndexableViewMatcher> indexables = Lists.newArrayListWithCapacity(matchers.size());
+        boolean anyIndexable = false;
+        for (Matcher<View> matcher : matchers) {
+            IndexableViewMatcher indexable = findIndexable(matcher);
+            indexables.add(indexable);
+            anyIndexable |= indexable != null;
+        }
+        if (anyIndexable && (stale || !sameRoots(roots) || !unchanged())) {
+            build(roots);
+        }
+
+        List<List<View>> candidates = Lists.newArrayListWithCapacity(matchers.size());
+        for (IndexableViewMatcher indexable : indexables) {
+            candidates.add(indexable == null ? null : lookUp(indexable));
+        }
+        return candidates;
+    }
+
+    private List<View> lookUp(IndexableViewMatcher indexable) {
+        BitSet positions = new BitSet(views.size());
+        for (Map.Entry<Object, Positions> entry :
+                byProperty.get(indexable.getIndexedProperty()).entrySet()) {
+            if (indexable.matchesValue(entry.getKey())) {
+                entry.getValue().addTo(positions);
+            }
+        }
+        List<View> candidates = Lists.newArrayListWithCapacity(positions.cardinality());
+        for (int i = positions.nextSetBit(0); i >= 0; i = positions.nextSetBit(i + 1)) {
+            candidates.add(views.get(i));
+        }
+        return candidates;
+    }
+
+    /**
+     * Returns how often the index has been (re)built, for tests and diagnostics.
+     */
+    int getBuildCount() {
+        return buildCount;
+    }
+
+    private boolean sameRoots(List<View> roots) {
+        if (roots.size() != indexedRoots.size()) {
+            return false;
+        }
+        for (int i = 0; i < roots.size(); i++) {
+            if (roots.get(i) != indexedRoots.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if every indexed view still has the properties and place in the hierarchy it
+     * was indexed with. As each view's parent and each group's child count are unchanged, no view
+     * can have been added to or removed from the indexed hierarchy either.
+     */
+    private boolean unchanged() {
+        for (int i = 0; i < views.size(); i++) {
+            View view = views.get(i);
+            if (view.getId() != ids[i]
+                    || view.getParent() != parents[i]
+                    || childCount(view) != childCounts[i]
+                    || !Objects.equal(toString(view.getContentDescription()),
+                            contentDescriptions[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void build(List<View> roots) {
+        release();
+        installReleaser();
+        for (View root : roots) {
+            ViewTreeObserver vto = root.getViewTreeObserver();
+            vto.addOnGlobalLayoutListener(invalidator);
+            observers.put(root, vto);
+        }
+        indexedRoots = ImmutableList.copyOf(roots);
+
+        views.clear();
+        for (Map<Object, Positions> index : byProperty.values()) {
+            index.clear();
+        }
+        Map<Object, Positions> byId = byProperty.get(Property.ID);
+        Map<Object, Positions> byClass = byProperty.get(Property.CLASS);
+        Map<Object, Positions> byContentDescription = byProperty.get(Property.CONTENT_DESCRIPTION);
+        for (View root : roots) {
+            for (View view : breadthFirstViewTraversal(root)) {
+                int position = views.size();
+                views.add(view);
+                add(byId, view.getId(), position);
+                add(byClass, view.getClass(), position);
+                add(byContentDescription, view.getContentDescription(), position);
+            }
+        }
+        int size = views.size();
+        ids = new int[size];
+        contentDescriptions = new String[size];
+        parents = new ViewParent[size];
+        childCounts = new int[size];
+        for (int i = 0; i < size; i++) {
+            View view = views.get(i);
+            ids[i] = view.getId();
+            contentDescriptions[i] = toString(view.getContentDescription());
+            parents[i] = view.getParent();
+            childCounts[i] = childCount(view);
+        }
+        stale = false;
+        buildCount++;
+    }
+
+    /**
+     * Stops listening to the indexed roots.
+     */
+    @SuppressLint("NewApi")
+    @SuppressWarnings("deprecation")
+    void release() {
+        for (ViewTreeObserver vto : observers.values()) {
+            if (!vto.isAlive()) {
+                continue;
+            }
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                vto.removeGlobalOnLayoutListener(invalidator);
+            } else {
+                vto.removeOnGlobalLayoutListener(invalidator);
+            }
+        }
+        observers.clear();
+        indexedRoots = ImmutableList.of();
+        views.clear();
+        for (Map<Object, Positions> index : byProperty.values()) {
+            index.clear();
+        }
+        ids = new int[0];
+        contentDescriptions = new String[0];
+        parents = new ViewParent[0];
+        childCounts = new int[0];
+        stale = true;
+    }
+
+    private void installReleaser() {
+        if (releaserInstalled) {
+            return;
+        }
+        releaserInstalled = true;
+        try {
+            ActivityLifecycleMonitorRegistry.getInstance().addLifecycleCallback(releaser);
+        } catch (IllegalStateException ise) {
+            // no lifecycle monitor: the index is released when the roots change.
+            Log.w(TAG, "No lifecycle monitor, cannot release the index with its activity.", ise);
+        }
+    }
+
+    private static int childCount(View view) {
+        return view instanceof ViewGroup ? ((ViewGroup) view).getChildCount() : -1;
+    }
+
+    @Nullable
+    private static String toString(@Nullable CharSequence chars) {
+        return chars == null ? null : chars.toString();
+    }
+
+    private static void add(Map<Object, Positions> index, Object value, int position) {
+        Positions positions = index.get(value);
+        if (positions == null) {
+            positions = new Positions();
+            index.put(value, positions);
+        }
+        positions.add(position);
+    }
+
+    /**
+     * Returns the matcher itself if it is indexable, else the first indexable matcher of a
+     * conjunction: only views matching it can match the whole.
+     */
+    @Nullable
+    private static IndexableViewMatcher findIndexable(Matcher<?> matcher) {
+        if (matcher instanceof IndexableViewMatcher) {
+            return (IndexableViewMatcher) matcher;
+        }
+        if (matcher instanceof AllOf) {
+            for (Matcher<?> conjunct : conjuncts((AllOf<?>) matcher)) {
+                IndexableViewMatcher indexable = findIndexable(conjunct);
+                if (indexable != null) {
+                    return indexable;
+                }
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Iterable<Matcher<?>> conjuncts(AllOf<?> allOf) {
+        try {
+            Field field = AllOf.class.getDeclaredField(ALL_OF_MATCHERS_FIELD_NAME);
+            field.setAccessible(true);
+            return (Iterable<Matcher<?>>) field.get(allOf);
+        } catch (NoSuchFieldException nsfe) {
+            Log.w(TAG, "Cannot look into allOf matchers.", nsfe);
+        } catch (IllegalAccessException iae) {
+            Log.w(TAG, "Cannot look into allOf matchers.", iae);
+        }
+        return ImmutableList.of();
+    }
+
+    /**
+     * Growable array of view positions, ascending.
+     */
+    private static final class Positions {
+        private int[] positions = new int[2];
+        private int size;
+
+        void add(int position) {
+            if (size == positions.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(positions, 0, grown, 0, size);
+                positions = grown;
+            }
+            positions[size++] = position;
+        }
+
+        void addTo(BitSet bits) {
+            for (int i = 0; i < size; i++) {
+                bits.set(positions[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+/**
+ * Implemented by matchers which declare how expensive they are to evaluate, relative to the built
+ * in {@link ViewMatchers}. Compiled queries (see {@link ViewMatchers#compile}) evaluate the cheaper
+ * members of an allOf / anyOf first, so that expensive checks only run on the views which get past
+ * the cheap ones.
+ * <p>
+ * Matchers not implementing this interface are taken to cost {@link #MODERATE}.
+ */
+public interface CostedViewMatcher {
+
+    /** Reads a field of the view: its id, class, tag or a state flag. */
+    int CHEAP = 1;
+
+    /** Compares text, or resolves a resource. */
+    int MODERATE = 10;
+
+    /** Walks the hierarchy around the view or computes its on screen geometry. */
+    int EXPENSIVE = 100;
+
+    /**
+     * Returns the relative cost of a single evaluation of this matcher, usually one of
+     * {@link #CHEAP}, {@link #MODERATE} or {@link #EXPENSIVE}.
+     */
+    int getMatchCost();
+}
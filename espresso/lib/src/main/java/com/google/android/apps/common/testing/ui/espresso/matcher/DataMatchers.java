@@ -0,0 +1,44 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+
+/**
+ * A collection of helpers for the matchers given to {@code onData}.
+ */
+public final class DataMatchers {
+
+  private DataMatchers() {}
+
+  /**
+   * Declares the given matcher {@link ThreadSafeMatcher thread safe}, e.g. a combination of
+   * {@code hasEntry} and {@code is} matchers over immutable data. The caller vouches for it: the
+   * matcher is not checked in any way.
+   */
+  public static <T> Matcher<T> threadSafe(final Matcher<T> matcher) {
+    checkNotNull(matcher);
+    return new ThreadSafeWrapper<T>(matcher);
+  }
+
+  private static final class ThreadSafeWrapper<T> extends BaseMatcher<T>
+      implements ThreadSafeMatcher {
+    private final Matcher<T> matcher;
+
+    ThreadSafeWrapper(Matcher<T> matcher) {
+      this.matcher = matcher;
+    }
+
+    @Override
+    public boolean matches(Object item) {
+      return matcher.matches(item);
+    }
+
+    @Override
+    public void describeTo(Description description) {
+      matcher.describeTo(description);
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import android.view.View;
+
+/**
+ * Implemented by {@link View} matchers which only look at a single, rarely changing property of a
+ * view: its id, its class or its content description. Lookups can then be answered from an index
+ * of the view hierarchy mapping each value of that property to the views having it, rather than
+ * by running the matcher on every view.
+ */
+public interface IndexableViewMatcher {
+
+    /**
+     * The view properties the hierarchy index maps.
+     */
+    enum Property {
+        /** {@link View#getId()}, as an Integer. */
+        ID,
+        /** {@link Object#getClass()} of the view. */
+        CLASS,
+        /** {@link View#getContentDescription()}, possibly null. */
+        CONTENT_DESCRIPTION
+    }
+
+    /**
+     * Returns the property this matcher looks at.
+     */
+    Property getIndexedProperty();
+
+    /**
+     * Returns true if views whose indexed property has the given value match.
+     */
+    boolean matchesValue(Object value);
+}
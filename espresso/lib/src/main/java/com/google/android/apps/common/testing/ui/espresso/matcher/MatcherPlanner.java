@@ -0,0 +1,300 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import android.util.Log;
+import android.view.View;
+
+import com.google.android.apps.common.testing.ui.espresso.util.ViewSnapshot;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+import org.hamcrest.core.AllOf;
+import org.hamcrest.core.AnyOf;
+import org.hamcrest.core.DescribedAs;
+import org.hamcrest.core.Is;
+import org.hamcrest.core.IsAnything;
+import org.hamcrest.core.IsEqual;
+import org.hamcrest.core.IsInstanceOf;
+import org.hamcrest.core.IsNot;
+import org.hamcrest.core.IsNull;
+import org.hamcrest.core.IsSame;
+import org.hamcrest.text.IsEqualIgnoringCase;
+import org.hamcrest.text.IsEqualIgnoringWhiteSpace;
+import org.hamcrest.text.StringContains;
+import org.hamcrest.text.StringEndsWith;
+import org.hamcrest.text.StringStartsWith;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiles matchers built from allOf / anyOf into plans which evaluate the members of each
+ * conjunction and disjunction cheapest first, see {@link CostedViewMatcher}. Plans also combine the
+ * search scopes of their members, see {@link ScopedViewMatcher}, and can be evaluated on snapshots
+ * when their members can, see {@link SnapshotViewMatcher}.
+ */
+final class MatcherPlanner {
+    private static final String TAG = "MatcherPlanner";
+    private static final String MATCHERS_FIELD_NAME = "matchers";
+    private static final String WRAPPED_FIELD_NAME = "matcher";
+
+    // hamcrest matchers keeping nothing but the immutable value they compare to.
+    private static final Set<Class<?>> IMMUTABLE_MATCHERS = ImmutableSet.<Class<?>>of(
+            IsAnything.class, IsEqual.class, IsInstanceOf.class, IsNull.class, IsSame.class,
+            IsEqualIgnoringCase.class, IsEqualIgnoringWhiteSpace.class, StringContains.class,
+            StringEndsWith.class, StringStartsWith.class);
+
+    private static final Comparator<Plan<?>> BY_COST = new Comparator<Plan<?>>() {
+        @Override
+        public int compare(Plan<?> a, Plan<?> b) {
+            return a.cost < b.cost ? -1 : (a.cost == b.cost ? 0 : 1);
+        }
+    };
+
+    private MatcherPlanner() {}
+
+    /**
+     * Returns a matcher equivalent to the given one which evaluates the members of allOf / anyOf
+     * matchers cheapest first (keeping their declared order between members of equal cost) and
+     * stops at the first deciding one. It describes itself exactly as the given matcher does.
+     */
+    static <T> Matcher<T> compile(Matcher<T> matcher) {
+        if (matcher instanceof Plan) {
+            return matcher;
+        }
+        return plan(matcher);
+    }
+
+    /**
+     * Returns the cost of evaluating the matcher as declared, that is without planning.
+     */
+    static int costOf(Matcher<?> matcher) {
+        if (matcher instanceof CostedViewMatcher) {
+            return ((CostedViewMatcher) matcher).getMatchCost();
+        }
+        if (matcher instanceof Plan) {
+            return ((Plan<?>) matcher).cost;
+        }
+        List<Matcher<?>> members = membersOf(matcher);
+        if (members != null) {
+            int cost = 0;
+            for (Matcher<?> member : members) {
+                cost += costOf(member);
+            }
+            return cost;
+        }
+        return CostedViewMatcher.MODERATE;
+    }
+
+    /**
+     * Returns true if every matcher the given one is made of declares it can be evaluated on a
+     * {@link ViewSnapshot}. Such matchers may still refuse a particular snapshot at match time.
+     */
+    static boolean isSnapshotCompatible(Matcher<?> matcher) {
+        if (matcher instanceof Plan) {
+            return isSnapshotCompatible(((Plan<?>) matcher).declared);
+        }
+        List<Matcher<?>> members = membersOf(matcher);
+        if (members == null) {
+            return matcher instanceof SnapshotViewMatcher;
+        }
+        for (Matcher<?> member : members) {
+            if (!isSnapshotCompatible(member)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the given matcher may be evaluated from several threads at once, see
+     * {@link ViewMatchers#isThreadSafe}.
+     */
+    static boolean isThreadSafe(Matcher<?> matcher) {
+        if (matcher instanceof Plan) {
+            return isThreadSafe(((Plan<?>) matcher).declared);
+        }
+        if (matcher instanceof ThreadSafeMatcher) {
+            return true;
+        }
+        List<Matcher<?>> members = membersOf(matcher);
+        if (members == null) {
+            members = ViewMatchers.nestedMatchersOf(matcher);
+        }
+        if (members == null) {
+            Matcher<?> wrapped = wrappedBy(matcher);
+            return wrapped != null
+                    ? isThreadSafe(wrapped)
+                    : IMMUTABLE_MATCHERS.contains(matcher.getClass());
+        }
+        for (Matcher<?> member : members) {
+            if (!isThreadSafe(member)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Plan<T> plan(Matcher<T> matcher) {
+        List<Matcher<?>> members = membersOf(matcher);
+        if (members == null) {
+            return new Plan<T>(matcher, costOf(matcher), false, null);
+        }
+        List<Plan<?>> steps = Lists.newArrayListWithCapacity(members.size());
+        int cost = 0;
+        for (Matcher<?> member : members) {
+            Plan<?> step = plan(member);
+            steps.add(step);
+            cost += step.cost;
+        }
+        // stable, so members of equal cost keep their declared order.
+        Collections.sort(steps, BY_COST);
+        return new Plan<T>(matcher, cost, matcher instanceof AnyOf,
+                steps.toArray(new Plan[steps.size()]));
+    }
+
+    /**
+     * Returns the members of an allOf / anyOf matcher, or null for any other matcher.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Matcher<?>> membersOf(Matcher<?> matcher) {
+        Class<?> type;
+        if (matcher instanceof AllOf) {
+            type = AllOf.class;
+        } else if (matcher instanceof AnyOf) {
+            type = AnyOf.class;
+        } else {
+            return null;
+        }
+        try {
+            Field field = type.getDeclaredField(MATCHERS_FIELD_NAME);
+            field.setAccessible(true);
+            return ImmutableList.copyOf((Iterable<Matcher<?>>) field.get(matcher));
+        } catch (NoSuchFieldException nsfe) {
+            Log.w(TAG, "Cannot look into " + type.getSimpleName() + " matchers.", nsfe);
+        } catch (IllegalAccessException iae) {
+            Log.w(TAG, "Cannot look into " + type.getSimpleName() + " matchers.", iae);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the matcher decorated by an is / not / describedAs matcher, or null for any other
+     * matcher.
+     */
+    private static Matcher<?> wrappedBy(Matcher<?> matcher) {
+        Class<?> type;
+        if (matcher instanceof Is) {
+            type = Is.class;
+        } else if (matcher instanceof IsNot) {
+            type = IsNot.class;
+        } else if (matcher instanceof DescribedAs) {
+            type = DescribedAs.class;
+        } else {
+            return null;
+        }
+        try {
+            Field field = type.getDeclaredField(WRAPPED_FIELD_NAME);
+            field.setAccessible(true);
+            return (Matcher<?>) field.get(matcher);
+        } catch (NoSuchFieldException nsfe) {
+            Log.w(TAG, "Cannot look into " + type.getSimpleName() + " matcher.", nsfe);
+        } catch (IllegalAccessException iae) {
+            Log.w(TAG, "Cannot look into " + type.getSimpleName() + " matcher.", iae);
+        }
+        return null;
+    }
+
+    /**
+     * A compiled matcher: either a leaf evaluating the declared matcher, or the reordered steps of
+     * an allOf (the first rejecting step decides) or an anyOf (the first accepting step decides).
+     */
+    private static final class Plan<T> extends BaseMatcher<T>
+            implements ScopedViewMatcher, SnapshotViewMatcher {
+        private final Matcher<T> declared;
+        private final int cost;
+        private final boolean anyOf;
+        private final Plan<?>[] steps;
+
+        private Plan(Matcher<T> declared, int cost, boolean anyOf, Plan<?>[] steps) {
+            this.declared = declared;
+            this.cost = cost;
+            this.anyOf = anyOf;
+            this.steps = steps;
+        }
+
+        @Override
+        public boolean matches(Object item) {
+            if (steps == null) {
+                return declared.matches(item);
+            }
+            for (Plan<?> step : steps) {
+                if (step.matches(item) == anyOf) {
+                    return anyOf;
+                }
+            }
+            return !anyOf;
+        }
+
+        @Override
+        public boolean matchesSnapshot(ViewSnapshot snapshot) {
+            if (steps == null) {
+                if (!(declared instanceof SnapshotViewMatcher)) {
+                    throw new UnsupportedOperationException(
+                            declared + " cannot be evaluated on a snapshot.");
+                }
+                return ((SnapshotViewMatcher) declared).matchesSnapshot(snapshot);
+            }
+            for (Plan<?> step : steps) {
+                if (step.matchesSnapshot(snapshot) == anyOf) {
+                    return anyOf;
+                }
+            }
+            return !anyOf;
+        }
+
+        @Override
+        public void describeTo(Description description) {
+            declared.describeTo(description);
+        }
+
+        @Override
+        public boolean mayMatchWithin(View subtreeRoot) {
+            if (steps == null) {
+                return !(declared instanceof ScopedViewMatcher)
+                        || ((ScopedViewMatcher) declared).mayMatchWithin(subtreeRoot);
+            }
+            // an allOf is ruled out by any of its steps, an anyOf only by all of them.
+            for (Plan<?> step : steps) {
+                if (step.mayMatchWithin(subtreeRoot) == anyOf) {
+                    return anyOf;
+                }
+            }
+            return !anyOf;
+        }
+
+        @Override
+        public Matcher<View> getRequiredAncestor() {
+            if (steps == null) {
+                return declared instanceof ScopedViewMatcher
+                        ? ((ScopedViewMatcher) declared).getRequiredAncestor() : null;
+            }
+            if (!anyOf) {
+                for (Plan<?> step : steps) {
+                    Matcher<View> ancestor = step.getRequiredAncestor();
+                    if (ancestor != null) {
+                        return ancestor;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
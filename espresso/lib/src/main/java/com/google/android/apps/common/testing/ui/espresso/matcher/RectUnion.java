@@ -0,0 +1,99 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import java.util.Arrays;
+
+/**
+ * Computes the area of a union of axis aligned rectangles with a sweep over their vertical edges:
+ * between two consecutive edges the area covered is the length of the union of the vertical
+ * intervals of the rectangles spanning the slab. Overlapping rectangles are never fragmented.
+ * <p>
+ * Buffers are kept and grown across uses, call {@link #clear()} to start over.
+ */
+final class RectUnion {
+    // left, top, right, bottom of each rectangle.
+    private int[] rects = new int[4 * 16];
+    private int count;
+    // scratch: the sorted vertical edges, and the intervals spanning the current slab.
+    private int[] edges = new int[2 * 16];
+    private long[] intervals = new long[16];
+
+    void clear() {
+        count = 0;
+    }
+
+    /**
+     * Adds a rectangle, ignoring it if it is empty.
+     */
+    void add(int left, int top, int right, int bottom) {
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        if (4 * count == rects.length) {
+            int[] grown = new int[rects.length * 2];
+            System.arraycopy(rects, 0, grown, 0, rects.length);
+            rects = grown;
+            edges = new int[2 * count * 2];
+            intervals = new long[count * 2];
+        }
+        int i = 4 * count;
+        rects[i] = left;
+        rects[i + 1] = top;
+        rects[i + 2] = right;
+        rects[i + 3] = bottom;
+        count++;
+    }
+
+    /**
+     * Returns the area covered by at least one of the rectangles added.
+     */
+    long area() {
+        if (count == 0) {
+            return 0;
+        }
+        for (int i = 0; i < count; i++) {
+            edges[2 * i] = rects[4 * i];
+            edges[2 * i + 1] = rects[4 * i + 2];
+        }
+        Arrays.sort(edges, 0, 2 * count);
+
+        long area = 0;
+        for (int e = 0; e + 1 < 2 * count; e++) {
+            int slabLeft = edges[e];
+            int slabRight = edges[e + 1];
+            if (slabLeft == slabRight) {
+                continue;
+            }
+            // the vertical intervals spanning the slab, packed top << 32 | bottom to sort by top.
+            int spanning = 0;
+            for (int i = 0; i < count; i++) {
+                int r = 4 * i;
+                if (rects[r] <= slabLeft && rects[r + 2] >= slabRight) {
+                    intervals[spanning++] = ((long) rects[r + 1] << 32) | (rects[r + 3] & 0xffffffffL);
+                }
+            }
+            Arrays.sort(intervals, 0, spanning);
+
+            long covered = 0;
+            long runTop = 0;
+            long runBottom = Long.MIN_VALUE;
+            for (int i = 0; i < spanning; i++) {
+                long top = intervals[i] >> 32;
+                long bottom = (int) intervals[i];
+                if (top > runBottom) {
+                    if (runBottom != Long.MIN_VALUE) {
+                        covered += runBottom - runTop;
+                    }
+                    runTop = top;
+                    runBottom = bottom;
+                } else if (bottom > runBottom) {
+                    runBottom = bottom;
+                }
+            }
+            if (runBottom != Long.MIN_VALUE) {
+                covered += runBottom - runTop;
+            }
+            area += covered * (slabRight - slabLeft);
+        }
+        return area;
+    }
+}
@@ -1,25 +1,16 @@
 package com.google.android.apps.common.testing.ui.espresso.matcher;
 
-import android.app.Activity;
 import android.os.IBinder;
 import android.view.View;
 import android.view.WindowManager;
 
-import com.google.android.apps.common.testing.testrunner.ActivityLifecycleMonitor;
-import com.google.android.apps.common.testing.testrunner.ActivityLifecycleMonitorRegistry;
-import com.google.android.apps.common.testing.testrunner.Stage;
-import com.google.android.apps.common.testing.ui.espresso.NoActivityResumedException;
 import com.google.android.apps.common.testing.ui.espresso.Root;
-import com.google.common.collect.Lists;
 
 import org.hamcrest.BaseMatcher;
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
 import org.hamcrest.TypeSafeMatcher;
 
-import java.util.Collection;
-import java.util.List;
-
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.anyOf;
@@ -178,28 +169,12 @@ public final class RootMatchers {
 
             @Override
             public boolean matchesSafely(Root root) {
-                boolean r =
-                        getResumedActivityTokens().contains(root.getDecorView().getApplicationWindowToken());
-                return r;
+                return RootMatchingContext.currentOrNew().getResumedActivityTokens()
+                        .contains(root.getDecorView().getApplicationWindowToken());
             }
         };
     }
 
-    private static List<IBinder> getResumedActivityTokens() {
-        ActivityLifecycleMonitor activityLifecycleMonitor =
-                ActivityLifecycleMonitorRegistry.getInstance();
-        Collection<Activity> resumedActivities =
-                activityLifecycleMonitor.getActivitiesInStage(Stage.RESUMED);
-        if (resumedActivities.isEmpty()) {
-            throw new NoActivityResumedException("At least one activity should be in RESUMED stage.");
-        }
-        List<IBinder> tokens = Lists.newArrayList();
-        for (Activity activity : resumedActivities) {
-            tokens.add(activity.getWindow().getDecorView().getApplicationWindowToken());
-        }
-        return tokens;
-    }
-
     public static class MultiRootMatcher extends BaseMatcher<Root> {
         private final Matcher<Root> mWrapped;
 
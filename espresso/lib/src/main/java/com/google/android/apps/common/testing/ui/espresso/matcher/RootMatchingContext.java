@@ -0,0 +1,74 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import android.app.Activity;
+import android.os.IBinder;
+
+import com.google.android.apps.common.testing.testrunner.ActivityLifecycleMonitorRegistry;
+import com.google.android.apps.common.testing.testrunner.Stage;
+import com.google.android.apps.common.testing.ui.espresso.NoActivityResumedException;
+import com.google.common.collect.Sets;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Holds what root matchers look up outside of the root they match: the application window tokens
+ * of the resumed activities, which the default root matcher compares each root's token against to
+ * tell the windows of the current activity. RootViewPicker runs one root matcher over every
+ * window, so it opens a context around that and the resumed activities are looked up once per pick
+ * rather than once per window.
+ * <p>
+ * No activity may change stage while a context is open. Opens nest as {@link ThreadScope}
+ * describes.
+ */
+public final class RootMatchingContext {
+    private static final ThreadScope<RootMatchingContext> SCOPE =
+            new ThreadScope<RootMatchingContext>() {
+                @Override
+                RootMatchingContext create() {
+                    return new RootMatchingContext();
+                }
+            };
+
+    private Set<IBinder> resumedActivityTokens;
+
+    private RootMatchingContext() {}
+
+    /**
+     * Opens the matching context of the calling thread, to be closed by {@link #close()} once the
+     * roots have been matched.
+     */
+    public static RootMatchingContext open() {
+        return SCOPE.open();
+    }
+
+    public void close() {
+        SCOPE.close(this);
+    }
+
+    static RootMatchingContext currentOrNew() {
+        return SCOPE.currentOrNew();
+    }
+
+    /**
+     * Returns the application window tokens of the resumed activities.
+     *
+     * @throws NoActivityResumedException if no activity is resumed.
+     */
+    Set<IBinder> getResumedActivityTokens() {
+        if (resumedActivityTokens == null) {
+            Collection<Activity> resumedActivities = ActivityLifecycleMonitorRegistry.getInstance()
+                    .getActivitiesInStage(Stage.RESUMED);
+            if (resumedActivities.isEmpty()) {
+                throw new NoActivityResumedException(
+                        "At least one activity should be in RESUMED stage.");
+            }
+            Set<IBinder> tokens = Sets.newIdentityHashSet();
+            for (Activity activity : resumedActivities) {
+                tokens.add(activity.getWindow().getDecorView().getApplicationWindowToken());
+            }
+            resumedActivityTokens = tokens;
+        }
+        return resumedActivityTokens;
+    }
+}
@@ -0,0 +1,28 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import android.view.View;
+
+import org.hamcrest.Matcher;
+
+import javax.annotation.Nullable;
+
+/**
+ * Implemented by {@link View} matchers which can narrow down where in the hierarchy matching views
+ * may be, so a search can skip the parts of the hierarchy which cannot hold any. Compiled queries
+ * (see {@link ViewMatchers#compile}) combine the scopes of the members of allOf / anyOf matchers.
+ */
+public interface ScopedViewMatcher {
+
+    /**
+     * Returns false if neither the given view nor any of its descendants can match, for example
+     * because the view is not visible at all. Returning true is always safe.
+     */
+    boolean mayMatchWithin(View subtreeRoot);
+
+    /**
+     * Returns a matcher which one of the ancestors of every matching view has to match, or null if
+     * matching views can be anywhere.
+     */
+    @Nullable
+    Matcher<View> getRequiredAncestor();
+}
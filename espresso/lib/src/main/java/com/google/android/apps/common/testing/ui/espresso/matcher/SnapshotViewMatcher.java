@@ -0,0 +1,19 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import com.google.android.apps.common.testing.ui.espresso.util.ViewSnapshot;
+
+/**
+ * Implemented by {@link android.view.View} matchers which can also be evaluated against a
+ * {@link ViewSnapshot}, off the main thread. The result must be the one the matcher would give on
+ * the live view at capture time.
+ */
+public interface SnapshotViewMatcher {
+
+    /**
+     * Returns true if the captured view matches.
+     *
+     * @throws UnsupportedOperationException if the snapshot lacks what the matcher needs, in which
+     *     case the caller has to match the live hierarchy instead.
+     */
+    boolean matchesSnapshot(ViewSnapshot snapshot);
+}
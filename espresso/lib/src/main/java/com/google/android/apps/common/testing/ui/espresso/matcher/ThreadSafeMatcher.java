@@ -0,0 +1,12 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+/**
+ * Implemented by matchers which may be evaluated concurrently, from any thread: they neither touch
+ * views nor other state owned by the main thread, and keep no mutable state of their own. Data
+ * matchers declaring it can be evaluated in parallel off the main thread (see
+ * {@link com.google.android.apps.common.testing.ui.espresso.IdlingPolicies#setParallelDataMatching}).
+ * <p>
+ * Matchers built from others can be declared thread safe with {@link DataMatchers#threadSafe}.
+ */
+public interface ThreadSafeMatcher {
+}
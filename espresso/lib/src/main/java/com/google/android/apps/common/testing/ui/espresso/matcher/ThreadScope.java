@@ -0,0 +1,59 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Keeps the instance of a context class which is open on each thread. Opens nest: the outermost
+ * open creates the context, nested ones share it, and it is dropped once the outermost open is
+ * closed. Outside of an open scope every use gets a fresh context.
+ *
+ * @param <T> the type of the context.
+ */
+abstract class ThreadScope<T> {
+    private final ThreadLocal<Opened<T>> current = new ThreadLocal<Opened<T>>();
+
+    /**
+     * Creates a context, for an outermost open or for a use outside of any.
+     */
+    abstract T create();
+
+    /**
+     * Opens the scope on the calling thread, to be closed by {@link #close} with the returned
+     * context.
+     */
+    final T open() {
+        Opened<T> opened = current.get();
+        if (opened == null) {
+            opened = new Opened<T>(create());
+            current.set(opened);
+        }
+        opened.count++;
+        return opened.context;
+    }
+
+    final void close(T context) {
+        Opened<T> opened = current.get();
+        checkState(opened != null && opened.context == context && opened.count > 0,
+                "Not open on this thread.");
+        if (--opened.count == 0) {
+            current.remove();
+        }
+    }
+
+    /**
+     * Returns the context open on the calling thread, or a throwaway one.
+     */
+    final T currentOrNew() {
+        Opened<T> opened = current.get();
+        return opened != null ? opened.context : create();
+    }
+
+    private static final class Opened<T> {
+        private final T context;
+        private int count;
+
+        private Opened(T context) {
+            this.context = context;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import android.graphics.Rect;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the on screen geometry of views - their global visible rects and the views which may
+ * be drawn over them - for the duration of one search of the view hierarchy, so display matchers
+ * evaluated on many views of the same hierarchy compute each of those once.
+ * <p>
+ * A search opens the cache of its thread, and must close it once done; the hierarchy must not
+ * change in between. Opens nest as {@link ThreadScope} describes, so outside of an open cache
+ * matchers use a fresh one per evaluation.
+ */
+public final class ViewGeometryCache {
+    private static final ThreadScope<ViewGeometryCache> SCOPE =
+            new ThreadScope<ViewGeometryCache>() {
+                @Override
+                ViewGeometryCache create() {
+                    return new ViewGeometryCache();
+                }
+            };
+    private static final Rect NOT_VISIBLE = new Rect();
+
+    private final Map<View, Rect> visibleRects = Maps.newIdentityHashMap();
+    private final Map<View, Boolean> gone = Maps.newIdentityHashMap();
+    private final Map<View, List<View>> covers = Maps.newIdentityHashMap();
+    private final RectUnion union = new RectUnion();
+
+    private ViewGeometryCache() {}
+
+    /**
+     * Opens the geometry cache of the calling thread, to be closed by {@link #close()} once the
+     * hierarchy has been searched.
+     */
+    public static ViewGeometryCache open() {
+        return SCOPE.open();
+    }
+
+    /**
+     * Closes the cache, dropping what it remembers once the outermost open is closed.
+     */
+    public void close() {
+        SCOPE.close(this);
+    }
+
+    /**
+     * Returns the open cache of the calling thread, or a throwaway one.
+     */
+    static ViewGeometryCache currentOrNew() {
+        return SCOPE.currentOrNew();
+    }
+
+    /**
+     * Returns the global visible rect of the view, or null if no part of it is visible. The rect
+     * is shared and must not be modified.
+     */
+    Rect getGlobalVisibleRect(View view) {
+        Rect rect = visibleRects.get(view);
+        if (rect == null) {
+            rect = new Rect();
+            if (!view.getGlobalVisibleRect(rect)) {
+                rect = NOT_VISIBLE;
+            }
+            visibleRects.put(view, rect);
+        }
+        return rect == NOT_VISIBLE ? null : rect;
+    }
+
+    /**
+     * Returns true if the view or one of its ancestors is GONE.
+     */
+    boolean isEffectivelyGone(View view) {
+        Boolean result = gone.get(view);
+        if (result == null) {
+            result = view.getVisibility() == View.GONE
+                    || (view.getParent() instanceof View
+                            && isEffectivelyGone((View) view.getParent()));
+            gone.put(view, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the views which may be drawn over the given one: the siblings after it and after each
+     * of its ancestors. The list is shared and must not be modified.
+     */
+    List<View> getPotentialCovers(View view) {
+        List<View> result = covers.get(view);
+        if (result != null) {
+            return result;
+        }
+        if (!(view.getParent() instanceof ViewGroup)) {
+            result = Lists.newArrayList();
+        } else {
+            ViewGroup parent = (ViewGroup) view.getParent();
+            // add my uncles that could cover me
+            List<View> parentCovers = getPotentialCovers(parent);
+            int index = parent.indexOfChild(view);
+            int childCount = parent.getChildCount();
+            result = Lists.newArrayListWithCapacity(parentCovers.size() + childCount - index - 1);
+            result.addAll(parentCovers);
+            // add my siblings that could cover me
+            for (int i = index + 1; i < childCount; i++) {
+                result.add(parent.getChildAt(i));
+            }
+        }
+        covers.put(view, result);
+        return result;
+    }
+
+    /**
+     * Returns the area of visible, the global visible rect of the view, which none of the views
+     * returned by {@link #getPotentialCovers} covers. Covers which are not visible or gone are
+     * ignored.
+     */
+    long getUncoveredArea(View view, Rect visible) {
+        union.clear();
+        for (View cover : getPotentialCovers(view)) {
+            Rect coverRect = getGlobalVisibleRect(cover);
+            if (coverRect != null && !isEffectivelyGone(cover)) {
+                union.add(Math.max(visible.left, coverRect.left),
+                        Math.max(visible.top, coverRect.top),
+                        Math.min(visible.right, coverRect.right),
+                        Math.min(visible.bottom, coverRect.bottom));
+            }
+        }
+        return (long) visible.width() * visible.height() - union.area();
+    }
+}
@@ -1,7 +1,9 @@
 package com.google.android.apps.common.testing.ui.espresso.matcher;
 
+import android.annotation.SuppressLint;
 import android.content.res.Resources;
 import android.graphics.Rect;
+import android.os.Build;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewParent;
@@ -11,9 +13,10 @@ import android.widget.Checkable;
 import android.widget.TextView;
 
 import com.google.android.apps.common.testing.ui.espresso.util.HumanReadables;
+import com.google.android.apps.common.testing.ui.espresso.util.ViewSnapshot;
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
 
 import junit.framework.AssertionFailedError;
 
@@ -23,11 +26,11 @@ import org.hamcrest.Matchers;
 import org.hamcrest.StringDescription;
 import org.hamcrest.TypeSafeMatcher;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import static com.google.android.apps.common.testing.ui.espresso.util.TreeIterables.breadthFirstViewTraversal;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -47,15 +50,15 @@ public final class ViewMatchers {
      */
     public static Matcher<View> isAssignableFrom(final Class<? extends View> clazz) {
         checkNotNull(clazz);
-        return new TypeSafeMatcher<View>() {
+        return new IndexableMatcher(IndexableViewMatcher.Property.CLASS) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("is assignable from class: " + clazz);
             }
 
             @Override
-            public boolean matchesSafely(View view) {
-                return clazz.isAssignableFrom(view.getClass());
+            public boolean matchesValue(Object viewClass) {
+                return clazz.isAssignableFrom((Class<?>) viewClass);
             }
         };
     }
@@ -65,7 +68,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> withClassName(final Matcher<String> classNameMatcher) {
         checkNotNull(classNameMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new IndexableMatcher(IndexableViewMatcher.Property.CLASS, classNameMatcher) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("with class name: ");
@@ -73,8 +76,8 @@ public final class ViewMatchers {
             }
 
             @Override
-            public boolean matchesSafely(View view) {
-                return classNameMatcher.matches(view.getClass().getName());
+            public boolean matchesValue(Object viewClass) {
+                return classNameMatcher.matches(((Class<?>) viewClass).getName());
             }
         };
     }
@@ -88,7 +91,7 @@ public final class ViewMatchers {
      * entire rectangle this view draws is displayed to the user use isCompletelyDisplayed.
      */
     public static Matcher<View> isDisplayed() {
-        return new TypeSafeMatcher<View>() {
+        return new SnapshotMatcher(CostedViewMatcher.EXPENSIVE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("is displayed on the screen to the user");
@@ -99,6 +102,17 @@ public final class ViewMatchers {
                 return view.getGlobalVisibleRect(new Rect()) &&
                         withEffectiveVisibility(Visibility.VISIBLE).matches(view);
             }
+
+            @Override
+            public boolean matchesSnapshot(ViewSnapshot view) {
+                return view.getGlobalVisibleRect() != null
+                        && view.getEffectiveVisibility() == View.VISIBLE;
+            }
+
+            @Override
+            public boolean mayMatchWithin(View subtreeRoot) {
+                return mayBeDisplayedWithin(subtreeRoot);
+            }
         };
     }
 
@@ -123,7 +137,7 @@ public final class ViewMatchers {
     public static Matcher<View> isDisplayingAtLeast(final int areaPercentage) {
         checkState(areaPercentage <= 100, "Cannot have over 100 percent: %s", areaPercentage);
         checkState(areaPercentage > 0, "Must have a positive, non-zero value: %s", areaPercentage);
-        return new TypeSafeMatcher<View>() {
+        return new ScopedMatcher(CostedViewMatcher.EXPENSIVE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText(String.format(
@@ -132,33 +146,13 @@ public final class ViewMatchers {
 
             @Override
             public boolean matchesSafely(View view) {
-                Rect visibleParts = new Rect();
-                boolean visibleAtAll = view.getGlobalVisibleRect(visibleParts);
-                if (!visibleAtAll) {
+                ViewGeometryCache geometry = ViewGeometryCache.currentOrNew();
+                Rect visibleParts = geometry.getGlobalVisibleRect(view);
+                if (visibleParts == null) {
                     return false;
                 }
                 double maxArea = view.getHeight() * view.getWidth();
-                ArrayList<Rect> visibleAreaRects = Lists.newArrayList(visibleParts);
-
-                ArrayList<View> covers = getPotentialCovers(view);
-                Rect vr = new Rect();
-                ArrayList<Rect> scratch = new ArrayList<Rect>();
-                for (View cover : covers) {
-                    if (cover.getGlobalVisibleRect(vr)
-                            && !withEffectiveVisibility(Visibility.GONE).matches(cover)) {
-                        for (Rect visRect : visibleAreaRects) {
-                            scratch.addAll(subtractRect(visRect, vr));
-                        }
-                        ArrayList<Rect> t = visibleAreaRects;
-                        visibleAreaRects = scratch;
-                        scratch = t;
-                        scratch.clear();
-                    }
-                }
-
-                double visibleArea = 0;
-                for (Rect r : visibleAreaRects)
-                    visibleArea += r.height() * r.width();
+                double visibleArea = geometry.getUncoveredArea(view, visibleParts);
 
                 int displayedPercentage = (int) ((visibleArea / maxArea) * 100);
 
@@ -166,109 +160,38 @@ public final class ViewMatchers {
                         && withEffectiveVisibility(Visibility.VISIBLE).matches(view);
             }
 
-            /**
-             * Returns a list of between 0 and 4 rectangles that represent the area covered by start, that is not covered by cutout.
-             * @param start
-             * @param cutout NOTE: this parameter gets modified. It will be clipped to be solely the intersection between it and start.
-             * @return
-             */
-            private List<Rect> subtractRect(Rect start, Rect cutout) {
-                if (!cutout.intersect(start))
-                    return Collections.singletonList(start);
-
-                // also serves as "4 sides incident" case
-                if (cutout.contains(start))
-                    return Collections.emptyList();
-
-                // 3 sides incident
-                if (start.right == cutout.right && start.bottom == cutout.bottom && start.left == cutout.left)                        // cutout is bottom
-                    return Collections.singletonList(new Rect(start.left, start.top, start.right, cutout.top));                           // top
-                if (start.bottom == cutout.bottom && start.left == cutout.left && start.top == cutout.top)                            // cutout is left
-                    return Collections.singletonList(new Rect(cutout.right, start.top, start.right, start.bottom));                       // right
-                if (start.left == cutout.left && start.top == cutout.top && start.right == cutout.right)                              // cutout is top
-                    return Collections.singletonList(new Rect(start.left, cutout.bottom, start.right, start.bottom));                     // bottom
-                if (start.top == cutout.top && start.right == cutout.right && start.bottom == cutout.bottom)                          // cutout is right
-                    return Collections.singletonList(new Rect(start.left, start.top, cutout.left, start.bottom));                         // left
-
-                // 2 sides incident, corner
-                if (start.right == cutout.right && start.bottom == cutout.bottom)                                                     // bottom right corner
-                    return Lists.newArrayList(new Rect(start.left, start.top, start.right, cutout.top),                                   // top
-                            new Rect(start.left, cutout.top, cutout.left, start.bottom));                               // bottom left
-                if (start.bottom == cutout.bottom && start.left == cutout.left)                                                       // bottom left corner
-                    return Lists.newArrayList(new Rect(start.left, start.top, start.right, cutout.top),                                   // top
-                            new Rect(cutout.right, cutout.top, start.right, start.bottom));                             // bottom right
-                if (start.left == cutout.left && start.top == cutout.top)                                                             // top left
-                    return Lists.newArrayList(new Rect(cutout.right, start.top, start.right, start.bottom),                               // right
-                            new Rect(start.left, cutout.bottom, cutout.right, start.bottom));                           // bottom left
-                if (start.top == cutout.top && start.right == cutout.right)                                                           // top right
-                    return Lists.newArrayList(new Rect(start.left, start.top, cutout.left, cutout.bottom),                                // upper left
-                            new Rect(start.left, cutout.bottom, start.right, start.bottom));                            // bottom
-                // 2 sides incident, cleaving rect
-                if (start.top == cutout.top && start.bottom == cutout.bottom)                                                         // cut vertically
-                    return Lists.newArrayList(new Rect(start.left, start.top, cutout.left, start.bottom),                                 // left
-                            new Rect(cutout.right, start.top, start.right, start.bottom));                              // right
-                if (start.left == cutout.left && start.right == cutout.right)                                                         // cut horizontally
-                    return Lists.newArrayList(new Rect(start.left, start.top, start.right, cutout.top),                                   // top
-                            new Rect(start.left, cutout.bottom, start.right, start.bottom));                            // bottom
-
-                // 1 side incident
-                if (start.right == cutout.right)                                                                                      // right
-                    return Lists.newArrayList(new Rect(start.left, start.top, cutout.left, start.bottom),                                 // left
-                            new Rect(cutout.left, start.top, start.right, cutout.top),                                  // top right
-                            new Rect(cutout.left, cutout.bottom, start.right, start.bottom));                           // bottom right
-                if (start.bottom == cutout.bottom)                                                                                    // bottom
-                    return Lists.newArrayList(new Rect(start.left, start.top, start.right, cutout.top),                                   // top
-                            new Rect(start.left, cutout.top, cutout.left, start.bottom),                                // bottom left
-                            new Rect(cutout.right, cutout.top, start.right, start.bottom));                             // bottom right
-                if (start.left == cutout.left)                                                                                        // left
-                    return Lists.newArrayList(new Rect(cutout.right, start.top, start.right, start.bottom),                               // right
-                            new Rect(start.left, start.top, cutout.right, cutout.top),                                  // top left
-                            new Rect(start.left, cutout.bottom, cutout.right, start.bottom));                           // bottom left
-                if (start.top == cutout.top)                                                                                          // top
-                    return Lists.newArrayList(new Rect(start.left, cutout.bottom, start.right, start.bottom),                             // bottom
-                            new Rect(start.left, start.top, cutout.left, cutout.bottom),                                // top left
-                            new Rect(cutout.right, start.top, start.right, cutout.bottom));                             // top right
-
-                // 0 sides incident (cutout is in the middle of start, no sides touching)
-                return Lists.newArrayList(new Rect(start.left, start.top, start.right, cutout.bottom),                                    // top
-                        new Rect(start.left, cutout.top, cutout.left, cutout.bottom),                                   // middle left
-                        new Rect(cutout.right, cutout.top, start.right, cutout.bottom),                                 // middle right
-                        new Rect(start.left, cutout.bottom, start.right, start.bottom));                                // bottom
-            }
-
-            private ArrayList<View> getPotentialCovers(View v) {
-                if (!(v.getParent() instanceof ViewGroup)) {
-                    return new ArrayList<View>();
-                }
-
-                // add my uncles that could cover me
-                ArrayList<View> list = getPotentialCovers(((View) v.getParent()));
-
-                // add my siblings that could cover me
-                ViewGroup parent = ((ViewGroup)v.getParent());
-                boolean found = false;
-                for (int i = 0; i < parent.getChildCount(); i++) {
-                    if (!found && v == parent.getChildAt(i)) {
-                        found = true;
-                        continue;
-                    }
-
-                    if (found)
-                        list.add(parent.getChildAt(i));
-                }
-
-                return list;
+            @Override
+            public boolean mayMatchWithin(View subtreeRoot) {
+                return mayBeDisplayedWithin(subtreeRoot);
             }
         };
     }
 
 
 
+    /**
+     * Returns false if no view of the subtree can be displayed: its root is not visible, or not on
+     * screen while clipping its children (any descendant's visible rect is clipped to it).
+     */
+    @SuppressLint("NewApi")
+    private static boolean mayBeDisplayedWithin(View subtreeRoot) {
+        if (subtreeRoot.getVisibility() != View.VISIBLE) {
+            return false;
+        }
+        if (!(subtreeRoot instanceof ViewGroup)) {
+            return true;
+        }
+        // before JB MR2 ViewGroup.getChildVisibleRect clipped to the group regardless of the flag.
+        boolean clipsChildren = Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2
+                || ((ViewGroup) subtreeRoot).getClipChildren();
+        return !clipsChildren || subtreeRoot.getGlobalVisibleRect(new Rect());
+    }
+
     /**
      * Returns a matcher that matches {@link View}s that are enabled.
      */
     public static Matcher<View> isEnabled() {
-        return new TypeSafeMatcher<View>() {
+        return new SnapshotMatcher(CostedViewMatcher.CHEAP) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("is enabled");
@@ -278,6 +201,11 @@ public final class ViewMatchers {
             public boolean matchesSafely(View view) {
                 return view.isEnabled();
             }
+
+            @Override
+            public boolean matchesSnapshot(ViewSnapshot view) {
+                return view.isEnabled();
+            }
         };
     }
 
@@ -285,7 +213,7 @@ public final class ViewMatchers {
      * Returns a matcher that matches {@link View}s that are focusable.
      */
     public static Matcher<View> isFocusable() {
-        return new TypeSafeMatcher<View>() {
+        return new SnapshotMatcher(CostedViewMatcher.CHEAP) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("is focusable");
@@ -295,6 +223,11 @@ public final class ViewMatchers {
             public boolean matchesSafely(View view) {
                 return view.isFocusable();
             }
+
+            @Override
+            public boolean matchesSnapshot(ViewSnapshot view) {
+                return view.isFocusable();
+            }
         };
     }
 
@@ -302,7 +235,7 @@ public final class ViewMatchers {
      * Returns a matcher that matches {@link View}s currently have focus.
      */
     public static Matcher<View> hasFocus() {
-        return new TypeSafeMatcher<View>() {
+        return new SnapshotMatcher(CostedViewMatcher.CHEAP) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("has focus on the screen to the user");
@@ -312,6 +245,11 @@ public final class ViewMatchers {
             public boolean matchesSafely(View view) {
                 return view.hasFocus();
             }
+
+            @Override
+            public boolean matchesSnapshot(ViewSnapshot view) {
+                return view.hasFocus();
+            }
         };
     }
 
@@ -327,7 +265,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> hasSibling(final Matcher<View> siblingMatcher) {
         checkNotNull(siblingMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new CostedMatcher(CostedViewMatcher.EXPENSIVE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("has sibling: ");
@@ -370,7 +308,8 @@ public final class ViewMatchers {
     public static Matcher<View> withContentDescription(
             final Matcher<? extends CharSequence> charSequenceMatcher) {
         checkNotNull(charSequenceMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new IndexableMatcher(
+                IndexableViewMatcher.Property.CONTENT_DESCRIPTION, charSequenceMatcher) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("with content description: ");
@@ -378,8 +317,8 @@ public final class ViewMatchers {
             }
 
             @Override
-            public boolean matchesSafely(View view) {
-                return charSequenceMatcher.matches(view.getContentDescription());
+            public boolean matchesValue(Object contentDescription) {
+                return charSequenceMatcher.matches(contentDescription);
             }
         };
     }
@@ -402,7 +341,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> withId(final Matcher<Integer> integerMatcher) {
         checkNotNull(integerMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new IndexableMatcher(IndexableViewMatcher.Property.ID, integerMatcher) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("with id: ");
@@ -410,8 +349,8 @@ public final class ViewMatchers {
             }
 
             @Override
-            public boolean matchesSafely(View view) {
-                return integerMatcher.matches(view.getId());
+            public boolean matchesValue(Object id) {
+                return integerMatcher.matches(id);
             }
         };
     }
@@ -433,7 +372,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> withTagKey(final int key, final Matcher<Object> objectMatcher) {
         checkNotNull(objectMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new CostedMatcher(CostedViewMatcher.CHEAP) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("with key: " + key);
@@ -454,7 +393,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> withTagValue(final Matcher<Object> tagValueMatcher) {
         checkNotNull(tagValueMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new SnapshotMatcher(CostedViewMatcher.CHEAP, tagValueMatcher) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("with tag value: ");
@@ -465,6 +404,11 @@ public final class ViewMatchers {
             public boolean matchesSafely(View view) {
                 return tagValueMatcher.matches(view.getTag());
             }
+
+            @Override
+            public boolean matchesSnapshot(ViewSnapshot view) {
+                return tagValueMatcher.matches(view.getTag());
+            }
         };
     }
 
@@ -484,7 +428,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> withText(final Matcher<CharSequence> textMatcher) {
         checkNotNull(textMatcher);
-        return new BoundedMatcher<View, TextView>(TextView.class) {
+        return new SnapshotMatcher(CostedViewMatcher.MODERATE, textMatcher) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("with text: ");
@@ -492,8 +436,13 @@ public final class ViewMatchers {
             }
 
             @Override
-            public boolean matchesSafely(TextView textView) {
-                return textMatcher.matches(textView.getText());
+            public boolean matchesSafely(View view) {
+                return view instanceof TextView && textMatcher.matches(((TextView) view).getText());
+            }
+
+            @Override
+            public boolean matchesSnapshot(ViewSnapshot view) {
+                return view.isTextView() && textMatcher.matches(view.getText());
             }
         };
     }
@@ -580,10 +529,8 @@ public final class ViewMatchers {
         return withCheckBoxState(is(false));
     }
 
-    private static <E extends View & Checkable> Matcher<View> withCheckBoxState(
-            final Matcher<Boolean> checkStateMatcher) {
-
-        return new BoundedMatcher<View, E>(View.class, Checkable.class) {
+    private static Matcher<View> withCheckBoxState(final Matcher<Boolean> checkStateMatcher) {
+        return new SnapshotMatcher(CostedViewMatcher.MODERATE, checkStateMatcher) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("with checkbox state: ");
@@ -591,8 +538,15 @@ public final class ViewMatchers {
             }
 
             @Override
-            public boolean matchesSafely(E checkable) {
-                return checkStateMatcher.matches(checkable.isChecked());
+            public boolean matchesSafely(View view) {
+                return view instanceof Checkable
+                        && checkStateMatcher.matches(((Checkable) view).isChecked());
+            }
+
+            @Override
+            public boolean matchesSnapshot(ViewSnapshot view) {
+                Boolean checked = view.isChecked();
+                return checked != null && checkStateMatcher.matches(checked);
             }
         };
     }
@@ -601,7 +555,7 @@ public final class ViewMatchers {
      * Returns an {@link Matcher} that matches {@link View}s with any content description.
      */
     public static Matcher<View> hasContentDescription() {
-        return new TypeSafeMatcher<View>() {
+        return new SnapshotMatcher(CostedViewMatcher.CHEAP) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("has content description");
@@ -611,6 +565,11 @@ public final class ViewMatchers {
             public boolean matchesSafely(View view) {
                 return view.getContentDescription() != null;
             }
+
+            @Override
+            public boolean matchesSnapshot(ViewSnapshot view) {
+                return view.hasContentDescription();
+            }
         };
     }
 
@@ -622,7 +581,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> hasDescendant(final Matcher<View> descendantMatcher) {
         checkNotNull(descendantMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new CostedMatcher(CostedViewMatcher.EXPENSIVE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("has descendant: ");
@@ -650,7 +609,7 @@ public final class ViewMatchers {
      * Returns a matcher that matches {@link View}s that are clickable.
      */
     public static Matcher<View> isClickable() {
-        return new TypeSafeMatcher<View>() {
+        return new SnapshotMatcher(CostedViewMatcher.CHEAP) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("is clickable");
@@ -660,6 +619,11 @@ public final class ViewMatchers {
             public boolean matchesSafely(View view) {
                 return view.isClickable();
             }
+
+            @Override
+            public boolean matchesSnapshot(ViewSnapshot view) {
+                return view.isClickable();
+            }
         };
     }
 
@@ -670,7 +634,9 @@ public final class ViewMatchers {
      */
     public static Matcher<View> isDescendantOfA(final Matcher<View> ancestorMatcher) {
         checkNotNull(ancestorMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new SnapshotMatcher(CostedViewMatcher.EXPENSIVE, ancestorMatcher) {
+            private volatile SnapshotViewMatcher ancestorQuery;
+
             @Override
             public void describeTo(Description description) {
                 description.appendText("is descendant of a: ");
@@ -692,6 +658,25 @@ public final class ViewMatchers {
                 }
                 return checkAncestors(viewParent.getParent(), ancestorMatcher);
             }
+
+            @Override
+            public boolean matchesSnapshot(ViewSnapshot view) {
+                if (ancestorQuery == null) {
+                    ancestorQuery = snapshotQuery(ancestorMatcher);
+                }
+                for (ViewSnapshot ancestor = view.getParent(); ancestor != null;
+                        ancestor = ancestor.getParent()) {
+                    if (ancestorQuery.matchesSnapshot(ancestor)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public Matcher<View> getRequiredAncestor() {
+                return ancestorMatcher;
+            }
         };
     }
 
@@ -711,7 +696,7 @@ public final class ViewMatchers {
      * value with your test, use isDisplayed.
      */
     public static Matcher<View> withEffectiveVisibility(final Visibility visibility) {
-        return new TypeSafeMatcher<View>() {
+        return new SnapshotMatcher(CostedViewMatcher.MODERATE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText(
@@ -744,6 +729,25 @@ public final class ViewMatchers {
                     return false;
                 }
             }
+
+            @Override
+            public boolean matchesSnapshot(ViewSnapshot view) {
+                // VISIBLE needs the whole chain VISIBLE, the others any view in it.
+                boolean wantVisible = visibility.getValue() == View.VISIBLE;
+                for (; view != null; view = view.getParent()) {
+                    if ((view.getVisibility() == visibility.getValue()) != wantVisible) {
+                        return !wantVisible;
+                    }
+                }
+                return wantVisible;
+            }
+
+            @Override
+            public boolean mayMatchWithin(View subtreeRoot) {
+                // a view which isn't VISIBLE hides its whole subtree.
+                return visibility != Visibility.VISIBLE
+                        || subtreeRoot.getVisibility() == View.VISIBLE;
+            }
         };
     }
 
@@ -772,7 +776,9 @@ public final class ViewMatchers {
      */
     public static Matcher<View> withParent(final Matcher<View> parentMatcher) {
         checkNotNull(parentMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new SnapshotMatcher(CostedViewMatcher.MODERATE, parentMatcher) {
+            private volatile SnapshotViewMatcher parentQuery;
+
             @Override
             public void describeTo(Description description) {
                 description.appendText("has parent matching: ");
@@ -783,6 +789,18 @@ public final class ViewMatchers {
             public boolean matchesSafely(View view) {
                 return parentMatcher.matches(view.getParent());
             }
+
+            @Override
+            public boolean matchesSnapshot(ViewSnapshot view) {
+                if (view.getParent() == null) {
+                    // the parent of a root isn't a view, and isn't captured.
+                    throw new UnsupportedOperationException("Parent of a root is not captured.");
+                }
+                if (parentQuery == null) {
+                    parentQuery = snapshotQuery(parentMatcher);
+                }
+                return parentQuery.matchesSnapshot(view.getParent());
+            }
         };
     }
 
@@ -794,7 +812,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> withChild(final Matcher<View> childMatcher) {
         checkNotNull(childMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new CostedMatcher(CostedViewMatcher.EXPENSIVE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("has child: ");
@@ -824,7 +842,7 @@ public final class ViewMatchers {
      * Returns a matcher that matches root {@link View}.
      */
     public static Matcher<View> isRoot() {
-        return new TypeSafeMatcher<View>() {
+        return new SnapshotMatcher(CostedViewMatcher.CHEAP) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("is a root view.");
@@ -834,6 +852,11 @@ public final class ViewMatchers {
             public boolean matchesSafely(View view) {
                 return view.getRootView().equals(view);
             }
+
+            @Override
+            public boolean matchesSnapshot(ViewSnapshot view) {
+                return view.getParent() == null;
+            }
         };
     }
 
@@ -841,7 +864,7 @@ public final class ViewMatchers {
      * Returns a matcher that matches views that support input methods.
      */
     public static Matcher<View> supportsInputMethods() {
-        return new TypeSafeMatcher<View>() {
+        return new CostedMatcher(CostedViewMatcher.MODERATE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("supports input methods");
@@ -874,7 +897,7 @@ public final class ViewMatchers {
      * @param imeActionMatcher a matcher for the IME action
      */
     public static Matcher<View> hasImeAction(final Matcher<Integer> imeActionMatcher) {
-        return new TypeSafeMatcher<View>() {
+        return new CostedMatcher(CostedViewMatcher.MODERATE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("has ime action: ");
@@ -895,6 +918,57 @@ public final class ViewMatchers {
         };
     }
 
+    /**
+     * Compiles a view query: the returned matcher accepts exactly the views the given one accepts,
+     * but evaluates the members of allOf / anyOf matchers cheapest first (see
+     * {@link CostedViewMatcher}) and stops at the first one deciding the outcome. For example
+     * {@code allOf(isDisplayed(), withId(id))} only computes the display geometry of the views with
+     * the right id. The compiled matcher describes itself exactly as the given one.
+     */
+    public static <T> Matcher<T> compile(Matcher<T> matcher) {
+        return MatcherPlanner.compile(checkNotNull(matcher));
+    }
+
+    /**
+     * Compiles a view query for {@link ViewSnapshot}s, see {@link #compile}. Returns null unless
+     * every matcher the query is made of can be evaluated on a snapshot; even then a snapshot may
+     * lack what a matcher needs, in which case matching throws an
+     * {@link UnsupportedOperationException} and the query has to run on the live views.
+     */
+    @Nullable
+    public static SnapshotViewMatcher compileForSnapshots(Matcher<?> matcher) {
+        checkNotNull(matcher);
+        return MatcherPlanner.isSnapshotCompatible(matcher) ? snapshotQuery(matcher) : null;
+    }
+
+    /**
+     * Returns true if the given view query may be evaluated on snapshots from several threads at
+     * once: it is made of the matchers of this class, {@link ThreadSafeMatcher}s and immutable
+     * hamcrest matchers such as {@code is}, {@code equalTo} or {@code containsString}. Any other
+     * matcher, e.g. a custom one given to {@code withText}, makes the query unsafe.
+     */
+    public static boolean isThreadSafe(Matcher<?> matcher) {
+        return MatcherPlanner.isThreadSafe(checkNotNull(matcher));
+    }
+
+    /**
+     * Returns the matchers the given one was built from if it is one of the snapshot matchers of
+     * this class, or null.
+     */
+    @Nullable
+    static List<Matcher<?>> nestedMatchersOf(Matcher<?> matcher) {
+        return matcher instanceof SnapshotMatcher ? ((SnapshotMatcher) matcher).nested : null;
+    }
+
+    private static SnapshotViewMatcher snapshotQuery(Matcher<?> matcher) {
+        if (!MatcherPlanner.isSnapshotCompatible(matcher)) {
+            throw new UnsupportedOperationException(
+                    matcher + " cannot be evaluated on a snapshot.");
+        }
+        // plans evaluate their members on snapshots, see MatcherPlanner.
+        return (SnapshotViewMatcher) MatcherPlanner.compile(matcher);
+    }
+
     /**
      * A replacement for MatcherAssert.assertThat that renders View objects nicely.
      *
@@ -928,5 +1002,100 @@ public final class ViewMatchers {
             throw new AssertionFailedError(description.toString());
         }
     }
-}
 
+    /**
+     * Base class of the matchers declaring their cost, see {@link CostedViewMatcher}.
+     */
+    private abstract static class CostedMatcher extends TypeSafeMatcher<View>
+            implements CostedViewMatcher {
+        private final int cost;
+
+        private CostedMatcher(int cost) {
+            this.cost = cost;
+        }
+
+        @Override
+        public int getMatchCost() {
+            return cost;
+        }
+    }
+
+    /**
+     * Base class of the matchers narrowing down the search, see {@link ScopedViewMatcher}. By
+     * default they do not.
+     */
+    private abstract static class ScopedMatcher extends CostedMatcher
+            implements ScopedViewMatcher {
+        private ScopedMatcher(int cost) {
+            super(cost);
+        }
+
+        @Override
+        public boolean mayMatchWithin(View subtreeRoot) {
+            return true;
+        }
+
+        @Override
+        public Matcher<View> getRequiredAncestor() {
+            return null;
+        }
+    }
+
+    /**
+     * Base class of the matchers which can also be evaluated on snapshots, see
+     * {@link SnapshotViewMatcher}.
+     */
+    private abstract static class SnapshotMatcher extends ScopedMatcher
+            implements SnapshotViewMatcher {
+        // the matchers given by the caller this one evaluates, see nestedMatchersOf.
+        private final List<Matcher<?>> nested;
+
+        private SnapshotMatcher(int cost, Matcher<?>... nested) {
+            super(cost);
+            this.nested = ImmutableList.copyOf(nested);
+        }
+    }
+
+    /**
+     * Base class of the matchers which only look at a property of the view kept in the hierarchy
+     * index, see {@link IndexableViewMatcher}.
+     */
+    private abstract static class IndexableMatcher extends SnapshotMatcher
+            implements IndexableViewMatcher {
+        private final Property property;
+
+        private IndexableMatcher(Property property, Matcher<?>... nested) {
+            super(CostedViewMatcher.CHEAP, nested);
+            this.property = property;
+        }
+
+        @Override
+        public Property getIndexedProperty() {
+            return property;
+        }
+
+        @Override
+        public boolean matchesSafely(View view) {
+            switch (property) {
+                case ID:
+                    return matchesValue(view.getId());
+                case CLASS:
+                    return matchesValue(view.getClass());
+                default:
+                    return matchesValue(view.getContentDescription());
+            }
+        }
+
+        @Override
+        public boolean matchesSnapshot(ViewSnapshot view) {
+            switch (property) {
+                case ID:
+                    return matchesValue(view.getId());
+                case CLASS:
+                    return matchesValue(view.getViewClass());
+                default:
+                    return matchesValue(view.getContentDescription());
+            }
+        }
+    }
+}
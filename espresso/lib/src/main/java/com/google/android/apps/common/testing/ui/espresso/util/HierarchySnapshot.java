@@ -0,0 +1,92 @@
+package com.google.android.apps.common.testing.ui.espresso.util;
+
+import android.graphics.Rect;
+import android.os.Looper;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * An immutable copy of the view hierarchies under a list of roots, see {@link ViewSnapshot}. It is
+ * captured in a single pass on the main thread; once captured it can be searched from any thread
+ * while the app carries on.
+ */
+public final class HierarchySnapshot {
+
+    private final List<ViewSnapshot> roots;
+    private final List<ViewSnapshot> views;
+    private final long captureNanos;
+
+    private HierarchySnapshot(List<ViewSnapshot> roots, List<ViewSnapshot> views,
+                              long captureNanos) {
+        this.roots = roots;
+        this.views = views;
+        this.captureNanos = captureNanos;
+    }
+
+    /**
+     * Captures the hierarchies under the given roots. Must be called on the main thread.
+     */
+    public static HierarchySnapshot capture(List<View> rootViews) {
+        checkState(Looper.myLooper() == Looper.getMainLooper(), "Expecting to be on main thread!");
+        long start = System.nanoTime();
+        Rect scratch = new Rect();
+        ImmutableList.Builder<ViewSnapshot> roots = ImmutableList.builder();
+        List<ViewSnapshot> views = Lists.newArrayList();
+        // breadth first: the children of views[i] are appended once views[i] is reached.
+        List<View> live = Lists.newArrayList();
+        for (View rootView : rootViews) {
+            ViewSnapshot root = new ViewSnapshot(rootView, null, scratch);
+            roots.add(root);
+            views.add(root);
+            live.add(rootView);
+        }
+        for (int i = 0; i < live.size(); i++) {
+            View view = live.get(i);
+            if (!(view instanceof ViewGroup)) {
+                continue;
+            }
+            ViewGroup group = (ViewGroup) view;
+            int childCount = group.getChildCount();
+            if (childCount == 0) {
+                continue;
+            }
+            ViewSnapshot parent = views.get(i);
+            List<ViewSnapshot> children = Lists.newArrayListWithCapacity(childCount);
+            for (int c = 0; c < childCount; c++) {
+                View child = group.getChildAt(c);
+                ViewSnapshot snapshot = new ViewSnapshot(child, parent, scratch);
+                children.add(snapshot);
+                views.add(snapshot);
+                live.add(child);
+            }
+            parent.setChildren(children);
+        }
+        return new HierarchySnapshot(roots.build(), ImmutableList.copyOf(views),
+                System.nanoTime() - start);
+    }
+
+    public List<ViewSnapshot> getRoots() {
+        return roots;
+    }
+
+    /**
+     * Returns all the views, in the breadth first order of a traversal of the live hierarchy.
+     */
+    public List<ViewSnapshot> getViews() {
+        return views;
+    }
+
+    /**
+     * Returns how long the capture held the main thread.
+     */
+    public long getCaptureNanos() {
+        return captureNanos;
+    }
+}
@@ -0,0 +1,115 @@
+package com.google.android.apps.common.testing.ui.espresso.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Filters long lists by splitting them between the calling thread and a small pool of daemon
+ * threads, shared by every search of the framework which may run off the main thread. The pool is
+ * a plain {@link ExecutorService}: fork join pools are not available on every API level we run
+ * on.
+ */
+public final class ParallelFilter {
+  private static final int THREADS = Math.max(2, Math.min(4,
+      Runtime.getRuntime().availableProcessors()));
+
+  private static ExecutorService matchers; // created lazily, guarded by ParallelFilter.class
+
+  private ParallelFilter() { }
+
+  /**
+   * Returns the first {@code maxMatches} items accepted by the predicate, in order. The first
+   * chunk is filtered on the calling thread, the others on the pool, so the predicate has to be
+   * safe to apply concurrently.
+   */
+  public static <T> List<T> filter(List<T> items, final Predicate<? super T> predicate,
+      final int maxMatches) {
+    checkNotNull(predicate);
+    checkArgument(maxMatches > 0, "maxMatches must be positive: %s", maxMatches);
+    int chunkSize = Math.max(1, (items.size() + THREADS - 1) / THREADS);
+    List<Future<List<T>>> chunks = Lists.newArrayListWithCapacity(THREADS);
+    try {
+      ExecutorService executor = matchers();
+      for (int start = chunkSize; start < items.size(); start += chunkSize) {
+        final List<T> chunk = items.subList(start, Math.min(items.size(), start + chunkSize));
+        chunks.add(executor.submit(new Callable<List<T>>() {
+          @Override
+          public List<T> call() {
+            return filterChunk(chunk, predicate, maxMatches);
+          }
+        }));
+      }
+      // the first chunk on the calling thread, the others in order keep the order of the items.
+      List<T> matches = filterChunk(
+          items.subList(0, Math.min(items.size(), chunkSize)), predicate, maxMatches);
+      if (Thread.interrupted()) {
+        // the first chunk may have stopped short.
+        throw new InterruptedException();
+      }
+      for (int i = 0; i < chunks.size() && matches.size() < maxMatches; i++) {
+        matches.addAll(chunks.get(i).get());
+      }
+      return matches.size() > maxMatches ? matches.subList(0, maxMatches) : matches;
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted filtering " + items.size() + " items", ie);
+    } catch (ExecutionException ee) {
+      if (ee.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ee.getCause();
+      }
+      if (ee.getCause() instanceof Error) {
+        throw (Error) ee.getCause();
+      }
+      throw new RuntimeException(ee.getCause());
+    } finally {
+      // later chunks are not needed once enough matches are found.
+      for (Future<List<T>> chunk : chunks) {
+        chunk.cancel(true);
+      }
+    }
+  }
+
+  private static <T> List<T> filterChunk(List<T> items, Predicate<? super T> predicate,
+      int maxMatches) {
+    List<T> matches = Lists.newArrayList();
+    for (T item : items) {
+      if (Thread.currentThread().isInterrupted()) {
+        break;
+      }
+      if (predicate.apply(item)) {
+        matches.add(item);
+        if (matches.size() >= maxMatches) {
+          break;
+        }
+      }
+    }
+    return matches;
+  }
+
+  private static synchronized ExecutorService matchers() {
+    if (matchers == null) {
+      matchers = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        private int count;
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Espresso Matcher " + (++count));
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return matchers;
+  }
+}
@@ -3,11 +3,12 @@ package com.google.android.apps.common.testing.ui.espresso.util;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.collect.AbstractIterator;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.UnmodifiableIterator;
 
 import android.view.View;
 import android.view.ViewGroup;
@@ -15,7 +16,6 @@ import android.view.ViewGroup;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -32,6 +32,8 @@ import java.util.Map;
  */
 public final class TreeIterables {
   private static final TreeViewer<View> VIEW_TREE_VIEWER = new ViewTreeViewer();
+  // must be a power of two.
+  private static final int INITIAL_CAPACITY = 16;
 
   private TreeIterables() { }
 
@@ -44,19 +46,26 @@ public final class TreeIterables {
    * @return An iterable of ViewAndDistance containing the view tree in a depth first order with
    *   the distance of a given node from the root.
    */
-  public static Iterable<ViewAndDistance> depthFirstViewTraversalWithDistance(View root) {
-    final DistanceRecordingTreeViewer<View> distanceRecorder =
-        new DistanceRecordingTreeViewer<View>(root, VIEW_TREE_VIEWER);
-
+  public static Iterable<ViewAndDistance> depthFirstViewTraversalWithDistance(final View root) {
+    checkNotNull(root);
+    return new Iterable<ViewAndDistance>() {
+      @Override
+      public Iterator<ViewAndDistance> iterator() {
+        final DepthFirstIterator<View> views = new DepthFirstIterator<View>(root, VIEW_TREE_VIEWER);
+        return new UnmodifiableIterator<ViewAndDistance>() {
+          @Override
+          public boolean hasNext() {
+            return views.hasNext();
+          }
 
-    return Iterables.transform(
-        depthFirstTraversal(root, distanceRecorder),
-        new Function<View, ViewAndDistance>() {
           @Override
-          public ViewAndDistance apply(View view) {
-            return new ViewAndDistance(view, distanceRecorder.getDistance(view));
+          public ViewAndDistance next() {
+            View view = views.next();
+            return new ViewAndDistance(view, views.depth());
           }
-        });
+        };
+      }
+    };
   }
 
   /**
@@ -91,6 +100,20 @@ public final class TreeIterables {
     return breadthFirstTraversal(root, VIEW_TREE_VIEWER);
   }
 
+  /**
+   * Returns an iterable which iterates thru the provided view and its children in a
+   * breadth-first, row-level-order traversal, skipping every view rejected by the given predicate
+   * together with all of its descendants. The predicate is applied once per reached view, in
+   * traversal order.
+   *
+   * @param root the non-null, root view.
+   * @param enter accepts the views to return and descend into.
+   */
+  public static Iterable<View> breadthFirstViewTraversal(View root,
+      Predicate<? super View> enter) {
+    return breadthFirstTraversal(root, VIEW_TREE_VIEWER, enter);
+  }
+
   /**
    * Creates a depth first traversing iterator of the tree rooted at root.
    *
@@ -119,6 +142,29 @@ public final class TreeIterables {
     return new TreeTraversalIterable<T>(root, TraversalStrategy.BREADTH_FIRST, viewer);
   }
 
+  /**
+   * Creates a breadth first traversing iterator of the tree rooted at root, which neither returns
+   * nor descends into the nodes rejected by enter.
+   *
+   * @param root the root of the tree
+   * @param viewer a TreeViewer which can determine leafiness of any instance of T and generate
+   *   Iterables for the direct children of any instance of T.
+   * @param enter accepts the nodes to return and descend into.
+   */
+  @VisibleForTesting
+  static <T> Iterable<T> breadthFirstTraversal(final T root, final TreeViewer<T> viewer,
+      final Predicate<? super T> enter) {
+    checkNotNull(root);
+    checkNotNull(viewer);
+    checkNotNull(enter);
+    return new Iterable<T>() {
+      @Override
+      public Iterator<T> iterator() {
+        return new BreadthFirstIterator<T>(root, viewer, enter);
+      }
+    };
+  }
+
   /**
    * Converts a tree into an Iterable of the tree's nodes presented in a given traversal order.
    */
@@ -136,41 +182,202 @@ public final class TreeIterables {
 
     @Override
     public Iterator<T> iterator() {
-      final LinkedList<T> nodes = Lists.newLinkedList();
-      nodes.add(root);
-      return new AbstractIterator<T>() {
-        @Override
-        public T computeNext() {
-          if (nodes.isEmpty()) {
-            return endOfData();
-          } else {
-            T nextItem = checkNotNull(traversalStrategy.next(nodes), "Null items not allowed!");
-            traversalStrategy.combineNewChildren(nodes, treeViewer.children(nextItem));
-            return nextItem;
-          }
-        }
-      };
+      return traversalStrategy.iterator(root, treeViewer);
     }
   }
 
   private enum TraversalStrategy {
     BREADTH_FIRST() {
       @Override
-      <T> void combineNewChildren(LinkedList<T> nodes, Collection<T> newChildren) {
-        nodes.addAll(newChildren);
+      <T> Iterator<T> iterator(T root, TreeViewer<T> viewer) {
+        return new BreadthFirstIterator<T>(root, viewer, Predicates.alwaysTrue());
       }
     }, DEPTH_FIRST() {
       @Override
-      <T> void combineNewChildren(LinkedList<T> nodes, Collection<T> newChildren) {
-        nodes.addAll(0, newChildren);
+      <T> Iterator<T> iterator(T root, TreeViewer<T> viewer) {
+        return new DepthFirstIterator<T>(root, viewer);
       }
     };
 
-    abstract <T> void combineNewChildren(LinkedList<T> nodes, Collection<T> newChildren);
-    <T> T next(LinkedList<T> nodes) {
-      return nodes.removeFirst();
+    abstract <T> Iterator<T> iterator(T root, TreeViewer<T> viewer);
+  }
+
+  /**
+   * Walks a tree depth first, keeping the path from the root in a pair of arrays: the nodes (or
+   * their children, see {@link ChildAccess}) and the index of the next child to visit. Nothing is
+   * allocated per node once the arrays are as deep as the tree.
+   */
+  private static final class DepthFirstIterator<T> extends AbstractIterator<T> {
+    private final T root;
+    private final ChildAccess<T> access;
+    private Object[] parents = new Object[INITIAL_CAPACITY];
+    private int[] nextChild = new int[INITIAL_CAPACITY];
+    private int size;
+    private int depth = -1;
+
+    private DepthFirstIterator(T root, TreeViewer<T> viewer) {
+      this.root = root;
+      this.access = ChildAccess.of(viewer);
+    }
+
+    /**
+     * Returns the distance from the root of the last node returned by {@link #next()}.
+     */
+    int depth() {
+      return depth;
+    }
+
+    @Override
+    protected T computeNext() {
+      if (depth < 0) {
+        push(access.open(root));
+        depth = 0;
+        return root;
+      }
+      while (size > 0) {
+        int top = size - 1;
+        int index = nextChild[top];
+        if (index < access.count(parents[top])) {
+          nextChild[top] = index + 1;
+          T child = checkNotNull(access.get(parents[top], index), "Null items not allowed!");
+          depth = size;
+          push(access.open(child));
+          return child;
+        }
+        parents[top] = null;
+        size = top;
+      }
+      return endOfData();
+    }
+
+    private void push(Object parent) {
+      if (size == parents.length) {
+        Object[] grownParents = new Object[size * 2];
+        int[] grownNextChild = new int[size * 2];
+        System.arraycopy(parents, 0, grownParents, 0, size);
+        System.arraycopy(nextChild, 0, grownNextChild, 0, size);
+        parents = grownParents;
+        nextChild = grownNextChild;
+      }
+      parents[size] = parent;
+      nextChild[size] = 0;
+      size++;
+    }
+  }
+
+  /**
+   * Walks a tree breadth first through a growable ring buffer of nodes. Nothing is allocated per
+   * node once the buffer is as wide as the tree. Nodes rejected by the enter predicate never get
+   * queued, which prunes their whole subtree.
+   */
+  private static final class BreadthFirstIterator<T> extends AbstractIterator<T> {
+    private final ChildAccess<T> access;
+    private final Predicate<? super T> enter;
+    private Object[] queue = new Object[INITIAL_CAPACITY];
+    private int head;
+    private int size;
+
+    private BreadthFirstIterator(T root, TreeViewer<T> viewer, Predicate<? super T> enter) {
+      this.access = ChildAccess.of(viewer);
+      this.enter = enter;
+      if (enter.apply(root)) {
+        queue[0] = root;
+        size = 1;
+      }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected T computeNext() {
+      if (size == 0) {
+        return endOfData();
+      }
+      T node = (T) queue[head];
+      queue[head] = null;
+      head = (head + 1) & (queue.length - 1);
+      size--;
+
+      Object parent = access.open(node);
+      int childCount = access.count(parent);
+      for (int i = 0; i < childCount; i++) {
+        T child = checkNotNull(access.get(parent, i), "Null items not allowed!");
+        if (enter.apply(child)) {
+          add(child);
+        }
+      }
+      return node;
+    }
+
+    private void add(T node) {
+      if (size == queue.length) {
+        // unroll the ring into a buffer twice the size, the length stays a power of two.
+        Object[] grown = new Object[size * 2];
+        int firstPart = queue.length - head;
+        System.arraycopy(queue, head, grown, 0, firstPart);
+        System.arraycopy(queue, 0, grown, firstPart, head);
+        queue = grown;
+        head = 0;
+      }
+      queue[(head + size) & (queue.length - 1)] = node;
+      size++;
     }
+  }
+
+  /**
+   * Positional access to the children of a node. Indexed viewers are asked directly, the children
+   * of other viewers are collected into a list once per node.
+   */
+  private abstract static class ChildAccess<T> {
+    /**
+     * Returns the handle later passed to {@link #count} and {@link #get} to reach node's children.
+     */
+    abstract Object open(T node);
+
+    abstract int count(Object handle);
+
+    abstract T get(Object handle, int index);
+
+    static <T> ChildAccess<T> of(final TreeViewer<T> viewer) {
+      if (viewer instanceof IndexedTreeViewer) {
+        final IndexedTreeViewer<T> indexed = (IndexedTreeViewer<T>) viewer;
+        return new ChildAccess<T>() {
+          @Override
+          Object open(T node) {
+            return node;
+          }
+
+          @Override
+          @SuppressWarnings("unchecked")
+          int count(Object handle) {
+            return indexed.childCount((T) handle);
+          }
+
+          @Override
+          @SuppressWarnings("unchecked")
+          T get(Object handle, int index) {
+            return indexed.childAt((T) handle, index);
+          }
+        };
+      }
+      return new ChildAccess<T>() {
+        @Override
+        Object open(T node) {
+          Collection<T> children = viewer.children(node);
+          return children instanceof List ? children : Lists.newArrayList(children);
+        }
+
+        @Override
+        int count(Object handle) {
+          return ((List<?>) handle).size();
+        }
 
+        @Override
+        @SuppressWarnings("unchecked")
+        T get(Object handle, int index) {
+          return ((List<T>) handle).get(index);
+        }
+      };
+    }
   }
 
   /**
@@ -180,21 +387,29 @@ public final class TreeIterables {
    * ViewGroup.
    */
   @VisibleForTesting
-  static class ViewTreeViewer implements TreeViewer<View> {
+  static class ViewTreeViewer implements IndexedTreeViewer<View> {
     @Override
     public Collection<View> children(View view) {
       checkNotNull(view);
-      if (view instanceof ViewGroup) {
-        ViewGroup group = (ViewGroup) view;
-        int childCount = group.getChildCount();
-        List<View> children = Lists.newArrayList();
-        for (int i = 0; i < childCount; i++) {
-          children.add(group.getChildAt(i));
-        }
-        return children;
-      } else {
+      int childCount = childCount(view);
+      if (childCount == 0) {
         return Collections.<View>emptyList();
       }
+      List<View> children = Lists.newArrayListWithCapacity(childCount);
+      for (int i = 0; i < childCount; i++) {
+        children.add(childAt(view, i));
+      }
+      return children;
+    }
+
+    @Override
+    public int childCount(View view) {
+      return view instanceof ViewGroup ? ((ViewGroup) view).getChildCount() : 0;
+    }
+
+    @Override
+    public View childAt(View view, int index) {
+      return ((ViewGroup) view).getChildAt(index);
     }
   }
 
@@ -259,6 +474,24 @@ public final class TreeIterables {
     Collection<T> children(T instance);
   }
 
+  /**
+   * A TreeViewer which also gives positional access to the children of a node, so a traversal can
+   * walk them without having them collected first.
+   */
+  @VisibleForTesting
+  interface IndexedTreeViewer<T> extends TreeViewer<T> {
+
+    /**
+     * Returns the number of direct children of this node.
+     */
+    int childCount(T instance);
+
+    /**
+     * Returns the direct child at the given position, 0 <= index < childCount(instance).
+     */
+    T childAt(T instance, int index);
+  }
+
 
 
   /**
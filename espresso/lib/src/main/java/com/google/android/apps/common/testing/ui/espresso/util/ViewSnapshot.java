@@ -0,0 +1,235 @@
+package com.google.android.apps.common.testing.ui.espresso.util;
+
+import android.graphics.Rect;
+import android.view.View;
+import android.widget.Checkable;
+import android.widget.TextView;
+
+import com.google.common.base.Objects;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * The state of a single view, as captured on the main thread by {@link HierarchySnapshot}: its id,
+ * class, on screen bounds, visibility, text, content description, checked / enabled / focus
+ * state and tag. Snapshots are immutable once the capture is done and may be read from any thread.
+ * <p>
+ * Texts and content descriptions are only kept when they are plain Strings: spanned or editable
+ * ones can change under the app's feet and don't compare equal to Strings, reading them throws an
+ * {@link UnsupportedOperationException} so the caller can fall back to the live view.
+ */
+public final class ViewSnapshot {
+
+    private final int id;
+    private final Class<? extends View> viewClass;
+    private final int width;
+    private final int height;
+    private final boolean visibleAtAll;
+    private final int visibleLeft;
+    private final int visibleTop;
+    private final int visibleRight;
+    private final int visibleBottom;
+    private final int visibility;
+    private final CharSequence text;
+    private final boolean plainText;
+    private final CharSequence contentDescription;
+    private final boolean plainContentDescription;
+    private final Boolean checked;
+    private final boolean enabled;
+    private final boolean focusable;
+    private final boolean hasFocus;
+    private final boolean clickable;
+    private final Object tag;
+    private final ViewSnapshot parent;
+    private final int depth;
+    private List<ViewSnapshot> children = Collections.emptyList();
+
+    /**
+     * Captures the state of the view. Must be called on the main thread.
+     */
+    ViewSnapshot(View view, @Nullable ViewSnapshot parent, Rect scratch) {
+        this.id = view.getId();
+        this.viewClass = view.getClass();
+        this.width = view.getWidth();
+        this.height = view.getHeight();
+        this.visibleAtAll = view.getGlobalVisibleRect(scratch);
+        this.visibleLeft = scratch.left;
+        this.visibleTop = scratch.top;
+        this.visibleRight = scratch.right;
+        this.visibleBottom = scratch.bottom;
+        this.visibility = view.getVisibility();
+        CharSequence viewText = view instanceof TextView ? ((TextView) view).getText() : null;
+        this.plainText = viewText == null || viewText instanceof String;
+        this.text = plainText ? viewText : null;
+        CharSequence description = view.getContentDescription();
+        this.plainContentDescription = description == null || description instanceof String;
+        this.contentDescription = plainContentDescription ? description : null;
+        this.checked = view instanceof Checkable ? ((Checkable) view).isChecked() : null;
+        this.enabled = view.isEnabled();
+        this.focusable = view.isFocusable();
+        this.hasFocus = view.hasFocus();
+        this.clickable = view.isClickable();
+        this.tag = view.getTag();
+        this.parent = parent;
+        this.depth = parent == null ? 0 : parent.depth + 1;
+    }
+
+    void setChildren(List<ViewSnapshot> children) {
+        this.children = Collections.unmodifiableList(children);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Class<? extends View> getViewClass() {
+        return viewClass;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the global visible rect of the view, or null if no part of it was visible.
+     */
+    @Nullable
+    public Rect getGlobalVisibleRect() {
+        return visibleAtAll ? new Rect(visibleLeft, visibleTop, visibleRight, visibleBottom) : null;
+    }
+
+    /**
+     * Returns the visibility of the view itself, see {@link #getEffectiveVisibility()}.
+     */
+    public int getVisibility() {
+        return visibility;
+    }
+
+    /**
+     * Returns the visibility taking the ancestors into account: GONE if the view or an ancestor is
+     * GONE, else INVISIBLE if one of them is INVISIBLE, else VISIBLE.
+     */
+    public int getEffectiveVisibility() {
+        int effective = View.VISIBLE;
+        for (ViewSnapshot view = this; view != null; view = view.parent) {
+            if (view.visibility == View.GONE) {
+                return View.GONE;
+            }
+            if (view.visibility == View.INVISIBLE) {
+                effective = View.INVISIBLE;
+            }
+        }
+        return effective;
+    }
+
+    /**
+     * Returns true if the view was a {@link TextView}.
+     */
+    public boolean isTextView() {
+        return TextView.class.isAssignableFrom(viewClass);
+    }
+
+    /**
+     * Returns the text of a TextView, null for other views.
+     *
+     * @throws UnsupportedOperationException if the text was not a plain String.
+     */
+    @Nullable
+    public CharSequence getText() {
+        if (!plainText) {
+            throw new UnsupportedOperationException("Text of " + this + " is not a plain String.");
+        }
+        return text;
+    }
+
+    /**
+     * Returns the content description of the view.
+     *
+     * @throws UnsupportedOperationException if it was not a plain String.
+     */
+    @Nullable
+    public CharSequence getContentDescription() {
+        if (!plainContentDescription) {
+            throw new UnsupportedOperationException(
+                    "Content description of " + this + " is not a plain String.");
+        }
+        return contentDescription;
+    }
+
+    /**
+     * Returns true if the view had a content description, plain String or not.
+     */
+    public boolean hasContentDescription() {
+        return !plainContentDescription || contentDescription != null;
+    }
+
+    /**
+     * Returns whether a {@link Checkable} view was checked, or null if it was not Checkable.
+     */
+    @Nullable
+    public Boolean isChecked() {
+        return checked;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isFocusable() {
+        return focusable;
+    }
+
+    public boolean hasFocus() {
+        return hasFocus;
+    }
+
+    public boolean isClickable() {
+        return clickable;
+    }
+
+    /**
+     * Returns the tag of the view. The tag object itself is not copied.
+     */
+    @Nullable
+    public Object getTag() {
+        return tag;
+    }
+
+    /**
+     * Returns the snapshot of the parent view, or null for the root of a captured hierarchy.
+     */
+    @Nullable
+    public ViewSnapshot getParent() {
+        return parent;
+    }
+
+    public List<ViewSnapshot> getChildren() {
+        return children;
+    }
+
+    /**
+     * Returns the distance from the root of the captured hierarchy.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(viewClass.getSimpleName())
+                .add("id", id)
+                .add("visibility", visibility)
+                .add("width", width)
+                .add("height", height)
+                .add("text", plainText ? text : "<not captured>")
+                .add("depth", depth)
+                .toString();
+    }
+}
@@ -0,0 +1,160 @@
+package com.google.android.apps.common.testing.testrunner;
+
+import android.app.Activity;
+import android.os.SystemClock;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Unit tests for {@link ActivityLifecycleMonitorImpl}.
+ */
+public class ActivityLifecycleMonitorImplTest extends TestCase {
+  private ActivityLifecycleMonitorImpl monitor;
+  private Activity activity;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    monitor = new ActivityLifecycleMonitorImpl(true);
+    activity = new Activity();
+  }
+
+  public void testLaunchToResume_fromPreOnCreate() {
+    monitor.signalLifecycleChange(Stage.PRE_ON_CREATE, activity);
+    SystemClock.sleep(20);
+    monitor.signalLifecycleChange(Stage.CREATED, activity);
+    monitor.signalLifecycleChange(Stage.STARTED, activity);
+    assertEquals(-1, monitor.getLaunchToResumeMillis(activity));
+
+    monitor.signalLifecycleChange(Stage.RESUMED, activity);
+    assertTrue(monitor.getLaunchToResumeMillis(activity) >= 20);
+  }
+
+  public void testLaunchToResume_firstResumeOnly() {
+    monitor.signalLifecycleChange(Stage.PRE_ON_CREATE, activity);
+    monitor.signalLifecycleChange(Stage.RESUMED, activity);
+    long launchMillis = monitor.getLaunchToResumeMillis(activity);
+
+    monitor.signalLifecycleChange(Stage.PAUSED, activity);
+    SystemClock.sleep(20);
+    monitor.signalLifecycleChange(Stage.RESUMED, activity);
+    assertEquals(launchMillis, monitor.getLaunchToResumeMillis(activity));
+  }
+
+  public void testLaunchToResume_launchNotSeen() {
+    monitor.signalLifecycleChange(Stage.RESUMED, activity);
+    assertEquals(-1, monitor.getLaunchToResumeMillis(activity));
+  }
+
+  public void testLaunchToResume_unknownActivity() {
+    try {
+      monitor.getLaunchToResumeMillis(activity);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testStageTransitions_moveActivityBetweenBuckets() {
+    Activity other = new Activity();
+    monitor.signalLifecycleChange(Stage.PRE_ON_CREATE, activity);
+    monitor.signalLifecycleChange(Stage.PRE_ON_CREATE, other);
+    monitor.signalLifecycleChange(Stage.CREATED, activity);
+    assertEquals(Stage.CREATED, monitor.getLifecycleStageOf(activity));
+    assertEquals(Stage.PRE_ON_CREATE, monitor.getLifecycleStageOf(other));
+    assertEquals(1, monitor.getActivityCountInStage(Stage.CREATED));
+    assertEquals(1, monitor.getActivityCountInStage(Stage.PRE_ON_CREATE));
+
+    monitor.signalLifecycleChange(Stage.CREATED, other);
+    monitor.signalLifecycleChange(Stage.RESUMED, activity);
+    assertEquals(0, monitor.getActivityCountInStage(Stage.PRE_ON_CREATE));
+    assertEquals(Arrays.asList(other), list(monitor.getActivitiesInStage(Stage.CREATED)));
+    assertEquals(Arrays.asList(activity), list(monitor.getActivitiesInStage(Stage.RESUMED)));
+  }
+
+  public void testStageTransitions_keepEntryOrder() {
+    Activity other = new Activity();
+    monitor.signalLifecycleChange(Stage.STOPPED, other);
+    monitor.signalLifecycleChange(Stage.STOPPED, activity);
+    assertEquals(Arrays.asList(other, activity),
+        list(monitor.getActivitiesInStage(Stage.STOPPED)));
+
+    // re-entering a stage moves the activity to the end.
+    monitor.signalLifecycleChange(Stage.RESTARTED, other);
+    monitor.signalLifecycleChange(Stage.STOPPED, other);
+    assertEquals(Arrays.asList(activity, other),
+        list(monitor.getActivitiesInStage(Stage.STOPPED)));
+  }
+
+  public void testGetActivitiesInStage_snapshotReusedUntilStageChanges() {
+    Activity other = new Activity();
+    monitor.signalLifecycleChange(Stage.RESUMED, activity);
+    monitor.signalLifecycleChange(Stage.PAUSED, other);
+    Collection<Activity> resumed = monitor.getActivitiesInStage(Stage.RESUMED);
+    Collection<Activity> paused = monitor.getActivitiesInStage(Stage.PAUSED);
+    assertSame(resumed, monitor.getActivitiesInStage(Stage.RESUMED));
+
+    // leaving a stage replaces its snapshot, and only its snapshot.
+    monitor.signalLifecycleChange(Stage.STOPPED, other);
+    assertSame(resumed, monitor.getActivitiesInStage(Stage.RESUMED));
+    Collection<Activity> pausedAfter = monitor.getActivitiesInStage(Stage.PAUSED);
+    assertNotSame(paused, pausedAfter);
+    assertTrue(pausedAfter.isEmpty());
+    assertEquals(Arrays.asList(other), list(paused));
+
+    // so does entering it.
+    monitor.signalLifecycleChange(Stage.PAUSED, activity);
+    assertEquals(Arrays.asList(activity), list(monitor.getActivitiesInStage(Stage.PAUSED)));
+    assertTrue(monitor.getActivitiesInStage(Stage.RESUMED).isEmpty());
+  }
+
+  public void testGetActivitiesInStage_snapshotUnmodifiable() {
+    monitor.signalLifecycleChange(Stage.RESUMED, activity);
+    try {
+      monitor.getActivitiesInStage(Stage.RESUMED).clear();
+      fail("expected UnsupportedOperationException");
+    } catch (UnsupportedOperationException expected) {
+    }
+    assertEquals(1, monitor.getActivityCountInStage(Stage.RESUMED));
+  }
+
+  public void testGetActivitiesInStage_destroyedNotCached() {
+    monitor.signalLifecycleChange(Stage.DESTROYED, activity);
+    Collection<Activity> destroyed = monitor.getActivitiesInStage(Stage.DESTROYED);
+    assertEquals(Arrays.asList(activity), list(destroyed));
+    assertNotSame(destroyed, monitor.getActivitiesInStage(Stage.DESTROYED));
+  }
+
+  public void testStageBuckets_dropCollectedActivities() throws Exception {
+    signalStopped(new Activity());
+    monitor.signalLifecycleChange(Stage.STOPPED, activity);
+    signalDestroyed(new Activity());
+
+    for (int i = 0; i < 50 && (monitor.getActivityCountInStage(Stage.STOPPED) > 1
+        || monitor.getActivityCountInStage(Stage.DESTROYED) > 0); i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+    assertEquals(Arrays.asList(activity), list(monitor.getActivitiesInStage(Stage.STOPPED)));
+    assertTrue(monitor.getActivitiesInStage(Stage.DESTROYED).isEmpty());
+  }
+
+  // separate methods, so that no local variable keeps the activities reachable.
+  private void signalStopped(Activity dropped) {
+    monitor.signalLifecycleChange(Stage.STOPPED, dropped);
+  }
+
+  private void signalDestroyed(Activity dropped) {
+    monitor.signalLifecycleChange(Stage.DESTROYED, dropped);
+    // looking at a stage must not keep its activities reachable.
+    assertEquals(1, monitor.getActivitiesInStage(Stage.DESTROYED).size());
+  }
+
+  private static List<Activity> list(Collection<Activity> activities) {
+    return new ArrayList<Activity>(activities);
+  }
+}
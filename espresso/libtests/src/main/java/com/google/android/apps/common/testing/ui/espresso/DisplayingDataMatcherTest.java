@@ -0,0 +1,221 @@
+package com.google.android.apps.common.testing.ui.espresso;
+
+import com.google.android.apps.common.testing.ui.espresso.action.AdapterDataLoaderAction;
+import com.google.android.apps.common.testing.ui.espresso.action.AdapterViewProtocol;
+import com.google.android.apps.common.testing.ui.espresso.action.AdapterViewProtocol.AdaptedData;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.view.View;
+import android.widget.Adapter;
+import android.widget.AdapterView;
+import android.widget.FrameLayout;
+
+import org.hamcrest.Matchers;
+
+import java.util.List;
+
+/** Unit tests for {@link DataInteraction.DisplayingDataMatcher}. */
+public class DisplayingDataMatcherTest extends InstrumentationTestCase {
+  private static final int DATA_COUNT = 20;
+  private static final int LOADED = 7;
+
+  private FakeProtocol protocol;
+  private FakeAdapterView adapterView;
+  private DataInteraction.DisplayingDataMatcher matcher;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    protocol = new FakeProtocol();
+    adapterView = new FakeAdapterView(getInstrumentation().getTargetContext());
+    AdapterDataLoaderAction action = new AdapterDataLoaderAction(
+        Matchers.<Object>equalTo(LOADED), Optional.<Integer>absent(), protocol);
+    action.perform(null, adapterView);
+    matcher = new DataInteraction.DisplayingDataMatcher(Matchers.<View>anything(),
+        Matchers.<Object>equalTo(LOADED), protocol, action);
+  }
+
+  @UiThreadTest
+  public void testMatches_childAtTokenPositionTriedFirst() {
+    List<View> rows = adapterView.showRows(5, 5);
+    assertTrue(matcher.matches(rows.get(2)));
+    // the row at the token's position rendered the data: no other row was asked.
+    assertEquals(1, protocol.lookups);
+
+    assertFalse(matcher.matches(rows.get(1)));
+    assertFalse(matcher.matches(adapterView));
+    assertEquals(1, protocol.lookups);
+  }
+
+  @UiThreadTest
+  public void testMayMatchWithin_onlyTowardsRenderingRow() {
+    List<View> rows = adapterView.showRows(5, 5);
+    assertTrue(matcher.mayMatchWithin(adapterView));
+    assertTrue(matcher.mayMatchWithin(rows.get(2)));
+    assertFalse(matcher.mayMatchWithin(rows.get(3)));
+  }
+
+  @UiThreadTest
+  public void testMatches_lookedUpAgainAfterScroll() {
+    List<View> rows = adapterView.showRows(5, 5);
+    assertTrue(matcher.matches(rows.get(2)));
+
+    List<View> scrolledRows = adapterView.showRows(6, 5);
+    assertFalse(matcher.matches(rows.get(2)));
+    assertTrue(matcher.matches(scrolledRows.get(1)));
+    assertEquals(2, protocol.lookups);
+  }
+
+  @UiThreadTest
+  public void testMatches_lookedUpAgainAfterChildChange() {
+    List<View> rows = adapterView.showRows(5, 5);
+    assertTrue(matcher.matches(rows.get(2)));
+
+    // same position and child count, but the rendering row was recycled.
+    List<View> reboundRows = adapterView.showRows(5, 5);
+    assertFalse(matcher.matches(rows.get(2)));
+    assertTrue(matcher.matches(reboundRows.get(2)));
+    assertEquals(2, protocol.lookups);
+  }
+
+  @UiThreadTest
+  public void testMatches_scansRowsWhenTokenPositionIsOff() {
+    adapterView.firstPosition = 5;
+    List<View> rows = Lists.newArrayList();
+    // the rows do not render the data at the positions the tokens suggest.
+    for (int token : new int[] {7, 9, 6, 8}) {
+      rows.add(adapterView.addRow(token));
+    }
+    assertTrue(matcher.matches(rows.get(0)));
+    assertFalse(matcher.matches(rows.get(2)));
+    // the row at the token's position, then the rows in order up to the rendering one.
+    assertEquals(2, protocol.lookups);
+  }
+
+  @UiThreadTest
+  public void testMatches_fallsBackToDescendantsRenderingData() {
+    Context context = getInstrumentation().getTargetContext();
+    adapterView.firstPosition = 5;
+    List<View> contents = Lists.newArrayList();
+    // the protocol renders the data in views within the rows, not in the rows themselves.
+    for (int token = 5; token < 10; token++) {
+      FrameLayout row = new FrameLayout(context);
+      View content = new View(context);
+      content.setTag(token);
+      row.addView(content);
+      adapterView.addRow(row);
+      contents.add(content);
+    }
+
+    assertTrue(matcher.matches(contents.get(2)));
+    assertFalse(matcher.matches(contents.get(3)));
+    assertFalse(matcher.matches(adapterView.getChildAt(2)));
+    // without a rendering row every subtree may hold the view.
+    assertTrue(matcher.mayMatchWithin(adapterView.getChildAt(3)));
+  }
+
+  /**
+   * An adapter view whose rows are set directly by the test, as a layout would.
+   */
+  private static class FakeAdapterView extends AdapterView<Adapter> {
+    int firstPosition;
+
+    FakeAdapterView(Context context) {
+      super(context);
+    }
+
+    List<View> showRows(int firstPosition, int count) {
+      this.firstPosition = firstPosition;
+      removeAllViewsInLayout();
+      List<View> rows = Lists.newArrayList();
+      for (int i = 0; i < count; i++) {
+        rows.add(addRow(firstPosition + i));
+      }
+      return rows;
+    }
+
+    View addRow(int token) {
+      View row = new View(getContext());
+      row.setTag(token);
+      return addRow(row);
+    }
+
+    View addRow(View row) {
+      addViewInLayout(row, -1, generateDefaultLayoutParams());
+      return row;
+    }
+
+    @Override
+    public int getFirstVisiblePosition() {
+      return firstPosition;
+    }
+
+    @Override
+    public Adapter getAdapter() {
+      return null;
+    }
+
+    @Override
+    public void setAdapter(Adapter adapter) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public View getSelectedView() {
+      return null;
+    }
+
+    @Override
+    public void setSelection(int position) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Serves the integers up to {@link #DATA_COUNT}, each rendered by the view tagged with it, and
+   * counts how often it is asked which data a view renders.
+   */
+  private static class FakeProtocol implements AdapterViewProtocol {
+    int lookups;
+
+    @Override
+    public Iterable<AdaptedData> getDataInAdapterView(AdapterView<? extends Adapter> adapterView) {
+      List<AdaptedData> datas = Lists.newArrayList();
+      for (int position = 0; position < DATA_COUNT; position++) {
+        datas.add(new AdaptedData.Builder()
+            .withData(position)
+            .withOpaqueToken(position)
+            .build());
+      }
+      return datas;
+    }
+
+    @Override
+    public Optional<AdaptedData> getDataRenderedByView(AdapterView<? extends Adapter> adapterView,
+        View descendantView) {
+      lookups++;
+      if (descendantView.getTag() instanceof Integer) {
+        return Optional.of(new AdaptedData.Builder()
+            .withData(descendantView.getTag())
+            .withOpaqueToken(descendantView.getTag())
+            .build());
+      }
+      return Optional.absent();
+    }
+
+    @Override
+    public void makeDataRenderedWithinAdapterView(AdapterView<? extends Adapter> adapterView,
+        AdaptedData data) {
+    }
+
+    @Override
+    public boolean isDataRenderedWithinAdapterView(AdapterView<? extends Adapter> adapterView,
+        AdaptedData adaptedData) {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package com.google.android.apps.common.testing.ui.espresso;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ScreenshotPolicy}.
+ */
+public class ScreenshotPolicyTest extends TestCase {
+
+  @Override
+  public void tearDown() throws Exception {
+    IdlingPolicies.setScreenshotPolicy(ScreenshotPolicy.everyNth(1));
+    super.tearDown();
+  }
+
+  public void testFactories() {
+    assertEquals(ScreenshotPolicy.Mode.NEVER, ScreenshotPolicy.never().getMode());
+    assertEquals(ScreenshotPolicy.Mode.ON_FAILURE, ScreenshotPolicy.onFailure().getMode());
+    assertEquals(ScreenshotPolicy.Mode.EVERY_NTH, ScreenshotPolicy.everyNth(3).getMode());
+    assertEquals(3, ScreenshotPolicy.everyNth(3).getCount());
+    assertEquals(ScreenshotPolicy.Mode.RING, ScreenshotPolicy.ring(5).getMode());
+    assertEquals(5, ScreenshotPolicy.ring(5).getCount());
+    assertEquals(ScreenshotPolicy.ring(5), ScreenshotPolicy.ring(5));
+  }
+
+  public void testRejectsNonPositiveCounts() {
+    try {
+      ScreenshotPolicy.everyNth(0);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      ScreenshotPolicy.ring(-1);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testDefaultCapturesEveryInteraction() {
+    assertEquals(ScreenshotPolicy.everyNth(1), IdlingPolicies.getScreenshotPolicy());
+    IdlingPolicies.setScreenshotPolicy(ScreenshotPolicy.ring(10));
+    assertEquals(ScreenshotPolicy.ring(10), IdlingPolicies.getScreenshotPolicy());
+  }
+}
@@ -0,0 +1,65 @@
+package com.google.android.apps.common.testing.ui.espresso;
+
+import com.google.common.collect.ImmutableList;
+
+import android.test.AndroidTestCase;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import java.util.Collections;
+
+/** Unit tests for {@link ViewHierarchyWatcher}. */
+public class ViewHierarchyWatcherTest extends AndroidTestCase {
+
+  private ViewHierarchyWatcher watcher;
+  private Root root;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    watcher = new ViewHierarchyWatcher();
+    root = new Root.Builder().withDecorView(new FrameLayout(getContext())).build();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    watcher.release();
+    super.tearDown();
+  }
+
+  public void testWatchReportsWindowChanges() throws Exception {
+    assertTrue(watcher.watch(ImmutableList.of(root)));
+    assertFalse(watcher.watch(ImmutableList.of(root)));
+    assertTrue(watcher.watch(Collections.<Root>emptyList()));
+  }
+
+  public void testDirtyUntilCleared() throws Exception {
+    assertTrue(watcher.awaitDirty(0));
+    watcher.watch(ImmutableList.of(root));
+    watcher.clearDirty();
+    assertFalse(watcher.awaitDirty(10));
+
+    Root other = new Root.Builder().withDecorView(new View(getContext())).build();
+    watcher.watch(ImmutableList.of(root, other));
+    assertTrue(watcher.awaitDirty(0));
+  }
+
+  public void testLayoutMarksDirty() throws Exception {
+    watcher.watch(ImmutableList.of(root));
+    watcher.clearDirty();
+    root.getDecorView().getViewTreeObserver().dispatchOnGlobalLayout();
+    assertTrue(watcher.awaitDirty(0));
+  }
+
+  public void testDrawMarksDirtyOnceThrottlePassed() throws Exception {
+    watcher.watch(ImmutableList.of(root));
+    watcher.clearDirty();
+    watcher.markDrawn();
+    assertFalse(watcher.awaitDirty(0));
+    // held back, but not lost.
+    assertTrue(watcher.awaitDirty(10 * ViewHierarchyWatcher.DRAW_THROTTLE_MILLIS));
+
+    watcher.clearDirty();
+    assertFalse(watcher.awaitDirty(2 * ViewHierarchyWatcher.DRAW_THROTTLE_MILLIS));
+  }
+}
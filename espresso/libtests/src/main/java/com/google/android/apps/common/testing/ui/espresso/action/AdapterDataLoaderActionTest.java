@@ -0,0 +1,281 @@
+package com.google.android.apps.common.testing.ui.espresso.action;
+
+import com.google.android.apps.common.testing.ui.espresso.IdlingPolicies;
+import com.google.android.apps.common.testing.ui.espresso.PerformException;
+import com.google.android.apps.common.testing.ui.espresso.WakeableUiController;
+import com.google.android.apps.common.testing.ui.espresso.action.AdapterViewProtocol.AdaptedData;
+import com.google.android.apps.common.testing.ui.espresso.matcher.DataMatchers;
+import com.google.common.base.Optional;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.Adapter;
+import android.widget.AdapterView;
+import android.widget.ListView;
+
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Unit tests for {@link AdapterDataLoaderAction}.
+ */
+public class AdapterDataLoaderActionTest extends InstrumentationTestCase {
+  private static final int DATA_COUNT = 50000;
+
+  private final FakeProtocol protocol = new FakeProtocol();
+
+  @UiThreadTest
+  public void testPerform_stopsAtSecondMatch() {
+    AdapterDataLoaderAction action = new AdapterDataLoaderAction(
+        multipleOf(100), Optional.<Integer>absent(), protocol);
+    try {
+      action.perform(null, newListView());
+      fail("ambiguous data loaded");
+    } catch (PerformException expected) {
+      assertTrue(expected.getCause().getMessage().contains("Multiple data elements matched"));
+    }
+    assertEquals(101, protocol.scanned);
+  }
+
+  @UiThreadTest
+  public void testPerform_stopsAtRequestedPosition() {
+    AdapterDataLoaderAction action = new AdapterDataLoaderAction(
+        multipleOf(100), Optional.of(2), protocol);
+    action.perform(null, newListView());
+    assertEquals(200, action.getAdaptedData().data);
+    assertEquals(201, protocol.scanned);
+  }
+
+  @UiThreadTest
+  public void testPerform_singleMatchScansAll() {
+    AdapterDataLoaderAction action = new AdapterDataLoaderAction(new BaseMatcher<Object>() {
+      @Override
+      public boolean matches(Object item) {
+        return Integer.valueOf(DATA_COUNT - 1).equals(item);
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText("last");
+      }
+    }, Optional.<Integer>absent(), protocol);
+    action.perform(null, newListView());
+    assertEquals(DATA_COUNT - 1, action.getAdaptedData().data);
+    assertEquals(DATA_COUNT, protocol.scanned);
+  }
+
+  @UiThreadTest
+  public void testPerform_noMatchDescribesSample() {
+    AdapterDataLoaderAction action = new AdapterDataLoaderAction(new BaseMatcher<Object>() {
+      @Override
+      public boolean matches(Object item) {
+        return false;
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText("nothing");
+      }
+    }, Optional.<Integer>absent(), protocol);
+    try {
+      action.perform(null, newListView());
+      fail("missing data loaded");
+    } catch (PerformException expected) {
+      String message = expected.getCause().getMessage();
+      assertTrue(message, message.contains("(" + DATA_COUNT + " items)"));
+      assertTrue(message, message.contains("Data: 0 "));
+      assertTrue(message, message.contains("Data: " + (DATA_COUNT - 1) + " "));
+      assertTrue(message, message.length() < 10000);
+    }
+    assertEquals(1, protocol.iterations);
+  }
+
+  @UiThreadTest
+  public void testPerform_parallelMatchingKeepsAdapterOrder() {
+    IdlingPolicies.setParallelDataMatching(true);
+    try {
+      AdapterDataLoaderAction action = new AdapterDataLoaderAction(
+          DataMatchers.threadSafe(multipleOf(7000)), Optional.of(5), protocol);
+      action.perform(null, newListView());
+      assertEquals(35000, action.getAdaptedData().data);
+
+      action = new AdapterDataLoaderAction(
+          DataMatchers.threadSafe(multipleOf(100)), Optional.<Integer>absent(), protocol);
+      try {
+        action.perform(null, newListView());
+        fail("ambiguous data loaded");
+      } catch (PerformException expected) {
+        assertTrue(expected.getCause().getMessage().contains("[Data: 0 "));
+      }
+    } finally {
+      IdlingPolicies.setParallelDataMatching(false);
+    }
+  }
+
+  @UiThreadTest
+  public void testPerform_parallelMatchingScansReusedRowInOrder() {
+    protocol.reusesRow = true;
+    IdlingPolicies.setParallelDataMatching(true);
+    try {
+      AdapterDataLoaderAction action = new AdapterDataLoaderAction(
+          DataMatchers.threadSafe(new BaseMatcher<Object>() {
+            @Override
+            public boolean matches(Object item) {
+              return ((int[]) item)[0] == 35000;
+            }
+
+            @Override
+            public void describeTo(Description description) {
+              description.appendText("row 35000");
+            }
+          }), Optional.of(0), protocol);
+      action.perform(null, newListView());
+      assertEquals(35000, action.getAdaptedData().opaqueToken);
+    } finally {
+      IdlingPolicies.setParallelDataMatching(false);
+    }
+  }
+
+  @UiThreadTest
+  public void testPerform_retriesRenderingWithBackoff() {
+    protocol.rendersNeeded = 3;
+    RecordingUiController uiController = new RecordingUiController();
+    AdapterDataLoaderAction action = new AdapterDataLoaderAction(
+        multipleOf(100), Optional.of(0), protocol);
+    action.perform(uiController, newListView());
+    assertEquals(3, protocol.renders);
+    assertEquals(Arrays.asList(50L, 100L), uiController.wokenUpLoops);
+    assertTrue(uiController.fixedLoops.isEmpty());
+  }
+
+  private View newListView() {
+    return new ListView(getInstrumentation().getTargetContext());
+  }
+
+  private static Matcher<Object> multipleOf(final int divisor) {
+    return new BaseMatcher<Object>() {
+      @Override
+      public boolean matches(Object item) {
+        return ((Integer) item) % divisor == 0;
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText("multiple of " + divisor);
+      }
+    };
+  }
+
+  /**
+   * Records how long it is asked to loop, without looping.
+   */
+  private static class RecordingUiController implements WakeableUiController {
+    final List<Long> wokenUpLoops = Lists.newArrayList();
+    final List<Long> fixedLoops = Lists.newArrayList();
+
+    @Override
+    public boolean injectMotionEvent(MotionEvent event) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean injectKeyEvent(KeyEvent event) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean injectString(String str) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void loopMainThreadUntilIdle() {
+    }
+
+    @Override
+    public void loopMainThreadForAtLeast(long millisDelay) {
+      fixedLoops.add(millisDelay);
+    }
+
+    @Override
+    public void wakeUp() {
+    }
+
+    @Override
+    public void loopMainThreadUntilWokenUp(long maxMillisDelay) {
+      wokenUpLoops.add(maxMillisDelay);
+    }
+  }
+
+  /**
+   * Serves the integers up to {@link #DATA_COUNT} as data, counting how far they are read.
+   */
+  private static class FakeProtocol implements AdapterViewProtocol {
+    int scanned;
+    int iterations;
+    int renders;
+    // how many render requests it takes for the data to show.
+    int rendersNeeded;
+    // whether every position is served in the same object, moved to it as a cursor would be.
+    boolean reusesRow;
+    private final int[] row = new int[1];
+
+    @Override
+    public Iterable<AdaptedData> getDataInAdapterView(AdapterView<? extends Adapter> adapterView) {
+      return new Iterable<AdaptedData>() {
+        @Override
+        public Iterator<AdaptedData> iterator() {
+          iterations++;
+          return new AbstractIterator<AdaptedData>() {
+            private int position;
+
+            @Override
+            protected AdaptedData computeNext() {
+              if (position == DATA_COUNT) {
+                return endOfData();
+              }
+              scanned++;
+              Object data = position;
+              if (reusesRow) {
+                row[0] = position;
+                data = row;
+              }
+              return new AdaptedData.Builder()
+                  .withData(data)
+                  .withOpaqueToken(position++)
+                  .build();
+            }
+          };
+        }
+      };
+    }
+
+    @Override
+    public Optional<AdaptedData> getDataRenderedByView(AdapterView<? extends Adapter> adapterView,
+        View descendantView) {
+      return Optional.absent();
+    }
+
+    @Override
+    public void makeDataRenderedWithinAdapterView(AdapterView<? extends Adapter> adapterView,
+        AdaptedData data) {
+      renders++;
+    }
+
+    @Override
+    public boolean isDataRenderedWithinAdapterView(AdapterView<? extends Adapter> adapterView,
+        AdaptedData adaptedData) {
+      return renders >= rendersNeeded;
+    }
+  }
+}
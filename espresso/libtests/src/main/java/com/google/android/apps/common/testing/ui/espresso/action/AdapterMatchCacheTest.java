@@ -0,0 +1,117 @@
+package com.google.android.apps.common.testing.ui.espresso.action;
+
+import static org.hamcrest.Matchers.anything;
+import static org.hamcrest.Matchers.equalTo;
+
+import com.google.common.collect.Lists;
+
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+
+import java.util.List;
+
+/**
+ * Unit tests for {@link AdapterMatchCache}.
+ */
+public class AdapterMatchCacheTest extends InstrumentationTestCase {
+  private final AdapterViewProtocol protocol = AdapterViewProtocols.standardProtocol();
+  private final AdapterMatchCache cache = new AdapterMatchCache();
+  private ListView listView;
+  private ArrayAdapter<String> adapter;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    List<String> items = Lists.newArrayList();
+    for (int i = 0; i < 1000; i++) {
+      items.add("item: " + i);
+    }
+    listView = new ListView(getInstrumentation().getTargetContext());
+    adapter = new ArrayAdapter<String>(getInstrumentation().getTargetContext(),
+        android.R.layout.simple_list_item_1, items);
+    listView.setAdapter(adapter);
+  }
+
+  @UiThreadTest
+  public void testGet_hitsAfterPut() {
+    Matcher<Object> item5 = item(5);
+    assertNull(cache.get(listView, protocol, item5, 2));
+    AdapterDataScan scan = scan(item5, 2);
+    cache.put(listView, protocol, item5, scan);
+
+    assertSame(scan, cache.get(listView, protocol, item5, 2));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @UiThreadTest
+  public void testGet_otherMatcherMisses() {
+    cache.put(listView, protocol, item(5), scan(item(5), 2));
+
+    assertNull(cache.get(listView, protocol, item(6), 2));
+    assertEquals(0, cache.getHitCount());
+  }
+
+  @UiThreadTest
+  public void testGet_sameDescriptionOtherInstanceMisses() {
+    cache.put(listView, protocol, describedAsItem(5), scan(describedAsItem(5), 2));
+
+    assertNull(cache.get(listView, protocol, describedAsItem(6), 2));
+    assertNull(cache.get(listView, protocol, describedAsItem(5), 2));
+    assertEquals(0, cache.getHitCount());
+  }
+
+  @UiThreadTest
+  public void testGet_moreMatchesNeededMisses() {
+    Matcher<Object> anyItem = anything();
+    AdapterDataScan scan = scan(anyItem, 2);
+    assertFalse(scan.isComplete());
+    cache.put(listView, protocol, anyItem, scan);
+
+    assertSame(scan, cache.get(listView, protocol, anyItem, 1));
+    assertNull(cache.get(listView, protocol, anyItem, 3));
+  }
+
+  @UiThreadTest
+  public void testDataSetChanged_dropsScans() {
+    Matcher<Object> item5 = item(5);
+    cache.put(listView, protocol, item5, scan(item5, 2));
+    adapter.add("item: 5");
+
+    assertNull(cache.get(listView, protocol, item5, 2));
+    assertEquals(1, cache.getInvalidationCount());
+    AdapterDataScan rescan = scan(item5, 2);
+    assertEquals(2, rescan.getMatches().size());
+  }
+
+  private AdapterDataScan scan(Matcher<Object> matcher, int maxMatches) {
+    return AdapterDataScan.scan(protocol.getDataInAdapterView(listView), matcher, maxMatches);
+  }
+
+  private static Matcher<Object> item(int i) {
+    return equalTo((Object) ("item: " + i));
+  }
+
+  /**
+   * Like the anonymous matchers tests often build: the description doesn't say which item.
+   */
+  private static Matcher<Object> describedAsItem(final int i) {
+    return new BaseMatcher<Object>() {
+      @Override
+      public boolean matches(Object item) {
+        return ("item: " + i).equals(item);
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText("an item");
+      }
+    };
+  }
+}
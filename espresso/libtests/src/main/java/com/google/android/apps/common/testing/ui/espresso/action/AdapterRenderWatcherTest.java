@@ -0,0 +1,93 @@
+package com.google.android.apps.common.testing.ui.espresso.action;
+
+import static org.mockito.Mockito.mock;
+
+import com.google.android.apps.common.testing.ui.espresso.UiController;
+import com.google.android.apps.common.testing.ui.espresso.action.AdapterViewProtocol.AdaptedData;
+
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.widget.AbsListView;
+import android.widget.ListView;
+
+/**
+ * Unit tests for {@link AdapterRenderWatcher}.
+ */
+public class AdapterRenderWatcherTest extends InstrumentationTestCase {
+  private ListView listView;
+  private CountingScrollListener appListener;
+  private AdapterRenderWatcher watcher;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    listView = new ListView(getInstrumentation().getTargetContext());
+    appListener = new CountingScrollListener();
+    listView.setOnScrollListener(appListener);
+    appListener.scrolls = 0;
+    watcher = newWatcher();
+  }
+
+  @UiThreadTest
+  public void testWatchAndRelease_noExtraScrollCalls() {
+    watcher.watch();
+    watcher.release();
+    assertEquals(0, appListener.scrolls);
+
+    // the application's listener is back in place.
+    AdapterRenderWatcher next = newWatcher();
+    next.watch();
+    next.onScroll(listView, 0, 1, 2);
+    next.release();
+    assertEquals(1, appListener.scrolls);
+  }
+
+  @UiThreadTest
+  public void testWatch_chainsScrollCalls() {
+    watcher.watch();
+    watcher.onScroll(listView, 0, 1, 2);
+    watcher.onScrollStateChanged(listView, AbsListView.OnScrollListener.SCROLL_STATE_FLING);
+    assertEquals(1, appListener.scrolls);
+    assertEquals(1, appListener.stateChanges);
+    assertTrue(watcher.isScrolling());
+    watcher.release();
+  }
+
+  @UiThreadTest
+  public void testRelease_keepsListenerSetWhileWatching() {
+    watcher.watch();
+    CountingScrollListener replacement = new CountingScrollListener();
+    listView.setOnScrollListener(replacement);
+    watcher.release();
+
+    // a new watcher chains the replacement, not the listener the first one found.
+    AdapterRenderWatcher next = newWatcher();
+    next.watch();
+    next.onScroll(listView, 0, 1, 2);
+    next.release();
+    assertEquals(2, replacement.scrolls);
+    assertEquals(0, appListener.scrolls);
+  }
+
+  private AdapterRenderWatcher newWatcher() {
+    return new AdapterRenderWatcher(listView, AdapterViewProtocols.standardProtocol(),
+        new AdaptedData.Builder().withData("data").withOpaqueToken(0).build(),
+        mock(UiController.class));
+  }
+
+  private static class CountingScrollListener implements AbsListView.OnScrollListener {
+    int scrolls;
+    int stateChanges;
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+      stateChanges++;
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+        int totalItemCount) {
+      scrolls++;
+    }
+  }
+}
@@ -9,6 +9,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Unit test for {@link AsyncTaskPoolMonitor}
@@ -160,4 +161,76 @@ public class AsyncTaskPoolMonitorTest extends TestCase {
     assertTrue(notificationLatch.await(1, TimeUnit.SECONDS));
     assertTrue(monitor.isIdleNow());
   }
+
+  public void testIdleNotification_runsOnCompletingThreadWithoutExtraTasks() throws Exception {
+    final CountDownLatch runLatch = new CountDownLatch(1);
+    final CountDownLatch exitLatch = new CountDownLatch(1);
+    final AtomicReference<Thread> workerThread = new AtomicReference<Thread>();
+    testThreadPool.submit(new Runnable() {
+      @Override
+      public void run() {
+        workerThread.set(Thread.currentThread());
+        runLatch.countDown();
+        try {
+          exitLatch.await();
+        } catch (InterruptedException ie) {
+          throw new RuntimeException(ie);
+        }
+      }
+    });
+    assertTrue(runLatch.await(1, TimeUnit.SECONDS));
+
+    final CountDownLatch notificationLatch = new CountDownLatch(1);
+    final AtomicReference<Thread> notifiedOn = new AtomicReference<Thread>();
+    monitor.notifyWhenIdle(new Runnable() {
+      @Override
+      public void run() {
+        notifiedOn.set(Thread.currentThread());
+        notificationLatch.countDown();
+      }
+    });
+    // waiting for idle must not put anything on the pool.
+    assertEquals(1, testThreadPool.getTaskCount());
+    assertEquals(0, testThreadPool.getQueue().size());
+
+    exitLatch.countDown();
+    assertTrue(notificationLatch.await(1, TimeUnit.SECONDS));
+    assertSame(workerThread.get(), notifiedOn.get());
+    assertTrue(monitor.isIdleNow());
+  }
+
+  public void testIsIdle_countsWorkQueuedBeforeMonitoring() throws Exception {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(
+        1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    try {
+      final CountDownLatch exitLatch = new CountDownLatch(1);
+      Runnable blocker = new Runnable() {
+        @Override
+        public void run() {
+          try {
+            exitLatch.await();
+          } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+          }
+        }
+      };
+      pool.execute(blocker);
+      pool.execute(blocker);
+
+      AsyncTaskPoolMonitor lateMonitor = new AsyncTaskPoolMonitor(pool);
+      assertFalse(lateMonitor.isIdleNow());
+      final CountDownLatch notificationLatch = new CountDownLatch(1);
+      lateMonitor.notifyWhenIdle(new Runnable() {
+        @Override
+        public void run() {
+          notificationLatch.countDown();
+        }
+      });
+      exitLatch.countDown();
+      assertTrue(notificationLatch.await(1, TimeUnit.SECONDS));
+      assertTrue(lateMonitor.isIdleNow());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
 }
@@ -0,0 +1,286 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import com.google.android.apps.common.testing.ui.espresso.IdlingResource.ResourceCallback;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Unit tests for {@link ExecutorIdlingResource}.
+ */
+public class ExecutorIdlingResourceTest extends TestCase {
+
+  private ExecutorService executor;
+
+  @Override
+  public void tearDown() throws Exception {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+    super.tearDown();
+  }
+
+  public void testIdleTransition() throws Exception {
+    executor = Executors.newFixedThreadPool(2);
+    ExecutorIdlingResource resource =
+        new ExecutorIdlingResource(executor, 0, TimeUnit.MILLISECONDS);
+    assertTrue(resource.isIdleNow());
+
+    final CountDownLatch exitLatch = new CountDownLatch(1);
+    executor.submit(new Blocker(exitLatch));
+    executor.submit(new Blocker(exitLatch));
+    executor.submit(new Blocker(exitLatch));
+    assertFalse(resource.isIdleNow());
+
+    CountingCallback callback = new CountingCallback();
+    resource.registerIdleTransitionCallback(callback);
+    assertFalse(callback.idled.await(50, TimeUnit.MILLISECONDS));
+    exitLatch.countDown();
+    assertTrue(callback.idled.await(1, TimeUnit.SECONDS));
+    assertTrue(resource.isIdleNow());
+  }
+
+  public void testLooksThroughExecutorsWrappers() throws Exception {
+    executor = Executors.unconfigurableExecutorService(Executors.newSingleThreadExecutor());
+    ExecutorIdlingResource resource =
+        new ExecutorIdlingResource(executor, 0, TimeUnit.MILLISECONDS);
+    CountDownLatch exitLatch = new CountDownLatch(1);
+    executor.submit(new Blocker(exitLatch));
+    assertFalse(resource.isIdleNow());
+
+    CountingCallback callback = new CountingCallback();
+    resource.registerIdleTransitionCallback(callback);
+    exitLatch.countDown();
+    assertTrue(callback.idled.await(1, TimeUnit.SECONDS));
+    assertTrue(resource.isIdleNow());
+  }
+
+  public void testDelayedTasksBeyondHorizonAreIdle() throws Exception {
+    ScheduledExecutorService scheduled = Executors.newScheduledThreadPool(1);
+    executor = scheduled;
+    ExecutorIdlingResource resource = new ExecutorIdlingResource(scheduled, 1, TimeUnit.SECONDS);
+
+    ScheduledFuture<?> farAway = scheduled.schedule(new NoOp(), 3600, TimeUnit.SECONDS);
+    assertTrue(resource.isIdleNow());
+
+    CountingCallback callback = new CountingCallback();
+    resource.registerIdleTransitionCallback(callback);
+    scheduled.schedule(new NoOp(), 100, TimeUnit.MILLISECONDS);
+    assertFalse(resource.isIdleNow());
+    assertTrue(callback.idled.await(1, TimeUnit.SECONDS));
+    assertTrue(resource.isIdleNow());
+    assertFalse(farAway.isDone());
+  }
+
+  public void testPeriodicTasksOnlyCountWhileRunning() throws Exception {
+    ScheduledExecutorService scheduled = Executors.newScheduledThreadPool(1);
+    executor = scheduled;
+    ExecutorIdlingResource resource = new ExecutorIdlingResource(scheduled, 1, TimeUnit.SECONDS);
+    CountDownLatch exitLatch = new CountDownLatch(1);
+    scheduled.scheduleAtFixedRate(new Blocker(exitLatch), 0, 10, TimeUnit.MILLISECONDS);
+    Thread.sleep(50);
+    assertFalse(resource.isIdleNow());
+
+    CountingCallback callback = new CountingCallback();
+    resource.registerIdleTransitionCallback(callback);
+    exitLatch.countDown();
+    // due well within the horizon, but no one waits for the next run of a periodic task.
+    assertTrue(callback.idled.await(1, TimeUnit.SECONDS));
+  }
+
+  public void testAfterExecuteSeesSubmittedTasks() throws Exception {
+    final List<Runnable> executed = Collections.synchronizedList(new ArrayList<Runnable>());
+    final CountDownLatch done = new CountDownLatch(2);
+    executor = new ThreadPoolExecutor(
+        1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+      @Override
+      protected void afterExecute(Runnable r, Throwable t) {
+        executed.add(r);
+        done.countDown();
+      }
+    };
+    new ExecutorIdlingResource(executor, 0, TimeUnit.MILLISECONDS);
+    CountDownLatch exitLatch = new CountDownLatch(1);
+    // the first task goes to a new worker, the second one through the queue.
+    Future<?> first = executor.submit(new Blocker(exitLatch));
+    Future<?> second = executor.submit(new NoOp());
+    exitLatch.countDown();
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+    assertEquals(Arrays.<Runnable>asList((Runnable) first, (Runnable) second), executed);
+  }
+
+  public void testWorkerWithoutThread() throws Exception {
+    final AtomicBoolean refused = new AtomicBoolean();
+    executor = Executors.newFixedThreadPool(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        // the pool queues the task and starts a worker without a first task instead.
+        return refused.getAndSet(true) ? new Thread(r) : null;
+      }
+    });
+    ExecutorIdlingResource resource =
+        new ExecutorIdlingResource(executor, 0, TimeUnit.MILLISECONDS);
+    CountDownLatch exitLatch = new CountDownLatch(1);
+    executor.execute(new Blocker(exitLatch));
+    assertFalse(resource.isIdleNow());
+
+    CountingCallback callback = new CountingCallback();
+    resource.registerIdleTransitionCallback(callback);
+    exitLatch.countDown();
+    assertTrue(callback.idled.await(1, TimeUnit.SECONDS));
+    assertTrue(resource.isIdleNow());
+  }
+
+  public void testWorkerNotStartedRejectsTask() {
+    final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+        1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    executor = pool;
+    ExecutorIdlingResource resource =
+        new ExecutorIdlingResource(executor, 0, TimeUnit.MILLISECONDS);
+    final ThreadFactory threadFactory = pool.getThreadFactory();
+    pool.setThreadFactory(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        // the pool gives up on the worker it is creating.
+        pool.shutdown();
+        return threadFactory.newThread(r);
+      }
+    });
+    try {
+      executor.execute(new NoOp());
+      fail("expected RejectedExecutionException");
+    } catch (RejectedExecutionException expected) {
+    }
+    assertTrue(resource.isIdleNow());
+  }
+
+  public void testPriorityQueueKeepsOrder() throws Exception {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(
+        1, 1, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+    executor = pool;
+    ExecutorIdlingResource resource =
+        new ExecutorIdlingResource(executor, 0, TimeUnit.MILLISECONDS);
+    CountDownLatch exitLatch = new CountDownLatch(1);
+    List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+    pool.execute(new Prioritized(0, ran, exitLatch));
+    pool.execute(new Prioritized(3, ran, null));
+    pool.execute(new Prioritized(1, ran, null));
+    pool.execute(new Prioritized(2, ran, null));
+    assertFalse(resource.isIdleNow());
+
+    CountingCallback callback = new CountingCallback();
+    resource.registerIdleTransitionCallback(callback);
+    exitLatch.countDown();
+    assertTrue(callback.idled.await(1, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList(0, 1, 2, 3), ran);
+  }
+
+  public void testRejectsUnknownExecutors() {
+    try {
+      new ExecutorIdlingResource(new ForwardingExecutor(), 0, TimeUnit.MILLISECONDS);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static class CountingCallback implements ResourceCallback {
+    private final CountDownLatch idled = new CountDownLatch(1);
+
+    @Override
+    public void onTransitionToIdle() {
+      idled.countDown();
+    }
+  }
+
+  private static class Blocker implements Runnable {
+    private final CountDownLatch exitLatch;
+
+    Blocker(CountDownLatch exitLatch) {
+      this.exitLatch = exitLatch;
+    }
+
+    @Override
+    public void run() {
+      try {
+        exitLatch.await();
+      } catch (InterruptedException ie) {
+        throw new RuntimeException(ie);
+      }
+    }
+  }
+
+  private static class Prioritized extends Blocker implements Comparable<Prioritized> {
+    private final int priority;
+    private final List<Integer> ran;
+
+    Prioritized(int priority, List<Integer> ran, CountDownLatch exitLatch) {
+      super(null == exitLatch ? new CountDownLatch(0) : exitLatch);
+      this.priority = priority;
+      this.ran = ran;
+    }
+
+    @Override
+    public void run() {
+      super.run();
+      ran.add(priority);
+    }
+
+    @Override
+    public int compareTo(Prioritized other) {
+      return priority < other.priority ? -1 : (priority == other.priority ? 0 : 1);
+    }
+  }
+
+  private static class NoOp implements Runnable {
+    @Override
+    public void run() {}
+  }
+
+  private static class ForwardingExecutor extends AbstractExecutorService {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+
+    @Override
+    public void shutdown() {}
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return null;
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return false;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return false;
+    }
+  }
+}
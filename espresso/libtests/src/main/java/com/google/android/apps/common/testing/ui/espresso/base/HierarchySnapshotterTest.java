@@ -0,0 +1,178 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.compileForSnapshots;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.isDescendantOfA;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.isDisplayingAtLeast;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.withEffectiveVisibility;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.withId;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.withText;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.anyOf;
+
+import com.google.android.apps.common.testing.ui.espresso.matcher.SnapshotViewMatcher;
+import com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.Visibility;
+import com.google.android.apps.common.testing.ui.espresso.util.HierarchySnapshot;
+import com.google.android.apps.common.testing.ui.espresso.util.ViewSnapshot;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.text.SpannableString;
+import android.view.View;
+import android.widget.Button;
+import android.widget.LinearLayout;
+import android.widget.RelativeLayout;
+import android.widget.TextView;
+
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+
+import java.util.List;
+import java.util.Set;
+
+/** Unit tests for {@link HierarchySnapshotter}. */
+public class HierarchySnapshotterTest extends InstrumentationTestCase {
+  private HierarchySnapshotter snapshotter;
+  private RelativeLayout root;
+  private RelativeLayout nestingLayout;
+  private TextView text1;
+  private TextView text2;
+  private Button button;
+  private List<View> roots;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    snapshotter = new HierarchySnapshotter();
+    root = new RelativeLayout(getInstrumentation().getTargetContext());
+    text1 = new TextView(getInstrumentation().getTargetContext());
+    text1.setId(1);
+    text1.setText("one");
+    text2 = new TextView(getInstrumentation().getTargetContext());
+    text2.setId(2);
+    text2.setVisibility(View.INVISIBLE);
+    button = new Button(getInstrumentation().getTargetContext());
+    button.setId(1);
+    button.setText("one");
+    nestingLayout = new RelativeLayout(getInstrumentation().getTargetContext());
+    nestingLayout.setId(3);
+    nestingLayout.addView(button);
+    root.addView(nestingLayout);
+    root.addView(text1);
+    root.addView(text2);
+    roots = ImmutableList.<View>of(root);
+  }
+
+  @UiThreadTest
+  public void testCapture_breadthFirst() {
+    HierarchySnapshot snapshot = snapshotter.capture(roots);
+    List<ViewSnapshot> views = snapshot.getViews();
+    assertEquals(5, views.size());
+    assertEquals(RelativeLayout.class, views.get(0).getViewClass());
+    assertEquals(3, views.get(1).getId());
+    assertEquals(Button.class, views.get(4).getViewClass());
+    assertSame(views.get(1), views.get(4).getParent());
+    assertEquals(2, views.get(4).getDepth());
+    assertEquals("one", views.get(4).getText());
+    assertEquals(1, snapshotter.getCaptureCount());
+    assertEquals(5, snapshotter.getCapturedViewCount());
+  }
+
+  @UiThreadTest
+  public void testCapture_isImmutable() {
+    HierarchySnapshot snapshot = snapshotter.capture(roots);
+    text1.setText("changed");
+    root.removeView(text2);
+    assertEquals("one", snapshot.getViews().get(2).getText());
+    assertEquals(3, snapshot.getRoots().get(0).getChildren().size());
+  }
+
+  @UiThreadTest
+  public void testFindAll_matchesLikeLiveViews() {
+    HierarchySnapshot snapshot = snapshotter.capture(roots);
+    assertEquals(ImmutableList.of(1, 1), ids(snapshotter.findAll(snapshot,
+        compileForSnapshots(allOf(withText("one"), withId(1))))));
+    assertEquals(ImmutableList.of(1), ids(snapshotter.findAll(snapshot,
+        compileForSnapshots(allOf(withId(1), isDescendantOfA(withId(3)))))));
+    assertEquals(ImmutableList.of(2), ids(snapshotter.findAll(snapshot,
+        compileForSnapshots(withEffectiveVisibility(Visibility.INVISIBLE)))));
+    // the button shares its id and text with text1, and comes last in breadth first order.
+    assertEquals(ImmutableList.of(1, 2, 1), ids(snapshotter.findAll(snapshot,
+        compileForSnapshots(anyOf(withId(2), withText("one"))))));
+  }
+
+  @UiThreadTest
+  public void testFindAll_largeHierarchyKeepsOrder() {
+    LinearLayout list = new LinearLayout(getInstrumentation().getTargetContext());
+    int count = HierarchySnapshotter.PARALLEL_THRESHOLD * 2;
+    for (int i = 0; i < count; i++) {
+      TextView child = new TextView(getInstrumentation().getTargetContext());
+      child.setId(i % 3);
+      list.addView(child);
+    }
+    HierarchySnapshot snapshot = snapshotter.capture(ImmutableList.<View>of(list));
+    List<ViewSnapshot> matches = snapshotter.findAll(snapshot, compileForSnapshots(withId(0)));
+    assertEquals((count + 2) / 3, matches.size());
+    for (int i = 1; i < matches.size(); i++) {
+      assertTrue(snapshot.getViews().indexOf(matches.get(i - 1))
+          < snapshot.getViews().indexOf(matches.get(i)));
+    }
+  }
+
+  @UiThreadTest
+  public void testFindAll_largeHierarchyWithCustomMatcherOnCallingThread() {
+    LinearLayout list = new LinearLayout(getInstrumentation().getTargetContext());
+    for (int i = 0; i < HierarchySnapshotter.PARALLEL_THRESHOLD * 2; i++) {
+      TextView child = new TextView(getInstrumentation().getTargetContext());
+      child.setText("item");
+      list.addView(child);
+    }
+    final Set<Thread> threads = Sets.newHashSet();
+    Matcher<CharSequence> recording = new BaseMatcher<CharSequence>() {
+      @Override
+      public boolean matches(Object item) {
+        threads.add(Thread.currentThread());
+        return "item".equals(item);
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText("recording");
+      }
+    };
+    HierarchySnapshot snapshot = snapshotter.capture(ImmutableList.<View>of(list));
+    List<ViewSnapshot> matches =
+        snapshotter.findAll(snapshot, compileForSnapshots(withText(recording)));
+    assertEquals(HierarchySnapshotter.PARALLEL_THRESHOLD * 2, matches.size());
+    assertEquals(ImmutableSet.of(Thread.currentThread()), threads);
+  }
+
+  @UiThreadTest
+  public void testFindAll_spannedTextFallsBack() {
+    text1.setText(new SpannableString("one"), TextView.BufferType.SPANNABLE);
+    HierarchySnapshot snapshot = snapshotter.capture(roots);
+    try {
+      snapshotter.findAll(snapshot, compileForSnapshots(withText("one")));
+      fail("spanned text is not captured");
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  public void testCompileForSnapshots_incompatible() {
+    assertNull(compileForSnapshots(isDisplayingAtLeast(90)));
+    assertNull(compileForSnapshots(allOf(withId(1), isDisplayingAtLeast(90))));
+    SnapshotViewMatcher compatible = compileForSnapshots(allOf(withId(1), withText("one")));
+    assertNotNull(compatible);
+  }
+
+  private static List<Integer> ids(List<ViewSnapshot> views) {
+    ImmutableList.Builder<Integer> ids = ImmutableList.builder();
+    for (ViewSnapshot view : views) {
+      ids.add(view.getId());
+    }
+    return ids.build();
+  }
+}
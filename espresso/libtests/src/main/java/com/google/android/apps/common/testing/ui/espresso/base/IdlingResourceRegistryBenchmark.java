@@ -0,0 +1,67 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import android.os.Looper;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.Log;
+
+/**
+ * Measures how {@link IdlingResourceRegistry} scales with the number of registered resources.
+ * <p>
+ * Suppressed, so neither the default run nor {@code UnitTests} polls up to 10k resources a
+ * thousand times on the main thread: remove the annotation locally to measure.
+ */
+@LargeTest
+@Suppress
+public class IdlingResourceRegistryBenchmark extends InstrumentationTestCase {
+  private static final String TAG = "IdlingResourceRegistryBenchmark";
+  private static final int[] SIZES = {10, 100, 1000, 10000};
+  private static final int ITERATIONS = 1000;
+
+  public void testScaling() {
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        for (int size : SIZES) {
+          measure(size);
+        }
+      }
+    });
+  }
+
+  private void measure(int size) {
+    IdlingResourceRegistry registry = new IdlingResourceRegistry(Looper.getMainLooper());
+    OnDemandIdlingResource[] resources = new OnDemandIdlingResource[size];
+    for (int i = 0; i < size; i++) {
+      resources[i] = new OnDemandIdlingResource("r" + i);
+      resources[i].forceIdleNow();
+    }
+
+    long start = System.nanoTime();
+    for (OnDemandIdlingResource resource : resources) {
+      registry.register(resource);
+    }
+    long registerNanos = System.nanoTime() - start;
+
+    // all idle: every resource is polled once for a possible idle -> busy transition.
+    assertTrue(registry.allResourcesAreIdle());
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      assertTrue(registry.allResourcesAreIdle());
+    }
+    long idleCheckNanos = (System.nanoTime() - start) / ITERATIONS;
+
+    // one busy resource: answered from the running busy count once it has been noticed.
+    resources[size - 1].reset();
+    assertFalse(registry.allResourcesAreIdle());
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      assertFalse(registry.allResourcesAreIdle());
+    }
+    long busyCheckNanos = (System.nanoTime() - start) / ITERATIONS;
+
+    Log.i(TAG, String.format("%d resources: register %d us total, busy check %d ns, "
+        + "idle check %d ns", size, registerNanos / 1000, busyCheckNanos, idleCheckNanos));
+  }
+}
@@ -2,6 +2,7 @@ package com.google.android.apps.common.testing.ui.espresso.base;
 
 import com.google.android.apps.common.testing.ui.espresso.IdlingResource;
 import com.google.android.apps.common.testing.ui.espresso.base.IdlingResourceRegistry.IdleNotificationCallback;
+import com.google.common.collect.ImmutableList;
 
 import android.os.Handler;
 import android.os.Looper;
@@ -10,7 +11,9 @@ import android.test.suitebuilder.annotation.LargeTest;
 import android.util.Log;
 
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -71,6 +74,49 @@ public class IdlingResourceRegistryTest extends InstrumentationTestCase {
     assertFalse(resourcesIdle.get());
   }
 
+  public void testUnregister() throws Exception {
+    OnDemandIdlingResource r1 = new OnDemandIdlingResource("r1");
+    OnDemandIdlingResource r2 = new OnDemandIdlingResource("r2");
+    r2.forceIdleNow();
+    registry.register(r1);
+    registry.register(r2);
+    assertFalse(allResourcesAreIdle());
+
+    registry.unregister(r1);
+    assertTrue(allResourcesAreIdle());
+
+    // the name is free again.
+    OnDemandIdlingResource r1again = new OnDemandIdlingResource("r1");
+    registry.register(r1again);
+    assertFalse(allResourcesAreIdle());
+    r1again.forceIdleNow();
+    assertTrue(allResourcesAreIdle());
+  }
+
+  public void testUnregister_ignoresStaleIdleTransition() throws Exception {
+    OnDemandIdlingResource r1 = new OnDemandIdlingResource("r1");
+    OnDemandIdlingResource r2 = new OnDemandIdlingResource("r2");
+    registry.register(r1);
+    registry.unregister(r1);
+    // reuses the slot freed by r1.
+    registry.register(r2);
+    r1.forceIdleNow();
+    assertFalse(allResourcesAreIdle());
+    r2.forceIdleNow();
+    assertTrue(allResourcesAreIdle());
+  }
+
+  public void testReleaseTestScope() throws Exception {
+    OnDemandIdlingResource r1 = new OnDemandIdlingResource("r1");
+    OnDemandIdlingResource r2 = new OnDemandIdlingResource("r2");
+    registry.registerForTest(r1);
+    registry.register(r2);
+    r2.forceIdleNow();
+    assertFalse(allResourcesAreIdle());
+    registry.releaseTestScope();
+    assertTrue(allResourcesAreIdle());
+  }
+
   @LargeTest
   public void testAllResourcesAreIdle_RepeatingToIdleTransitions() throws InterruptedException {
     OnDemandIdlingResource r1 = new OnDemandIdlingResource("r1");
@@ -218,4 +264,82 @@ public class IdlingResourceRegistryTest extends InstrumentationTestCase {
     assertEquals(1, busysFromWarning.get().size());
     assertEquals(1, allResourcesIdleLatch.getCount());
   }
+
+  @LargeTest
+  public void testNotifyWhenAllResourcesAreIdle_raceWithUnregister() throws InterruptedException {
+    final CountDownLatch busyWarningLatch = new CountDownLatch(1);
+    final CountDownLatch allResourcesIdleLatch = new CountDownLatch(1);
+    final AtomicReference<List<String>> busysFromWarning = new AtomicReference<List<String>>();
+
+    OnDemandIdlingResource r1 = new OnDemandIdlingResource("r1");
+    OnDemandIdlingResource racer = new UnregisteredBeforeRaceCheck("racer");
+    registry.register(r1);
+    registry.register(racer);
+
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        registry.notifyWhenAllResourcesAreIdle(new IdleNotificationCallback() {
+          @Override
+          public void resourcesStillBusyWarning(List<String> busyResourceNames) {
+            busysFromWarning.set(busyResourceNames);
+            busyWarningLatch.countDown();
+          }
+
+          @Override
+          public void resourcesHaveTimedOut(List<String> busyResourceNames) {
+          }
+
+          @Override
+          public void allResourcesIdle() {
+            allResourcesIdleLatch.countDown();
+          }
+        });
+      }
+    });
+
+    // the race check finds the racer's slot gone, and the warning goes on with r1 alone.
+    assertTrue("Expected a warning", busyWarningLatch.await(7, TimeUnit.SECONDS));
+    assertEquals(ImmutableList.of("r1"), busysFromWarning.get());
+
+    r1.forceIdleNow();
+    assertTrue(allResourcesIdleLatch.await(200, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Turns idle without telling the registry, and unregisters itself once the registry notices, so
+   * the race check runs after it is gone.
+   */
+  private class UnregisteredBeforeRaceCheck extends OnDemandIdlingResource {
+    private int idleChecks;
+
+    UnregisteredBeforeRaceCheck(String name) {
+      super(name);
+    }
+
+    @Override
+    public boolean isIdleNow() {
+      // the first check is the registration's.
+      if (++idleChecks == 2) {
+        handler.postAtFrontOfQueue(new Runnable() {
+          @Override
+          public void run() {
+            registry.unregister(UnregisteredBeforeRaceCheck.this);
+          }
+        });
+      }
+      return idleChecks > 1;
+    }
+  }
+
+  private boolean allResourcesAreIdle() throws Exception {
+    FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return registry.allResourcesAreIdle();
+      }
+    });
+    handler.post(task);
+    return task.get();
+  }
 }
@@ -0,0 +1,78 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import com.google.common.base.Optional;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.Log;
+
+/**
+ * Measures how many main thread messages {@link UiControllerImpl} pumps per second while looping
+ * until idle. Set {@code adb shell setprop log.tag.ESP_TRACE VERBOSE} to measure with message
+ * tracing on.
+ * <p>
+ * Suppressed, so neither the default run nor {@code UnitTests} pumps its 111k messages: remove the
+ * annotation locally to measure.
+ */
+@LargeTest
+@Suppress
+public class MessagePumpBenchmark extends InstrumentationTestCase {
+  private static final String TAG = "MessagePumpBenchmark";
+  private static final int[] SIZES = {1000, 10000, 100000};
+
+  public void testThroughput() {
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        UiControllerImpl uiController = createUiController();
+        // warm up.
+        measure(uiController, SIZES[0]);
+        for (int size : SIZES) {
+          long nanos = measure(uiController, size);
+          Log.i(TAG, String.format("%d messages: %d ns per message, %d messages per second",
+              size, nanos / size, size * 1000000000L / Math.max(1, nanos)));
+        }
+      }
+    });
+  }
+
+  private static long measure(UiControllerImpl uiController, int size) {
+    Handler handler = new Handler();
+    final int[] count = new int[1];
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        count[0]++;
+      }
+    };
+    for (int i = 0; i < size; i++) {
+      handler.post(task);
+    }
+    long start = System.nanoTime();
+    uiController.loopMainThreadUntilIdle();
+    long nanos = System.nanoTime() - start;
+    assertEquals(size, count[0]);
+    return nanos;
+  }
+
+  private static UiControllerImpl createUiController() {
+    EventInjector injector;
+    if (Build.VERSION.SDK_INT > 15) {
+      injector = new EventInjector(new InputManagerEventInjectionStrategy());
+    } else {
+      injector = new EventInjector(new WindowManagerEventInjectionStrategy());
+    }
+    return new UiControllerImpl(
+        injector,
+        new AsyncTaskPoolMonitor(new ThreadPoolExecutorExtractor(
+            Looper.getMainLooper()).getAsyncTaskThreadPool()),
+        Optional.<AsyncTaskPoolMonitor>absent(),
+        new IdlingResourceRegistry(Looper.getMainLooper()),
+        Looper.getMainLooper(),
+        new MainLooperTimeWarp());
+  }
+}
@@ -0,0 +1,144 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.isAssignableFrom;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.isDescendantOfA;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.withId;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.withText;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.sameInstance;
+
+import com.google.android.apps.common.testing.ui.espresso.AmbiguousViewMatcherException;
+import com.google.android.apps.common.testing.ui.espresso.NoMatchingViewException;
+import com.google.android.apps.common.testing.ui.espresso.ViewFinder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.view.View;
+import android.widget.RelativeLayout;
+import android.widget.TextView;
+
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+
+import java.util.List;
+
+import javax.inject.Provider;
+
+/** Unit tests for {@link MultiViewFinder}. */
+public class MultiViewFinderTest extends InstrumentationTestCase {
+  private MultiViewFinder finder;
+  private View child1;
+  private View nestedChild;
+  private RelativeLayout nestingLayout;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    final RelativeLayout testView = new RelativeLayout(getInstrumentation().getTargetContext());
+    child1 = new TextView(getInstrumentation().getTargetContext());
+    child1.setId(1);
+    View child2 = new TextView(getInstrumentation().getTargetContext());
+    child2.setId(2);
+    nestedChild = new TextView(getInstrumentation().getTargetContext());
+    nestedChild.setId(5);
+    nestingLayout = new RelativeLayout(getInstrumentation().getTargetContext());
+    nestingLayout.addView(nestedChild);
+    testView.addView(child1);
+    testView.addView(child2);
+    testView.addView(nestingLayout);
+    finder = new MultiViewFinder(new Provider<List<View>>() {
+      @Override
+      public List<View> get() {
+        return ImmutableList.<View>of(testView);
+      }
+    }, new ViewHierarchyIndex());
+  }
+
+  @UiThreadTest
+  @SuppressWarnings("unchecked")
+  public void testFind_eachMatcherResolvedAlone() {
+    List<ViewFinder> finders = finder.find(ImmutableList.<Matcher<View>>of(
+        withId(5), withId(42), isAssignableFrom(TextView.class), withId(1)));
+    assertEquals(4, finders.size());
+    assertThat(finders.get(0).getView(), sameInstance(nestedChild));
+    try {
+      finders.get(1).getView();
+      fail("No view has that id!");
+    } catch (NoMatchingViewException expected) {}
+    try {
+      finders.get(2).getView();
+      fail("All children are text views!");
+    } catch (AmbiguousViewMatcherException expected) {}
+    assertThat(finders.get(3).getView(), sameInstance(child1));
+  }
+
+  @UiThreadTest
+  @SuppressWarnings("unchecked")
+  public void testFind_scopedMatchersWithinAncestors() {
+    nestingLayout.setId(3);
+    List<ViewFinder> finders = finder.find(ImmutableList.<Matcher<View>>of(
+        allOf(isAssignableFrom(TextView.class), isDescendantOfA(withId(3))),
+        allOf(withId(1), isDescendantOfA(withId(3)))));
+    assertThat(finders.get(0).getView(), sameInstance(nestedChild));
+    try {
+      finders.get(1).getView();
+      fail("The view with that id is not under the nesting layout!");
+    } catch (NoMatchingViewException expected) {}
+  }
+
+  @UiThreadTest
+  @SuppressWarnings("unchecked")
+  public void testFind_unindexedMatchersWithinTheirScope() {
+    nestingLayout.setId(3);
+    ((TextView) child1).setText("a");
+    ((TextView) nestedChild).setText("a");
+    List<ViewFinder> finders = finder.find(ImmutableList.<Matcher<View>>of(
+        allOf(withText("a"), isDescendantOfA(withId(3))),
+        withText("a"),
+        withText("b")));
+    assertThat(finders.get(0).getView(), sameInstance(nestedChild));
+    try {
+      finders.get(1).getView();
+      fail("Two views have that text!");
+    } catch (AmbiguousViewMatcherException expected) {}
+    try {
+      finders.get(2).getView();
+      fail("No view has that text!");
+    } catch (NoMatchingViewException expected) {}
+  }
+
+  @UiThreadTest
+  public void testFind_unindexedMatchersShareOneTraversal() {
+    List<View> visits = Lists.newArrayList();
+    finder.find(ImmutableList.<Matcher<View>>of(
+        new RecordingMatcher(visits), new RecordingMatcher(visits)));
+    // root, three children, one nested child: each seen by both matchers before the next.
+    assertEquals(10, visits.size());
+    for (int i = 0; i < visits.size(); i += 2) {
+      assertSame(visits.get(i), visits.get(i + 1));
+    }
+  }
+
+  private static class RecordingMatcher extends BaseMatcher<View> {
+    private final List<View> visits;
+
+    RecordingMatcher(List<View> visits) {
+      this.visits = visits;
+    }
+
+    @Override
+    public boolean matches(Object item) {
+      visits.add((View) item);
+      return false;
+    }
+
+    @Override
+    public void describeTo(Description description) {
+      description.appendText("recording");
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import com.google.android.apps.common.testing.testrunner.ActivityLifecycleCallback;
+import com.google.android.apps.common.testing.testrunner.CountingActivityLifecycleMonitor;
+import com.google.android.apps.common.testing.testrunner.Stage;
+import com.google.android.apps.common.testing.ui.espresso.Root;
+import com.google.android.apps.common.testing.ui.espresso.WakeableUiController;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import android.app.Activity;
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.WindowManager;
+import android.widget.FrameLayout;
+
+import org.hamcrest.Matcher;
+import org.hamcrest.Matchers;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Provider;
+
+/** Unit tests for {@link RootViewPicker}. */
+public class RootViewPickerTest extends InstrumentationTestCase {
+  private FrameLayout decorView;
+  private FakeUiController uiController;
+  private RootViewPicker picker;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    decorView = new FrameLayout(getInstrumentation().getTargetContext());
+    WindowManager.LayoutParams params = new WindowManager.LayoutParams();
+    // not focusable: only the pending layout keeps the root from being ready.
+    params.flags |= WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE;
+    final List<Root> roots = ImmutableList.of(new Root.Builder()
+        .withDecorView(decorView)
+        .withWindowLayoutParams(params)
+        .build());
+    uiController = new FakeUiController();
+    picker = new RootViewPicker(
+        new Provider<List<Root>>() {
+          @Override
+          public List<Root> get() {
+            return roots;
+          }
+        },
+        uiController,
+        new ResumedActivityMonitor(),
+        new AtomicReference<Matcher<Root>>(Matchers.<Root>anything()),
+        new Screenshotter(null, null),
+        getInstrumentation().getTargetContext());
+  }
+
+  @UiThreadTest
+  public void testGet_readyRootReturnedWithoutWaiting() {
+    assertEquals(ImmutableList.<View>of(decorView), picker.get());
+    assertTrue(uiController.wakeableLoops.isEmpty());
+  }
+
+  @UiThreadTest
+  public void testGet_layoutWakesUpBeforeCap() {
+    decorView.requestLayout();
+    uiController.layOutWhileLooping = true;
+    assertEquals(ImmutableList.<View>of(decorView), picker.get());
+
+    // a single wait, cut short by the layout callback rather than running into its cap.
+    assertEquals(1, uiController.wakeableLoops.size());
+    assertTrue(uiController.wakeableLoops.get(0) <= 250);
+    assertEquals(1, uiController.wakeUps);
+  }
+
+  /**
+   * Records the wakeable loops, laying the root out during them if asked to, as the application
+   * would while the main thread loops.
+   */
+  private class FakeUiController implements WakeableUiController {
+    final List<Long> wakeableLoops = Lists.newArrayList();
+    boolean layOutWhileLooping;
+    int wakeUps;
+
+    @Override
+    public void loopMainThreadUntilWokenUp(long maxMillisDelay) {
+      wakeableLoops.add(maxMillisDelay);
+      if (layOutWhileLooping) {
+        decorView.measure(0, 0);
+        decorView.layout(0, 0, 0, 0);
+        decorView.getViewTreeObserver().dispatchOnGlobalLayout();
+      }
+    }
+
+    @Override
+    public void wakeUp() {
+      wakeUps++;
+    }
+
+    @Override
+    public void loopMainThreadUntilIdle() {}
+
+    @Override
+    public void loopMainThreadForAtLeast(long millisDelay) {
+      fail("the picker waits for callbacks, not for a fixed time");
+    }
+
+    @Override
+    public boolean injectMotionEvent(MotionEvent event) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean injectKeyEvent(KeyEvent event) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean injectString(String str) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static class ResumedActivityMonitor implements CountingActivityLifecycleMonitor {
+    @Override
+    public void addLifecycleCallback(ActivityLifecycleCallback callback) {}
+
+    @Override
+    public void removeLifecycleCallback(ActivityLifecycleCallback callback) {}
+
+    @Override
+    public Stage getLifecycleStageOf(Activity activity) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Collection<Activity> getActivitiesInStage(Stage stage) {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public int getActivityCountInStage(Stage stage) {
+      return stage == Stage.RESUMED ? 1 : 0;
+    }
+  }
+}
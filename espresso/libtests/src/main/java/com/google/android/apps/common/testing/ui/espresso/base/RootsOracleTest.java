@@ -0,0 +1,56 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import com.google.android.apps.common.testing.ui.espresso.Root;
+
+import android.os.Looper;
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+
+import java.util.List;
+
+/** Unit tests for {@link RootsOracle}. */
+public class RootsOracleTest extends InstrumentationTestCase {
+  private RootsOracle rootsOracle;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    rootsOracle = new RootsOracle(Looper.getMainLooper());
+  }
+
+  @UiThreadTest
+  public void testGet_cachedWhileWindowsUnchanged() {
+    List<Root> first = rootsOracle.get();
+    int rebuilds = rootsOracle.getRebuildCount();
+    int hits = rootsOracle.getHitCount();
+    List<Root> second = rootsOracle.get();
+    assertSame(first, second);
+    assertEquals(rebuilds, rootsOracle.getRebuildCount());
+    assertEquals(hits + 1, rootsOracle.getHitCount());
+  }
+
+  @UiThreadTest
+  public void testGet_firstCallBuildsRoots() {
+    rootsOracle.get();
+    assertEquals(1, rootsOracle.getRebuildCount());
+    assertEquals(0, rootsOracle.getHitCount());
+  }
+
+  @UiThreadTest
+  public void testGet_immutable() {
+    List<Root> roots = rootsOracle.get();
+    try {
+      roots.clear();
+      fail("roots are shared between callers");
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  public void testGet_offMainThread() {
+    try {
+      rootsOracle.get();
+      fail("should only work on the main thread");
+    } catch (IllegalStateException expected) {
+    }
+  }
+}
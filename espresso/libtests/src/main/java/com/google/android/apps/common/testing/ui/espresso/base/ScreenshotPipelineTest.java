@@ -0,0 +1,110 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import com.google.android.apps.common.testing.ui.espresso.IdlingPolicies;
+import com.google.android.apps.common.testing.ui.espresso.Root;
+import com.google.android.apps.common.testing.ui.espresso.ScreenshotPolicy;
+import com.google.common.collect.Lists;
+
+import android.graphics.Bitmap;
+import android.test.InstrumentationTestCase;
+
+import java.util.List;
+
+/** Unit tests for {@link ScreenshotPipeline}. */
+public class ScreenshotPipelineTest extends InstrumentationTestCase {
+  private ScreenshotPolicy originalPolicy;
+  private FakeScreenshotter screenshotter;
+  private ScreenshotPipeline pipeline;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    originalPolicy = IdlingPolicies.getScreenshotPolicy();
+    screenshotter = new FakeScreenshotter();
+    pipeline = new ScreenshotPipeline(screenshotter, getInstrumentation().getTargetContext());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    IdlingPolicies.setScreenshotPolicy(originalPolicy);
+    super.tearDown();
+  }
+
+  public void testEveryNth_reusesEncodedBitmaps() {
+    IdlingPolicies.setScreenshotPolicy(ScreenshotPolicy.everyNth(2));
+    for (int i = 0; i < 6; i++) {
+      pipeline.onInteraction();
+      // wait for the encoder to hand the bitmap back.
+      pipeline.flush();
+    }
+    assertEquals(3, pipeline.getCaptureCount());
+    assertEquals(3, pipeline.getEncodeCount());
+    assertEquals(3, screenshotter.obtained.size());
+    assertSame(screenshotter.obtained.get(0), screenshotter.obtained.get(1));
+    assertSame(screenshotter.obtained.get(0), screenshotter.obtained.get(2));
+  }
+
+  public void testRing_evictsOldestFrames() {
+    IdlingPolicies.setScreenshotPolicy(ScreenshotPolicy.ring(2));
+    pipeline.onInteraction();
+    pipeline.onInteraction();
+    pipeline.onInteraction();
+    assertEquals(3, pipeline.getCaptureCount());
+    assertEquals(0, pipeline.getEncodeCount());
+    assertEquals(0, pipeline.getDroppedFrameCount());
+    // the third capture reuses the bitmap of the evicted first frame.
+    assertSame(screenshotter.obtained.get(0), screenshotter.obtained.get(2));
+    assertNotSame(screenshotter.obtained.get(0), screenshotter.obtained.get(1));
+
+    pipeline.flush();
+    assertEquals(2, pipeline.getEncodeCount());
+    pipeline.flush();
+    assertEquals(2, pipeline.getEncodeCount());
+  }
+
+  public void testOnFailure_capturesOnFlushOnly() {
+    IdlingPolicies.setScreenshotPolicy(ScreenshotPolicy.onFailure());
+    pipeline.onInteraction();
+    pipeline.onInteraction();
+    assertEquals(0, pipeline.getCaptureCount());
+
+    pipeline.flush();
+    assertEquals(1, pipeline.getCaptureCount());
+    assertEquals(1, pipeline.getEncodeCount());
+  }
+
+  public void testFailedCapture_givesBitmapBack() {
+    IdlingPolicies.setScreenshotPolicy(ScreenshotPolicy.onFailure());
+    screenshotter.failAfterObtaining = true;
+    pipeline.flush();
+    assertEquals(0, pipeline.getEncodeCount());
+
+    // the pool only holds a single bitmap on failure.
+    screenshotter.failAfterObtaining = false;
+    pipeline.flush();
+    assertEquals(0, pipeline.getDroppedFrameCount());
+    assertEquals(1, pipeline.getEncodeCount());
+    assertSame(screenshotter.obtained.get(0), screenshotter.obtained.get(1));
+  }
+
+  private static class FakeScreenshotter extends Screenshotter {
+    private final List<Bitmap> obtained = Lists.newArrayList();
+    private boolean failAfterObtaining;
+
+    FakeScreenshotter() {
+      super(null, null);
+    }
+
+    @Override
+    Bitmap snap(List<Root> roots, BitmapSource bitmapSource) {
+      Bitmap bitmap = bitmapSource.obtain(4, 4);
+      if (bitmap != null) {
+        obtained.add(bitmap);
+      }
+      if (failAfterObtaining) {
+        throw new RuntimeException("Cannot draw");
+      }
+      return bitmap;
+    }
+  }
+}
@@ -61,7 +61,8 @@ public class UiControllerImplIntegrationTest
             Looper.getMainLooper()).getAsyncTaskThreadPool()),
         Optional.<AsyncTaskPoolMonitor>absent(),
         new IdlingResourceRegistry(Looper.getMainLooper()),
-        Looper.getMainLooper());
+        Looper.getMainLooper(),
+        new MainLooperTimeWarp());
   }
 
 
@@ -1,12 +1,15 @@
 package com.google.android.apps.common.testing.ui.espresso.base;
 
+import com.google.android.apps.common.testing.ui.espresso.IdlingPolicies;
 import com.google.android.apps.common.testing.ui.espresso.IdlingResourceTimeoutException;
+import com.google.android.apps.common.testing.ui.espresso.TimeWarpPolicy;
 import com.google.common.base.Optional;
 
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.test.suitebuilder.annotation.LargeTest;
 import android.util.Log;
 
@@ -16,6 +19,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -29,6 +33,7 @@ public class UiControllerImplTest extends TestCase {
   private AtomicReference<UiControllerImpl> uiController = new AtomicReference<UiControllerImpl>();
   private ThreadPoolExecutor asyncPool;
   private IdlingResourceRegistry idlingResourceRegistry;
+  private MainLooperTimeWarp timeWarp;
 
   private static class LooperThread extends Thread {
     private final CountDownLatch init = new CountDownLatch(1);
@@ -81,6 +86,7 @@ public class UiControllerImplTest extends TestCase {
     idlingResourceRegistry = new IdlingResourceRegistry(testThread.getLooper());
     asyncPool = new ThreadPoolExecutor(3, 3, 1, TimeUnit.SECONDS,
         new LinkedBlockingQueue<Runnable>());
+    timeWarp = new MainLooperTimeWarp();
     EventInjector injector = null;
     if (Build.VERSION.SDK_INT > 15) {
       InputManagerEventInjectionStrategy strat = new InputManagerEventInjectionStrategy();
@@ -96,7 +102,8 @@ public class UiControllerImplTest extends TestCase {
         new AsyncTaskPoolMonitor(asyncPool),
         Optional.<AsyncTaskPoolMonitor>absent(),
         idlingResourceRegistry,
-        testThread.getLooper()
+        testThread.getLooper(),
+        timeWarp
         ));
 
 
@@ -104,6 +111,7 @@ public class UiControllerImplTest extends TestCase {
 
   @Override
   public void tearDown() throws Exception {
+    IdlingPolicies.setTimeWarpPolicy(TimeWarpPolicy.disabled());
     testThread.quitLooper();
     asyncPool.shutdown();
     super.tearDown();
@@ -181,6 +189,113 @@ public class UiControllerImplTest extends TestCase {
         latch.await(10, TimeUnit.SECONDS));
   }
 
+  public void testLoopForAtLeast_timeWarp() throws Exception {
+    IdlingPolicies.setTimeWarpPolicy(
+        TimeWarpPolicy.enabled().allowing(CountingRunnable.class.getName()));
+    final CountingRunnable delayed = new CountingRunnable();
+    final CountDownLatch latch = new CountDownLatch(1);
+    final long[] elapsed = new long[1];
+    assertTrue(testThread.getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        long start = SystemClock.uptimeMillis();
+        testThread.getHandler().postDelayed(delayed, 5000);
+        uiController.get().loopMainThreadForAtLeast(10000);
+        elapsed[0] = SystemClock.uptimeMillis() - start;
+        latch.countDown();
+      }
+    }));
+    assertTrue("Never returned from UiControllerImpl.loopMainThreadForAtLeast();",
+        latch.await(5, TimeUnit.SECONDS));
+    assertEquals(1, delayed.runs.get());
+    assertTrue("Waited in real time: " + elapsed[0], elapsed[0] < 5000);
+    assertTrue("Skipped: " + timeWarp.getSkippedMillis(), timeWarp.getSkippedMillis() >= 9000);
+  }
+
+  public void testLoopMainThreadUntilIdle_timeWarpWithinHorizon() throws Exception {
+    IdlingPolicies.setTimeWarpPolicy(TimeWarpPolicy.enabled()
+        .withIdleHorizon(1, TimeUnit.SECONDS)
+        .allowing(CountingRunnable.class.getName())
+        .denying(DeniedRunnable.class.getName()));
+    final CountingRunnable soon = new CountingRunnable();
+    final CountingRunnable late = new CountingRunnable();
+    final DeniedRunnable denied = new DeniedRunnable();
+    final CountDownLatch latch = new CountDownLatch(1);
+    assertTrue(testThread.getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        Handler handler = testThread.getHandler();
+        handler.postDelayed(soon, 500);
+        handler.postDelayed(late, 5000);
+        uiController.get().loopMainThreadUntilIdle();
+        handler.removeCallbacks(late);
+        // a denied message at the head keeps the ones behind it waiting.
+        handler.postDelayed(denied, 200);
+        handler.postDelayed(soon, 400);
+        uiController.get().loopMainThreadUntilIdle();
+        handler.removeCallbacks(denied);
+        handler.removeCallbacks(soon);
+        latch.countDown();
+      }
+    }));
+    assertTrue("Never returned from UiControllerImpl.loopMainThreadUntilIdle();",
+        latch.await(5, TimeUnit.SECONDS));
+    assertEquals(1, soon.runs.get());
+    assertEquals(0, late.runs.get());
+    assertEquals(0, denied.runs.get());
+    assertEquals(1, timeWarp.getWarpCount());
+  }
+
+  private static class CountingRunnable implements Runnable {
+    final AtomicInteger runs = new AtomicInteger();
+
+    @Override
+    public void run() {
+      runs.incrementAndGet();
+    }
+  }
+
+  private static class DeniedRunnable extends CountingRunnable {
+  }
+
+  public void testLoopUntilWokenUp_wakesUpEarly() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final long[] elapsed = new long[1];
+    assertTrue(testThread.getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        testThread.getHandler().postDelayed(new Runnable() {
+          @Override
+          public void run() {
+            uiController.get().wakeUp();
+          }
+        }, 50);
+        long start = SystemClock.uptimeMillis();
+        uiController.get().loopMainThreadUntilWokenUp(TimeUnit.SECONDS.toMillis(5));
+        elapsed[0] = SystemClock.uptimeMillis() - start;
+        latch.countDown();
+      }
+    }));
+    assertTrue("Never returned from UiControllerImpl.loopMainThreadUntilWokenUp();",
+        latch.await(10, TimeUnit.SECONDS));
+    assertTrue("Waited " + elapsed[0] + "ms", elapsed[0] < TimeUnit.SECONDS.toMillis(5));
+  }
+
+  public void testLoopUntilWokenUp_timesOut() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    assertTrue(testThread.getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        // no loop is waiting yet, so this is ignored.
+        uiController.get().wakeUp();
+        uiController.get().loopMainThreadUntilWokenUp(100);
+        latch.countDown();
+      }
+    }));
+    assertTrue("Never returned from UiControllerImpl.loopMainThreadUntilWokenUp();",
+        latch.await(10, TimeUnit.SECONDS));
+  }
+
   public void testLoopMainThreadUntilIdle_fullQueue() {
     final CountDownLatch latch = new CountDownLatch(3);
     assertTrue(testThread.getHandler().post(new Runnable() {
@@ -1,11 +1,16 @@
 package com.google.android.apps.common.testing.ui.espresso.base;
 
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.isDescendantOfA;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.withId;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.withText;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.sameInstance;
 
 import com.google.android.apps.common.testing.ui.espresso.AmbiguousViewMatcherException;
 import com.google.android.apps.common.testing.ui.espresso.NoMatchingViewException;
 import com.google.android.apps.common.testing.ui.espresso.ViewFinder;
+import com.google.common.collect.ImmutableList;
 
 import android.test.InstrumentationTestCase;
 import android.test.UiThreadTest;
@@ -15,11 +20,14 @@ import android.widget.TextView;
 
 import org.hamcrest.Matchers;
 
+import java.util.List;
+
 import javax.inject.Provider;
 
 /** Unit tests for {@link ViewFinderImpl}. */
 public class ViewFinderImplTest extends InstrumentationTestCase {
-  private Provider<View> testViewProvider;
+  private Provider<List<View>> testViewProvider;
+  private ViewHierarchyIndex index;
   private RelativeLayout testView;
   private View child1;
   private View child2;
@@ -48,10 +56,11 @@ public class ViewFinderImplTest extends InstrumentationTestCase {
     testView.addView(nestingLayout);
     testView.addView(child3);
     testView.addView(child4);
-    testViewProvider = new Provider<View>() {
+    index = new ViewHierarchyIndex();
+    testViewProvider = new Provider<List<View>>() {
       @Override
-      public View get() {
-        return testView;
+      public List<View> get() {
+        return ImmutableList.<View>of(testView);
       }
 
       @Override
@@ -63,13 +72,13 @@ public class ViewFinderImplTest extends InstrumentationTestCase {
 
   @UiThreadTest
   public void testGetView_present() {
-    ViewFinder finder = new ViewFinderImpl(sameInstance(nestedChild), testViewProvider);
+    ViewFinder finder = new ViewFinderImpl(sameInstance(nestedChild), testViewProvider, index);
     assertThat(finder.getView(), sameInstance(nestedChild));
   }
 
   @UiThreadTest
   public void testGetView_missing() {
-    ViewFinder finder = new ViewFinderImpl(Matchers.<View>nullValue(), testViewProvider);
+    ViewFinder finder = new ViewFinderImpl(Matchers.<View>nullValue(), testViewProvider, index);
     try {
       finder.getView();
       fail("No children should pass that matcher!");
@@ -78,15 +87,64 @@ public class ViewFinderImplTest extends InstrumentationTestCase {
 
   @UiThreadTest
   public void testGetView_multiple() {
-    ViewFinder finder = new ViewFinderImpl(Matchers.<View>notNullValue(), testViewProvider);
+    ViewFinder finder = new ViewFinderImpl(Matchers.<View>notNullValue(), testViewProvider, index);
     try {
       finder.getView();
       fail("All nodes hit that matcher!");
     } catch (AmbiguousViewMatcherException expected) {}
   }
 
+  @UiThreadTest
+  public void testGetView_ambiguousAfterIdChangeWithoutLayout() {
+    assertThat(new ViewFinderImpl(withId(1), testViewProvider, index).getView(),
+        sameInstance(child1));
+    nestedChild.setId(1);
+    try {
+      new ViewFinderImpl(withId(1), testViewProvider, index).getView();
+      fail("Both views have id 1 now.");
+    } catch (AmbiguousViewMatcherException expected) {}
+  }
+
+  @UiThreadTest
+  public void testGetView_findsViewAddedWithoutLayout() {
+    assertThat(new ViewFinderImpl(withId(1), testViewProvider, index).getView(),
+        sameInstance(child1));
+    View added = new TextView(getInstrumentation().getTargetContext());
+    added.setId(6);
+    testView.addView(added);
+    assertThat(new ViewFinderImpl(withId(6), testViewProvider, index).getView(),
+        sameInstance(added));
+  }
+
+  @UiThreadTest
+  @SuppressWarnings("unchecked")
+  public void testFindMatches_breadthFirstAcrossAncestors() {
+    RelativeLayout firstAncestor = new RelativeLayout(getInstrumentation().getTargetContext());
+    firstAncestor.setId(10);
+    RelativeLayout inner = new RelativeLayout(getInstrumentation().getTargetContext());
+    TextView deep = new TextView(getInstrumentation().getTargetContext());
+    deep.setText("row");
+    inner.addView(deep);
+    firstAncestor.addView(inner);
+    RelativeLayout secondAncestor = new RelativeLayout(getInstrumentation().getTargetContext());
+    secondAncestor.setId(10);
+    TextView shallow = new TextView(getInstrumentation().getTargetContext());
+    shallow.setText("row");
+    secondAncestor.addView(shallow);
+    testView.addView(firstAncestor);
+    testView.addView(secondAncestor);
+
+    ViewFinderImpl finder = new ViewFinderImpl(
+        allOf(withText("row"), isDescendantOfA(withId(10))),
+        testViewProvider, index);
+    // not answered by the index: the search starts from the ancestors, while a traversal of the
+    // whole hierarchy meets the shallower view first.
+    assertEquals(ImmutableList.<View>of(shallow, deep),
+        finder.findMatches(ImmutableList.<View>of(testView)));
+  }
+
   public void testFind_offUiThread() {
-    ViewFinder finder = new ViewFinderImpl(sameInstance(nestedChild), testViewProvider);
+    ViewFinder finder = new ViewFinderImpl(sameInstance(nestedChild), testViewProvider, index);
     try {
       finder.getView();
       fail("not on main thread, should die.");
@@ -0,0 +1,207 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.isAssignableFrom;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.withContentDescription;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.withId;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.withText;
+import static org.hamcrest.Matchers.allOf;
+
+import com.google.android.apps.common.testing.testrunner.ActivityLifecycleCallback;
+import com.google.android.apps.common.testing.testrunner.ActivityLifecycleMonitor;
+import com.google.android.apps.common.testing.testrunner.ActivityLifecycleMonitorRegistry;
+import com.google.android.apps.common.testing.testrunner.Stage;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import android.app.Activity;
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.view.View;
+import android.widget.Button;
+import android.widget.RelativeLayout;
+import android.widget.TextView;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/** Unit tests for {@link ViewHierarchyIndex}. */
+public class ViewHierarchyIndexTest extends InstrumentationTestCase {
+  private ViewHierarchyIndex index;
+  private RelativeLayout root;
+  private TextView text1;
+  private TextView text2;
+  private Button button;
+  private List<View> roots;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    index = new ViewHierarchyIndex();
+    root = new RelativeLayout(getInstrumentation().getTargetContext());
+    text1 = new TextView(getInstrumentation().getTargetContext());
+    text1.setId(1);
+    text1.setContentDescription("first");
+    text2 = new TextView(getInstrumentation().getTargetContext());
+    text2.setId(2);
+    button = new Button(getInstrumentation().getTargetContext());
+    button.setId(1);
+    RelativeLayout nestingLayout = new RelativeLayout(getInstrumentation().getTargetContext());
+    nestingLayout.addView(button);
+    root.addView(nestingLayout);
+    root.addView(text1);
+    root.addView(text2);
+    roots = ImmutableList.<View>of(root);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        index.release();
+      }
+    });
+    super.tearDown();
+  }
+
+  @UiThreadTest
+  public void testCandidates_byIdInTraversalOrder() {
+    assertEquals(ImmutableList.<View>of(text1, button), index.candidates(roots, withId(1)));
+  }
+
+  @UiThreadTest
+  public void testCandidates_byClass() {
+    // Button is a TextView too.
+    assertEquals(ImmutableList.<View>of(text1, text2, button),
+        index.candidates(roots, isAssignableFrom(TextView.class)));
+  }
+
+  @UiThreadTest
+  public void testCandidates_byContentDescription() {
+    assertEquals(ImmutableList.<View>of(text1),
+        index.candidates(roots, withContentDescription("first")));
+  }
+
+  @UiThreadTest
+  public void testCandidates_fromConjunction() {
+    assertEquals(ImmutableList.<View>of(text2),
+        index.candidates(roots, allOf(withText("foo"), withId(2))));
+  }
+
+  @UiThreadTest
+  public void testCandidates_notIndexable() {
+    assertNull(index.candidates(roots, withText("foo")));
+  }
+
+  @UiThreadTest
+  public void testCandidates_noMatch() {
+    assertTrue(index.candidates(roots, withId(42)).isEmpty());
+  }
+
+  @UiThreadTest
+  public void testRebuild_onLayout() {
+    index.candidates(roots, withId(1));
+    index.candidates(roots, withId(2));
+    assertEquals(1, index.getBuildCount());
+
+    root.getViewTreeObserver().dispatchOnGlobalLayout();
+    index.candidates(roots, withId(1));
+    assertEquals(2, index.getBuildCount());
+  }
+
+  @UiThreadTest
+  public void testRebuild_onIdChangeWithoutLayout() {
+    assertEquals(ImmutableList.<View>of(text2), index.candidates(roots, withId(2)));
+    text1.setId(2);
+    assertEquals(ImmutableList.<View>of(text1, text2), index.candidates(roots, withId(2)));
+    assertEquals(2, index.getBuildCount());
+  }
+
+  @UiThreadTest
+  public void testRebuild_onContentDescriptionChangeWithoutLayout() {
+    index.candidates(roots, withContentDescription("first"));
+    text2.setContentDescription("first");
+    assertEquals(ImmutableList.<View>of(text1, text2),
+        index.candidates(roots, withContentDescription("first")));
+  }
+
+  @UiThreadTest
+  public void testRebuild_onViewAddedWithoutLayout() {
+    index.candidates(roots, withId(1));
+    TextView added = new TextView(getInstrumentation().getTargetContext());
+    added.setId(1);
+    root.addView(added);
+    assertEquals(ImmutableList.<View>of(text1, added, button), index.candidates(roots, withId(1)));
+  }
+
+  @UiThreadTest
+  public void testRebuild_onViewRemovedWithoutLayout() {
+    index.candidates(roots, withId(1));
+    root.removeView(text1);
+    assertEquals(ImmutableList.<View>of(button), index.candidates(roots, withId(1)));
+  }
+
+  @UiThreadTest
+  public void testCandidates_unchangedHierarchyNotRebuilt() {
+    index.candidates(roots, withId(1));
+    index.candidates(roots, withContentDescription("first"));
+    assertEquals(1, index.getBuildCount());
+  }
+
+  @UiThreadTest
+  public void testRelease_onActivityDestroyed() {
+    CallbackRecordingMonitor monitor = new CallbackRecordingMonitor();
+    ActivityLifecycleMonitorRegistry.registerInstance(monitor);
+    try {
+      index = new ViewHierarchyIndex();
+      index.candidates(roots, withId(1));
+      assertEquals(1, monitor.callbacks.size());
+
+      monitor.callbacks.get(0).onActivityLifecycleChanged(null, Stage.PAUSED);
+      index.candidates(roots, withId(1));
+      assertEquals(1, index.getBuildCount());
+
+      monitor.callbacks.get(0).onActivityLifecycleChanged(null, Stage.DESTROYED);
+      index.candidates(roots, withId(1));
+      assertEquals(2, index.getBuildCount());
+    } finally {
+      ActivityLifecycleMonitorRegistry.registerInstance(null);
+    }
+  }
+
+  @UiThreadTest
+  public void testRebuild_onRootsChange() {
+    index.candidates(roots, withId(1));
+    assertEquals(ImmutableList.<View>of(text2),
+        index.candidates(ImmutableList.<View>of(text2), withId(2)));
+    assertEquals(2, index.getBuildCount());
+  }
+
+  /**
+   * Only keeps the callbacks added to it.
+   */
+  private static class CallbackRecordingMonitor implements ActivityLifecycleMonitor {
+    final List<ActivityLifecycleCallback> callbacks = Lists.newArrayList();
+
+    @Override
+    public void addLifecycleCallback(ActivityLifecycleCallback callback) {
+      callbacks.add(callback);
+    }
+
+    @Override
+    public void removeLifecycleCallback(ActivityLifecycleCallback callback) {
+      callbacks.remove(callback);
+    }
+
+    @Override
+    public Stage getLifecycleStageOf(Activity activity) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Collection<Activity> getActivitiesInStage(Stage stage) {
+      return Collections.emptyList();
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.isDisplayingAtLeast;
+
+import com.google.common.collect.Lists;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.Log;
+import android.view.View;
+import android.widget.FrameLayout;
+import android.widget.TextView;
+
+import org.hamcrest.Matcher;
+
+import java.util.List;
+
+/**
+ * Measures {@link ViewMatchers#isDisplayingAtLeast} over stacks of overlapping cards, evaluated on
+ * every view of the hierarchy as a search does: once with a fresh {@link ViewGeometryCache} per
+ * evaluation and once sharing one for the whole search.
+ * <p>
+ * Suppressed, so it stays out of the default run and {@code UnitTests}: remove the annotation
+ * locally to measure.
+ */
+@LargeTest
+@Suppress
+public class IsDisplayingAtLeastBenchmark extends InstrumentationTestCase {
+  private static final String TAG = "IsDisplayingAtLeastBenchmark";
+  private static final int ITERATIONS = 20;
+  private static final int CARD_WIDTH = 400;
+  private static final int CARD_HEIGHT = 300;
+  private static final int CARD_OFFSET = 12;
+
+  @UiThreadTest
+  public void testStackedCards() {
+    for (int cards : new int[] {10, 50, 200}) {
+      List<View> views = stackOfCards(getInstrumentation().getTargetContext(), cards);
+      Matcher<View> matcher = isDisplayingAtLeast(90);
+      assertEquals(evaluate(matcher, views, false), evaluate(matcher, views, true));
+
+      Log.i(TAG, String.format("%d cards (%d views): per evaluation %d us, per search %d us",
+          cards, views.size(), measure(matcher, views, false), measure(matcher, views, true)));
+    }
+  }
+
+  private static long measure(Matcher<View> matcher, List<View> views, boolean shared) {
+    evaluate(matcher, views, shared);
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      evaluate(matcher, views, shared);
+    }
+    return (System.nanoTime() - start) / ITERATIONS / 1000;
+  }
+
+  private static List<Boolean> evaluate(Matcher<View> matcher, List<View> views, boolean shared) {
+    List<Boolean> results = Lists.newArrayListWithCapacity(views.size());
+    ViewGeometryCache geometry = shared ? ViewGeometryCache.open() : null;
+    try {
+      for (View view : views) {
+        results.add(matcher.matches(view));
+      }
+    } finally {
+      if (geometry != null) {
+        geometry.close();
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Cards (a frame holding a title and a body) each shifted down and right of the previous one,
+   * so every card but the last is mostly covered. Returns the views breadth first.
+   */
+  private static List<View> stackOfCards(Context context, int count) {
+    int size = CARD_OFFSET * count;
+    FrameLayout root = new FrameLayout(context);
+    root.layout(0, 0, CARD_WIDTH + size, CARD_HEIGHT + size);
+    List<View> views = Lists.<View>newArrayList(root);
+    List<View> contents = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      FrameLayout card = new FrameLayout(context);
+      int offset = CARD_OFFSET * i;
+      card.layout(offset, offset, offset + CARD_WIDTH, offset + CARD_HEIGHT);
+      TextView title = new TextView(context);
+      title.layout(0, 0, CARD_WIDTH, CARD_HEIGHT / 4);
+      TextView body = new TextView(context);
+      body.layout(0, CARD_HEIGHT / 4, CARD_WIDTH, CARD_HEIGHT);
+      card.addView(title);
+      card.addView(body);
+      root.addView(card);
+      views.add(card);
+      contents.add(title);
+      contents.add(body);
+    }
+    views.addAll(contents);
+    return views;
+  }
+}
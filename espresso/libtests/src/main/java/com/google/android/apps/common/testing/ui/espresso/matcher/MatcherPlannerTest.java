@@ -0,0 +1,252 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.anyOf;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+import com.google.common.collect.Lists;
+
+import android.view.View;
+
+import junit.framework.TestCase;
+
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+import org.hamcrest.StringDescription;
+
+import java.util.List;
+
+/**
+ * Unit tests for {@link MatcherPlanner}.
+ */
+public class MatcherPlannerTest extends TestCase {
+  private final List<String> evaluated = Lists.newArrayList();
+
+  public void testAllOf_cheapestFirst() {
+    Matcher<Object> query = MatcherPlanner.compile(allOf(
+        costed("geometry", CostedViewMatcher.EXPENSIVE, true),
+        costed("text", CostedViewMatcher.MODERATE, true),
+        costed("id", CostedViewMatcher.CHEAP, false)));
+    assertFalse(query.matches("view"));
+    assertEquals(Lists.newArrayList("id"), evaluated);
+  }
+
+  public void testAllOf_allEvaluatedWhenMatching() {
+    Matcher<Object> query = MatcherPlanner.compile(allOf(
+        costed("geometry", CostedViewMatcher.EXPENSIVE, true),
+        plain("custom", true),
+        costed("id", CostedViewMatcher.CHEAP, true)));
+    assertTrue(query.matches("view"));
+    assertEquals(Lists.newArrayList("id", "custom", "geometry"), evaluated);
+  }
+
+  public void testAllOf_equalCostsKeepDeclaredOrder() {
+    Matcher<Object> query = MatcherPlanner.compile(allOf(
+        costed("a", CostedViewMatcher.CHEAP, true),
+        costed("b", CostedViewMatcher.CHEAP, true),
+        costed("c", CostedViewMatcher.CHEAP, true)));
+    assertTrue(query.matches("view"));
+    assertEquals(Lists.newArrayList("a", "b", "c"), evaluated);
+  }
+
+  public void testAnyOf_cheapestAcceptingDecides() {
+    Matcher<Object> query = MatcherPlanner.compile(anyOf(
+        costed("geometry", CostedViewMatcher.EXPENSIVE, true),
+        costed("id", CostedViewMatcher.CHEAP, false),
+        costed("text", CostedViewMatcher.MODERATE, true)));
+    assertTrue(query.matches("view"));
+    assertEquals(Lists.newArrayList("id", "text"), evaluated);
+  }
+
+  public void testAnyOf_noneAccepting() {
+    Matcher<Object> query = MatcherPlanner.compile(anyOf(
+        costed("geometry", CostedViewMatcher.EXPENSIVE, false),
+        costed("id", CostedViewMatcher.CHEAP, false)));
+    assertFalse(query.matches("view"));
+    assertEquals(Lists.newArrayList("id", "geometry"), evaluated);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testNested_costIsSumOfMembers() {
+    Matcher<Object> nested = anyOf(
+        costed("text", CostedViewMatcher.MODERATE, false),
+        costed("hint", CostedViewMatcher.MODERATE, false));
+    assertEquals(2 * CostedViewMatcher.MODERATE, MatcherPlanner.costOf(nested));
+
+    Matcher<Object> query = MatcherPlanner.compile(allOf(
+        costed("geometry", CostedViewMatcher.EXPENSIVE, true),
+        nested,
+        costed("id", CostedViewMatcher.CHEAP, true)));
+    assertFalse(query.matches("view"));
+    assertEquals(Lists.newArrayList("id", "text", "hint"), evaluated);
+  }
+
+  public void testDescriptionUnchanged() {
+    Matcher<Object> declared = allOf(
+        costed("geometry", CostedViewMatcher.EXPENSIVE, true),
+        costed("id", CostedViewMatcher.CHEAP, true));
+    assertEquals(StringDescription.toString(declared),
+        StringDescription.toString(MatcherPlanner.compile(declared)));
+    assertEquals(declared.toString(), MatcherPlanner.compile(declared).toString());
+  }
+
+  public void testCompile_idempotent() {
+    Matcher<Object> query = MatcherPlanner.compile(plain("custom", true));
+    assertSame(query, MatcherPlanner.compile(query));
+  }
+
+  public void testScope_allOfRuledOutByAnyMember() {
+    ScopedViewMatcher query = (ScopedViewMatcher) MatcherPlanner.compile(allOf(
+        scoped("displayed", false, null),
+        costed("id", CostedViewMatcher.CHEAP, true)));
+    assertFalse(query.mayMatchWithin(null));
+    assertNull(query.getRequiredAncestor());
+  }
+
+  public void testScope_anyOfRuledOutByAllMembers() {
+    ScopedViewMatcher query = (ScopedViewMatcher) MatcherPlanner.compile(anyOf(
+        scoped("displayed", false, null),
+        costed("id", CostedViewMatcher.CHEAP, true)));
+    assertTrue(query.mayMatchWithin(null));
+
+    query = (ScopedViewMatcher) MatcherPlanner.compile(anyOf(
+        scoped("displayed", false, null),
+        scoped("visible", false, null)));
+    assertFalse(query.mayMatchWithin(null));
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testScope_requiredAncestor() {
+    Matcher<View> list = new BaseMatcher<View>() {
+      @Override
+      public boolean matches(Object item) {
+        return false;
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText("list");
+      }
+    };
+    ScopedViewMatcher query = (ScopedViewMatcher) MatcherPlanner.compile(allOf(
+        costed("id", CostedViewMatcher.CHEAP, true),
+        allOf(plain("custom", true), scoped("descendant", true, list))));
+    assertSame(list, query.getRequiredAncestor());
+    assertTrue(query.mayMatchWithin(null));
+
+    query = (ScopedViewMatcher) MatcherPlanner.compile(anyOf(
+        costed("id", CostedViewMatcher.CHEAP, true),
+        scoped("descendant", true, list)));
+    assertNull(query.getRequiredAncestor());
+  }
+
+  public void testCostOf_builtInTiers() {
+    assertEquals(CostedViewMatcher.CHEAP, MatcherPlanner.costOf(ViewMatchers.withId(1)));
+    assertEquals(CostedViewMatcher.MODERATE, MatcherPlanner.costOf(ViewMatchers.withText("one")));
+    assertEquals(CostedViewMatcher.MODERATE, MatcherPlanner.costOf(ViewMatchers.isChecked()));
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testIsThreadSafe_builtInsOverImmutableMatchers() {
+    assertTrue(MatcherPlanner.isThreadSafe(ViewMatchers.withText("one")));
+    assertTrue(MatcherPlanner.isThreadSafe(MatcherPlanner.compile(allOf(
+        ViewMatchers.withId(1),
+        ViewMatchers.withContentDescription(not(containsString("two"))),
+        ViewMatchers.isDescendantOfA(ViewMatchers.withClassName(endsWith("ListView")))))));
+    assertTrue(MatcherPlanner.isThreadSafe(
+        DataMatchers.threadSafe(plain("custom", true))));
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testIsThreadSafe_nestedCustomMatcher() {
+    Matcher<View> custom = new BaseMatcher<View>() {
+      @Override
+      public boolean matches(Object item) {
+        return true;
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText("custom");
+      }
+    };
+    assertFalse(MatcherPlanner.isThreadSafe(plain("custom", true)));
+    assertFalse(MatcherPlanner.isThreadSafe(ViewMatchers.withParent(is(custom))));
+    assertFalse(MatcherPlanner.isThreadSafe(MatcherPlanner.compile(anyOf(
+        ViewMatchers.withId(1), ViewMatchers.isDescendantOfA(custom)))));
+  }
+
+  private Matcher<Object> plain(final String name, final boolean result) {
+    return new BaseMatcher<Object>() {
+      @Override
+      public boolean matches(Object item) {
+        evaluated.add(name);
+        return result;
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText(name);
+      }
+    };
+  }
+
+  private Matcher<Object> costed(String name, int cost, boolean result) {
+    return new CostedMatcher(plain(name, result), cost);
+  }
+
+  private Matcher<Object> scoped(String name, final boolean mayMatch,
+      final Matcher<View> ancestor) {
+    return new ScopedMatcher(plain(name, true), mayMatch, ancestor);
+  }
+
+  private static class ScopedMatcher extends CostedMatcher implements ScopedViewMatcher {
+    private final boolean mayMatch;
+    private final Matcher<View> ancestor;
+
+    ScopedMatcher(Matcher<Object> delegate, boolean mayMatch, Matcher<View> ancestor) {
+      super(delegate, CostedViewMatcher.EXPENSIVE);
+      this.mayMatch = mayMatch;
+      this.ancestor = ancestor;
+    }
+
+    @Override
+    public boolean mayMatchWithin(View subtreeRoot) {
+      return mayMatch;
+    }
+
+    @Override
+    public Matcher<View> getRequiredAncestor() {
+      return ancestor;
+    }
+  }
+
+  private static class CostedMatcher extends BaseMatcher<Object> implements CostedViewMatcher {
+    private final Matcher<Object> delegate;
+    private final int cost;
+
+    CostedMatcher(Matcher<Object> delegate, int cost) {
+      this.delegate = delegate;
+      this.cost = cost;
+    }
+
+    @Override
+    public int getMatchCost() {
+      return cost;
+    }
+
+    @Override
+    public boolean matches(Object item) {
+      return delegate.matches(item);
+    }
+
+    @Override
+    public void describeTo(Description description) {
+      delegate.describeTo(description);
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Unit tests for {@link RectUnion}.
+ */
+public class RectUnionTest extends TestCase {
+  private final RectUnion union = new RectUnion();
+
+  public void testEmpty() {
+    assertEquals(0, union.area());
+    union.add(10, 10, 10, 20);
+    union.add(10, 20, 0, 30);
+    assertEquals(0, union.area());
+  }
+
+  public void testDisjoint() {
+    union.add(0, 0, 10, 10);
+    union.add(20, 0, 30, 5);
+    assertEquals(150, union.area());
+  }
+
+  public void testNested() {
+    union.add(0, 0, 100, 100);
+    union.add(10, 10, 20, 20);
+    assertEquals(10000, union.area());
+  }
+
+  public void testOverlapping() {
+    union.add(0, 0, 10, 10);
+    union.add(5, 5, 15, 15);
+    assertEquals(175, union.area());
+  }
+
+  public void testTouchingEdges() {
+    union.add(0, 0, 10, 10);
+    union.add(10, 0, 20, 10);
+    union.add(0, 10, 20, 20);
+    assertEquals(400, union.area());
+  }
+
+  public void testNegativeCoordinates() {
+    union.add(-20, -20, -10, -10);
+    union.add(-15, -15, 5, 5);
+    assertEquals(100 + 400 - 25, union.area());
+  }
+
+  public void testClearReuses() {
+    union.add(0, 0, 10, 10);
+    union.clear();
+    union.add(0, 0, 2, 3);
+    assertEquals(6, union.area());
+  }
+
+  public void testRandom_matchesPixelCount() {
+    Random random = new Random(42);
+    for (int round = 0; round < 50; round++) {
+      union.clear();
+      boolean[][] covered = new boolean[40][40];
+      int count = 1 + random.nextInt(60);
+      for (int i = 0; i < count; i++) {
+        int left = random.nextInt(40);
+        int top = random.nextInt(40);
+        int right = left + random.nextInt(41 - left);
+        int bottom = top + random.nextInt(41 - top);
+        union.add(left, top, right, bottom);
+        for (int x = left; x < right; x++) {
+          for (int y = top; y < bottom; y++) {
+            covered[x][y] = true;
+          }
+        }
+      }
+      long pixels = 0;
+      for (boolean[] column : covered) {
+        for (boolean pixel : column) {
+          pixels += pixel ? 1 : 0;
+        }
+      }
+      assertEquals("round " + round, pixels, union.area());
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import com.google.android.apps.common.testing.testrunner.ActivityLifecycleMonitor;
+import com.google.android.apps.common.testing.testrunner.ActivityLifecycleMonitorRegistry;
+import com.google.android.apps.common.testing.testrunner.Stage;
+import com.google.android.apps.common.testing.ui.espresso.NoActivityResumedException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import android.app.Activity;
+import android.os.IBinder;
+import android.view.View;
+import android.view.Window;
+
+import junit.framework.TestCase;
+
+import org.mockito.Mock;
+
+/**
+ * Unit tests for {@link RootMatchingContext}.
+ */
+public class RootMatchingContextTest extends TestCase {
+  @Mock
+  private ActivityLifecycleMonitor mockMonitor;
+  @Mock
+  private Activity mockActivity;
+  @Mock
+  private Window mockWindow;
+  @Mock
+  private View mockDecorView;
+  @Mock
+  private IBinder mockToken;
+
+  private ActivityLifecycleMonitor realLifecycleMonitor;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    initMocks(this);
+    realLifecycleMonitor = ActivityLifecycleMonitorRegistry.getInstance();
+    ActivityLifecycleMonitorRegistry.registerInstance(mockMonitor);
+    when(mockMonitor.getActivitiesInStage(Stage.RESUMED))
+        .thenReturn(ImmutableList.of(mockActivity));
+    when(mockActivity.getWindow()).thenReturn(mockWindow);
+    when(mockWindow.getDecorView()).thenReturn(mockDecorView);
+    when(mockDecorView.getApplicationWindowToken()).thenReturn(mockToken);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    ActivityLifecycleMonitorRegistry.registerInstance(realLifecycleMonitor);
+    super.tearDown();
+  }
+
+  public void testResumedTokens_lookedUpOncePerOpenContext() {
+    RootMatchingContext context = RootMatchingContext.open();
+    try {
+      assertEquals(ImmutableSet.of(mockToken), context.getResumedActivityTokens());
+      assertEquals(ImmutableSet.of(mockToken),
+          RootMatchingContext.currentOrNew().getResumedActivityTokens());
+    } finally {
+      context.close();
+    }
+    verify(mockMonitor, times(1)).getActivitiesInStage(Stage.RESUMED);
+
+    context = RootMatchingContext.open();
+    try {
+      context.getResumedActivityTokens();
+    } finally {
+      context.close();
+    }
+    verify(mockMonitor, times(2)).getActivitiesInStage(Stage.RESUMED);
+  }
+
+  public void testResumedTokens_lookedUpPerEvaluationWhenNotOpen() {
+    RootMatchingContext.currentOrNew().getResumedActivityTokens();
+    RootMatchingContext.currentOrNew().getResumedActivityTokens();
+    verify(mockMonitor, times(2)).getActivitiesInStage(Stage.RESUMED);
+  }
+
+  public void testResumedTokens_noneResumed() {
+    when(mockMonitor.getActivitiesInStage(Stage.RESUMED))
+        .thenReturn(ImmutableList.<Activity>of());
+    try {
+      RootMatchingContext.currentOrNew().getResumedActivityTokens();
+      fail("no activity is resumed");
+    } catch (NoActivityResumedException expected) {
+    }
+  }
+
+  public void testNotOpen_freshContextEachTime() {
+    assertNotSame(RootMatchingContext.currentOrNew(), RootMatchingContext.currentOrNew());
+  }
+
+  public void testOpen_sharedUntilClosed() {
+    RootMatchingContext context = RootMatchingContext.open();
+    try {
+      assertSame(context, RootMatchingContext.currentOrNew());
+    } finally {
+      context.close();
+    }
+    assertNotSame(context, RootMatchingContext.currentOrNew());
+  }
+
+  public void testNestedOpen_sharesOutermost() {
+    RootMatchingContext outer = RootMatchingContext.open();
+    RootMatchingContext inner = RootMatchingContext.open();
+    assertSame(outer, inner);
+    inner.close();
+    assertSame(outer, RootMatchingContext.currentOrNew());
+    outer.close();
+    assertNotSame(outer, RootMatchingContext.currentOrNew());
+  }
+
+  public void testCloseTwice_fails() {
+    RootMatchingContext context = RootMatchingContext.open();
+    context.close();
+    try {
+      context.close();
+      fail("closed twice");
+    } catch (IllegalStateException expected) {
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package com.google.android.apps.common.testing.ui.espresso.util;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Unit tests for {@link ParallelFilter}.
+ */
+public class ParallelFilterTest extends TestCase {
+  private static final Predicate<Integer> EVEN = new Predicate<Integer>() {
+    @Override
+    public boolean apply(Integer i) {
+      return i % 2 == 0;
+    }
+  };
+
+  public void testFilter_keepsOrder() {
+    List<Integer> matches = ParallelFilter.filter(range(1000), EVEN, Integer.MAX_VALUE);
+    assertEquals(500, matches.size());
+    for (int i = 0; i < matches.size(); i++) {
+      assertEquals(Integer.valueOf(2 * i), matches.get(i));
+    }
+  }
+
+  public void testFilter_stopsAtMaxMatches() {
+    assertEquals(Lists.newArrayList(0, 2, 4), ParallelFilter.filter(range(1000), EVEN, 3));
+  }
+
+  public void testFilter_fewerItemsThanThreads() {
+    assertEquals(Lists.newArrayList(0), ParallelFilter.filter(range(1), EVEN, 10));
+    assertTrue(ParallelFilter.filter(range(0), EVEN, 10).isEmpty());
+  }
+
+  public void testFilter_rethrowsPredicateFailure() {
+    final RuntimeException failure = new RuntimeException();
+    try {
+      ParallelFilter.filter(range(1000), new Predicate<Integer>() {
+        @Override
+        public boolean apply(Integer i) {
+          if (i == 999) {
+            throw failure;
+          }
+          return false;
+        }
+      }, Integer.MAX_VALUE);
+      fail("expected the predicate failure");
+    } catch (RuntimeException expected) {
+      assertSame(failure, expected);
+    }
+  }
+
+  private static List<Integer> range(int size) {
+    List<Integer> items = Lists.newArrayListWithCapacity(size);
+    for (int i = 0; i < size; i++) {
+      items.add(i);
+    }
+    return items;
+  }
+}
@@ -0,0 +1,177 @@
+package com.google.android.apps.common.testing.ui.espresso.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.android.apps.common.testing.ui.espresso.util.TreeIterables.IndexedTreeViewer;
+import com.google.android.apps.common.testing.ui.espresso.util.TreeIterables.TreeViewer;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+
+import android.os.Debug;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Compares the array based traversals of {@link TreeIterables} with the LinkedList based ones they
+ * replaced, over synthetic trees the size of large screens. Allocations are measured with the
+ * deprecated {@link Debug} allocation counters, so their figures are only indicative.
+ * <p>
+ * Suppressed, so it stays out of the default run and {@code UnitTests}: remove the annotation
+ * locally to measure.
+ */
+@LargeTest
+@Suppress
+public class TreeIterablesBenchmark extends TestCase {
+  private static final String TAG = "TreeIterablesBenchmark";
+  private static final int ITERATIONS = 200;
+
+  public void testWideTree() {
+    // 1 + 8 + 64 + 512 + 4096 nodes.
+    compare("wide", build(8, 4));
+  }
+
+  public void testDeepTree() {
+    // 2^12 - 1 nodes.
+    compare("deep", build(2, 11));
+  }
+
+  private void compare(String name, Node root) {
+    NodeViewer viewer = new NodeViewer();
+    for (boolean depthFirst : new boolean[] {true, false}) {
+      Iterable<Node> legacy = new LegacyTraversal(root, viewer, depthFirst);
+      Iterable<Node> current = depthFirst
+          ? TreeIterables.depthFirstTraversal(root, viewer)
+          : TreeIterables.breadthFirstTraversal(root, viewer);
+      assertEquals(Lists.newArrayList(legacy), Lists.newArrayList(current));
+
+      String order = depthFirst ? "depth first" : "breadth first";
+      Log.i(TAG, String.format("%s tree, %s: linked list %s, arrays %s", name, order,
+          measure(legacy), measure(current)));
+    }
+  }
+
+  private static String measure(Iterable<Node> traversal) {
+    int nodes = 0;
+    for (int i = 0; i < ITERATIONS / 10; i++) {
+      nodes = walk(traversal);
+    }
+    AllocationCounter allocations = new AllocationCounter();
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      walk(traversal);
+    }
+    long nanos = System.nanoTime() - start;
+    long bytes = allocations.stop();
+    return String.format("%d ns/node %d bytes/walk", nanos / ((long) ITERATIONS * nodes),
+        bytes / ITERATIONS);
+  }
+
+  private static int walk(Iterable<Node> traversal) {
+    int count = 0;
+    for (Iterator<Node> it = traversal.iterator(); it.hasNext(); it.next()) {
+      count++;
+    }
+    return count;
+  }
+
+  private static Node build(int fanOut, int depth) {
+    Node[] children = new Node[depth == 0 ? 0 : fanOut];
+    for (int i = 0; i < children.length; i++) {
+      children[i] = build(fanOut, depth - 1);
+    }
+    return new Node(children);
+  }
+
+  private static class Node {
+    private final Node[] children;
+
+    Node(Node[] children) {
+      this.children = children;
+    }
+  }
+
+  private static class NodeViewer implements IndexedTreeViewer<Node> {
+    @Override
+    public Collection<Node> children(Node node) {
+      return Arrays.asList(node.children);
+    }
+
+    @Override
+    public int childCount(Node node) {
+      return node.children.length;
+    }
+
+    @Override
+    public Node childAt(Node node, int index) {
+      return node.children[index];
+    }
+  }
+
+  /**
+   * The traversal TreeIterables used before it walked arrays: a LinkedList work list filled with
+   * ArrayList copies of each node's children.
+   */
+  private static class LegacyTraversal implements Iterable<Node> {
+    private final Node root;
+    private final TreeViewer<Node> viewer;
+    private final boolean depthFirst;
+
+    LegacyTraversal(Node root, TreeViewer<Node> viewer, boolean depthFirst) {
+      this.root = root;
+      this.viewer = viewer;
+      this.depthFirst = depthFirst;
+    }
+
+    @Override
+    public Iterator<Node> iterator() {
+      final LinkedList<Node> nodes = Lists.newLinkedList();
+      nodes.add(root);
+      return new AbstractIterator<Node>() {
+        @Override
+        public Node computeNext() {
+          if (nodes.isEmpty()) {
+            return endOfData();
+          }
+          Node next = checkNotNull(nodes.removeFirst());
+          List<Node> children = Lists.newArrayList(viewer.children(next));
+          if (depthFirst) {
+            nodes.addAll(0, children);
+          } else {
+            nodes.addAll(children);
+          }
+          return next;
+        }
+      };
+    }
+  }
+
+  /**
+   * Bytes allocated by the current thread, from the Debug allocation counters.
+   */
+  private static class AllocationCounter {
+    private final long start;
+
+    @SuppressWarnings("deprecation")
+    AllocationCounter() {
+      Debug.resetThreadAllocSize();
+      Debug.startAllocCounting();
+      start = Debug.getThreadAllocSize();
+    }
+
+    @SuppressWarnings("deprecation")
+    long stop() {
+      long end = Debug.getThreadAllocSize();
+      Debug.stopAllocCounting();
+      return end - start;
+    }
+  }
+}
@@ -7,8 +7,11 @@ import static org.hamcrest.Matchers.hasEntry;
 import static org.hamcrest.Matchers.is;
 
 import com.google.android.apps.common.testing.ui.espresso.util.TreeIterables.DistanceRecordingTreeViewer;
+import com.google.android.apps.common.testing.ui.espresso.util.TreeIterables.IndexedTreeViewer;
 import com.google.android.apps.common.testing.ui.espresso.util.TreeIterables.TreeViewer;
 import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
@@ -167,6 +170,30 @@ public class TreeIterablesTest extends TestCase {
             "k"))); //L5
   }
 
+  public void testPrunedTraversal_breadthFirst() {
+    final List<String> seen = Lists.newArrayList();
+    List<String> breadthFirst = Lists.newArrayList(Iterables.transform(
+        TreeIterables.breadthFirstTraversal(complexTree, new TestElementTreeViewer(),
+            new Predicate<TestElement>() {
+              @Override
+              public boolean apply(TestElement e) {
+                seen.add(e.data);
+                return !e.data.equals("c") && !e.data.equals("n");
+              }
+            }),
+        new TestElementStringConvertor()));
+    assertThat(breadthFirst,
+        is((List<String>) Lists.newArrayList("a", "b", "l", "m", "g", "h", "i", "j", "k")));
+    // pruned subtrees are never looked at.
+    assertThat(seen,
+        is((List<String>) Lists.newArrayList("a", "b", "l", "m", "n", "c", "g", "h", "i", "j", "k")));
+  }
+
+  public void testPrunedTraversal_rootRejected() {
+    assertTrue(Iterables.isEmpty(TreeIterables.breadthFirstTraversal(complexTree,
+        new TestElementTreeViewer(), Predicates.alwaysFalse())));
+  }
+
   public void testTrivialTraversal_breadthFirst() {
     // essentially the same as depth first.
     List<String> breadthFirst = Lists.newArrayList(Iterables.transform(
@@ -202,4 +229,41 @@ public class TreeIterablesTest extends TestCase {
         hasEntry("d", 3)));
     assertThat(distancesByData.size(), is(4));
   }
+
+  public void testLargeTree_indexedViewerMatchesCollectionViewer() {
+    // wide and deep enough for the traversals to grow their work arrays.
+    TestElement[] leaves = new TestElement[40];
+    for (int i = 0; i < leaves.length; i++) {
+      leaves[i] = new TestElement("leaf" + i);
+    }
+    TestElement tree = new TestElement("wide", leaves);
+    for (int i = 0; i < 40; i++) {
+      tree = new TestElement("level" + i, tree, new TestElement("sibling" + i));
+    }
+
+    TreeViewer<TestElement> collectionViewer = new TestElementTreeViewer();
+    TreeViewer<TestElement> indexedViewer = new IndexedTestElementTreeViewer();
+    assertThat(
+        Lists.newArrayList(TreeIterables.depthFirstTraversal(tree, indexedViewer)),
+        is((List<TestElement>) Lists.newArrayList(
+            TreeIterables.depthFirstTraversal(tree, collectionViewer))));
+    assertThat(
+        Lists.newArrayList(TreeIterables.breadthFirstTraversal(tree, indexedViewer)),
+        is((List<TestElement>) Lists.newArrayList(
+            TreeIterables.breadthFirstTraversal(tree, collectionViewer))));
+    assertEquals(121, Iterables.size(TreeIterables.breadthFirstTraversal(tree, indexedViewer)));
+  }
+
+  private static class IndexedTestElementTreeViewer extends TestElementTreeViewer
+      implements IndexedTreeViewer<TestElement> {
+    @Override
+    public int childCount(TestElement element) {
+      return element.children.size();
+    }
+
+    @Override
+    public TestElement childAt(TestElement element, int index) {
+      return element.children.get(index);
+    }
+  }
 }
@@ -4,15 +4,33 @@ import static com.google.android.apps.common.testing.testrunner.util.Checks.chec
 
 import android.app.Activity;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-
-final class ActivityLifecycleMonitorImpl implements ActivityLifecycleMonitor {
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tracks the lifecycle stage of every activity of the application.
+ * <p>
+ * Activities are indexed by identity and bucketed by stage, so stage transitions and lookups do not
+ * depend on how many activities a long run went through. Activities are only weakly held. The
+ * collection returned for a stage is reused until an activity enters or leaves that stage, except
+ * for {@link Stage#DESTROYED}, so that finished activities never stay reachable from it. The time
+ * each activity took from launch to its first resume is kept along with its stage, and logged once
+ * when it first resumes.
+ */
+final class ActivityLifecycleMonitorImpl implements CountingActivityLifecycleMonitor {
   private static final String TAG = "LifecycleMonitor";
   private final boolean declawThreadCheck;
 
@@ -23,16 +41,23 @@ final class ActivityLifecycleMonitorImpl implements ActivityLifecycleMonitor {
   //For Testing
   ActivityLifecycleMonitorImpl(boolean declawThreadCheck) {
     this.declawThreadCheck = declawThreadCheck;
+    for (Stage stage : Stage.values()) {
+      stageBuckets.put(stage, new LinkedHashSet<ActivityStatus>());
+    }
   }
 
-
-
-  // Accessed from any thread.
-  private List<WeakReference<ActivityLifecycleCallback>> callbacks =
-      new ArrayList<WeakReference<ActivityLifecycleCallback>>();
+  // Accessed from any thread, dispatch iterates over a snapshot.
+  private final List<WeakReference<ActivityLifecycleCallback>> callbacks =
+      new CopyOnWriteArrayList<WeakReference<ActivityLifecycleCallback>>();
 
   // Only accessed on main thread.
-  private List<ActivityStatus> activityStatuses = new ArrayList<ActivityStatus>();
+  private final Map<Activity, ActivityStatus> activityStatuses =
+      new WeakHashMap<Activity, ActivityStatus>();
+  // the statuses in each stage, in the order they entered it.
+  private final Map<Stage, Set<ActivityStatus>> stageBuckets =
+      new EnumMap<Stage, Set<ActivityStatus>>(Stage.class);
+  private final Map<Stage, Collection<Activity>> stageSnapshots =
+      new EnumMap<Stage, Collection<Activity>>(Stage.class);
 
   @Override
   public void addLifecycleCallback(ActivityLifecycleCallback callback) {
@@ -42,11 +67,10 @@ final class ActivityLifecycleMonitorImpl implements ActivityLifecycleMonitor {
 
     synchronized (callbacks) {
       boolean needsAdd = true;
-      Iterator<WeakReference<ActivityLifecycleCallback>> refIter = callbacks.iterator();
-      while (refIter.hasNext()) {
-        ActivityLifecycleCallback storedCallback = refIter.next().get();
+      for (WeakReference<ActivityLifecycleCallback> ref : callbacks) {
+        ActivityLifecycleCallback storedCallback = ref.get();
         if (null == storedCallback) {
-          refIter.remove();
+          callbacks.remove(ref);
         } else if (storedCallback == callback) {
           needsAdd = false;
         }
@@ -62,13 +86,10 @@ final class ActivityLifecycleMonitorImpl implements ActivityLifecycleMonitor {
     checkNotNull(callback);
 
     synchronized (callbacks) {
-      Iterator<WeakReference<ActivityLifecycleCallback>> refIter = callbacks.iterator();
-      while (refIter.hasNext()) {
-        ActivityLifecycleCallback storedCallback = refIter.next().get();
-        if (null == storedCallback) {
-          refIter.remove();
-        } else if (storedCallback == callback) {
-          refIter.remove();
+      for (WeakReference<ActivityLifecycleCallback> ref : callbacks) {
+        ActivityLifecycleCallback storedCallback = ref.get();
+        if (null == storedCallback || storedCallback == callback) {
+          callbacks.remove(ref);
         }
       }
     }
@@ -78,17 +99,29 @@ final class ActivityLifecycleMonitorImpl implements ActivityLifecycleMonitor {
   public Stage getLifecycleStageOf(Activity activity) {
     checkMainThread();
     checkNotNull(activity);
-    Iterator<ActivityStatus> statusIterator = activityStatuses.iterator();
-    while (statusIterator.hasNext()) {
-      ActivityStatus status = statusIterator.next();
-      Activity statusActivity = status.activityRef.get();
-      if (null == statusActivity) {
-        statusIterator.remove();
-      } else if (activity == statusActivity) {
-        return status.lifecycleStage;
-      }
+    ActivityStatus status = activityStatuses.get(activity);
+    if (null == status) {
+      throw new IllegalArgumentException("Unknown activity: " + activity);
     }
-    throw new IllegalArgumentException("Unknown activity: " + activity);
+    return status.lifecycleStage;
+  }
+
+  /**
+   * Returns how long the given activity took from the start of its launch (entering
+   * {@link Stage#PRE_ON_CREATE}) to first reaching {@link Stage#RESUMED}, in milliseconds, or -1
+   * if it has not resumed yet or was already launched when the monitor first heard of it.
+   */
+  long getLaunchToResumeMillis(Activity activity) {
+    checkMainThread();
+    checkNotNull(activity);
+    ActivityStatus status = activityStatuses.get(activity);
+    if (null == status) {
+      throw new IllegalArgumentException("Unknown activity: " + activity);
+    }
+    if (status.launchTime < 0 || status.resumeTime < 0) {
+      return -1;
+    }
+    return status.resumeTime - status.launchTime;
   }
 
   @Override
@@ -96,65 +129,94 @@ final class ActivityLifecycleMonitorImpl implements ActivityLifecycleMonitor {
     checkMainThread();
     checkNotNull(stage);
 
-    List<Activity> activities = new ArrayList<Activity>();
-    Iterator<ActivityStatus> statusIterator = activityStatuses.iterator();
+    Collection<Activity> snapshot = stageSnapshots.get(stage);
+    if (null != snapshot) {
+      return snapshot;
+    }
+    Set<ActivityStatus> bucket = stageBuckets.get(stage);
+    List<Activity> activities = new ArrayList<Activity>(bucket.size());
+    Iterator<ActivityStatus> statusIterator = bucket.iterator();
     while (statusIterator.hasNext()) {
-      ActivityStatus status = statusIterator.next();
-      Activity statusActivity = status.activityRef.get();
+      Activity statusActivity = statusIterator.next().activityRef.get();
       if (null == statusActivity) {
         statusIterator.remove();
-      } else if (stage == status.lifecycleStage) {
+      } else {
         activities.add(statusActivity);
       }
     }
-
-    return activities;
+    snapshot = Collections.unmodifiableList(activities);
+    if (stage != Stage.DESTROYED) {
+      stageSnapshots.put(stage, snapshot);
+    }
+    return snapshot;
   }
 
-  void signalLifecycleChange(Stage stage, Activity activity) {
-    // there are never too many activities in existance in an application - so we keep
-    // track of everything in a single list.
-    Log.d(TAG, "Lifecycle status change: " + activity + " in: " + stage);
-
+  @Override
+  public int getActivityCountInStage(Stage stage) {
+    checkMainThread();
+    checkNotNull(stage);
 
-    boolean needsAdd = true;
-    Iterator<ActivityStatus> statusIterator = activityStatuses.iterator();
+    Collection<Activity> snapshot = stageSnapshots.get(stage);
+    if (null != snapshot) {
+      return snapshot.size();
+    }
+    int count = 0;
+    Iterator<ActivityStatus> statusIterator = stageBuckets.get(stage).iterator();
     while (statusIterator.hasNext()) {
-      ActivityStatus status = statusIterator.next();
-      Activity statusActivity = status.activityRef.get();
-      if (null == statusActivity) {
+      if (null == statusIterator.next().activityRef.get()) {
         statusIterator.remove();
-      } else if (activity == statusActivity) {
-        needsAdd = false;
-        status.lifecycleStage = stage;
+      } else {
+        count++;
       }
     }
+    return count;
+  }
+
+  void signalLifecycleChange(Stage stage, Activity activity) {
+    Log.d(TAG, "Lifecycle status change: " + activity + " in: " + stage);
 
-    if (needsAdd) {
-      activityStatuses.add(new ActivityStatus(activity, stage));
+    long now = SystemClock.uptimeMillis();
+    ActivityStatus status = activityStatuses.get(activity);
+    if (null == status) {
+      status = new ActivityStatus(activity, stage);
+      if (stage == Stage.PRE_ON_CREATE) {
+        status.launchTime = now;
+      }
+      activityStatuses.put(activity, status);
+    } else {
+      stageBuckets.get(status.lifecycleStage).remove(status);
+      stageSnapshots.remove(status.lifecycleStage);
+      status.lifecycleStage = stage;
+    }
+    stageBuckets.get(stage).add(status);
+    stageSnapshots.remove(stage);
+    if (stage == Stage.RESUMED && status.resumeTime < 0) {
+      status.resumeTime = now;
+      if (status.launchTime >= 0) {
+        // once per activity, rather than on every lookup while it stays resumed.
+        Log.i(TAG, String.format("%s resumed %d ms after launch.", activity,
+            status.resumeTime - status.launchTime));
+      }
     }
 
-    synchronized (callbacks) {
-      Iterator<WeakReference<ActivityLifecycleCallback>> refIter = callbacks.iterator();
-      while (refIter.hasNext()) {
-        ActivityLifecycleCallback callback = refIter.next().get();
-        if (null == callback) {
-          refIter.remove();
-        } else {
-          try {
-            Log.d(TAG, "running callback: " + callback);
-            callback.onActivityLifecycleChanged(activity, stage);
-            Log.d(TAG, "callback completes: " + callback);
-          } catch (RuntimeException re) {
-            Log.e(
-                TAG,
-                String.format(
-                    "Callback threw exception! (callback: %s activity: %s stage: %s)",
-                    callback,
-                    activity,
-                    stage),
-                re);
-          }
+    for (WeakReference<ActivityLifecycleCallback> ref : callbacks) {
+      ActivityLifecycleCallback callback = ref.get();
+      if (null == callback) {
+        callbacks.remove(ref);
+      } else {
+        try {
+          Log.d(TAG, "running callback: " + callback);
+          callback.onActivityLifecycleChanged(activity, stage);
+          Log.d(TAG, "callback completes: " + callback);
+        } catch (RuntimeException re) {
+          Log.e(
+              TAG,
+              String.format(
+                  "Callback threw exception! (callback: %s activity: %s stage: %s)",
+                  callback,
+                  activity,
+                  stage),
+              re);
         }
       }
     }
@@ -173,6 +235,9 @@ final class ActivityLifecycleMonitorImpl implements ActivityLifecycleMonitor {
   private static class ActivityStatus {
     private final WeakReference<Activity> activityRef;
     private Stage lifecycleStage;
+    // uptime millis, -1 while unknown.
+    private long launchTime = -1;
+    private long resumeTime = -1;
 
     ActivityStatus(Activity activity, Stage stage) {
       this.activityRef = new WeakReference<Activity>(checkNotNull(activity));
@@ -0,0 +1,25 @@
+package com.google.android.apps.common.testing.testrunner;
+
+/**
+ * An {@link ActivityLifecycleMonitor} which can also count the activities in a stage of their
+ * lifecycle.
+ * <p>
+ * Callers holding a plain {@link ActivityLifecycleMonitor} should check for this interface and
+ * fall back to the size of {@link #getActivitiesInStage(Stage)}.
+ * </p>
+ */
+public interface CountingActivityLifecycleMonitor extends ActivityLifecycleMonitor {
+
+  /**
+   * Returns how many activities are in a given stage of their lifecycle, without building the
+   * collection {@link #getActivitiesInStage(Stage)} would return.
+   * <p>
+   * The same threading rules as for {@link #getActivitiesInStage(Stage)} apply.
+   * </p>
+   *
+   * @param stage the stage to query for.
+   * @return the number of activities in the given stage.
+   * @throws IllegalStateException if called from outside the main thread.
+   */
+  int getActivityCountInStage(Stage stage);
+}
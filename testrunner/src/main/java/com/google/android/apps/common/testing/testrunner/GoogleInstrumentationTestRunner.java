@@ -1,5 +1,7 @@
 package com.google.android.apps.common.testing.testrunner;
 
+import static com.google.android.apps.common.testing.testrunner.util.Checks.checkNotNull;
+
 import android.app.Activity;
 import android.app.Application;
 import android.app.Instrumentation;
@@ -22,6 +24,7 @@ import junit.framework.TestListener;
 import junit.framework.TestSuite;
 
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -37,6 +40,7 @@ GoogleInstrumentation
   private static final long MILLIS_TO_WAIT_FOR_ACTIVITY_TO_STOP = TimeUnit.SECONDS.toMillis(2);
   private static final String LOG_TAG = "GoogleInstrTest";
   private BridgeTestRunner bridgeTestRunner = new BridgeTestRunner();
+  private final List<TestListener> testListeners = new CopyOnWriteArrayList<TestListener>();
 
 
   @Override
@@ -127,6 +131,14 @@ GoogleInstrumentation
     return bridgeTestRunner.getAndroidTestRunner();
   }
 
+  /**
+   * Adds a listener that is informed about all tests from now on, including the one currently
+   * running. Unlike listeners given to the AndroidTestRunner, these may be added while tests run.
+   */
+  public void addTestListener(TestListener listener) {
+    testListeners.add(checkNotNull(listener));
+  }
+
   @Override
   public void start() {
     List<TestCase> testCases = bridgeTestRunner.getAndroidTestRunner().getTestCases();
@@ -136,18 +148,30 @@ GoogleInstrumentation
       @Override
       public void startTest(Test test) {
         runOnMainSync(new ActivityFinisher());
+        for (TestListener listener : testListeners) {
+          listener.startTest(test);
+        }
       }
 
       @Override
       public void endTest(Test test) {
+        for (TestListener listener : testListeners) {
+          listener.endTest(test);
+        }
       }
 
       @Override
       public void addFailure(Test test, AssertionFailedError ae) {
+        for (TestListener listener : testListeners) {
+          listener.addFailure(test, ae);
+        }
       }
 
       @Override
       public void addError(Test test, Throwable t) {
+        for (TestListener listener : testListeners) {
+          listener.addError(test, t);
+        }
       }
     });
     super.start();